@@ -1,3 +1,11 @@
-call javac -cp ./lib/vecmath.jar -d bin src/stephen/ranger/ar/*.java src/stephen/ranger/ar/bounds/*.java src/stephen/ranger/ar/lighting/*.java src/stephen/ranger/ar/sceneObjects/*.java src/stephen/ranger/ar/materials/*.java src/stephen/ranger/ar/photons/*.java
-call java -Xmx4g -cp ./lib/vecmath.jar;./bin;./resources stephen.ranger.ar.RayTracer D:\D\
+set MODULES=jdk.incubator.vector
+set SOURCES=src/stephen/ranger/ar/*.java src/stephen/ranger/ar/bounds/*.java src/stephen/ranger/ar/lighting/*.java src/stephen/ranger/ar/sceneObjects/*.java src/stephen/ranger/ar/materials/*.java src/stephen/ranger/ar/photons/*.java
+rem jdk.incubator.foreign only exists up to JDK 18, so it and the class that uses it are only added when the JDK has it
+java --list-modules | findstr /b "jdk.incubator.foreign@" > nul
+if not errorlevel 1 (
+   set MODULES=jdk.incubator.vector,jdk.incubator.foreign
+   set SOURCES=%SOURCES% src-incubator/stephen/ranger/ar/bounds/*.java
+)
+call javac --release 17 --add-modules %MODULES% -cp ./lib/vecmath.jar -d bin %SOURCES%
+call java -Xmx4g --add-modules %MODULES% -cp ./lib/vecmath.jar;./bin;./resources stephen.ranger.ar.RayTracer D:\D\
 pause
\ No newline at end of file
@@ -1,10 +1,19 @@
 #!/bin/bash
 
-javac -cp ./lib/vecmath.jar -d bin src/stephen/ranger/ar/*.java src/stephen/ranger/ar/bounds/*.java src/stephen/ranger/ar/lighting/*.java src/stephen/ranger/ar/sceneObjects/*.java src/stephen/ranger/ar/materials/*.java src/stephen/ranger/ar/photons/*.java
+# jdk.incubator.foreign only exists up to JDK 18, so it and the class that uses it are only added when the JDK has it
+MODULES=jdk.incubator.vector
+SOURCES="src/stephen/ranger/ar/*.java src/stephen/ranger/ar/bounds/*.java src/stephen/ranger/ar/lighting/*.java src/stephen/ranger/ar/sceneObjects/*.java src/stephen/ranger/ar/materials/*.java src/stephen/ranger/ar/photons/*.java"
+
+if java --list-modules | grep -q '^jdk.incubator.foreign@'; then
+   MODULES=$MODULES,jdk.incubator.foreign
+   SOURCES="$SOURCES src-incubator/stephen/ranger/ar/bounds/*.java"
+fi
+
+javac --release 17 --add-modules $MODULES -cp ./lib/vecmath.jar -d bin $SOURCES
 
 cp resources/* bin
 cd bin
 jar cf ../dist/stephen.ranger.ar.raytracer.jar *
 cd ..
 
-java -Xmx128g -cp .:./lib/vecmath.jar:./dist/stephen.ranger.ar.raytracer.jar stephen.ranger.ar.RayTracer $1
\ No newline at end of file
+java -Xmx12g --add-modules $MODULES -cp .:./lib/vecmath.jar:./dist/stephen.ranger.ar.raytracer.jar stephen.ranger.ar.RayTracer $1
\ No newline at end of file
@@ -0,0 +1,35 @@
+package stephen.ranger.ar.bounds;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+
+/**
+ * Memory segments of one shared ResourceScope, freed as soon as close is called. This is the only class that uses
+ * jdk.incubator.foreign, which only JDK 17 and 18 have, so it is kept out of src and the run scripts only compile it
+ * when the module is present; OffHeapMesh loads it by name.
+ */
+public class IncubatorNativeMemory implements NativeMemory {
+   private final ResourceScope scope = ResourceScope.newSharedScope();
+
+   @Override
+   public ByteBuffer allocate(final long byteCount) {
+      return MemorySegment.allocateNative(byteCount, this.scope).asByteBuffer().order(ByteOrder.nativeOrder());
+   }
+
+   @Override
+   public void close() {
+      synchronized (this.scope) {
+         if (this.scope.isAlive()) {
+            this.scope.close();
+         }
+      }
+   }
+
+   @Override
+   public boolean isOpen() {
+      return this.scope.isAlive();
+   }
+}
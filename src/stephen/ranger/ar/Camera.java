@@ -16,6 +16,7 @@ import javax.vecmath.Matrix4f;
 import javax.vecmath.Vector3f;
 
 import stephen.ranger.ar.bounds.BoundingVolume;
+import stephen.ranger.ar.bounds.SceneBVH;
 import stephen.ranger.ar.lighting.Light;
 import stephen.ranger.ar.lighting.LightingModel;
 
@@ -23,7 +24,9 @@ public class Camera {
    private static final int nodeSize = 128;
 
    public final Matrix4f rotation;
+   public final Scene scene;
    public final BoundingVolume[] objects;
+   public final SceneBVH bvh;
    public final LightingModel lightingModel;
    public final Light light;
    public final int multiSamples, brdfSamples;
@@ -38,7 +41,9 @@ public class Camera {
    public final float[][][] pixels;
 
    public Camera(final Scene scene, final int multiSamples, final int brdfSamples, final float nearPlane, final int screenWidth, final int screenHeight) {
+      this.scene = scene;
       this.objects = scene.objects;
+      this.bvh = scene.bvh;
       this.lightingModel = scene.lightingModel;
       this.light = scene.light;
       this.multiSamples = multiSamples;
@@ -90,6 +95,10 @@ public class Camera {
       System.out.println("camera location:  " + this.origin);
       System.out.println("camera direction: " + viewportDirection);
 
+      for (final BoundingVolume object : this.objects) {
+         object.setCamera(this);
+      }
+
       this.lightingModel.setCamera(this);
    }
 
@@ -116,7 +125,13 @@ public class Camera {
       return this.image;
    }
 
+   /**
+    * Renders the image in the background. The scene is held until the image is finished, so closing it meanwhile waits
+    * for the render.
+    */
    public void createImage() {
+      this.scene.beginRender();
+
       new Thread() {
          @Override
          public void run() {
@@ -126,6 +141,16 @@ public class Camera {
             final float yInc = -Camera.this.viewportHeight / Camera.this.screenHeight;
             final long startTime = System.nanoTime();
 
+            RTStatics.setProgressBarMinMax(0, Camera.this.image.getWidth() * Camera.this.image.getHeight());
+            RTStatics.setProgressBarValue(0);
+            RTStatics.setProgressBarString("Rendering image...");
+
+            if (RTStatics.WAVEFRONT_RENDERING) {
+               new WavefrontRenderer(Camera.this, xStart, yStart, xInc, yInc).render();
+               Camera.this.finishImage(startTime);
+               return;
+            }
+
             final int cpus = Runtime.getRuntime().availableProcessors();
             final List<RenderThread> threads = new ArrayList<RenderThread>();
             final Random random = new Random();
@@ -136,16 +161,13 @@ public class Camera {
                pixels.add(new ArrayList<int[]>());
             }
 
-            for (int x = 0; x < Camera.this.image.getWidth(); x++) {
-               for (int y = 0; y < Camera.this.image.getHeight(); y++) {
+            // each entry is the top left pixel of a square block that is traced as one packet
+            for (int x = 0; x < Camera.this.image.getWidth(); x += RTStatics.PACKET_SIZE) {
+               for (int y = 0; y < Camera.this.image.getHeight(); y += RTStatics.PACKET_SIZE) {
                   pixels.get(random.nextInt(cpus)).add(new int[] { x, y });
                }
             }
 
-            RTStatics.setProgressBarMinMax(0, Camera.this.image.getWidth() * Camera.this.image.getHeight());
-            RTStatics.setProgressBarValue(0);
-            RTStatics.setProgressBarString("Rendering image...");
-
             final ActionListener threadListener = new ActionListener() {
                double totalTime = 0;
 
@@ -159,24 +181,14 @@ public class Camera {
                   Camera.this.sendUpdate();
 
                   if (threads.size() == 0) {
-                     final long endTime = System.nanoTime();
-
-                     System.out.println("total elapsed time: " + (endTime - startTime) / 1000000000. + " seconds");
                      System.out.println("total cpu time:     " + this.totalTime + " seconds");
-
-                     RTStatics.setProgressBarValue(Camera.this.image.getWidth() * Camera.this.image.getHeight());
-                     RTStatics.setProgressBarString("Rendered image completed!");
-
-                     for (final ActionListener listener : Camera.this.listeners) {
-                        listener.actionPerformed(new ActionEvent(this, 1, "finished"));
-                     }
-                     Camera.this.listeners.clear();
+                     Camera.this.finishImage(startTime);
                   }
                }
             };
 
             for (int i = 0; i < cpus; i++) {
-               System.out.println("creating thread #" + i + " with " + pixels.get(i).size() + " pixels");
+               System.out.println("creating thread #" + i + " with " + pixels.get(i).size() + " blocks of " + RTStatics.PACKET_SIZE + "x" + RTStatics.PACKET_SIZE + " pixels");
                threads.add(new RenderThread(Camera.this, pixels.get(i), xStart, yStart, xInc, yInc, threadListener, i));
                threads.get(i).start();
             }
@@ -184,6 +196,29 @@ public class Camera {
       }.start();
    }
 
+   /**
+    * Reports the render time and tells the listeners the image is finished.
+    */
+   private void finishImage(final long startTime) {
+      final long endTime = System.nanoTime();
+
+      System.out.println("total elapsed time: " + (endTime - startTime) / 1000000000. + " seconds");
+
+      RTStatics.setProgressBarValue(this.image.getWidth() * this.image.getHeight());
+      RTStatics.setProgressBarString("Rendered image completed!");
+
+      for (final BoundingVolume object : this.objects) {
+         object.imageFinished();
+      }
+
+      this.scene.endRender();
+
+      for (final ActionListener listener : this.listeners) {
+         listener.actionPerformed(new ActionEvent(this, 1, "finished"));
+      }
+      this.listeners.clear();
+   }
+
    public void sendUpdate() {
       for (final ActionListener listener : this.listeners) {
          listener.actionPerformed(new ActionEvent(this, 2, "update"));
@@ -197,21 +232,18 @@ public class Camera {
          origin = RTStatics.offsetPosition(origin, normal);
       }
 
-      final Ray ray = new Ray(origin, direction);
-      IntersectionInformation closest = null;
-      IntersectionInformation temp = null;
-
-      for (final BoundingVolume object : this.objects) {
-         if (((mirrorObject == null) || !mirrorObject.equals(object)) && object.intersects(ray)) {
-            temp = object.getChildIntersection(ray, depth + 1);
+      return this.bvh.getClosestIntersection(new Ray(origin, direction), mirrorObject, depth);
+   }
 
-            if ((temp != null) && (temp.w > RTStatics.EPSILON) && ((closest == null) || (temp.w < closest.w))) {
-               closest = temp;
-            }
-         }
+   /**
+    * Traces every ray of the packet from the camera and stores the closest intersection of each in results.
+    */
+   public void getClosestIntersections(final RayPacket packet, final IntersectionInformation[] results) {
+      if (packet.size == 1) {
+         results[0] = this.bvh.getClosestIntersection(packet.rays[0], null, 0);
+      } else {
+         this.bvh.getClosestIntersections(packet, null, 0, results);
       }
-
-      return closest;
    }
 
    private void updateNormalizedImage() {
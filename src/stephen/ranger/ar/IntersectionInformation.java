@@ -11,6 +11,12 @@ public class IntersectionInformation {
    public final float w;
    public final BoundingVolume intersectionObject;
    public final Ray ray;
+   /**
+    * The closest hit of the material's secondary ray, see ColorInformation.getSecondaryRay, when a renderer traced it
+    * before asking for the color of this hit
+    */
+   public IntersectionInformation secondary = null;
+   public boolean secondaryTraced = false;
 
    public IntersectionInformation(final Ray ray, final BoundingVolume intersectionObject, final Vector3f intersection, final Vector3f normal, /* final Vector3f tangent, */final float w) {
       this.ray = ray;
@@ -1,7 +1,9 @@
 package stephen.ranger.ar;
 
+import java.awt.image.BufferedImage;
 import java.text.DecimalFormat;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 import javax.swing.JProgressBar;
 import javax.vecmath.AxisAngle4f;
@@ -9,7 +11,7 @@ import javax.vecmath.Matrix4f;
 import javax.vecmath.Quat4f;
 import javax.vecmath.Vector3f;
 
-import stephen.ranger.ar.bounds.BoundingVolume;
+import stephen.ranger.ar.bounds.SceneBVH;
 import stephen.ranger.ar.lighting.Light;
 import stephen.ranger.ar.photons.Photon;
 
@@ -23,6 +25,70 @@ public class RTStatics {
    // KD-Tree settings
    public static final int MAX_CHILDREN = 5;
    public static final int MAX_DEPTH = 20;
+   public static KDSplitMethod KD_SPLIT_METHOD = KDSplitMethod.SAH;
+   // a LAZY_KD_TREE builds the nodes above this depth up front and the rest as rays first reach them
+   public static final int KD_LAZY_DEPTH = 6;
+
+   // surface area heuristic settings
+   public static final int SAH_BIN_COUNT = 32;
+   public static final float SAH_TRAVERSAL_COST = 1f;
+   public static final float SAH_INTERSECTION_COST = 1.5f;
+   public static final float SAH_EMPTY_BONUS = 0.2f;
+
+   // BVH settings
+   public static final int BVH_MAX_LEAF_SIZE = 16;
+   public static final int BVH_MAX_DEPTH = 64;
+   // bits per quantized child bound in a COMPRESSED_BVH, 8 or 16
+   public static final int BVH_QUANTIZATION_BITS = 8;
+   // children per node in a WIDE_BVH; 4 or 8 match 128 or 256 bit SIMD registers
+   public static final int BVH_WIDTH = 8;
+   // an SBVH may add up to this fraction of the face count as duplicate references, and only tries spatial splits
+   // where the object split children overlap by more than this fraction of the root surface area
+   public static final float SBVH_DUPLICATION_BUDGET = 0.3f;
+   public static final float SBVH_OVERLAP_THRESHOLD = 1e-5f;
+   // an OUT_OF_CORE_BVH splits its mesh into spatially coherent chunks of at most this many faces, each with its own
+   // BVH, and keeps at most OUT_OF_CORE_CACHE_MB of loaded chunks in memory per mesh
+   public static final int OUT_OF_CORE_CHUNK_FACES = 1 << 16;
+   public static final int OUT_OF_CORE_CACHE_MB = 2048;
+   // meshes with at least LOD_MIN_FACES faces get up to LOD_LEVELS - 1 simplified levels, and a camera selects the
+   // coarsest level whose grid cell spans at most LOD_PIXEL_ERROR pixels at the mesh
+   public static boolean ENABLE_LOD = true;
+   public static final int LOD_LEVELS = 5;
+   public static final int LOD_MIN_FACES = 10000;
+   public static final float LOD_PIXEL_ERROR = 1f;
+   // a refitted tree whose surface area heuristic cost grows past this multiple of its cost after the build is rebuilt
+   public static final float REFIT_REBUILD_RATIO = 1.5f;
+   // the faces meshes trace against can keep their vertex normals octahedral encoded in one int each instead of three
+   // floats, and with QUANTIZED_POSITIONS their vertices as 16 bit offsets in the mesh box instead of float faces
+   public static MeshAttributes MESH_ATTRIBUTES = MeshAttributes.FULL_PRECISION;
+
+   // acceleration structure builds run in this pool; nodes with more faces than the threshold build their children as
+   // separate tasks, and per face passes over more than the grain are split across threads
+   public static final ForkJoinPool BUILD_POOL = new ForkJoinPool();
+   public static final int PARALLEL_BUILD_THRESHOLD = 8192;
+   public static final int PARALLEL_BUILD_GRAIN = 65536;
+
+   // render breadth first with the WavefrontRenderer, in waves of at most WAVEFRONT_QUEUE_SIZE primary rays, instead of
+   // one RenderThread per processor tracing each pixel depth first
+   public static boolean WAVEFRONT_RENDERING = false;
+   public static final int WAVEFRONT_QUEUE_SIZE = 1 << 14;
+   // reflection, refraction and final gather rays of a wave are sorted by direction octant and origin before they are
+   // traced; final gather rays are queued for as many hits as fit in WAVEFRONT_GATHER_QUEUE_SIZE rays at a time
+   public static boolean SORT_SECONDARY_RAYS = true;
+   public static final int WAVEFRONT_GATHER_QUEUE_SIZE = 1 << 16;
+   public static final ForkJoinPool RENDER_POOL = new ForkJoinPool();
+
+   // primary rays are traced in packets of PACKET_SIZE x PACKET_SIZE pixels, at most 8; 1 traces every pixel on its own
+   public static int PACKET_SIZE = 8;
+
+   // print the statistics of every built tree as one line of JSON, e.g. to compare builder settings across models
+   public static boolean PRINT_TREE_STATISTICS = false;
+
+   // parsed meshes and their built trees are stored in a .cache file next to the model and loaded from it next time
+   public static boolean ENABLE_MESH_CACHE = true;
+   // parsed meshes have their faces sorted along a Morton curve and their vertices renumbered in the order the sorted
+   // faces use them, before any tree is built over them
+   public static boolean REORDER_MESHES = true;
 
    public static boolean ENABLE_BACKFACE_CULLING = true;
 
@@ -52,6 +118,26 @@ public class RTStatics {
       }
    }
 
+   public static enum AccelerationStructure {
+      KD_TREE, LAZY_KD_TREE, BVH, COMPRESSED_BVH, WIDE_BVH, SBVH, OUT_OF_CORE_BVH, OFF_HEAP_BVH;
+   }
+
+   public static enum MeshAttributes {
+      /** float normals and a precomputed float vertex and edges per face */
+      FULL_PRECISION,
+      /** normals octahedral encoded in 32 bits */
+      OCTAHEDRAL_NORMALS,
+      /** octahedral normals and vertices quantized to 16 bits per axis, decoded for every face test */
+      QUANTIZED_POSITIONS;
+   }
+
+   public static enum KDSplitMethod {
+      /** splits at the spatial midpoint of the node, cycling X, Y, Z */
+      MIDPOINT,
+      /** binned surface area heuristic over all three axes */
+      SAH;
+   }
+
    private RTStatics() {
       // only static stuff here
    }
@@ -157,6 +243,108 @@ public class RTStatics {
       return txmin < RTStatics.FAR_PLANE && txmax > RTStatics.NEAR_PLANE;
    }
 
+   /**
+    * Returns the distance along the ray at which it enters the given packed box.
+    * 
+    * @param origin
+    *           The ray origin
+    * @param inverseDirection
+    *           The reciprocal of each component of the ray direction, computed once per ray
+    * @param bounds
+    *           The packed boxes, six floats per box in the form of: { minx, miny, minz, maxx, maxy, maxz }
+    * @param offset
+    *           The position in bounds of the box to test
+    * @param tMax
+    *           The far end of the ray interval, e.g. the distance to the closest hit found so far
+    * @return The entry distance (negative if the origin is inside the box) or Float.POSITIVE_INFINITY if the ray
+    *         misses the box within [NEAR_PLANE, tMax]
+    */
+   public static float aabbEntryDistance(final Vector3f origin, final float[] inverseDirection, final float[] bounds, final int offset, final float tMax) {
+      return RTStatics.aabbEntryDistance(origin, inverseDirection, bounds[offset], bounds[offset + 1], bounds[offset + 2], bounds[offset + 3], bounds[offset + 4],
+            bounds[offset + 5], tMax);
+   }
+
+   /**
+    * Same as aabbEntryDistance(Vector3f, float[], float[], int, float) for a box stored as { minx, miny, minz }, {
+    * maxx, maxy, maxz }.
+    */
+   public static float aabbEntryDistance(final Vector3f origin, final float[] inverseDirection, final float[][] minMax, final float tMax) {
+      return RTStatics.aabbEntryDistance(origin, inverseDirection, minMax[0][0], minMax[0][1], minMax[0][2], minMax[1][0], minMax[1][1], minMax[1][2], tMax);
+   }
+
+   private static float aabbEntryDistance(final Vector3f origin, final float[] inverseDirection, final float minX, final float minY, final float minZ, final float maxX,
+         final float maxY, final float maxZ, final float tMax) {
+      float tmin, tmax;
+      final float tymin, tymax, tzmin, tzmax;
+
+      if (inverseDirection[0] >= 0) {
+         tmin = (minX - origin.x) * inverseDirection[0];
+         tmax = (maxX - origin.x) * inverseDirection[0];
+      } else {
+         tmin = (maxX - origin.x) * inverseDirection[0];
+         tmax = (minX - origin.x) * inverseDirection[0];
+      }
+
+      if (inverseDirection[1] >= 0) {
+         tymin = (minY - origin.y) * inverseDirection[1];
+         tymax = (maxY - origin.y) * inverseDirection[1];
+      } else {
+         tymin = (maxY - origin.y) * inverseDirection[1];
+         tymax = (minY - origin.y) * inverseDirection[1];
+      }
+
+      if (tmin > tymax || tymin > tmax) {
+         return Float.POSITIVE_INFINITY;
+      }
+
+      if (tymin > tmin) {
+         tmin = tymin;
+      }
+
+      if (tymax < tmax) {
+         tmax = tymax;
+      }
+
+      if (inverseDirection[2] >= 0) {
+         tzmin = (minZ - origin.z) * inverseDirection[2];
+         tzmax = (maxZ - origin.z) * inverseDirection[2];
+      } else {
+         tzmin = (maxZ - origin.z) * inverseDirection[2];
+         tzmax = (minZ - origin.z) * inverseDirection[2];
+      }
+
+      if (tmin > tzmax || tzmin > tmax) {
+         return Float.POSITIVE_INFINITY;
+      }
+
+      if (tzmin > tmin) {
+         tmin = tzmin;
+      }
+
+      if (tzmax < tmax) {
+         tmax = tzmax;
+      }
+
+      return tmin < Math.min(RTStatics.FAR_PLANE, tMax) && tmax > RTStatics.NEAR_PLANE ? tmin : Float.POSITIVE_INFINITY;
+   }
+
+   /**
+    * Returns the reciprocal of each component of the given direction.
+    * 
+    * @param direction
+    *           The ray direction
+    * @param output
+    *           A float array of size 3 to store the result in
+    * @return output
+    */
+   public static float[] getInverseDirection(final Vector3f direction, final float[] output) {
+      output[0] = 1.0f / direction.x;
+      output[1] = 1.0f / direction.y;
+      output[2] = 1.0f / direction.z;
+
+      return output;
+   }
+
    /**
     * Returns the distance between the two given vertices.
     * 
@@ -232,16 +420,16 @@ public class RTStatics {
    }
 
    /**
-    * Returns the min/max values of the vertices denoted by the given indices.
+    * Returns the min/max values of the vertices of every face.
     * 
     * @param vertices
-    *           The complete set of vertices
+    *           The complete set of vertices, three floats per vertex
     * @param indices
-    *           The indices to find the min/max for. Arbitrary number of faces
+    *           The complete set of faces, three vertex indices per face
     * @param output
     *           A float matrix of size 2x3 to store the minMax value in. This will be stored as: { minx, miny, minz }, { maxx, maxy, maxz }
     */
-   public static void getMinMax(final float[][] vertices, final int[][] indices, final float[][] output) {
+   public static void getMinMax(final float[] vertices, final int[] indices, final float[][] output) {
       output[0][0] = Float.MAX_VALUE;
       output[0][1] = Float.MAX_VALUE;
       output[0][2] = Float.MAX_VALUE;
@@ -250,19 +438,49 @@ public class RTStatics {
       output[1][1] = -Float.MAX_VALUE;
       output[1][2] = -Float.MAX_VALUE;
 
-      for (final int[] face : indices) {
-         for (final int index : face) {
-            output[0][0] = Math.min(output[0][0], vertices[index][0]);
-            output[0][1] = Math.min(output[0][1], vertices[index][1]);
-            output[0][2] = Math.min(output[0][2], vertices[index][2]);
+      for (final int index : indices) {
+         RTStatics.addToMinMax(vertices, index, output);
+      }
+   }
 
-            output[1][0] = Math.max(output[1][0], vertices[index][0]);
-            output[1][1] = Math.max(output[1][1], vertices[index][1]);
-            output[1][2] = Math.max(output[1][2], vertices[index][2]);
-         }
+   /**
+    * Returns the min/max values of the vertices of the given faces.
+    * 
+    * @param vertices
+    *           The complete set of vertices, three floats per vertex
+    * @param indices
+    *           The complete set of faces, three vertex indices per face
+    * @param faces
+    *           The positions in indices of the faces to find the min/max for
+    * @param output
+    *           A float matrix of size 2x3 to store the minMax value in. This will be stored as: { minx, miny, minz }, { maxx, maxy, maxz }
+    */
+   public static void getMinMax(final float[] vertices, final int[] indices, final int[] faces, final float[][] output) {
+      output[0][0] = Float.MAX_VALUE;
+      output[0][1] = Float.MAX_VALUE;
+      output[0][2] = Float.MAX_VALUE;
+
+      output[1][0] = -Float.MAX_VALUE;
+      output[1][1] = -Float.MAX_VALUE;
+      output[1][2] = -Float.MAX_VALUE;
+
+      for (final int face : faces) {
+         RTStatics.addToMinMax(vertices, indices[face * 3], output);
+         RTStatics.addToMinMax(vertices, indices[face * 3 + 1], output);
+         RTStatics.addToMinMax(vertices, indices[face * 3 + 2], output);
       }
    }
 
+   private static void addToMinMax(final float[] vertices, final int index, final float[][] output) {
+      output[0][0] = Math.min(output[0][0], vertices[index * 3]);
+      output[0][1] = Math.min(output[0][1], vertices[index * 3 + 1]);
+      output[0][2] = Math.min(output[0][2], vertices[index * 3 + 2]);
+
+      output[1][0] = Math.max(output[1][0], vertices[index * 3]);
+      output[1][1] = Math.max(output[1][1], vertices[index * 3 + 1]);
+      output[1][2] = Math.max(output[1][2], vertices[index * 3 + 2]);
+   }
+
    public static void getMinMax(final Photon[] photons, final float[][] output) {
       output[0][0] = Float.MAX_VALUE;
       output[0][1] = Float.MAX_VALUE;
@@ -284,16 +502,18 @@ public class RTStatics {
    }
 
    /**
-    * Returns the min/max values of the vertices denoted by the given indices.
+    * Returns the min/max values of the vertices of a single face.
     * 
     * @param vertices
-    *           The complete set of vertices
+    *           The complete set of vertices, three floats per vertex
     * @param indices
-    *           The indices to find the min/max for. Single face
+    *           The complete set of faces, three vertex indices per face
+    * @param face
+    *           The position in indices of the face
     * @param output
     *           A float matrix of size 2x3 to store the minMax value in. This will be stored as: { minx, miny, minz }, { maxx, maxy, maxz }
     */
-   public static void getMinMax(final float[][] vertices, final int[] indices, final float[][] output) {
+   public static void getMinMax(final float[] vertices, final int[] indices, final int face, final float[][] output) {
       output[0][0] = Float.MAX_VALUE;
       output[0][1] = Float.MAX_VALUE;
       output[0][2] = Float.MAX_VALUE;
@@ -302,29 +522,59 @@ public class RTStatics {
       output[1][1] = -Float.MAX_VALUE;
       output[1][2] = -Float.MAX_VALUE;
 
-      for (final int index : indices) {
-         output[0][0] = Math.min(output[0][0], vertices[index][0]);
-         output[0][1] = Math.min(output[0][1], vertices[index][1]);
-         output[0][2] = Math.min(output[0][2], vertices[index][2]);
+      RTStatics.addToMinMax(vertices, indices[face * 3], output);
+      RTStatics.addToMinMax(vertices, indices[face * 3 + 1], output);
+      RTStatics.addToMinMax(vertices, indices[face * 3 + 2], output);
+   }
 
-         output[1][0] = Math.max(output[1][0], vertices[index][0]);
-         output[1][1] = Math.max(output[1][1], vertices[index][1]);
-         output[1][2] = Math.max(output[1][2], vertices[index][2]);
+   /**
+    * Returns the surface area of the given bounding box.
+    * 
+    * @param minMax
+    *           The box stored as: { minx, miny, minz }, { maxx, maxy, maxz }
+    * @return The surface area of the box or 0 if the box is empty
+    */
+   public static float getSurfaceArea(final float[][] minMax) {
+      final float dx = minMax[1][0] - minMax[0][0];
+      final float dy = minMax[1][1] - minMax[0][1];
+      final float dz = minMax[1][2] - minMax[0][2];
+
+      if (dx < 0 || dy < 0 || dz < 0) {
+         return 0;
       }
+
+      return 2f * (dx * dy + dy * dz + dz * dx);
    }
 
    /**
-    * Computes the normal from the given vertices.
+    * Spreads the low 10 bits of value so there are two zero bits between each, so that three spread coordinates
+    * shifted by 0, 1 and 2 bits and or'ed together give their Morton code.
+    */
+   public static int spreadBits(int value) {
+      value &= 0x3ff;
+      value = (value | value << 16) & 0x030000ff;
+      value = (value | value << 8) & 0x0300f00f;
+      value = (value | value << 4) & 0x030c30c3;
+      value = (value | value << 2) & 0x09249249;
+
+      return value;
+   }
+
+   /**
+    * Computes the normal of a face.
     * 
     * @param vertices
-    *           A array matrix of size 3x3 with three x,y,z triplets in counter-clockwise order
+    *           The complete set of vertices, three floats per vertex
+    * @param indices
+    *           The complete set of faces, three vertex indices per face, in counter-clockwise order
+    * @param face
+    *           The position in indices of the face
     * @return The normal of the given triangle
     */
-   public static float[] computeNormal(final float[][] vertices, final int[] indices) {
-      final Vector3f e1 = new Vector3f(vertices[indices[1]][0] - vertices[indices[0]][0], vertices[indices[1]][1] - vertices[indices[0]][1],
-            vertices[indices[1]][2] - vertices[indices[0]][2]);
-      final Vector3f e2 = new Vector3f(vertices[indices[2]][0] - vertices[indices[0]][0], vertices[indices[2]][1] - vertices[indices[0]][1],
-            vertices[indices[2]][2] - vertices[indices[0]][2]);
+   public static float[] computeNormal(final float[] vertices, final int[] indices, final int face) {
+      final int i0 = indices[face * 3] * 3, i1 = indices[face * 3 + 1] * 3, i2 = indices[face * 3 + 2] * 3;
+      final Vector3f e1 = new Vector3f(vertices[i1] - vertices[i0], vertices[i1 + 1] - vertices[i0 + 1], vertices[i1 + 2] - vertices[i0 + 2]);
+      final Vector3f e2 = new Vector3f(vertices[i2] - vertices[i0], vertices[i2 + 1] - vertices[i0 + 1], vertices[i2 + 2] - vertices[i0 + 2]);
       final Vector3f normal = new Vector3f();
       normal.cross(e1, e2);
       normal.normalize();
@@ -433,6 +683,33 @@ public class RTStatics {
       }
    }
 
+   /**
+    * Prints how many pixels of two renders of the same size differ and the largest difference of any of their 8 bit
+    * color channels, to measure what a setting such as MESH_ATTRIBUTES changes in the image.
+    */
+   public static void compareImages(final BufferedImage previous, final BufferedImage current) {
+      int differingPixels = 0;
+      int largestDifference = 0;
+
+      for (int x = 0; x < current.getWidth(); x++) {
+         for (int y = 0; y < current.getHeight(); y++) {
+            final int a = previous.getRGB(x, y);
+            final int b = current.getRGB(x, y);
+
+            if (a != b) {
+               differingPixels++;
+
+               for (int shift = 0; shift < 24; shift += 8) {
+                  largestDifference = Math.max(largestDifference, Math.abs((a >> shift & 0xff) - (b >> shift & 0xff)));
+               }
+            }
+         }
+      }
+
+      System.out.println(differingPixels + " of " + current.getWidth() * current.getHeight() + " pixels differ from the previous render, largest channel difference "
+            + largestDifference + " of 255");
+   }
+
    /**
     * http://jgt.akpeters.com/papers/SmithLyons96/hsv_rgb.html
     * 
@@ -614,28 +891,17 @@ public class RTStatics {
       return intersection;
    }
 
-   public static boolean shadowIntersects(final Light light, final BoundingVolume[] objects, final IntersectionInformation info, final int depth) {
+   /**
+    * Returns true if anything in the scene lies between the given intersection and the light.
+    */
+   public static boolean shadowIntersects(final Light light, final SceneBVH bvh, final IntersectionInformation info) {
       final Vector3f shadowRayDirection = new Vector3f();
       shadowRayDirection.sub(light.origin, info.intersection);
       shadowRayDirection.normalize();
 
-      final Ray shadowRay = new Ray(RTStatics.offsetPosition(info.intersection, info.normal), shadowRayDirection);
-      IntersectionInformation shadowInfo = null;
-
-      for (final BoundingVolume object : objects) {
-         shadowInfo = object.getChildIntersection(shadowRay, depth + 1);
-
-         if (shadowInfo != null && shadowInfo.w > RTStatics.EPSILON) {
-            final float lightDistance = RTStatics.getDistance(shadowInfo.intersection, light.origin);
-
-            if (shadowInfo.w < lightDistance + RTStatics.EPSILON) {
-               return true;
-            }
-         }
-         //         }
-      }
+      final Vector3f origin = RTStatics.offsetPosition(info.intersection, info.normal);
 
-      return false;
+      return bvh.occluded(origin, shadowRayDirection, RTStatics.getDistance(origin, light.origin));
    }
 
    /**
@@ -0,0 +1,149 @@
+package stephen.ranger.ar;
+
+import javax.vecmath.Vector3f;
+
+import stephen.ranger.ar.bounds.TriangleHit;
+
+/**
+ * A group of coherent rays, e.g. the primary rays of a square block of pixels, traced through the acceleration
+ * structures together. Traversal keeps the index of the first ray that is still active in each subtree; a node is
+ * entered if the packet's interval test cannot rule it out and some ray from that index on hits its box, so the box
+ * fetch and the culling test are shared by the whole packet.
+ */
+public class RayPacket {
+   public final Ray[] rays;
+   public final float[][] inverseDirections;
+   /** The closest hit distance so far for each ray */
+   public final float[] tMax;
+   /** Per ray hit records for mesh leaf tests */
+   public final TriangleHit[] hits;
+   public int size = 0;
+
+   private final float[] originMin = new float[3];
+   private final float[] originMax = new float[3];
+   private final float[] inverseMin = new float[3];
+   private final float[] inverseMax = new float[3];
+   private boolean coherent = false;
+
+   /**
+    * @param capacity
+    *           The largest number of rays in the packet, at most 64
+    */
+   public RayPacket(final int capacity) {
+      if (capacity < 1 || capacity > 64) {
+         throw new IllegalArgumentException("Ray packets hold between 1 and 64 rays, not " + capacity);
+      }
+
+      this.rays = new Ray[capacity];
+      this.inverseDirections = new float[capacity][3];
+      this.tMax = new float[capacity];
+      this.hits = new TriangleHit[capacity];
+
+      for (int i = 0; i < capacity; i++) {
+         this.hits[i] = new TriangleHit();
+      }
+   }
+
+   public void clear() {
+      this.size = 0;
+   }
+
+   /**
+    * Adds a ray with copies of the given origin and direction.
+    */
+   public void add(final Vector3f origin, final Vector3f direction) {
+      final Ray ray = new Ray(new Vector3f(origin), new Vector3f(direction));
+      final float[] inverseDirection = RTStatics.getInverseDirection(ray.direction, this.inverseDirections[this.size]);
+
+      for (int a = 0; a < 3; a++) {
+         final float o = a == 0 ? origin.x : a == 1 ? origin.y : origin.z;
+
+         this.originMin[a] = this.size == 0 ? o : Math.min(this.originMin[a], o);
+         this.originMax[a] = this.size == 0 ? o : Math.max(this.originMax[a], o);
+         this.inverseMin[a] = this.size == 0 ? inverseDirection[a] : Math.min(this.inverseMin[a], inverseDirection[a]);
+         this.inverseMax[a] = this.size == 0 ? inverseDirection[a] : Math.max(this.inverseMax[a], inverseDirection[a]);
+      }
+
+      this.rays[this.size] = ray;
+      this.tMax[this.size] = Float.POSITIVE_INFINITY;
+      this.size++;
+
+      // the interval test needs finite inverse directions with the same sign on every axis, and only pays off for more
+      // than one ray
+      this.coherent = this.size > 1;
+
+      for (int a = 0; a < 3; a++) {
+         this.coherent &= !Float.isInfinite(this.inverseMin[a]) && !Float.isInfinite(this.inverseMax[a]) && (this.inverseMin[a] >= 0 || this.inverseMax[a] < 0);
+      }
+   }
+
+   /**
+    * Returns the index of the first ray from the given index on that hits the given packed box before its tMax, or
+    * size if none does.
+    */
+   public int getFirstHit(final float[] bounds, final int offset, final int first) {
+      if (this.coherent && this.missesAll(bounds, offset)) {
+         return this.size;
+      }
+
+      for (int r = first; r < this.size; r++) {
+         if (RTStatics.aabbEntryDistance(this.rays[r].origin, this.inverseDirections[r], bounds, offset, this.tMax[r]) < this.tMax[r]) {
+            return r;
+         }
+      }
+
+      return this.size;
+   }
+
+   /**
+    * Returns a mask with bit r set for every ray from the given index on that hits the given packed box before its
+    * tMax.
+    */
+   public long getHitMask(final float[] bounds, final int offset, final int first) {
+      long mask = 0;
+
+      for (int r = first; r < this.size; r++) {
+         if (RTStatics.aabbEntryDistance(this.rays[r].origin, this.inverseDirections[r], bounds, offset, this.tMax[r]) < this.tMax[r]) {
+            mask |= 1L << r;
+         }
+      }
+
+      return mask;
+   }
+
+   /**
+    * Conservative slab test over the intervals spanned by the packet's origins and inverse directions. Returns true only
+    * if no ray in the packet can hit the box.
+    */
+   private boolean missesAll(final float[] bounds, final int offset) {
+      float near = Float.NEGATIVE_INFINITY;
+      float far = Float.POSITIVE_INFINITY;
+
+      for (int a = 0; a < 3; a++) {
+         final float min = bounds[offset + a];
+         final float max = bounds[offset + 3 + a];
+         final float t0 = RayPacket.productMin(min - this.originMax[a], min - this.originMin[a], this.inverseMin[a], this.inverseMax[a]);
+         final float t1 = RayPacket.productMax(min - this.originMax[a], min - this.originMin[a], this.inverseMin[a], this.inverseMax[a]);
+         final float t2 = RayPacket.productMin(max - this.originMax[a], max - this.originMin[a], this.inverseMin[a], this.inverseMax[a]);
+         final float t3 = RayPacket.productMax(max - this.originMax[a], max - this.originMin[a], this.inverseMin[a], this.inverseMax[a]);
+
+         if (this.inverseMin[a] >= 0) {
+            near = Math.max(near, t0);
+            far = Math.min(far, t3);
+         } else {
+            near = Math.max(near, t2);
+            far = Math.min(far, t1);
+         }
+      }
+
+      return near > far || far < RTStatics.NEAR_PLANE || near >= RTStatics.FAR_PLANE;
+   }
+
+   private static float productMin(final float x0, final float x1, final float y0, final float y1) {
+      return Math.min(Math.min(x0 * y0, x0 * y1), Math.min(x1 * y0, x1 * y1));
+   }
+
+   private static float productMax(final float x0, final float x1, final float y0, final float y1) {
+      return Math.max(Math.max(x0 * y0, x0 * y1), Math.max(x1 * y0, x1 * y1));
+   }
+}
@@ -0,0 +1,133 @@
+package stephen.ranger.ar;
+
+import java.util.Arrays;
+
+import javax.vecmath.Vector3f;
+
+/**
+ * A batch of rays in flat arrays, passed between the stages of the WavefrontRenderer. Rays are written by index so a
+ * stage can fill the queue from several threads, and consecutive rays can be marked as a group, e.g. the rays of one
+ * block of pixels that are traced together as a RayPacket. Secondary rays, which leave their hits in every direction,
+ * can be sorted before they are traced so that rays starting close together and heading the same way follow each other
+ * through the scene hierarchy.
+ */
+public class RayQueue {
+   public final float[] origins;
+   public final float[] directions;
+   /** The distance beyond which hits are ignored, for shadow rays */
+   public final float[] tMax;
+   /** A factor the owner scales the ray's result by, e.g. the cosine over the sampling density of a final gather ray */
+   public final float[] weights;
+   /** The sample, or queue entry, each ray belongs to */
+   public final int[] owners;
+   /** The index of the first ray of each group */
+   public final int[] groupStarts;
+   public int size = 0;
+   public int groupCount = 0;
+
+   public RayQueue(final int capacity) {
+      this.origins = new float[capacity * 3];
+      this.directions = new float[capacity * 3];
+      this.tMax = new float[capacity];
+      this.weights = new float[capacity];
+      this.owners = new int[capacity];
+      this.groupStarts = new int[capacity];
+   }
+
+   public int getCapacity() {
+      return this.tMax.length;
+   }
+
+   public void clear() {
+      this.size = 0;
+      this.groupCount = 0;
+   }
+
+   /**
+    * @return The index one past the last ray of the given group
+    */
+   public int getGroupEnd(final int group) {
+      return group + 1 < this.groupCount ? this.groupStarts[group + 1] : this.size;
+   }
+
+   public void set(final int i, final Vector3f origin, final Vector3f direction, final float tMax, final int owner) {
+      this.origins[i * 3] = origin.x;
+      this.origins[i * 3 + 1] = origin.y;
+      this.origins[i * 3 + 2] = origin.z;
+      this.directions[i * 3] = direction.x;
+      this.directions[i * 3 + 1] = direction.y;
+      this.directions[i * 3 + 2] = direction.z;
+      this.tMax[i] = tMax;
+      this.owners[i] = owner;
+      this.weights[i] = 1f;
+   }
+
+   public Vector3f getOrigin(final int i, final Vector3f output) {
+      output.set(this.origins[i * 3], this.origins[i * 3 + 1], this.origins[i * 3 + 2]);
+
+      return output;
+   }
+
+   public Vector3f getDirection(final int i, final Vector3f output) {
+      output.set(this.directions[i * 3], this.directions[i * 3 + 1], this.directions[i * 3 + 2]);
+
+      return output;
+   }
+
+   /**
+    * Sorts the rays by their direction octant and then by the Morton code of their origin on a 512 cell grid over the
+    * origins' bounds, so that consecutive rays start close together and enter the same sides of every box. Owners move
+    * with their rays, so results are scattered back through them. Groups are dropped.
+    */
+   public void sort() {
+      if (this.size < 2) {
+         return;
+      }
+
+      final float[] min = new float[] { Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY };
+      final float[] scale = new float[] { Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY };
+
+      for (int i = 0; i < this.size * 3; i++) {
+         min[i % 3] = Math.min(min[i % 3], this.origins[i]);
+         scale[i % 3] = Math.max(scale[i % 3], this.origins[i]);
+      }
+
+      for (int a = 0; a < 3; a++) {
+         scale[a] = scale[a] > min[a] ? 511.99f / (scale[a] - min[a]) : 0f;
+      }
+
+      // octant in bits 59-61, Morton code in bits 32-58 and the ray index below, so the sort is a plain long sort
+      final long[] keys = new long[this.size];
+
+      for (int i = 0; i < this.size; i++) {
+         int octant = 0;
+         int morton = 0;
+
+         for (int a = 0; a < 3; a++) {
+            octant |= this.directions[i * 3 + a] < 0f ? 1 << a : 0;
+            morton |= RTStatics.spreadBits((int) ((this.origins[i * 3 + a] - min[a]) * scale[a])) << a;
+         }
+
+         keys[i] = (long) (octant << 27 | morton) << 32 | i;
+      }
+
+      Arrays.sort(keys);
+
+      final float[] origins = Arrays.copyOf(this.origins, this.size * 3);
+      final float[] directions = Arrays.copyOf(this.directions, this.size * 3);
+      final float[] tMax = Arrays.copyOf(this.tMax, this.size);
+      final float[] weights = Arrays.copyOf(this.weights, this.size);
+      final int[] owners = Arrays.copyOf(this.owners, this.size);
+
+      for (int i = 0; i < this.size; i++) {
+         final int from = (int) keys[i];
+         System.arraycopy(origins, from * 3, this.origins, i * 3, 3);
+         System.arraycopy(directions, from * 3, this.directions, i * 3, 3);
+         this.tMax[i] = tMax[from];
+         this.weights[i] = weights[from];
+         this.owners[i] = owners[from];
+      }
+
+      this.groupCount = 0;
+   }
+}
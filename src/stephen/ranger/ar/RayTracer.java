@@ -2,9 +2,12 @@ package stephen.ranger.ar;
 
 import java.awt.Color;
 import java.io.File;
+import java.util.Random;
 
+import javax.vecmath.Matrix4f;
 import javax.vecmath.Vector3f;
 
+import stephen.ranger.ar.RTStatics.AccelerationStructure;
 import stephen.ranger.ar.bounds.BoundingVolume;
 import stephen.ranger.ar.lighting.GlobalIlluminationLightingModel;
 import stephen.ranger.ar.lighting.Light;
@@ -15,6 +18,7 @@ import stephen.ranger.ar.materials.CheckerboardMaterial;
 import stephen.ranger.ar.materials.ColorInformation;
 import stephen.ranger.ar.materials.ReflectionMaterial;
 import stephen.ranger.ar.materials.RefractionMaterial;
+import stephen.ranger.ar.sceneObjects.MeshInstance;
 import stephen.ranger.ar.sceneObjects.Plane;
 import stephen.ranger.ar.sceneObjects.Sphere;
 import stephen.ranger.ar.sceneObjects.TriangleMesh;
@@ -25,7 +29,7 @@ public class RayTracer {
    public static enum Scenes {
       CORNELL_BOX_SPHERES("Cornell Box (spheres)"), CORNELL_BOX("Cornell Box"), CORNELL_BOX_PHONG("Cornell Box (Phong)"), WHITTED_SCENE("Whitted Scene"), WHITTED_SCENE_BRDF(
             "Whitted Scene (BRDF)"), STANFORD_BUNNY("Stanford Bunny"), STANFORD_DRAGON("Stanford Dragon"), STANFORD_BUDDHA("Stanford Buddha"), XYZ_DRAGON(
-            "XYZ RGB Dragon"), XYZ_THAI_STATUE("XYZ RGB Thai Statue"), STANFORD_LUCY("Stanford Lucy");
+            "XYZ RGB Dragon"), XYZ_THAI_STATUE("XYZ RGB Thai Statue"), STANFORD_LUCY("Stanford Lucy"), STANFORD_BUNNY_FIELD("Stanford Bunny Field");
 
       public final String title;
       private Scene scene = null;
@@ -34,26 +38,46 @@ public class RayTracer {
          this.title = title;
       }
 
+      /**
+       * Returns this scene, loading it if needed. Loading a scene first closes the other loaded scenes that hold native
+       * memory or out of core chunks, freeing their off heap meshes and chunk caches right away instead of whenever the
+       * garbage collector runs. A scene still being rendered is closed once its render has finished. Scenes on the Java
+       * heap stay loaded, so switching back to them does not load them again.
+       */
       public Scene getScene(final boolean useKDTree) {
          if (scene == null) {
+            for (final Scenes other : Scenes.values()) {
+               if (other.scene != null && other.scene.holdsReleasableMemory()) {
+                  other.close();
+               }
+            }
+
             scene = RayTracer.getScene(this, useKDTree);
          }
 
          return scene;
       }
 
+      private void close() {
+         if (scene != null) {
+            scene.close();
+            scene = null;
+         }
+      }
+
       @Override
       public String toString() {
          return title;
       }
 
       public static void resetKDTreeMeshes() {
-         Scenes.STANFORD_BUNNY.scene = null;
-         Scenes.STANFORD_DRAGON.scene = null;
-         Scenes.STANFORD_BUDDHA.scene = null;
-         Scenes.STANFORD_LUCY.scene = null;
-         Scenes.XYZ_DRAGON.scene = null;
-         Scenes.XYZ_THAI_STATUE.scene = null;
+         Scenes.STANFORD_BUNNY.close();
+         Scenes.STANFORD_DRAGON.close();
+         Scenes.STANFORD_BUDDHA.close();
+         Scenes.STANFORD_LUCY.close();
+         Scenes.XYZ_DRAGON.close();
+         Scenes.XYZ_THAI_STATUE.close();
+         Scenes.STANFORD_BUNNY_FIELD.close();
       }
    }
 
@@ -110,34 +134,37 @@ public class RayTracer {
 
       if (scene.equals(Scenes.WHITTED_SCENE)) {
          final BoundingVolume[] volumes = RayTracer.getWhittedObjects(false);
-         return new Scene(volumes, light, new float[] { 0, 0, 0 }, new PhongLightingModel(light, volumes), 35f);
+         return new Scene(volumes, light, new float[] { 0, 0, 0 }, new PhongLightingModel(light), 35f);
       } else if (scene.equals(Scenes.WHITTED_SCENE_BRDF)) {
          final BoundingVolume[] volumes = RayTracer.getWhittedObjects(true);
          return new Scene(volumes, light, new float[] { 0, 0, 0 }, new LightingModel(), 35f);
       } else if (scene.equals(Scenes.STANFORD_BUNNY)) {
          final BoundingVolume[] volumes = new BoundingVolume[] { new TriangleMesh(new File(baseDir, "bunny/reconstruction/bun_zipper.ply"),
                new ColorInformation(Color.white), useKDTree).getBoundingVolume() };
-         return new Scene(volumes, light, new float[] { 0, 0, 0 }, new PhongLightingModel(light, volumes), 15f);
+         return new Scene(volumes, light, new float[] { 0, 0, 0 }, new PhongLightingModel(light), 15f);
       } else if (scene.equals(Scenes.STANFORD_DRAGON)) {
          final BoundingVolume[] volumes = new BoundingVolume[] { new TriangleMesh(new File(baseDir, "dragon_recon/dragon_vrip.ply"),
                new ColorInformation(new Color(0.9f, 0.9f, 0.9f, 1f)), useKDTree).getBoundingVolume() };
-         return new Scene(volumes, light, new float[] { 0, 0, 0 }, new PhongLightingModel(light, volumes), 23f);
+         return new Scene(volumes, light, new float[] { 0, 0, 0 }, new PhongLightingModel(light), 23f);
       } else if (scene.equals(Scenes.STANFORD_BUDDHA)) {
          final BoundingVolume[] volumes = new BoundingVolume[] { new TriangleMesh(new File(baseDir, "happy_recon/happy_vrip.ply"),
                new ColorInformation(Color.white), useKDTree).getBoundingVolume() };
-         return new Scene(volumes, light, new float[] { 180, 0, 0 }, new PhongLightingModel(light, volumes), 10f);
+         return new Scene(volumes, light, new float[] { 180, 0, 0 }, new PhongLightingModel(light), 10f);
       } else if (scene.equals(Scenes.STANFORD_LUCY)) {
          final BoundingVolume[] volumes = new BoundingVolume[] { new TriangleMesh(new File(baseDir, "lucy.ply"), new ColorInformation(Color.white),
-               useKDTree).getBoundingVolume() };
-         return new Scene(volumes, light, new float[] { 0, -90, 0 }, new PhongLightingModel(light, volumes), 10f);
+               useKDTree, AccelerationStructure.OUT_OF_CORE_BVH).getBoundingVolume() };
+         return new Scene(volumes, light, new float[] { 0, -90, 0 }, new PhongLightingModel(light), 10f);
       } else if (scene.equals(Scenes.XYZ_DRAGON)) {
          final BoundingVolume[] volumes = new BoundingVolume[] { new TriangleMesh(new File(baseDir, "xyzrgb_dragon.ply/data"), new ColorInformation(
-               Color.white), useKDTree).getBoundingVolume() };
-         return new Scene(volumes, light2, new float[] { 220, 0, 0 }, new PhongLightingModel(light2, volumes), 20f);
+               Color.white), useKDTree, AccelerationStructure.WIDE_BVH).getBoundingVolume() };
+         return new Scene(volumes, light2, new float[] { 220, 0, 0 }, new PhongLightingModel(light2), 20f);
       } else if (scene.equals(Scenes.XYZ_THAI_STATUE)) {
          final BoundingVolume[] volumes = new BoundingVolume[] { new TriangleMesh(new File(baseDir, "xyzrgb_statuette.ply/data"), new ColorInformation(
-               Color.white), useKDTree).getBoundingVolume() };
-         return new Scene(volumes, light, new float[] { 0, 0, 0 }, new PhongLightingModel(light, volumes), 10f);
+               Color.white), useKDTree, AccelerationStructure.OUT_OF_CORE_BVH).getBoundingVolume() };
+         return new Scene(volumes, light, new float[] { 0, 0, 0 }, new PhongLightingModel(light), 10f);
+      } else if (scene.equals(Scenes.STANFORD_BUNNY_FIELD)) {
+         final BoundingVolume[] volumes = RayTracer.getBunnyField(useKDTree, 16);
+         return new Scene(volumes, light, new float[] { -30, 0, 0 }, new PhongLightingModel(light), 20f);
       } else if (scene.equals(Scenes.CORNELL_BOX)) {
          final BoundingVolume[] volumes = RayTracer.getCornellBox(false, false);
          return new Scene(volumes, cornellLight, new float[] { 180, 0, 0 }, new GlobalIlluminationLightingModel(), 15f);
@@ -146,12 +173,38 @@ public class RayTracer {
          return new Scene(volumes, cornellLight, new float[] { 180, 0, 0 }, new GlobalIlluminationLightingModel(), 15f);
       } else if (scene.equals(Scenes.CORNELL_BOX_PHONG)) {
          final BoundingVolume[] volumes = RayTracer.getCornellBox(true, true);
-         return new Scene(volumes, cornellLight, new float[] { 180, 0, 0 }, new PhongLightingModel(cornellLight, volumes), 15f);
+         return new Scene(volumes, cornellLight, new float[] { 180, 0, 0 }, new PhongLightingModel(cornellLight), 15f);
       }
 
       return null;
    }
 
+   /**
+    * Returns a size x size grid of instances of one bunny mesh, each with its own rotation, scale and color. The bunny is
+    * loaded without levels of detail since instances always trace the full mesh.
+    */
+   private static final BoundingVolume[] getBunnyField(final boolean useKDTree, final int size) {
+      final TriangleMesh bunny = new TriangleMesh(new File(baseDir, "bunny/reconstruction/bun_zipper.ply"), new ColorInformation(Color.white), useKDTree,
+            AccelerationStructure.KD_TREE, false);
+      final BoundingVolume[] volumes = new BoundingVolume[size * size];
+      final Random random = new Random(42);
+      final float spacing = 0.2f;
+
+      for (int x = 0; x < size; x++) {
+         for (int z = 0; z < size; z++) {
+            final Matrix4f transform = new Matrix4f();
+            transform.rotY(random.nextFloat() * 2f * (float) Math.PI);
+            transform.setScale(0.7f + random.nextFloat() * 0.6f);
+            transform.setTranslation(new Vector3f((x - (size - 1) / 2f) * spacing, 0, (z - (size - 1) / 2f) * spacing));
+
+            final Color color = Color.getHSBColor(random.nextFloat(), 0.4f, 1f);
+            volumes[x * size + z] = new MeshInstance(bunny, transform, new ColorInformation(color)).getBoundingVolume();
+         }
+      }
+
+      return volumes;
+   }
+
    private static final BoundingVolume[] getWhittedObjects(final boolean useBRDFs) {
       final Plane plane = new Plane(new Vector3f[] { new Vector3f(-50, 0, -100), new Vector3f(-50, -40, 25), new Vector3f(50, -40, 25),
             new Vector3f(50, 0, -100) }, new CheckerboardMaterial(Color.yellow, Color.red, 10f, 10f, 10f));
@@ -15,6 +15,7 @@ import java.io.PrintStream;
 import javax.swing.BoxLayout;
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
 import javax.swing.JDialog;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
@@ -31,9 +32,13 @@ import javax.swing.SpinnerNumberModel;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
 
+import stephen.ranger.ar.RTStatics.MeshAttributes;
 import stephen.ranger.ar.RayTracer.Scenes;
 
 public class RayTracerInterface extends JFrame {
+   /** The last finished render, compared with the next one of the same size */
+   private BufferedImage previousImage = null;
+
    public RayTracerInterface(final RayTracer rayTracer, final int width, final int height, final int x, final int y, final int imageWidth, final int imageHeight) {
       this.setTitle("Ray-Tracer");
       this.setLocation(x, y);
@@ -49,6 +54,7 @@ public class RayTracerInterface extends JFrame {
       final JLabel sceneLabel = new JLabel("Scene");
       final JLabel imageWidthLabel = new JLabel("Image Width");
       final JLabel imageHeightLabel = new JLabel("Image Height");
+      final JLabel meshAttributesLabel = new JLabel("Mesh Attributes");
 
       final JSpinner multiSamplesField = new JSpinner(new SpinnerNumberModel(1, 1, 400, 1));
       multiSamplesField.setMaximumSize(new Dimension(200, 20));
@@ -115,6 +121,18 @@ public class RayTracerInterface extends JFrame {
          }
       });
 
+      final JComboBox<MeshAttributes> meshAttributesBox = new JComboBox<MeshAttributes>(MeshAttributes.values());
+      meshAttributesBox.setSelectedItem(RTStatics.MESH_ATTRIBUTES);
+      meshAttributesBox.setMaximumSize(new Dimension(200, 20));
+      meshAttributesBox.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(final ActionEvent event) {
+            // the attributes are stored when a mesh is loaded, so the meshes load again for the next render
+            RTStatics.MESH_ATTRIBUTES = meshAttributesBox.getItemAt(meshAttributesBox.getSelectedIndex());
+            RayTracer.Scenes.resetKDTreeMeshes();
+         }
+      });
+
       renderButton.addActionListener(new ActionListener() {
          @Override
          public void actionPerformed(final ActionEvent event) {
@@ -125,6 +143,7 @@ public class RayTracerInterface extends JFrame {
             brdfSamplesField.setEnabled(false);
             renderButton.setEnabled(false);
             closeButton.setEnabled(false);
+            meshAttributesBox.setEnabled(false);
 
             final ActionListener listener = new ActionListener() {
                @Override
@@ -135,6 +154,15 @@ public class RayTracerInterface extends JFrame {
                      @Override
                      public void actionPerformed(final ActionEvent event) {
                         if (event.getID() == 1) {
+                           final BufferedImage image = rayTracer.camera.getImage();
+
+                           if (RayTracerInterface.this.previousImage != null && RayTracerInterface.this.previousImage.getWidth() == image.getWidth()
+                                 && RayTracerInterface.this.previousImage.getHeight() == image.getHeight()) {
+                              RTStatics.compareImages(RayTracerInterface.this.previousImage, image);
+                           }
+
+                           RayTracerInterface.this.previousImage = image;
+
                            sceneScrollPane.setEnabled(true);
                            imageXField.setEnabled(true);
                            imageYField.setEnabled(true);
@@ -142,6 +170,7 @@ public class RayTracerInterface extends JFrame {
                            brdfSamplesField.setEnabled(true);
                            renderButton.setEnabled(true);
                            closeButton.setEnabled(true);
+                           meshAttributesBox.setEnabled(true);
                            iconLabel.revalidate();
 
                            imagePane.repaint();
@@ -239,6 +268,10 @@ public class RayTracerInterface extends JFrame {
       brdfPanel.add(brdfSamplesLabel);
       brdfPanel.add(brdfSamplesField);
 
+      final JPanel meshAttributesPanel = new JPanel(new FlowLayout());
+      meshAttributesPanel.add(meshAttributesLabel);
+      meshAttributesPanel.add(meshAttributesBox);
+
       final JPanel buttonPanel = new JPanel(new FlowLayout());
       buttonPanel.add(renderButton);
       buttonPanel.add(closeButton);
@@ -252,6 +285,7 @@ public class RayTracerInterface extends JFrame {
       sidePanel.add(heightPanel);
       sidePanel.add(multiSamplesPanel);
       sidePanel.add(brdfPanel);
+      sidePanel.add(meshAttributesPanel);
       sidePanel.add(buttonPanel);
       sidePanel.add(progressBar);
       sidePanel.add(saveButton);
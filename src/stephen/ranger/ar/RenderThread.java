@@ -30,37 +30,55 @@ public class RenderThread extends Thread {
    public void run() {
       final Vector3f viewportDirection = new Vector3f();
       final Random random = new Random();
-      IntersectionInformation closest = null;
-      final float[][] colors = new float[camera.multiSamples][];
+      final int packetSize = RTStatics.PACKET_SIZE;
+      final RayPacket packet = new RayPacket(packetSize * packetSize);
+      final IntersectionInformation[] closest = new IntersectionInformation[packetSize * packetSize];
+      final float[][][] colors = new float[packetSize * packetSize][camera.multiSamples][];
       final long startTime = System.nanoTime();
+      int pixelCount = 0;
 
       for (int i = 0; i < pixels.size(); i++) {
-         final int[] pixel = pixels.get(i);
-         final float x = pixel[0] * xInc + xMin;
-         final float y = pixel[1] * yInc + yMin;
+         final int[] block = pixels.get(i);
+         final int width = Math.min(packetSize, camera.screenWidth - block[0]);
+         final int height = Math.min(packetSize, camera.screenHeight - block[1]);
 
          for (int j = 0; j < camera.multiSamples; j++) {
-            viewportDirection.x = j == 0 ? x : x + (random.nextFloat() * 2f - 1f) * xInc / 2f;
-            viewportDirection.y = j == 0 ? y : y + +(random.nextFloat() * 2f - 1f) * yInc / 2f;
-            viewportDirection.z = -camera.nearPlaneDistance;
-            camera.rotation.transform(viewportDirection);
-            viewportDirection.normalize();
-
-            closest = camera.getClosestIntersection(null, camera.origin, viewportDirection, null, 0);
-
-            if (closest != null) {
-               colors[j] = camera.lightingModel.getPixelColor(closest, 0);
-            } else {
-               colors[j] = camera.light.ambient.getColorComponents(new float[3]);
+            packet.clear();
+
+            for (int py = 0; py < height; py++) {
+               for (int px = 0; px < width; px++) {
+                  final float x = (block[0] + px) * xInc + xMin;
+                  final float y = (block[1] + py) * yInc + yMin;
+
+                  viewportDirection.x = j == 0 ? x : x + (random.nextFloat() * 2f - 1f) * xInc / 2f;
+                  viewportDirection.y = j == 0 ? y : y + +(random.nextFloat() * 2f - 1f) * yInc / 2f;
+                  viewportDirection.z = -camera.nearPlaneDistance;
+                  camera.rotation.transform(viewportDirection);
+                  viewportDirection.normalize();
+
+                  packet.add(camera.origin, viewportDirection);
+               }
+            }
+
+            camera.getClosestIntersections(packet, closest);
+
+            for (int r = 0; r < packet.size; r++) {
+               if (closest[r] != null) {
+                  colors[r][j] = camera.lightingModel.getPixelColor(closest[r], 0);
+               } else {
+                  colors[r][j] = camera.light.ambient.getColorComponents(new float[3]);
+               }
             }
          }
 
-         camera.setPixel(pixel[0], pixel[1], RTStatics.computeColorAverage(colors));
+         for (int r = 0; r < width * height; r++) {
+            camera.setPixel(block[0] + r % width, block[1] + r / width, RTStatics.computeColorAverage(colors[r]));
 
-         RTStatics.incrementProgressBarValue(1);
+            RTStatics.incrementProgressBarValue(1);
 
-         if (i % 1000 == 0) {
-            camera.sendUpdate();
+            if (++pixelCount % 1000 == 0) {
+               camera.sendUpdate();
+            }
          }
       }
 
@@ -1,6 +1,7 @@
 package stephen.ranger.ar;
 
 import stephen.ranger.ar.bounds.BoundingVolume;
+import stephen.ranger.ar.bounds.SceneBVH;
 import stephen.ranger.ar.lighting.Light;
 import stephen.ranger.ar.lighting.LightingModel;
 
@@ -10,6 +11,11 @@ public class Scene {
    public final float[] cameraOrientation;
    public final LightingModel lightingModel;
    public final float fov;
+   public final SceneBVH bvh;
+
+   /** The number of renders tracing the scene, and whether close was called while there were any */
+   private int renders = 0;
+   private boolean closePending = false;
 
    public Scene(final BoundingVolume[] objects, final Light light, final float[] cameraOrientation, final LightingModel lightingModel, final float fov) {
       this.objects = objects;
@@ -35,5 +41,70 @@ public class Scene {
       final float maxSpan = Math.max(maxx - minx, Math.max(maxy - miny, maxz - minz));
       RTStatics.EPSILON = (maxSpan < 10) ? 1e-15f : 1e-3f;
       System.out.println("epsilon: " + RTStatics.EPSILON);
+
+      this.bvh = new SceneBVH(objects);
+   }
+
+   /**
+    * Updates the scene hierarchy for the next frame of an animation once its objects have been moved, refitting it
+    * when possible instead of rebuilding it.
+    */
+   public void refit() {
+      final long startTime = System.nanoTime();
+      final boolean rebuilt = this.bvh.refit();
+      final long endTime = System.nanoTime();
+
+      System.out.println("scene " + (rebuilt ? "rebuilt" : "refitted") + " in " + (endTime - startTime) / 1000000. + " ms");
+   }
+
+   /**
+    * Marks the scene as traced by a render until endRender is called.
+    */
+   public synchronized void beginRender() {
+      this.renders++;
+   }
+
+   /**
+    * Ends a render started with beginRender, closing the scene if close was called while it ran.
+    */
+   public synchronized void endRender() {
+      this.renders--;
+
+      if (this.renders == 0 && this.closePending) {
+         this.closePending = false;
+         this.closeObjects();
+      }
+   }
+
+   /**
+    * Frees the memory the scene's objects hold outside the Java heap or in caches, such as the arrays of off heap meshes
+    * and the chunks of out of core meshes, once no render is tracing the scene. The scene must not be traced afterwards.
+    */
+   public synchronized void close() {
+      if (this.renders > 0) {
+         this.closePending = true;
+         System.out.println("closing the scene once its render has finished");
+      } else {
+         this.closeObjects();
+      }
+   }
+
+   private void closeObjects() {
+      for (final BoundingVolume object : this.objects) {
+         object.close();
+      }
+   }
+
+   /**
+    * @return True if any of the scene's objects holds memory that close would free
+    */
+   public boolean holdsReleasableMemory() {
+      for (final BoundingVolume object : this.objects) {
+         if (object.getReleasableByteCount() > 0) {
+            return true;
+         }
+      }
+
+      return false;
    }
 }
@@ -0,0 +1,442 @@
+package stephen.ranger.ar;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.vecmath.Vector3f;
+
+import stephen.ranger.ar.bounds.SceneBVH;
+import stephen.ranger.ar.lighting.Light;
+import stephen.ranger.ar.lighting.LightingModel;
+
+/**
+ * Renders a camera's image breadth first instead of one pixel at a time. The image is cut into waves of at most
+ * RTStatics.WAVEFRONT_QUEUE_SIZE primary rays, and each wave passes through separate stages, each a tight loop over
+ * flat queues run on RTStatics.RENDER_POOL:
+ *
+ * <pre>
+ * generation: the primary rays of every sample of every pixel in the wave, one group per block and sample
+ * extension:  each group traced as a RayPacket through the scene hierarchy, keeping the closest hits
+ * secondary:  the reflection or refraction ray of every hit whose material traces one, sorted and traced together
+ * shadow:     a shadow ray towards the lighting model's light for every hit, all tested for occlusion at once
+ * shading:    the color of every sample from its hit, secondary hit and shadow result
+ * resolve:    the samples of each pixel averaged into the image
+ * </pre>
+ *
+ * Lighting models that final gather, such as global illumination, replace the secondary, shadow and shading stages with
+ * a gather stage that sorts and traces the gather rays of many hits at once. Secondary and gather rays are sorted by
+ * RayQueue.sort so that rays leaving nearby hits in the same direction are traced one after another. Rays below the
+ * first bounce, and the rays of lighting models without a shadow light, are still traced depth first.
+ */
+public class WavefrontRenderer {
+   private final Camera camera;
+   private final float xMin, yMin, xInc, yInc;
+   private final int blockSize = RTStatics.PACKET_SIZE;
+   private final RayQueue rays;
+   private final RayQueue shadowRays;
+   private final RayQueue secondaryRays;
+   private RayQueue gatherRays = null;
+   private float[][] gathered = null;
+   private final int[] gatherStarts;
+   private final IntersectionInformation[] hits;
+   private final int[] shadowIndices;
+   private final boolean[] occluded;
+   private final float[][] colors;
+
+   public WavefrontRenderer(final Camera camera, final float xMin, final float yMin, final float xInc, final float yInc) {
+      this.camera = camera;
+      this.xMin = xMin;
+      this.yMin = yMin;
+      this.xInc = xInc;
+      this.yInc = yInc;
+
+      // a wave holds at least one whole block
+      final int capacity = Math.max(RTStatics.WAVEFRONT_QUEUE_SIZE, this.blockSize * this.blockSize * camera.multiSamples);
+      this.rays = new RayQueue(capacity);
+      this.shadowRays = new RayQueue(capacity);
+      this.secondaryRays = new RayQueue(capacity);
+      this.gatherStarts = new int[capacity];
+      this.hits = new IntersectionInformation[capacity];
+      this.shadowIndices = new int[capacity];
+      this.occluded = new boolean[capacity];
+      this.colors = new float[capacity][];
+   }
+
+   /**
+    * Renders the whole image, returning once every pixel is set.
+    */
+   public void render() {
+      final int capacity = this.rays.getCapacity();
+      final List<int[]> blocks = new ArrayList<int[]>();
+      int waves = 0;
+
+      for (int x = 0; x < this.camera.screenWidth; x += this.blockSize) {
+         for (int y = 0; y < this.camera.screenHeight; y += this.blockSize) {
+            blocks.add(new int[] { x, y, Math.min(this.blockSize, this.camera.screenWidth - x), Math.min(this.blockSize, this.camera.screenHeight - y) });
+         }
+      }
+
+      for (int first = 0; first < blocks.size(); waves++) {
+         int end = first;
+         int rayCount = 0;
+
+         while (end < blocks.size() && rayCount + blocks.get(end)[2] * blocks.get(end)[3] * this.camera.multiSamples <= capacity) {
+            rayCount += blocks.get(end)[2] * blocks.get(end)[3] * this.camera.multiSamples;
+            end++;
+         }
+
+         this.renderWave(blocks.subList(first, end));
+         this.camera.sendUpdate();
+         first = end;
+      }
+
+      System.out.println("rendered " + blocks.size() + " blocks in " + waves + " waves of at most " + capacity + " rays on " + RTStatics.RENDER_POOL.getParallelism()
+            + " threads");
+   }
+
+   private void renderWave(final List<int[]> blocks) {
+      final int samples = this.camera.multiSamples;
+      final int[] blockStarts = new int[blocks.size()];
+
+      // the rays of a block are stored sample by sample, each sample's rays in row order
+      this.rays.clear();
+
+      for (int b = 0; b < blocks.size(); b++) {
+         final int pixelCount = blocks.get(b)[2] * blocks.get(b)[3];
+         blockStarts[b] = this.rays.size;
+
+         for (int j = 0; j < samples; j++) {
+            this.rays.groupStarts[this.rays.groupCount++] = this.rays.size + j * pixelCount;
+         }
+
+         this.rays.size += pixelCount * samples;
+      }
+
+      this.generate(blocks, blockStarts);
+      this.extend();
+      final LightingModel lightingModel = this.camera.lightingModel;
+
+      if (lightingModel.getGatherRayCount() > 0) {
+         this.gather(lightingModel);
+      } else {
+         this.traceSecondaryRays();
+         final Light light = lightingModel.getShadowLight();
+
+         if (light != null) {
+            this.shadow(light);
+         }
+
+         this.shade(light != null);
+      }
+
+      this.resolve(blocks, blockStarts);
+   }
+
+   private void generate(final List<int[]> blocks, final int[] blockStarts) {
+      WavefrontRenderer.forEach(blocks.size(), 16, new Stage() {
+         @Override
+         public void run(final int start, final int end) {
+            final WavefrontRenderer renderer = WavefrontRenderer.this;
+            final Camera camera = renderer.camera;
+            final Vector3f viewportDirection = new Vector3f();
+            final ThreadLocalRandom random = ThreadLocalRandom.current();
+
+            for (int b = start; b < end; b++) {
+               final int[] block = blocks.get(b);
+               int ray = blockStarts[b];
+
+               for (int j = 0; j < camera.multiSamples; j++) {
+                  for (int py = 0; py < block[3]; py++) {
+                     for (int px = 0; px < block[2]; px++) {
+                        final float x = (block[0] + px) * renderer.xInc + renderer.xMin;
+                        final float y = (block[1] + py) * renderer.yInc + renderer.yMin;
+
+                        // the first sample goes through the pixel corner, the others are jittered around it
+                        viewportDirection.x = j == 0 ? x : x + (random.nextFloat() * 2f - 1f) * renderer.xInc / 2f;
+                        viewportDirection.y = j == 0 ? y : y + (random.nextFloat() * 2f - 1f) * renderer.yInc / 2f;
+                        viewportDirection.z = -camera.nearPlaneDistance;
+                        camera.rotation.transform(viewportDirection);
+                        viewportDirection.normalize();
+
+                        renderer.rays.set(ray, camera.origin, viewportDirection, Float.POSITIVE_INFINITY, ray);
+                        ray++;
+                     }
+                  }
+               }
+            }
+         }
+      });
+   }
+
+   private void extend() {
+      WavefrontRenderer.forEach(this.rays.groupCount, 4, new Stage() {
+         @Override
+         public void run(final int start, final int end) {
+            final RayQueue rays = WavefrontRenderer.this.rays;
+            final RayPacket packet = new RayPacket(WavefrontRenderer.this.blockSize * WavefrontRenderer.this.blockSize);
+            final IntersectionInformation[] closest = new IntersectionInformation[packet.rays.length];
+            final Vector3f origin = new Vector3f();
+            final Vector3f direction = new Vector3f();
+
+            for (int g = start; g < end; g++) {
+               final int first = rays.groupStarts[g];
+               final int last = rays.getGroupEnd(g);
+               packet.clear();
+
+               for (int i = first; i < last; i++) {
+                  packet.add(rays.getOrigin(i, origin), rays.getDirection(i, direction));
+               }
+
+               WavefrontRenderer.this.camera.getClosestIntersections(packet, closest);
+               System.arraycopy(closest, 0, WavefrontRenderer.this.hits, first, last - first);
+            }
+         }
+      });
+   }
+
+   /**
+    * Queues the secondary ray of every hit whose material traces one, sorts and traces the queue, and stores each closest
+    * hit with the hit it left from, so the shading stage does not trace it again.
+    */
+   private void traceSecondaryRays() {
+      final RayQueue secondaryRays = this.secondaryRays;
+      secondaryRays.clear();
+
+      for (int i = 0; i < this.rays.size; i++) {
+         final IntersectionInformation info = this.hits[i];
+         final Ray ray = info == null ? null : info.intersectionObject.getColorInformation().getSecondaryRay(info);
+
+         if (ray != null) {
+            secondaryRays.set(secondaryRays.size++, ray.origin, ray.direction, Float.POSITIVE_INFINITY, i);
+         }
+      }
+
+      if (RTStatics.SORT_SECONDARY_RAYS) {
+         secondaryRays.sort();
+      }
+
+      WavefrontRenderer.forEach(secondaryRays.size, 256, new Stage() {
+         @Override
+         public void run(final int start, final int end) {
+            final SceneBVH bvh = WavefrontRenderer.this.camera.bvh;
+
+            for (int s = start; s < end; s++) {
+               final IntersectionInformation info = WavefrontRenderer.this.hits[secondaryRays.owners[s]];
+               final Ray ray = new Ray(secondaryRays.getOrigin(s, new Vector3f()), secondaryRays.getDirection(s, new Vector3f()));
+
+               info.secondary = bvh.getClosestIntersection(ray, info.intersectionObject, 1);
+               info.secondaryTraced = true;
+            }
+         }
+      });
+   }
+
+   /**
+    * Queues a shadow ray for every hit, built exactly as RTStatics.shadowIntersects builds it, then tests the queue.
+    */
+   private void shadow(final Light light) {
+      final RayQueue shadowRays = this.shadowRays;
+      shadowRays.clear();
+
+      for (int i = 0; i < this.rays.size; i++) {
+         this.shadowIndices[i] = this.hits[i] != null ? shadowRays.size++ : -1;
+      }
+
+      WavefrontRenderer.forEach(this.rays.size, 1024, new Stage() {
+         @Override
+         public void run(final int start, final int end) {
+            final Vector3f direction = new Vector3f();
+
+            for (int i = start; i < end; i++) {
+               final IntersectionInformation info = WavefrontRenderer.this.hits[i];
+
+               if (info != null) {
+                  direction.sub(light.origin, info.intersection);
+                  direction.normalize();
+
+                  final Vector3f origin = RTStatics.offsetPosition(info.intersection, info.normal);
+                  shadowRays.set(WavefrontRenderer.this.shadowIndices[i], origin, direction, RTStatics.getDistance(origin, light.origin), i);
+               }
+            }
+         }
+      });
+
+      WavefrontRenderer.forEach(shadowRays.size, 1024, new Stage() {
+         @Override
+         public void run(final int start, final int end) {
+            final SceneBVH bvh = WavefrontRenderer.this.camera.bvh;
+
+            for (int s = start; s < end; s++) {
+               WavefrontRenderer.this.occluded[s] = bvh.occluded(shadowRays.getOrigin(s, new Vector3f()), shadowRays.getDirection(s, new Vector3f()), shadowRays.tMax[s]);
+            }
+         }
+      });
+   }
+
+   private void shade(final boolean shadowed) {
+      WavefrontRenderer.forEach(this.rays.size, 256, new Stage() {
+         @Override
+         public void run(final int start, final int end) {
+            final WavefrontRenderer renderer = WavefrontRenderer.this;
+            final LightingModel lightingModel = renderer.camera.lightingModel;
+
+            for (int i = start; i < end; i++) {
+               final IntersectionInformation info = renderer.hits[i];
+
+               if (info == null) {
+                  renderer.colors[i] = renderer.camera.light.ambient.getColorComponents(new float[3]);
+               } else if (shadowed) {
+                  renderer.colors[i] = lightingModel.getPixelColor(info, 0, renderer.occluded[renderer.shadowIndices[i]]);
+               } else {
+                  renderer.colors[i] = lightingModel.getPixelColor(info, 0);
+               }
+
+               renderer.hits[i] = null;
+            }
+         }
+      });
+   }
+
+   /**
+    * Shades every sample with a lighting model that final gathers: queues the gather rays of as many hits as fit in the
+    * gather queue, sorts and traces them, and shades those hits from the results, until every sample has a color.
+    */
+   private void gather(final LightingModel lightingModel) {
+      final int count = lightingModel.getGatherRayCount();
+
+      if (this.gatherRays == null || this.gatherRays.getCapacity() < count) {
+         this.gatherRays = new RayQueue(Math.max(RTStatics.WAVEFRONT_GATHER_QUEUE_SIZE, count));
+         this.gathered = new float[this.gatherRays.getCapacity()][];
+      }
+
+      final RayQueue gatherRays = this.gatherRays;
+
+      for (int first = 0; first < this.rays.size;) {
+         final int start = first;
+         int end = first;
+         gatherRays.clear();
+
+         while (end < this.rays.size && gatherRays.size + count <= gatherRays.getCapacity()) {
+            if (this.hits[end] != null) {
+               this.gatherStarts[end] = gatherRays.size;
+               gatherRays.size += count;
+            }
+
+            end++;
+         }
+
+         WavefrontRenderer.forEach(end - start, 16, new Stage() {
+            @Override
+            public void run(final int from, final int to) {
+               final ThreadLocalRandom random = ThreadLocalRandom.current();
+
+               for (int i = start + from; i < start + to; i++) {
+                  if (WavefrontRenderer.this.hits[i] != null) {
+                     lightingModel.addGatherRays(WavefrontRenderer.this.hits[i], gatherRays, WavefrontRenderer.this.gatherStarts[i], random);
+                  }
+               }
+            }
+         });
+
+         if (RTStatics.SORT_SECONDARY_RAYS) {
+            gatherRays.sort();
+         }
+
+         WavefrontRenderer.forEach(gatherRays.size, 64, new Stage() {
+            @Override
+            public void run(final int from, final int to) {
+               final SceneBVH bvh = WavefrontRenderer.this.camera.bvh;
+
+               for (int s = from; s < to; s++) {
+                  final Ray ray = new Ray(gatherRays.getOrigin(s, new Vector3f()), gatherRays.getDirection(s, new Vector3f()));
+                  WavefrontRenderer.this.gathered[gatherRays.owners[s]] = lightingModel.getGatherColor(bvh.getClosestIntersection(ray, null, 0), gatherRays.weights[s]);
+               }
+            }
+         });
+
+         WavefrontRenderer.forEach(end - start, 64, new Stage() {
+            @Override
+            public void run(final int from, final int to) {
+               final WavefrontRenderer renderer = WavefrontRenderer.this;
+
+               for (int i = start + from; i < start + to; i++) {
+                  final IntersectionInformation info = renderer.hits[i];
+
+                  if (info == null) {
+                     renderer.colors[i] = renderer.camera.light.ambient.getColorComponents(new float[3]);
+                  } else {
+                     renderer.colors[i] = lightingModel.getPixelColor(info, 0, renderer.gathered, renderer.gatherStarts[i]);
+                  }
+
+                  renderer.hits[i] = null;
+               }
+            }
+         });
+
+         first = end;
+      }
+   }
+
+   private void resolve(final List<int[]> blocks, final int[] blockStarts) {
+      WavefrontRenderer.forEach(blocks.size(), 16, new Stage() {
+         @Override
+         public void run(final int start, final int end) {
+            final Camera camera = WavefrontRenderer.this.camera;
+            final float[][] samples = new float[camera.multiSamples][];
+
+            for (int b = start; b < end; b++) {
+               final int[] block = blocks.get(b);
+               final int pixelCount = block[2] * block[3];
+
+               for (int p = 0; p < pixelCount; p++) {
+                  for (int j = 0; j < samples.length; j++) {
+                     samples[j] = WavefrontRenderer.this.colors[blockStarts[b] + j * pixelCount + p];
+                  }
+
+                  camera.setPixel(block[0] + p % block[2], block[1] + p / block[2], RTStatics.computeColorAverage(samples));
+               }
+
+               RTStatics.incrementProgressBarValue(pixelCount);
+            }
+         }
+      });
+   }
+
+   /**
+    * Runs the given stage over [0, count) on RTStatics.RENDER_POOL, in ranges of at most grain entries.
+    */
+   private static void forEach(final int count, final int grain, final Stage stage) {
+      if (count > 0) {
+         RTStatics.RENDER_POOL.invoke(new StageTask(stage, 0, count, grain));
+      }
+   }
+
+   private interface Stage {
+      public void run(final int start, final int end);
+   }
+
+   private static class StageTask extends RecursiveAction {
+      private static final long serialVersionUID = 1L;
+      private final Stage stage;
+      private final int start, end, grain;
+
+      public StageTask(final Stage stage, final int start, final int end, final int grain) {
+         this.stage = stage;
+         this.start = start;
+         this.end = end;
+         this.grain = grain;
+      }
+
+      @Override
+      protected void compute() {
+         if (this.end - this.start <= this.grain) {
+            this.stage.run(this.start, this.end);
+         } else {
+            final int mid = (this.start + this.end) >>> 1;
+            RecursiveAction.invokeAll(new StageTask(this.stage, this.start, mid, this.grain), new StageTask(this.stage, mid, this.end, this.grain));
+         }
+      }
+   }
+}
@@ -4,6 +4,7 @@ import stephen.ranger.ar.Camera;
 import stephen.ranger.ar.IntersectionInformation;
 import stephen.ranger.ar.RTStatics;
 import stephen.ranger.ar.Ray;
+import stephen.ranger.ar.materials.ColorInformation;
 import stephen.ranger.ar.sceneObjects.SceneObject;
 
 public class AxisAlignedBoundingBox extends BoundingVolume {
@@ -46,6 +47,11 @@ public class AxisAlignedBoundingBox extends BoundingVolume {
       return RTStatics.aabbIntersection(this.minMax, box.minMax);
    }
 
+   @Override
+   public ColorInformation getColorInformation() {
+      return this.child.getColorInformation();
+   }
+
    @Override
    public float[] getEmission() {
       return this.child.getEmission();
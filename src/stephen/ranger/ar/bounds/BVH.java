@@ -0,0 +1,123 @@
+package stephen.ranger.ar.bounds;
+
+import java.util.Arrays;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import stephen.ranger.ar.IntersectionInformation;
+import stephen.ranger.ar.RTStatics;
+import stephen.ranger.ar.RTStatics.AccelerationStructure;
+import stephen.ranger.ar.Ray;
+import stephen.ranger.ar.materials.ColorInformation;
+import stephen.ranger.ar.sceneObjects.TriangleMesh;
+
+/**
+ * Bounding volume hierarchy over the faces of a TriangleMesh. Unlike the KDTree, faces are never duplicated into more
+ * than one leaf, so the memory used is bounded by the face count. The SBVH variant does duplicate faces across spatial
+ * splits, but only up to RTStatics.SBVH_DUPLICATION_BUDGET. The nodes are packed into a LinearTree, a
+ * CompressedTree with quantized bounds for very large meshes, or a WideTree whose child boxes are tested together.
+ */
+public class BVH extends MeshBoundingVolume {
+   private final boolean computeBVH;
+   private final AccelerationStructure structure;
+   private PackedTree packedTree;
+
+   public BVH(final TriangleMesh parentMesh, final float[] vertices, final float[] normals, final int[] indices, final ColorInformation colorInfo, final boolean computeBVH,
+         final AccelerationStructure structure) {
+      super(parentMesh, vertices, normals, indices, colorInfo);
+
+      this.computeBVH = computeBVH;
+      this.structure = structure;
+      this.rebuild();
+   }
+
+   /**
+    * Wraps a tree loaded from a MeshCache instead of building one. The build settings are kept for rebuilds.
+    */
+   public BVH(final TriangleMesh parentMesh, final float[] vertices, final float[] normals, final int[] indices, final ColorInformation colorInfo, final boolean computeBVH,
+         final AccelerationStructure structure, final PackedTree packedTree) {
+      super(parentMesh, vertices, normals, indices, colorInfo);
+
+      this.computeBVH = computeBVH;
+      this.structure = structure;
+      this.packedTree = packedTree;
+      this.buildCost = packedTree.getCost();
+      this.printStatistics();
+   }
+
+   @Override
+   protected void rebuild() {
+      System.out.println("creating BVH...");
+      final long startTime = System.nanoTime();
+
+      final float[] faceBounds = this.getFaceBounds();
+      final float[] centroids = new float[this.faceCount * 3];
+
+      for (int i = 0; i < this.faceCount; i++) {
+         for (int a = 0; a < 3; a++) {
+            centroids[i * 3 + a] = (faceBounds[i * 6 + a] + faceBounds[i * 6 + 3 + a]) / 2f;
+         }
+      }
+
+      final TreeNode rootNode = RTStatics.BUILD_POOL.invoke(new RecursiveTask<TreeNode>() {
+         private static final long serialVersionUID = 1L;
+
+         @Override
+         protected TreeNode compute() {
+            if (BVH.this.structure.equals(AccelerationStructure.SBVH)) {
+               final AtomicInteger budget = new AtomicInteger((int) (BVH.this.faceCount * RTStatics.SBVH_DUPLICATION_BUDGET));
+               return new SBVHNode(BVH.this.vertices, BVH.this.indices, BVH.this.getAllFaces(), faceBounds, 0, budget, RTStatics.getSurfaceArea(BVH.this.minMax),
+                     BVH.this.computeBVH);
+            } else {
+               return new BVHNode(faceBounds, centroids, BVH.this.getAllFaces(), 0, BVH.this.faceCount, 0, BVH.this.computeBVH);
+            }
+         }
+      });
+      final long endTime = System.nanoTime();
+
+      if (this.structure.equals(AccelerationStructure.COMPRESSED_BVH)) {
+         this.packedTree = new CompressedTree(rootNode, RTStatics.BVH_QUANTIZATION_BITS);
+      } else if (this.structure.equals(AccelerationStructure.WIDE_BVH)) {
+         this.packedTree = new WideTree(rootNode, RTStatics.BVH_WIDTH);
+      } else {
+         this.packedTree = new LinearTree(rootNode);
+      }
+
+      this.buildCost = this.packedTree.getCost();
+
+      System.out.println("min/max: " + Arrays.toString(this.minMax[0]) + ", " + Arrays.toString(this.minMax[1]));
+
+      System.out.println("BVH computation duration: " + (endTime - startTime) / 1000000000. + " seconds on " + RTStatics.BUILD_POOL.getParallelism() + " threads");
+      System.out.println(this.structure + " nodes: " + this.packedTree.getNodeCount() + ", depth: " + this.packedTree.getMaxDepth() + ", "
+            + this.packedTree.getByteCount() / 1048576. + " MB, " + (float) this.packedTree.getByteCount() / Math.max(1, this.faceCount) + " bytes per triangle, "
+            + (float) this.packedTree.getReferenceCount() / Math.max(1, this.faceCount) + " references per face");
+      this.printStatistics();
+   }
+
+   @Override
+   public AccelerationStructure getStructure() {
+      return this.structure;
+   }
+
+   /**
+    * SBVH leaves hold faces clipped to spatial splits, which no longer bound them once the vertices move.
+    */
+   @Override
+   protected boolean canRefit() {
+      return !this.structure.equals(AccelerationStructure.SBVH);
+   }
+
+   @Override
+   public PackedTree getPackedTree() {
+      return this.packedTree;
+   }
+
+   @Override
+   public IntersectionInformation getChildIntersection(final Ray ray, final int depth) {
+      if (this.intersects(ray)) {
+         return this.getIntersectionInformation(ray);
+      } else {
+         return null;
+      }
+   }
+}
@@ -0,0 +1,346 @@
+package stephen.ranger.ar.bounds;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import stephen.ranger.ar.RTStatics;
+
+/**
+ * A node of a bounding volume hierarchy built with a binned surface area heuristic over the face centroids. Every face
+ * ends up in exactly one leaf, so the hierarchy has at most 2n - 1 nodes for n faces. Only the bounds of each face are
+ * used, so the same builder works for any other kind of primitive, e.g. the objects of a scene.
+ */
+public class BVHNode implements TreeNode {
+   public BVHNode left;
+   public BVHNode right;
+   public final float[][] minMax;
+   public final int axis;
+   public final int depth;
+   private final int[] faces;
+   private final int start, end;
+
+   /**
+    * Creates a new BVHNode over faces[start, end) and recursively builds its children. The range is reordered in
+    * place so each child covers a contiguous part of it.
+    * 
+    * @param faceBounds
+    *           The bounds of every face, six floats per face in the form of: { minx, miny, minz, maxx, maxy, maxz }
+    * @param centroids
+    *           The centroid of every face's bounds, three floats per face
+    * @param faces
+    *           The positions in the mesh's face array of the faces in the hierarchy
+    */
+   public BVHNode(final float[] faceBounds, final float[] centroids, final int[] faces, final int start, final int end, final int depth, final boolean computeBVH) {
+      this.faces = faces;
+      this.start = start;
+      this.end = end;
+      this.depth = depth;
+
+      final float[][] centroidMinMax = new ParallelRange<float[][]>() {
+         @Override
+         protected float[][] compute(final int from, final int to) {
+            final float[][] bounds = new float[][] { { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE }, { -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE },
+                  { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE }, { -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE } };
+
+            for (int i = from; i < to; i++) {
+               final int face = faces[i];
+
+               for (int a = 0; a < 3; a++) {
+                  bounds[0][a] = Math.min(bounds[0][a], faceBounds[face * 6 + a]);
+                  bounds[1][a] = Math.max(bounds[1][a], faceBounds[face * 6 + 3 + a]);
+                  bounds[2][a] = Math.min(bounds[2][a], centroids[face * 3 + a]);
+                  bounds[3][a] = Math.max(bounds[3][a], centroids[face * 3 + a]);
+               }
+            }
+
+            return bounds;
+         }
+
+         @Override
+         protected float[][] merge(final float[][] lower, final float[][] upper) {
+            for (int a = 0; a < 3; a++) {
+               lower[0][a] = Math.min(lower[0][a], upper[0][a]);
+               lower[1][a] = Math.max(lower[1][a], upper[1][a]);
+               lower[2][a] = Math.min(lower[2][a], upper[2][a]);
+               lower[3][a] = Math.max(lower[3][a], upper[3][a]);
+            }
+
+            return lower;
+         }
+      }.invoke(start, end);
+
+      // the first two rows are the node box, the last two the box around the face centroids
+      this.minMax = new float[][] { centroidMinMax[0], centroidMinMax[1] };
+      centroidMinMax[0] = centroidMinMax[2];
+      centroidMinMax[1] = centroidMinMax[3];
+
+      final int count = end - start;
+      int mid = -1;
+      int splitAxis = 0;
+
+      if (computeBVH && count > RTStatics.MAX_CHILDREN && depth < RTStatics.BVH_MAX_DEPTH) {
+         final float[] split = this.getSAHSplit(faceBounds, centroids, centroidMinMax);
+
+         if (split != null) {
+            splitAxis = (int) split[0];
+            mid = this.partition(centroids, splitAxis, split[1]);
+         }
+
+         if ((mid == start || mid == end || split == null) && count > RTStatics.BVH_MAX_LEAF_SIZE) {
+            // SAH found nothing useful but the node is too big for a leaf; split it in half by count instead
+            splitAxis = BVHNode.getLongestAxis(centroidMinMax);
+            this.sort(centroids, splitAxis);
+            mid = start + count / 2;
+         } else if (mid == start || mid == end) {
+            mid = -1;
+         }
+      }
+
+      this.axis = splitAxis;
+
+      if (mid != -1 && count > RTStatics.PARALLEL_BUILD_THRESHOLD && ForkJoinTask.inForkJoinPool()) {
+         final int split = mid;
+
+         ForkJoinTask.invokeAll(new RecursiveAction() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void compute() {
+               BVHNode.this.left = new BVHNode(faceBounds, centroids, faces, start, split, depth + 1, computeBVH);
+            }
+         }, new RecursiveAction() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void compute() {
+               BVHNode.this.right = new BVHNode(faceBounds, centroids, faces, split, end, depth + 1, computeBVH);
+            }
+         });
+      } else if (mid != -1) {
+         this.left = new BVHNode(faceBounds, centroids, faces, start, mid, depth + 1, computeBVH);
+         this.right = new BVHNode(faceBounds, centroids, faces, mid, end, depth + 1, computeBVH);
+      } else {
+         this.left = null;
+         this.right = null;
+      }
+   }
+
+   /**
+    * Bins the face centroids along all three axes and returns the cheapest bin boundary.
+    * 
+    * @return { axis, position } of the split plane or null if making this node a leaf is cheaper
+    */
+   private float[] getSAHSplit(final float[] faceBounds, final float[] centroids, final float[][] centroidMinMax) {
+      final int binCount = RTStatics.SAH_BIN_COUNT;
+      final int count = this.end - this.start;
+      final float nodeArea = RTStatics.getSurfaceArea(this.minMax);
+      final float leafCost = RTStatics.SAH_INTERSECTION_COST * count;
+      float bestCost = count > RTStatics.BVH_MAX_LEAF_SIZE || nodeArea <= 0 ? Float.MAX_VALUE : leafCost;
+      float[] bestSplit = null;
+
+      final float[] scale = new float[3];
+
+      for (int a = 0; a < 3; a++) {
+         final float extent = centroidMinMax[1][a] - centroidMinMax[0][a];
+         scale[a] = extent > 0 ? binCount / extent : 0;
+      }
+
+      final SAHBins bins = new ParallelRange<SAHBins>() {
+         @Override
+         protected SAHBins compute(final int from, final int to) {
+            final SAHBins bins = new SAHBins(binCount);
+
+            for (int i = from; i < to; i++) {
+               final int face = faces[i];
+
+               for (int a = 0; a < 3; a++) {
+                  if (scale[a] > 0) {
+                     final int bin = a * binCount + BVHNode.getBin(centroids[face * 3 + a], centroidMinMax[0][a], scale[a], binCount);
+
+                     bins.counts[bin]++;
+                     BVHNode.union(bins.bounds, bin * 6, faceBounds, face * 6);
+                  }
+               }
+            }
+
+            return bins;
+         }
+
+         @Override
+         protected SAHBins merge(final SAHBins lower, final SAHBins upper) {
+            for (int b = 0; b < lower.counts.length; b++) {
+               lower.counts[b] += upper.counts[b];
+               BVHNode.union(lower.bounds, b * 6, upper.bounds, b * 6);
+            }
+
+            return lower;
+         }
+      }.invoke(this.start, this.end);
+
+      final int[] binCounts = bins.counts;
+      final float[] binBounds = bins.bounds;
+      final int[] rightCounts = new int[binCount];
+      final float[] rightAreas = new float[binCount];
+      final float[] accumulated = new float[6];
+
+      for (int a = 0; a < 3; a++) {
+         if (scale[a] == 0) {
+            continue;
+         }
+
+         BVHNode.setEmpty(accumulated, 0);
+         int accumulatedCount = 0;
+
+         for (int b = binCount - 1; b > 0; b--) {
+            accumulatedCount += binCounts[a * binCount + b];
+            BVHNode.union(accumulated, 0, binBounds, (a * binCount + b) * 6);
+            rightCounts[b] = accumulatedCount;
+            rightAreas[b] = BVHNode.getSurfaceArea(accumulated);
+         }
+
+         BVHNode.setEmpty(accumulated, 0);
+         accumulatedCount = 0;
+
+         for (int b = 1; b < binCount; b++) {
+            accumulatedCount += binCounts[a * binCount + b - 1];
+            BVHNode.union(accumulated, 0, binBounds, (a * binCount + b - 1) * 6);
+
+            if (accumulatedCount == 0 || rightCounts[b] == 0) {
+               continue;
+            }
+
+            final float cost = RTStatics.SAH_TRAVERSAL_COST + RTStatics.SAH_INTERSECTION_COST
+                  * (BVHNode.getSurfaceArea(accumulated) * accumulatedCount + rightAreas[b] * rightCounts[b]) / nodeArea;
+
+            if (cost < bestCost) {
+               bestCost = cost;
+               bestSplit = new float[] { a, centroidMinMax[0][a] + b / scale[a] };
+            }
+         }
+      }
+
+      return bestSplit;
+   }
+
+   /**
+    * Per axis face counts and bounds of the SAH bins, stored as [axis * binCount + bin].
+    */
+   private static class SAHBins {
+      public final int[] counts;
+      public final float[] bounds;
+
+      public SAHBins(final int binCount) {
+         this.counts = new int[3 * binCount];
+         this.bounds = new float[3 * binCount * 6];
+
+         for (int b = 0; b < 3 * binCount; b++) {
+            BVHNode.setEmpty(this.bounds, b * 6);
+         }
+      }
+   }
+
+   /**
+    * Moves every face with a centroid below the given position to the front of this node's range.
+    * 
+    * @return The position of the first face in the upper part of the range
+    */
+   private int partition(final float[] centroids, final int axis, final float position) {
+      int i = this.start;
+      int j = this.end - 1;
+
+      while (i <= j) {
+         if (centroids[this.faces[i] * 3 + axis] < position) {
+            i++;
+         } else {
+            final int temp = this.faces[i];
+            this.faces[i] = this.faces[j];
+            this.faces[j--] = temp;
+         }
+      }
+
+      return i;
+   }
+
+   private void sort(final float[] centroids, final int axis) {
+      final long[] keys = new long[this.end - this.start];
+
+      for (int i = this.start; i < this.end; i++) {
+         // order preserving int representation of the centroid in the high bits, face in the low bits
+         final int bits = Float.floatToIntBits(centroids[this.faces[i] * 3 + axis]);
+         keys[i - this.start] = (long) (bits < 0 ? bits ^ 0x7fffffff : bits) << 32 | this.faces[i] & 0xffffffffL;
+      }
+
+      Arrays.sort(keys);
+
+      for (int i = this.start; i < this.end; i++) {
+         this.faces[i] = (int) keys[i - this.start];
+      }
+   }
+
+   static int getLongestAxis(final float[][] minMax) {
+      final float dx = minMax[1][0] - minMax[0][0];
+      final float dy = minMax[1][1] - minMax[0][1];
+      final float dz = minMax[1][2] - minMax[0][2];
+
+      return dx >= dy && dx >= dz ? 0 : dy >= dz ? 1 : 2;
+   }
+
+   static int getBin(final float value, final float min, final float scale, final int binCount) {
+      return Math.max(0, Math.min(binCount - 1, (int) ((value - min) * scale)));
+   }
+
+   static void setEmpty(final float[] bounds, final int offset) {
+      bounds[offset] = bounds[offset + 1] = bounds[offset + 2] = Float.MAX_VALUE;
+      bounds[offset + 3] = bounds[offset + 4] = bounds[offset + 5] = -Float.MAX_VALUE;
+   }
+
+   static void union(final float[] output, final int outputOffset, final float[] bounds, final int offset) {
+      for (int i = 0; i < 3; i++) {
+         output[outputOffset + i] = Math.min(output[outputOffset + i], bounds[offset + i]);
+         output[outputOffset + 3 + i] = Math.max(output[outputOffset + 3 + i], bounds[offset + 3 + i]);
+      }
+   }
+
+   static float getSurfaceArea(final float[] bounds) {
+      return BVHNode.getSurfaceArea(bounds, 0);
+   }
+
+   static float getSurfaceArea(final float[] bounds, final int offset) {
+      final float dx = bounds[offset + 3] - bounds[offset];
+      final float dy = bounds[offset + 4] - bounds[offset + 1];
+      final float dz = bounds[offset + 5] - bounds[offset + 2];
+
+      return dx < 0 || dy < 0 || dz < 0 ? 0 : 2f * (dx * dy + dy * dz + dz * dx);
+   }
+
+   @Override
+   public BVHNode getLeft() {
+      return this.left;
+   }
+
+   @Override
+   public BVHNode getRight() {
+      return this.right;
+   }
+
+   @Override
+   public float[][] getMinMax() {
+      return this.minMax;
+   }
+
+   @Override
+   public int getAxis() {
+      return this.axis;
+   }
+
+   @Override
+   public float getSplit() {
+      return Float.NaN;
+   }
+
+   @Override
+   public int[] getFaces() {
+      return this.left == null && this.right == null ? Arrays.copyOfRange(this.faces, this.start, this.end) : null;
+   }
+}
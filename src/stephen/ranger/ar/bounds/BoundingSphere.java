@@ -6,6 +6,7 @@ import stephen.ranger.ar.Camera;
 import stephen.ranger.ar.IntersectionInformation;
 import stephen.ranger.ar.RTStatics;
 import stephen.ranger.ar.Ray;
+import stephen.ranger.ar.materials.ColorInformation;
 import stephen.ranger.ar.sceneObjects.SceneObject;
 
 public class BoundingSphere extends BoundingVolume {
@@ -115,6 +116,11 @@ public class BoundingSphere extends BoundingVolume {
       return this.child.getColor(info, camera, depth);
    }
 
+   @Override
+   public ColorInformation getColorInformation() {
+      return this.child.getColorInformation();
+   }
+
    @Override
    public float[] getEmission() {
       return this.child.getEmission();
@@ -1,8 +1,12 @@
 package stephen.ranger.ar.bounds;
 
+import javax.vecmath.Vector3f;
+
 import stephen.ranger.ar.Camera;
 import stephen.ranger.ar.IntersectionInformation;
+import stephen.ranger.ar.RTStatics;
 import stephen.ranger.ar.Ray;
+import stephen.ranger.ar.materials.ColorInformation;
 
 public abstract class BoundingVolume {
 
@@ -10,10 +14,72 @@ public abstract class BoundingVolume {
 
    public abstract IntersectionInformation getChildIntersection(final Ray ray, final int depth);
 
+   /**
+    * Returns true if the ray hits anything in this volume closer than tMax, for shadow and visibility tests where the
+    * closest hit is not needed. This default searches for the closest hit; volumes with an acceleration structure
+    * override it to return at the first hit.
+    * 
+    * @param direction
+    *           The ray direction, normalized in place
+    */
+   public boolean occluded(final Vector3f origin, final Vector3f direction, final float tMax) {
+      final Ray ray = new Ray(origin, direction);
+
+      if (!this.intersects(ray)) {
+         return false;
+      }
+
+      final IntersectionInformation info = this.getChildIntersection(ray, 0);
+
+      return info != null && info.w > RTStatics.EPSILON && info.w < tMax;
+   }
+
+   /**
+    * Called for every object in the scene when a camera is created, e.g. to pick view dependent detail before any ray
+    * is traced. Does nothing by default.
+    */
+   public void setCamera(final Camera camera) {
+   }
+
+   /**
+    * Called for every object in the scene when a camera has finished its image, e.g. to report what the render used.
+    * Does nothing by default.
+    */
+   public void imageFinished() {
+   }
+
+   /**
+    * Called for every object in the scene when the scene is closed, to free memory the garbage collector does not
+    * manage right away, e.g. the native memory of an OffHeapMesh or the chunk cache and file of a ChunkedMesh. Does
+    * nothing by default.
+    */
+   public void close() {
+   }
+
+   /**
+    * @return The number of bytes close would free, 0 by default
+    */
+   public long getReleasableByteCount() {
+      return 0;
+   }
+
+   /**
+    * Walks the volume's acceleration structure and returns its node counts, histograms and cost, or null if the volume
+    * has no acceleration structure, as by default.
+    */
+   public TreeStatistics getStatistics() {
+      return null;
+   }
+
    public abstract float[][] getMinMax();
 
    public abstract float[] getColor(final IntersectionInformation info, final Camera camera, final int depth);
 
+   /**
+    * Returns the material of the object, e.g. to find the secondary ray it traces from a hit.
+    */
+   public abstract ColorInformation getColorInformation();
+
    public abstract float[] getEmission();
 
    public abstract float[] getDiffuse();
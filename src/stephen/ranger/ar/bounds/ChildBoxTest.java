@@ -0,0 +1,26 @@
+package stephen.ranger.ar.bounds;
+
+import javax.vecmath.Vector3f;
+
+/**
+ * Tests a ray against all child boxes of one WideTree node at once.
+ */
+public interface ChildBoxTest {
+   /**
+    * @param bounds
+    *           The child boxes of the node stored lane by lane: width minx values, then width miny values, and so on up
+    *           to maxz
+    * @param offset
+    *           The position of the node's first minx value in bounds
+    * @param origin
+    *           The ray origin
+    * @param inverseDirection
+    *           The reciprocal of each component of the ray direction
+    * @param tMax
+    *           Boxes entered at or beyond this distance are ignored
+    * @param distances
+    *           Receives the distance at which the ray enters each child box
+    * @return A bit mask with bit i set if the ray hits the box of child i
+    */
+   public int intersect(final float[] bounds, final int offset, final Vector3f origin, final float[] inverseDirection, final float tMax, final float[] distances);
+}
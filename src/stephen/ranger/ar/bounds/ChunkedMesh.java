@@ -0,0 +1,849 @@
+package stephen.ranger.ar.bounds;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.vecmath.Vector3f;
+
+import stephen.ranger.ar.Camera;
+import stephen.ranger.ar.IntersectionInformation;
+import stephen.ranger.ar.RTStatics;
+import stephen.ranger.ar.Ray;
+import stephen.ranger.ar.materials.ColorInformation;
+import stephen.ranger.ar.sceneObjects.TriangleMesh;
+
+/**
+ * Out of core bounding volume for meshes whose faces and trees don't fit in memory. The faces are split into spatially
+ * coherent chunks of at most RTStatics.OUT_OF_CORE_CHUNK_FACES, and each chunk is stored with its own vertices and BVH in
+ * a chunk file next to the model. Only the chunk boxes and a small BVH over them stay resident; a chunk is read in the
+ * first time a ray reaches its box and kept in a cache bounded by RTStatics.OUT_OF_CORE_CACHE_MB, which drops chunks no
+ * ray has reached recently with the clock approximation of LRU.
+ *
+ * <pre>
+ * int magic, int version, key (32 bytes)
+ * for each chunk: vertices, normals, faces, then the arrays of its LinearTree
+ * for each simplified level: vertices, normals, faces
+ * int chunk count, chunk boxes (float array, six per chunk), chunk file positions (one long each), mesh box (float array)
+ * int level count, then for each level: float cell size, int face count, long file position
+ * long file position of the chunk count
+ * </pre>
+ *
+ * The arrays are stored as in a MeshCache. The simplified levels are made with LODMesh.simplify when the file is
+ * written, since the full resolution arrays are not kept in memory afterwards. Opening the file walks the array lengths
+ * of every section, so a damaged file is found and written again before any ray reaches it.
+ */
+public class ChunkedMesh extends BoundingVolume {
+   public static final int MAGIC = 0x52544f43;
+   public static final int VERSION = 2;
+
+   private final TriangleMesh parentMesh;
+   private final ColorInformation colorInfo;
+   private final File chunkFile;
+   private final FileChannel channel;
+   private final float[] chunkBounds;
+   private final long[] chunkPositions;
+   private final float[][] minMax = new float[2][3];
+   private final float shadowDistance;
+   private final LinearTree topTree;
+   private LODMesh.Level[] levels = new LODMesh.Level[0];
+   private int faceCount = 0;
+
+   // the loaded chunks by chunk index, read without locking by every ray that reaches a chunk
+   private final AtomicReferenceArray<Chunk> chunks;
+   // set when a ray uses a chunk and cleared as the clock hand passes it; racy updates only make the eviction order less
+   // exact, so they are plain writes
+   private final boolean[] referenced;
+   private final Object[] loadLocks;
+   // held only while a loaded chunk is added and others are evicted
+   private final Object evictionLock = new Object();
+   private int clockHand = 0;
+   private final long cacheBytes = RTStatics.OUT_OF_CORE_CACHE_MB * 1048576L;
+   private final AtomicLong residentBytes = new AtomicLong();
+   private final LongAdder hits = new LongAdder();
+   private final LongAdder misses = new LongAdder();
+
+   private ChunkedMesh(final TriangleMesh parentMesh, final ColorInformation colorInfo, final File chunkFile, final FileChannel channel, final float[] chunkBounds,
+         final long[] chunkPositions, final float[] meshBounds) {
+      this.parentMesh = parentMesh;
+      this.colorInfo = colorInfo;
+      this.chunkFile = chunkFile;
+      this.channel = channel;
+      this.chunkBounds = chunkBounds;
+      this.chunkPositions = chunkPositions;
+      this.chunks = new AtomicReferenceArray<Chunk>(chunkPositions.length);
+      this.referenced = new boolean[chunkPositions.length];
+      this.loadLocks = new Object[chunkPositions.length];
+
+      final float[] centroids = new float[chunkPositions.length * 3];
+      final int[] order = new int[chunkPositions.length];
+
+      System.arraycopy(meshBounds, 0, this.minMax[0], 0, 3);
+      System.arraycopy(meshBounds, 3, this.minMax[1], 0, 3);
+
+      for (int i = 0; i < order.length; i++) {
+         for (int a = 0; a < 3; a++) {
+            centroids[i * 3 + a] = (chunkBounds[i * 6 + a] + chunkBounds[i * 6 + 3 + a]) / 2f;
+         }
+
+         order[i] = i;
+         this.loadLocks[i] = new Object();
+      }
+
+      this.shadowDistance = Math.max(this.minMax[1][0] - this.minMax[0][0], Math.max(this.minMax[1][1] - this.minMax[0][1], this.minMax[1][2] - this.minMax[0][2])) / 2000f;
+      this.topTree = new LinearTree(RTStatics.BUILD_POOL.invoke(new RecursiveTask<BVHNode>() {
+         private static final long serialVersionUID = 1L;
+
+         @Override
+         protected BVHNode compute() {
+            return new BVHNode(chunkBounds, centroids, order, 0, order.length, 0, true);
+         }
+      }));
+   }
+
+   /**
+    * Opens the given chunk file, reading only its chunk boxes.
+    *
+    * @return The mesh, or null if the file does not exist, was written for a different key or version or is damaged, in
+    *         which case it is deleted
+    */
+   public static ChunkedMesh read(final File chunkFile, final byte[] key, final TriangleMesh parentMesh, final ColorInformation colorInfo) throws IOException {
+      if (!chunkFile.isFile()) {
+         return null;
+      }
+
+      // the file stays open for as long as the mesh is used
+      final RandomAccessFile file = new RandomAccessFile(chunkFile, "r");
+      Exception failure = null;
+
+      try {
+         final ChunkedMesh mesh = ChunkedMesh.read(file, chunkFile, key, parentMesh, colorInfo);
+
+         if (mesh != null) {
+            return mesh;
+         }
+      } catch (final IOException e) {
+         failure = e;
+      } catch (final RuntimeException e) {
+         failure = e;
+      }
+
+      file.close();
+
+      if (failure != null) {
+         MeshCache.discard(chunkFile, failure);
+      }
+
+      return null;
+   }
+
+   private static ChunkedMesh read(final RandomAccessFile file, final File chunkFile, final byte[] key, final TriangleMesh parentMesh, final ColorInformation colorInfo)
+         throws IOException {
+      final MeshCache.Reader in = new MeshCache.Reader(file.getChannel());
+
+      if (in.getInt() != ChunkedMesh.MAGIC || in.getInt() != ChunkedMesh.VERSION || !Arrays.equals(in.getBytes(), key)) {
+         return null;
+      }
+
+      final long firstChunk = in.getPosition();
+      in.seek(file.length() - 8);
+      final long directory = in.getLong();
+
+      if (directory < firstChunk || directory > file.length() - 8) {
+         throw new IOException("Bad directory position " + directory);
+      }
+
+      in.seek(directory);
+
+      final int chunkCount = in.getInt();
+      final float[] chunkBounds = in.getFloats();
+
+      if (chunkCount < 0 || chunkBounds.length != chunkCount * 6L) {
+         throw new IOException("Bad chunk count " + chunkCount);
+      }
+
+      final long[] chunkPositions = new long[chunkCount];
+
+      for (int i = 0; i < chunkCount; i++) {
+         chunkPositions[i] = in.getLong();
+      }
+
+      final float[] meshBounds = in.getFloats();
+      final int levelCount = in.getInt();
+
+      if (meshBounds.length != 6 || levelCount < 0 || levelCount > RTStatics.LOD_LEVELS) {
+         throw new IOException("Bad mesh bounds or level count " + levelCount);
+      }
+
+      final float[] cellSizes = new float[levelCount];
+      final int[] faceCounts = new int[levelCount];
+      final long[] levelPositions = new long[levelCount];
+
+      for (int i = 0; i < levelCount; i++) {
+         cellSizes[i] = in.getFloat();
+         faceCounts[i] = in.getInt();
+         levelPositions[i] = in.getLong();
+      }
+
+      // each section must start where the one before it ends, so damaged lengths are found here and not in a render thread
+      long position = firstChunk;
+      int faceCount = 0;
+
+      for (int i = 0; i < chunkCount + levelCount; i++) {
+         if ((i < chunkCount ? chunkPositions[i] : levelPositions[i - chunkCount]) != position) {
+            throw new IOException("Section " + i + " does not start at " + position);
+         }
+
+         in.seek(position);
+         in.skipArray(4);
+         in.skipArray(4);
+         final int indexCount = in.skipArray(4);
+
+         if (i < chunkCount) {
+            LinearTree.skip(in);
+            faceCount += indexCount / 3;
+         }
+
+         position = in.getPosition();
+      }
+
+      if (position != directory) {
+         throw new IOException("The last section ends at " + position + " instead of " + directory);
+      }
+
+      final ChunkedMesh mesh = new ChunkedMesh(parentMesh, colorInfo, chunkFile, file.getChannel(), chunkBounds, chunkPositions, meshBounds);
+      mesh.faceCount = faceCount;
+      mesh.levels = new LODMesh.Level[levelCount];
+
+      for (int i = 0; i < levelCount; i++) {
+         mesh.levels[i] = new LODMesh.Level(cellSizes[i], faceCounts[i], file.getChannel(), levelPositions[i]);
+      }
+
+      System.out.println("opened " + chunkCount + " chunks from " + chunkFile.getName() + ", top level nodes: " + mesh.topTree.getNodeCount() + ", cache: "
+            + RTStatics.OUT_OF_CORE_CACHE_MB + " MB");
+
+      if (RTStatics.PRINT_TREE_STATISTICS) {
+         System.out.println(mesh.getStatistics().toJSON());
+      }
+
+      return mesh;
+   }
+
+   /**
+    * Splits the given mesh into chunks, builds a BVH over each chunk and writes them to a temporary file that is then
+    * moved into place, so a reader never sees a partial chunk file.
+    *
+    * @param computeBVH
+    *           If false, each chunk's tree is a single leaf containing every face of the chunk
+    */
+   public static void write(final File chunkFile, final byte[] key, final float[] vertices, final float[] normals, final int[] indices, final boolean computeBVH)
+         throws IOException {
+      final long startTime = System.nanoTime();
+      final int faceCount = indices.length / 3;
+      final float[] centroids = new float[faceCount * 3];
+      final float[][] faceMinMax = new float[2][3];
+      final int[] order = new int[faceCount];
+
+      for (int i = 0; i < faceCount; i++) {
+         RTStatics.getMinMax(vertices, indices, i, faceMinMax);
+
+         for (int a = 0; a < 3; a++) {
+            centroids[i * 3 + a] = (faceMinMax[0][a] + faceMinMax[1][a]) / 2f;
+         }
+
+         order[i] = i;
+      }
+
+      final List<int[]> ranges = new ArrayList<int[]>();
+      ChunkedMesh.partition(order, centroids, 0, order.length, ranges);
+
+      final float[] chunkBounds = new float[ranges.size() * 6];
+      final long[] chunkPositions = new long[ranges.size()];
+      // the position of each mesh vertex in the chunk being written, or -1
+      final int[] local = new int[vertices.length / 3];
+      Arrays.fill(local, -1);
+
+      final File tempFile = new File(chunkFile.getPath() + ".tmp");
+      final RandomAccessFile file = new RandomAccessFile(tempFile, "rw");
+
+      try {
+         file.setLength(0);
+         final MeshCache.Writer out = new MeshCache.Writer(file.getChannel());
+
+         out.putInt(ChunkedMesh.MAGIC);
+         out.putInt(ChunkedMesh.VERSION);
+         out.putBytes(key);
+
+         for (int c = 0; c < ranges.size(); c++) {
+            final int start = ranges.get(c)[0];
+            final int end = ranges.get(c)[1];
+            final int[] chunkIndices = new int[(end - start) * 3];
+            int vertexCount = 0;
+
+            for (int i = start; i < end; i++) {
+               for (int k = 0; k < 3; k++) {
+                  final int vertex = indices[order[i] * 3 + k];
+
+                  if (local[vertex] == -1) {
+                     local[vertex] = vertexCount++;
+                  }
+
+                  chunkIndices[(i - start) * 3 + k] = local[vertex];
+               }
+            }
+
+            final float[] chunkVertices = new float[vertexCount * 3];
+            final float[] chunkNormals = new float[vertexCount * 3];
+
+            for (int i = start; i < end; i++) {
+               for (int k = 0; k < 3; k++) {
+                  final int vertex = indices[order[i] * 3 + k];
+
+                  if (local[vertex] != -1) {
+                     System.arraycopy(vertices, vertex * 3, chunkVertices, local[vertex] * 3, 3);
+                     System.arraycopy(normals, vertex * 3, chunkNormals, local[vertex] * 3, 3);
+                     local[vertex] = -1;
+                  }
+               }
+            }
+
+            final LinearTree tree = ChunkedMesh.build(chunkVertices, chunkIndices, computeBVH);
+            System.arraycopy(tree.bounds, 0, chunkBounds, c * 6, 6);
+            chunkPositions[c] = out.getPosition();
+
+            out.putFloats(chunkVertices);
+            out.putFloats(chunkNormals);
+            out.putInts(chunkIndices);
+            tree.write(out);
+         }
+
+         final LODMesh.Level[] levels = RTStatics.ENABLE_LOD && faceCount >= RTStatics.LOD_MIN_FACES ? LODMesh.simplify(vertices, normals, indices)
+               : new LODMesh.Level[0];
+         final long[] levelPositions = new long[levels.length];
+
+         for (int i = 0; i < levels.length; i++) {
+            levelPositions[i] = out.getPosition();
+            levels[i].write(out);
+         }
+
+         final long directory = out.getPosition();
+         out.putInt(ranges.size());
+         out.putFloats(chunkBounds);
+
+         for (final long position : chunkPositions) {
+            out.putLong(position);
+         }
+
+         // the mesh box is taken over every vertex like a MeshBoundingVolume's, so both give the same shadow distance
+         final float[] meshBounds = new float[6];
+         BVHNode.setEmpty(meshBounds, 0);
+
+         for (int i = 0; i < vertices.length; i += 3) {
+            for (int a = 0; a < 3; a++) {
+               meshBounds[a] = Math.min(meshBounds[a], vertices[i + a]);
+               meshBounds[3 + a] = Math.max(meshBounds[3 + a], vertices[i + a]);
+            }
+         }
+
+         out.putFloats(meshBounds);
+         out.putInt(levels.length);
+
+         for (int i = 0; i < levels.length; i++) {
+            out.putFloat(levels[i].cellSize);
+            out.putInt(levels[i].faceCount);
+            out.putLong(levelPositions[i]);
+         }
+
+         out.putLong(directory);
+         out.flush();
+      } finally {
+         file.close();
+      }
+
+      try {
+         Files.move(tempFile.toPath(), chunkFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (final AtomicMoveNotSupportedException e) {
+         Files.move(tempFile.toPath(), chunkFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+
+      final long endTime = System.nanoTime();
+      System.out.println("wrote " + faceCount + " faces in " + ranges.size() + " chunks to " + chunkFile.getName() + " in " + (endTime - startTime) / 1000000000.
+            + " seconds");
+   }
+
+   /**
+    * Splits order[start, end) at the median centroid along the longest axis of its centroid bounds until every range
+    * holds at most RTStatics.OUT_OF_CORE_CHUNK_FACES faces, adding the ranges in spatial order.
+    */
+   private static void partition(final int[] order, final float[] centroids, final int start, final int end, final List<int[]> ranges) {
+      if (end - start <= RTStatics.OUT_OF_CORE_CHUNK_FACES) {
+         ranges.add(new int[] { start, end });
+         return;
+      }
+
+      final float[] bounds = new float[6];
+      BVHNode.setEmpty(bounds, 0);
+
+      for (int i = start; i < end; i++) {
+         for (int a = 0; a < 3; a++) {
+            bounds[a] = Math.min(bounds[a], centroids[order[i] * 3 + a]);
+            bounds[3 + a] = Math.max(bounds[3 + a], centroids[order[i] * 3 + a]);
+         }
+      }
+
+      int axis = 0;
+
+      for (int a = 1; a < 3; a++) {
+         if (bounds[3 + a] - bounds[a] > bounds[3 + axis] - bounds[axis]) {
+            axis = a;
+         }
+      }
+
+      final int mid = (start + end) >>> 1;
+      ChunkedMesh.select(order, centroids, axis, start, end, mid);
+      ChunkedMesh.partition(order, centroids, start, mid, ranges);
+      ChunkedMesh.partition(order, centroids, mid, end, ranges);
+   }
+
+   /**
+    * Reorders order[start, end) so that no face before mid has a greater centroid along the given axis than the face at
+    * mid and no face after it has a smaller one.
+    */
+   private static void select(final int[] order, final float[] centroids, final int axis, final int start, final int end, final int mid) {
+      int low = start;
+      int high = end - 1;
+
+      while (low < high) {
+         final float pivot = centroids[order[(low + high) >>> 1] * 3 + axis];
+         int i = low;
+         int j = high;
+
+         while (i <= j) {
+            while (centroids[order[i] * 3 + axis] < pivot) {
+               i++;
+            }
+
+            while (centroids[order[j] * 3 + axis] > pivot) {
+               j--;
+            }
+
+            if (i <= j) {
+               final int temp = order[i];
+               order[i++] = order[j];
+               order[j--] = temp;
+            }
+         }
+
+         if (mid <= j) {
+            high = j;
+         } else if (mid >= i) {
+            low = i;
+         } else {
+            return;
+         }
+      }
+   }
+
+   /**
+    * Builds a BVH over every face of the given arrays, packed into a LinearTree.
+    */
+   public static LinearTree build(final float[] vertices, final int[] indices, final boolean computeBVH) {
+      final float[] faceBounds = new float[indices.length * 2];
+      final float[] centroids = new float[indices.length];
+      final float[][] faceMinMax = new float[2][3];
+      final int[] faces = new int[indices.length / 3];
+
+      for (int i = 0; i < faces.length; i++) {
+         RTStatics.getMinMax(vertices, indices, i, faceMinMax);
+
+         for (int a = 0; a < 3; a++) {
+            faceBounds[i * 6 + a] = faceMinMax[0][a];
+            faceBounds[i * 6 + 3 + a] = faceMinMax[1][a];
+            centroids[i * 3 + a] = (faceMinMax[0][a] + faceMinMax[1][a]) / 2f;
+         }
+
+         faces[i] = i;
+      }
+
+      return new LinearTree(RTStatics.BUILD_POOL.invoke(new RecursiveTask<BVHNode>() {
+         private static final long serialVersionUID = 1L;
+
+         @Override
+         protected BVHNode compute() {
+            return new BVHNode(faceBounds, centroids, faces, 0, faces.length, 0, computeBVH);
+         }
+      }));
+   }
+
+   /**
+    * Returns the given chunk, reading it from the chunk file if it isn't cached. A cached chunk is found without taking a
+    * lock. Only one thread reads a given chunk; once the cache holds more than RTStatics.OUT_OF_CORE_CACHE_MB, chunks
+    * are dropped by evict. A dropped chunk stays valid for any traversal still using it.
+    */
+   private Chunk getChunk(final int chunk) {
+      Chunk loaded = this.chunks.get(chunk);
+
+      if (loaded == null) {
+         synchronized (this.loadLocks[chunk]) {
+            loaded = this.chunks.get(chunk);
+
+            if (loaded == null) {
+               this.misses.increment();
+
+               try {
+                  final MeshCache.Reader in = new MeshCache.Reader(this.channel);
+                  in.seek(this.chunkPositions[chunk]);
+                  final float[] vertices = in.getFloats();
+                  final float[] normals = in.getFloats();
+                  final int[] indices = in.getInts();
+                  loaded = new Chunk(vertices, normals, indices, LinearTree.read(in, indices.length / 3));
+               } catch (final IOException e) {
+                  throw new UncheckedIOException("Unable to read chunk " + chunk + " of " + this.chunkFile, e);
+               }
+
+               synchronized (this.evictionLock) {
+                  this.chunks.set(chunk, loaded);
+                  this.referenced[chunk] = true;
+                  this.residentBytes.addAndGet(loaded.byteCount);
+                  this.evict(chunk);
+               }
+
+               return loaded;
+            }
+         }
+      }
+
+      this.hits.increment();
+
+      if (!this.referenced[chunk]) {
+         this.referenced[chunk] = true;
+      }
+
+      return loaded;
+   }
+
+   /**
+    * Moves the clock hand over the chunks, dropping the loaded ones no ray has used since the hand last passed them and
+    * clearing the used flag of the others, until the cache fits in its budget. The chunk just loaded is never dropped.
+    * Two turns clear every flag, so the hand stops after that even if only the new chunk is left.
+    */
+   private void evict(final int kept) {
+      final int count = this.chunks.length();
+
+      for (int step = 0; step < 2 * count && this.residentBytes.get() > this.cacheBytes; step++) {
+         final int chunk = this.clockHand;
+         this.clockHand = (this.clockHand + 1) % count;
+
+         final Chunk loaded = this.chunks.get(chunk);
+
+         if (loaded == null || chunk == kept) {
+            continue;
+         } else if (this.referenced[chunk]) {
+            this.referenced[chunk] = false;
+         } else {
+            this.chunks.set(chunk, null);
+            this.residentBytes.addAndGet(-loaded.byteCount);
+         }
+      }
+   }
+
+   /**
+    * @return The number of chunk lookups that found the chunk in memory
+    */
+   public long getCacheHits() {
+      return this.hits.sum();
+   }
+
+   /**
+    * @return The number of chunk lookups that had to read the chunk from the chunk file
+    */
+   public long getCacheMisses() {
+      return this.misses.sum();
+   }
+
+   /**
+    * @return The approximate number of bytes used by the chunks currently in memory
+    */
+   public long getResidentBytes() {
+      return this.residentBytes.get();
+   }
+
+   /**
+    * Prints the chunk cache's hits and misses since the mesh was opened.
+    */
+   @Override
+   public void imageFinished() {
+      System.out.println(this.chunkFile.getName() + " chunk cache: " + this.getCacheHits() + " hits, " + this.getCacheMisses() + " misses, "
+            + this.getResidentBytes() / 1048576. + " MB of chunks in memory");
+   }
+
+   /**
+    * Drops the cached chunks and closes the chunk file. The mesh must not be traced afterwards.
+    */
+   @Override
+   public void close() {
+      synchronized (this.evictionLock) {
+         for (int i = 0; i < this.chunks.length(); i++) {
+            this.chunks.set(i, null);
+         }
+
+         this.residentBytes.set(0);
+      }
+
+      try {
+         this.channel.close();
+      } catch (final IOException e) {
+         System.err.println("Unable to close " + this.chunkFile + ": " + e);
+      }
+   }
+
+   /**
+    * @return The bytes of the cached chunks and of the chunk file the mesh keeps open, or 0 once it is closed
+    */
+   @Override
+   public long getReleasableByteCount() {
+      return this.channel.isOpen() ? this.getResidentBytes() + this.chunkFile.length() : 0;
+   }
+
+   /**
+    * @return The simplified levels stored in the chunk file, finest first, whose arrays are read when they are selected
+    */
+   public LODMesh.Level[] getLevels() {
+      return this.levels;
+   }
+
+   public int getChunkCount() {
+      return this.chunkPositions.length;
+   }
+
+   /**
+    * Walks the top level tree with each chunk's BVH nested below the top level leaf holding the chunk. The chunk trees
+    * are read straight from the chunk file rather than through the chunk cache, so this does not evict the chunks being
+    * traced. The bytes are those of the trees and of the chunk faces and vertices as stored in the file.
+    */
+   @Override
+   public TreeStatistics getStatistics() {
+      final TreeStatistics statistics = new TreeStatistics(RTStatics.AccelerationStructure.OUT_OF_CORE_BVH.toString(), this.faceCount);
+
+      if (this.chunkPositions.length == 0) {
+         return statistics;
+      }
+
+      try {
+         statistics.addBytes(this.topTree.getByteCount());
+         this.addStatistics(0, 0, new MeshCache.Reader(this.channel), statistics);
+      } catch (final IOException e) {
+         throw new UncheckedIOException("Unable to read the chunk trees of " + this.chunkFile, e);
+      }
+
+      return statistics;
+   }
+
+   private void addStatistics(final int node, final int depth, final MeshCache.Reader in, final TreeStatistics statistics) throws IOException {
+      final int data = this.topTree.nodes[node * 2];
+
+      statistics.addInterior(depth, BVHNode.getSurfaceArea(this.topTree.bounds, node * 6));
+
+      if ((data & 3) == LinearTree.LEAF) {
+         final int offset = this.topTree.nodes[node * 2 + 1];
+         final int end = offset + (data >>> 2);
+
+         for (int i = offset; i < end; i++) {
+            final long position = this.chunkPositions[this.topTree.leafFaces[i]];
+
+            in.seek(position);
+            in.skipArray(4);
+            in.skipArray(4);
+            final int indexCount = in.skipArray(4);
+            statistics.addBytes(in.getPosition() - position);
+
+            statistics.setBaseDepth(depth + 1);
+            LinearTree.read(in, indexCount / 3).addStatistics(statistics);
+            statistics.setBaseDepth(0);
+         }
+      } else {
+         final int left = data >> 2;
+         final int right = this.topTree.nodes[node * 2 + 1];
+
+         if (left != -1) {
+            this.addStatistics(left, depth + 1, in, statistics);
+         }
+
+         if (right != -1) {
+            this.addStatistics(right, depth + 1, in, statistics);
+         }
+      }
+   }
+
+   /**
+    * Returns the closest intersection between the given ray and the mesh. Chunks are visited front to back through the
+    * top level tree, and a chunk is only read if the ray enters its box before the closest hit found so far.
+    */
+   @Override
+   public IntersectionInformation getChildIntersection(final Ray ray, final int depth) {
+      if (!this.intersects(ray)) {
+         return null;
+      }
+
+      final float[] inverseDirection = RTStatics.getInverseDirection(ray.direction, new float[3]);
+      final int[] stack = this.topTree.getStack();
+      final float[] stackDistances = new float[stack.length];
+      final TriangleHit hit = TriangleHit.get(Float.POSITIVE_INFINITY);
+      final Vector3f position = new Vector3f();
+      final Vector3f normal = new Vector3f();
+      boolean found = false;
+      int stackSize = 0;
+
+      stack[stackSize] = 0;
+      stackDistances[stackSize++] = RTStatics.aabbEntryDistance(ray.origin, inverseDirection, this.topTree.bounds, 0, hit.t);
+
+      while (stackSize > 0) {
+         final int node = stack[--stackSize];
+
+         if (stackDistances[stackSize] >= hit.t) {
+            continue;
+         }
+
+         final int data = this.topTree.nodes[node * 2];
+
+         if ((data & 3) == LinearTree.LEAF) {
+            final int offset = this.topTree.nodes[node * 2 + 1];
+            final int end = offset + (data >>> 2);
+
+            for (int i = offset; i < end; i++) {
+               final int chunk = this.topTree.leafFaces[i];
+
+               if (RTStatics.aabbEntryDistance(ray.origin, inverseDirection, this.chunkBounds, chunk * 6, hit.t) < hit.t) {
+                  final Chunk loaded = this.getChunk(chunk);
+
+                  // the chunk may be dropped from the cache before the traversal ends, so the hit is interpolated now
+                  if (loaded.tree.getClosestIntersection(ray, loaded.triangles, this.shadowDistance, hit)) {
+                     loaded.triangles.getPosition(hit, position);
+                     loaded.triangles.getNormal(hit, normal);
+                     found = true;
+                  }
+               }
+            }
+         } else {
+            stackSize = this.topTree.pushChildren(node, ray, inverseDirection, hit.t, stack, stackDistances, stackSize);
+         }
+      }
+
+      return found ? new IntersectionInformation(ray, this, position, normal, hit.t) : null;
+   }
+
+   @Override
+   public boolean occluded(final Vector3f origin, final Vector3f direction, final float tMax) {
+      final Ray ray = new Ray(origin, direction);
+
+      if (!this.intersects(ray)) {
+         return false;
+      }
+
+      final float[] inverseDirection = RTStatics.getInverseDirection(ray.direction, new float[3]);
+      final int[] stack = this.topTree.getStack();
+      final float[] stackDistances = new float[stack.length];
+      int stackSize = 0;
+
+      stack[stackSize] = 0;
+      stackDistances[stackSize++] = RTStatics.aabbEntryDistance(ray.origin, inverseDirection, this.topTree.bounds, 0, tMax);
+
+      while (stackSize > 0) {
+         final int node = stack[--stackSize];
+         final int data = this.topTree.nodes[node * 2];
+
+         if ((data & 3) == LinearTree.LEAF) {
+            final int offset = this.topTree.nodes[node * 2 + 1];
+            final int end = offset + (data >>> 2);
+
+            for (int i = offset; i < end; i++) {
+               final int chunk = this.topTree.leafFaces[i];
+
+               if (RTStatics.aabbEntryDistance(ray.origin, inverseDirection, this.chunkBounds, chunk * 6, tMax) < tMax) {
+                  final Chunk loaded = this.getChunk(chunk);
+
+                  if (loaded.tree.occluded(ray, loaded.triangles, this.shadowDistance, tMax)) {
+                     return true;
+                  }
+               }
+            }
+         } else {
+            stackSize = this.topTree.pushChildren(node, ray, inverseDirection, tMax, stack, stackDistances, stackSize);
+         }
+      }
+
+      return false;
+   }
+
+   @Override
+   public boolean intersects(final Ray ray) {
+      return RTStatics.aabbIntersection(ray, this.minMax);
+   }
+
+   @Override
+   public float[][] getMinMax() {
+      return this.minMax;
+   }
+
+   @Override
+   public float[] getColor(final IntersectionInformation info, final Camera camera, final int depth) {
+      return this.colorInfo.getMaterialColor(camera, info, depth);
+   }
+
+   @Override
+   public ColorInformation getColorInformation() {
+      return this.colorInfo;
+   }
+
+   @Override
+   public float[] getEmission() {
+      return this.parentMesh.getEmission();
+   }
+
+   @Override
+   public float[] getDiffuse() {
+      return this.parentMesh.getDiffuse();
+   }
+
+   @Override
+   public float[] getSpecular() {
+      return this.parentMesh.getSpecular();
+   }
+
+   @Override
+   public float[] getAmbient() {
+      return this.parentMesh.getAmbient();
+   }
+
+   @Override
+   public float getShininess() {
+      return this.parentMesh.getShininess();
+   }
+
+   /**
+    * The faces of one chunk with their own vertices, prepared for intersection tests, and the chunk's BVH.
+    */
+   private static class Chunk {
+      public final TriangleStore triangles;
+      public final LinearTree tree;
+      public final long byteCount;
+
+      public Chunk(final float[] vertices, final float[] normals, final int[] indices, final LinearTree tree) {
+         this.triangles = new TriangleStore(vertices, normals, indices);
+         this.tree = tree;
+         this.byteCount = 4L * indices.length + this.triangles.getByteCount() + tree.getByteCount();
+      }
+   }
+}
@@ -0,0 +1,485 @@
+package stephen.ranger.ar.bounds;
+
+import java.io.IOException;
+import java.nio.IntBuffer;
+
+import stephen.ranger.ar.RTStatics;
+import stephen.ranger.ar.Ray;
+import stephen.ranger.ar.RayPacket;
+
+/**
+ * Compact copy of a BVH node hierarchy. Only the root box is stored as floats; every other node stores its box as six
+ * 8 or 16 bit steps relative to the decoded box of its parent, and boxes are decoded on the fly during traversal. Mins
+ * count steps up from the parent's min and maxes count steps down from the parent's max, both rounded outwards, so a
+ * decoded box always contains the node's faces.
+ *
+ * Nodes are stored depth first with the left child directly following its parent, using one int each:
+ *
+ * <pre>
+ * interior: (right child << 3) | (axis << 1)
+ * leaf:     (offset of the first face in leafFaces << (countBits + 1)) | (face count << 1) | 1
+ * </pre>
+ *
+ * Every interior node must have two children, which is always the case for BVHNode hierarchies.
+ */
+public class CompressedTree implements PackedTree {
+   public final int bits;
+
+   private final int levels;
+   private final int[] nodes;
+   private final byte[] bytes;
+   private final short[] shorts;
+   private final float[] rootBounds = new float[6];
+   private final int[] leafFaces;
+
+   private int nodeCount = 0;
+   private int leafFaceCount = 0;
+   private int maxDepth = 0;
+   private int maxLeafSize = 0;
+   private final int countBits;
+
+   /**
+    * @param root
+    *           The root of the hierarchy to pack
+    * @param bits
+    *           8 or 16, the number of bits used for each quantized bound
+    */
+   public CompressedTree(final TreeNode root, final int bits) {
+      if (bits != 8 && bits != 16) {
+         throw new IllegalArgumentException("Quantized bounds must use 8 or 16 bits, not " + bits);
+      }
+
+      this.bits = bits;
+      this.levels = (1 << bits) - 1;
+      this.count(root, 0);
+      this.countBits = 32 - Integer.numberOfLeadingZeros(this.maxLeafSize);
+
+      if (this.leafFaceCount >= 1 << 31 - this.countBits - 1 || this.nodeCount >= 1 << 29) {
+         throw new IllegalArgumentException("Too many faces for a compressed tree: " + this.leafFaceCount);
+      }
+
+      this.nodes = new int[this.nodeCount];
+      this.bytes = bits == 8 ? new byte[this.nodeCount * 6] : null;
+      this.shorts = bits == 16 ? new short[this.nodeCount * 6] : null;
+      this.leafFaces = new int[this.leafFaceCount];
+
+      final float[][] minMax = root.getMinMax();
+      System.arraycopy(minMax[0], 0, this.rootBounds, 0, 3);
+      System.arraycopy(minMax[1], 0, this.rootBounds, 3, 3);
+
+      this.nodeCount = 0;
+      this.leafFaceCount = 0;
+      this.add(root, this.rootBounds);
+   }
+
+   private CompressedTree(final int bits, final int countBits, final int maxDepth, final float[] rootBounds, final int[] nodes, final byte[] bytes, final short[] shorts,
+         final int[] leafFaces) {
+      this.bits = bits;
+      this.levels = (1 << bits) - 1;
+      this.countBits = countBits;
+      this.maxDepth = maxDepth;
+      System.arraycopy(rootBounds, 0, this.rootBounds, 0, 6);
+      this.nodes = nodes;
+      this.bytes = bytes;
+      this.shorts = shorts;
+      this.leafFaces = leafFaces;
+   }
+
+   /**
+    * Reads a tree written by write over a mesh of faceCount faces, checking it with check.
+    */
+   static CompressedTree read(final MeshCache.Reader in, final int faceCount) throws IOException {
+      final int bits = in.getInt();
+
+      if (bits != 8 && bits != 16) {
+         throw new IOException("Quantized bounds must use 8 or 16 bits, not " + bits);
+      }
+
+      final int countBits = in.getInt();
+      final int maxDepth = in.getInt();
+      final float[] rootBounds = in.getFloats();
+      final int[] nodes = in.getInts();
+      final byte[] bytes = bits == 8 ? in.getBytes() : null;
+      final short[] shorts = bits == 16 ? in.getShorts() : null;
+      final int[] leafFaces = in.getInts();
+
+      CompressedTree.check(countBits, maxDepth, rootBounds, nodes, bits == 8 ? bytes.length : shorts.length, leafFaces, faceCount);
+
+      return new CompressedTree(bits, countBits, maxDepth, rootBounds, nodes, bytes, shorts, leafFaces);
+   }
+
+   /**
+    * Checks a read tree the way LinearTree.check does: the node boxes match the nodes, both children follow their
+    * parent, leaves and faces lie inside their arrays and maxDepth covers the deepest node.
+    */
+   private static void check(final int countBits, final int maxDepth, final float[] rootBounds, final int[] nodes, final int quantizedCount, final int[] leafFaces,
+         final int faceCount) throws IOException {
+      if (countBits < 0 || countBits > 30 || rootBounds.length != 6 || nodes.length == 0 || quantizedCount != nodes.length * 6L) {
+         throw new IOException("Compressed tree of " + nodes.length + " nodes has " + countBits + " count bits, " + rootBounds.length + " root bounds and "
+               + quantizedCount + " quantized bounds");
+      }
+
+      final int[] depths = new int[nodes.length];
+      final int leafMask = (1 << countBits) - 1;
+
+      for (int node = 0; node < nodes.length; node++) {
+         final int data = nodes[node];
+
+         if (depths[node] > maxDepth) {
+            throw new IOException("Tree node " + node + " is deeper than the tree's depth of " + maxDepth);
+         }
+
+         if ((data & 1) == 1) {
+            if ((data >>> countBits + 1) + (long) (data >>> 1 & leafMask) > leafFaces.length) {
+               throw new IOException("Leaf " + node + " has faces outside the " + leafFaces.length + " leaf faces");
+            }
+         } else {
+            final int right = data >>> 3;
+
+            if ((data >>> 1 & 3) > 2 || node + 1 >= nodes.length || right <= node + 1 || right >= nodes.length) {
+               throw new IOException("Tree node " + node + " has axis " + (data >>> 1 & 3) + " and children " + (node + 1) + " and " + right + " of "
+                     + nodes.length + " nodes");
+            }
+
+            depths[node + 1] = Math.max(depths[node + 1], depths[node] + 1);
+            depths[right] = Math.max(depths[right], depths[node] + 1);
+         }
+      }
+
+      MeshCache.checkFaces(IntBuffer.wrap(leafFaces), faceCount);
+   }
+
+   void write(final MeshCache.Writer out) throws IOException {
+      out.putInt(this.bits);
+      out.putInt(this.countBits);
+      out.putInt(this.maxDepth);
+      out.putFloats(this.rootBounds);
+      out.putInts(this.nodes);
+
+      if (this.bytes != null) {
+         out.putBytes(this.bytes);
+      } else {
+         out.putShorts(this.shorts);
+      }
+
+      out.putInts(this.leafFaces);
+   }
+
+   private void count(final TreeNode node, final int depth) {
+      this.nodeCount++;
+      this.maxDepth = Math.max(this.maxDepth, depth);
+
+      if (node.getLeft() == null && node.getRight() == null) {
+         this.leafFaceCount += node.getFaces().length;
+         this.maxLeafSize = Math.max(this.maxLeafSize, node.getFaces().length);
+      } else if (node.getLeft() == null || node.getRight() == null) {
+         throw new IllegalArgumentException("Every interior node of a compressed tree needs two children");
+      } else {
+         this.count(node.getLeft(), depth + 1);
+         this.count(node.getRight(), depth + 1);
+      }
+   }
+
+   private int add(final TreeNode node, final float[] decoded) {
+      final int index = this.nodeCount++;
+
+      if (node.getLeft() == null && node.getRight() == null) {
+         final int[] faces = node.getFaces();
+         this.nodes[index] = this.leafFaceCount << this.countBits + 1 | faces.length << 1 | 1;
+
+         System.arraycopy(faces, 0, this.leafFaces, this.leafFaceCount, faces.length);
+         this.leafFaceCount += faces.length;
+      } else {
+         this.add(node.getLeft(), this.quantize(CompressedTree.toBounds(node.getLeft().getMinMax()), 0, decoded, this.nodeCount));
+         final int right = this.add(node.getRight(), this.quantize(CompressedTree.toBounds(node.getRight().getMinMax()), 0, decoded, this.nodeCount));
+
+         this.nodes[index] = right << 3 | node.getAxis() << 1;
+      }
+
+      return index;
+   }
+
+   /**
+    * Stores the given box of the node at the given index relative to its parent's decoded box.
+    *
+    * @return The decoded box of the node
+    */
+   private float[] quantize(final float[] box, final int offset, final float[] parent, final int index) {
+      final int[] steps = new int[6];
+
+      for (int a = 0; a < 3; a++) {
+         final float scale = (parent[3 + a] - parent[a]) / this.levels;
+         final float min = box[offset + a];
+         final float max = box[offset + 3 + a];
+         int q = scale > 0 ? (int) Math.min(this.levels, Math.max(0, (min - parent[a]) / scale)) : 0;
+         int k = scale > 0 ? (int) Math.min(this.levels, Math.max(0, (parent[3 + a] - max) / scale)) : 0;
+
+         while (q > 0 && parent[a] + q * scale > min) {
+            q--;
+         }
+
+         while (k > 0 && parent[3 + a] - k * scale < max) {
+            k--;
+         }
+
+         steps[a] = q;
+         steps[3 + a] = k;
+      }
+
+      for (int i = 0; i < 6; i++) {
+         if (this.bytes != null) {
+            this.bytes[index * 6 + i] = (byte) steps[i];
+         } else {
+            this.shorts[index * 6 + i] = (short) steps[i];
+         }
+      }
+
+      final float[] decoded = new float[6];
+      this.decode(index, parent, 0, decoded, 0);
+
+      return decoded;
+   }
+
+   /**
+    * Decodes the box of the node at the given index from its parent's decoded box. The build uses this same method, so
+    * the boxes seen during traversal are exactly the ones the children were quantized against.
+    */
+   private void decode(final int index, final float[] parent, final int parentOffset, final float[] output, final int outputOffset) {
+      for (int a = 0; a < 3; a++) {
+         final float min = parent[parentOffset + a];
+         final float max = parent[parentOffset + 3 + a];
+         final float scale = (max - min) / this.levels;
+
+         if (this.bytes != null) {
+            output[outputOffset + a] = min + (this.bytes[index * 6 + a] & 0xFF) * scale;
+            output[outputOffset + 3 + a] = max - (this.bytes[index * 6 + 3 + a] & 0xFF) * scale;
+         } else {
+            output[outputOffset + a] = min + (this.shorts[index * 6 + a] & 0xFFFF) * scale;
+            output[outputOffset + 3 + a] = max - (this.shorts[index * 6 + 3 + a] & 0xFFFF) * scale;
+         }
+      }
+   }
+
+   private static float[] toBounds(final float[][] minMax) {
+      return new float[] { minMax[0][0], minMax[0][1], minMax[0][2], minMax[1][0], minMax[1][1], minMax[1][2] };
+   }
+
+   /**
+    * Computes the exact bounds of every node bottom up, then quantizes them again top down against the new decoded
+    * boxes of their parents.
+    */
+   @Override
+   public float refit(final float[] faceBounds) {
+      final float[] exact = new float[this.nodes.length * 6];
+
+      for (int node = this.nodes.length - 1; node >= 0; node--) {
+         final int data = this.nodes[node];
+
+         BVHNode.setEmpty(exact, node * 6);
+
+         if ((data & 1) == 1) {
+            final int offset = data >>> this.countBits + 1;
+            final int end = offset + (data >>> 1 & (1 << this.countBits) - 1);
+
+            for (int i = offset; i < end; i++) {
+               BVHNode.union(exact, node * 6, faceBounds, this.leafFaces[i] * 6);
+            }
+         } else {
+            BVHNode.union(exact, node * 6, exact, (node + 1) * 6);
+            BVHNode.union(exact, node * 6, exact, (data >>> 3) * 6);
+         }
+      }
+
+      System.arraycopy(exact, 0, this.rootBounds, 0, 6);
+      this.requantize(0, this.rootBounds, exact);
+
+      return this.getCost();
+   }
+
+   private void requantize(final int node, final float[] decoded, final float[] exact) {
+      final int data = this.nodes[node];
+
+      if ((data & 1) == 0) {
+         final int left = node + 1;
+         final int right = data >>> 3;
+
+         this.requantize(left, this.quantize(exact, left * 6, decoded, left), exact);
+         this.requantize(right, this.quantize(exact, right * 6, decoded, right), exact);
+      }
+   }
+
+   @Override
+   public float getCost() {
+      final float rootArea = BVHNode.getSurfaceArea(this.rootBounds);
+
+      return rootArea > 0 ? this.getCost(0, this.rootBounds) / rootArea : 0;
+   }
+
+   private float getCost(final int node, final float[] decoded) {
+      final int data = this.nodes[node];
+      final float area = BVHNode.getSurfaceArea(decoded);
+
+      if ((data & 1) == 1) {
+         return area * RTStatics.SAH_INTERSECTION_COST * (data >>> 1 & (1 << this.countBits) - 1);
+      }
+
+      final float[] left = new float[6];
+      final float[] right = new float[6];
+      this.decode(node + 1, decoded, 0, left, 0);
+      this.decode(data >>> 3, decoded, 0, right, 0);
+
+      return area * RTStatics.SAH_TRAVERSAL_COST + this.getCost(node + 1, left) + this.getCost(data >>> 3, right);
+   }
+
+   @Override
+   public void addStatistics(final TreeStatistics statistics) {
+      statistics.addBytes(this.getByteCount());
+
+      if (this.nodes.length > 0) {
+         this.addStatistics(0, 0, this.rootBounds, statistics);
+      }
+   }
+
+   /**
+    * Adds the given node with its decoded box, which is what traversal tests, and its subtree.
+    */
+   private void addStatistics(final int node, final int depth, final float[] decoded, final TreeStatistics statistics) {
+      final int data = this.nodes[node];
+
+      if ((data & 1) == 1) {
+         statistics.addLeaf(depth, BVHNode.getSurfaceArea(decoded), data >>> 1 & (1 << this.countBits) - 1);
+         return;
+      }
+
+      final float[] left = new float[6];
+      final float[] right = new float[6];
+      this.decode(node + 1, decoded, 0, left, 0);
+      this.decode(data >>> 3, decoded, 0, right, 0);
+
+      statistics.addInterior(depth, BVHNode.getSurfaceArea(decoded));
+      this.addStatistics(node + 1, depth + 1, left, statistics);
+      this.addStatistics(data >>> 3, depth + 1, right, statistics);
+   }
+
+   @Override
+   public int getNodeCount() {
+      return this.nodes.length;
+   }
+
+   @Override
+   public int getMaxDepth() {
+      return this.maxDepth;
+   }
+
+   @Override
+   public int getReferenceCount() {
+      return this.leafFaces.length;
+   }
+
+   @Override
+   public long getByteCount() {
+      return 4L * (this.nodes.length + this.rootBounds.length + this.leafFaces.length) + (this.bytes != null ? this.bytes.length : 2L * this.shorts.length);
+   }
+
+   /**
+    * Finds the closest intersection between the given ray and the mesh faces in this tree. Nodes are visited front
+    * to back in the same way as LinearTree; each stack entry carries the decoded box of its node so its children can
+    * be decoded when it is popped.
+    */
+   @Override
+   public boolean getClosestIntersection(final Ray ray, final TriangleStore triangles, final float shadowDistance, final TriangleHit hit) {
+      return this.traverse(ray, triangles, shadowDistance, hit, false);
+   }
+
+   @Override
+   public boolean occluded(final Ray ray, final TriangleStore triangles, final float shadowDistance, final float tMax) {
+      return this.traverse(ray, triangles, shadowDistance, TriangleHit.get(tMax), true);
+   }
+
+   @Override
+   public void getClosestIntersections(final RayPacket packet, final int first, final TriangleStore triangles, final float shadowDistance) {
+      for (int r = first; r < packet.size; r++) {
+         if (this.traverse(packet.rays[r], triangles, shadowDistance, packet.hits[r], false)) {
+            packet.tMax[r] = packet.hits[r].t;
+         }
+      }
+   }
+
+   /**
+    * Shared closest hit and any hit traversal; an any hit traversal returns at the first face hit.
+    */
+   private boolean traverse(final Ray ray, final TriangleStore triangles, final float shadowDistance, final TriangleHit hit, final boolean anyHit) {
+      final float[] inverseDirection = RTStatics.getInverseDirection(ray.direction, new float[3]);
+      final int[] stack = new int[this.maxDepth + 2];
+      final float[] stackDistances = new float[stack.length];
+      final float[] stackBounds = new float[stack.length * 6];
+      final float[] childBounds = new float[12];
+      final int leafMask = (1 << this.countBits) - 1;
+      int stackSize = 0;
+      boolean found = false;
+      float tMax = hit.t;
+
+      stack[stackSize] = 0;
+      stackDistances[stackSize] = RTStatics.aabbEntryDistance(ray.origin, inverseDirection, this.rootBounds, 0, tMax);
+      System.arraycopy(this.rootBounds, 0, stackBounds, 0, 6);
+      stackSize++;
+
+      while (stackSize > 0) {
+         final int node = stack[--stackSize];
+
+         if (stackDistances[stackSize] >= tMax) {
+            continue;
+         }
+
+         final int data = this.nodes[node];
+
+         if ((data & 1) == 1) {
+            final int offset = data >>> this.countBits + 1;
+            final int end = offset + (data >>> 1 & leafMask);
+
+            for (int i = offset; i < end; i++) {
+               if (triangles.intersect(this.leafFaces[i], ray.origin, ray.direction, shadowDistance, hit)) {
+                  if (anyHit) {
+                     return true;
+                  }
+
+                  found = true;
+                  tMax = hit.t;
+               }
+            }
+         } else {
+            final int left = node + 1;
+            final int right = data >>> 3;
+
+            this.decode(left, stackBounds, stackSize * 6, childBounds, 0);
+            this.decode(right, stackBounds, stackSize * 6, childBounds, 6);
+
+            final float leftDistance = RTStatics.aabbEntryDistance(ray.origin, inverseDirection, childBounds, 0, tMax);
+            final float rightDistance = RTStatics.aabbEntryDistance(ray.origin, inverseDirection, childBounds, 6, tMax);
+
+            if (inverseDirection[data >>> 1 & 3] >= 0) {
+               stackSize = CompressedTree.push(stack, stackDistances, stackBounds, stackSize, right, rightDistance, childBounds, 6);
+               stackSize = CompressedTree.push(stack, stackDistances, stackBounds, stackSize, left, leftDistance, childBounds, 0);
+            } else {
+               stackSize = CompressedTree.push(stack, stackDistances, stackBounds, stackSize, left, leftDistance, childBounds, 0);
+               stackSize = CompressedTree.push(stack, stackDistances, stackBounds, stackSize, right, rightDistance, childBounds, 6);
+            }
+         }
+      }
+
+      return found;
+   }
+
+   private static int push(final int[] stack, final float[] stackDistances, final float[] stackBounds, final int stackSize, final int node, final float distance,
+         final float[] bounds, final int offset) {
+      if (distance == Float.POSITIVE_INFINITY) {
+         return stackSize;
+      }
+
+      stack[stackSize] = node;
+      stackDistances[stackSize] = distance;
+      System.arraycopy(bounds, offset, stackBounds, stackSize * 6, 6);
+
+      return stackSize + 1;
+   }
+}
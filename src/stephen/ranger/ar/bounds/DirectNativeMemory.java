@@ -0,0 +1,27 @@
+package stephen.ranger.ar.bounds;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Direct buffers, used when jdk.incubator.foreign is not available. The garbage collector frees them once the mesh is
+ * no longer reachable, so close only marks them as closed.
+ */
+public class DirectNativeMemory implements NativeMemory {
+   private volatile boolean open = true;
+
+   @Override
+   public ByteBuffer allocate(final long byteCount) {
+      return ByteBuffer.allocateDirect((int) byteCount).order(ByteOrder.nativeOrder());
+   }
+
+   @Override
+   public void close() {
+      this.open = false;
+   }
+
+   @Override
+   public boolean isOpen() {
+      return this.open;
+   }
+}
@@ -1,7 +1,8 @@
 package stephen.ranger.ar.bounds;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 import javax.vecmath.Vector3f;
 
@@ -9,111 +10,519 @@ import stephen.ranger.ar.Camera;
 import stephen.ranger.ar.IntersectionInformation;
 import stephen.ranger.ar.RTStatics;
 import stephen.ranger.ar.Ray;
+import stephen.ranger.ar.RTStatics.KDSplitMethod;
 import stephen.ranger.ar.RTStatics.SeparationAxis;
 import stephen.ranger.ar.materials.ColorInformation;
 import stephen.ranger.ar.sceneObjects.Triangle;
 import stephen.ranger.ar.sceneObjects.TriangleMesh;
 
-public class KDNode extends BoundingVolume {
+public class KDNode extends BoundingVolume implements TreeNode {
    public KDNode left;
    public KDNode right;
-   public final SeparationAxis axis;
+   public SeparationAxis axis;
    public final float[][] minMax;
+   public float split;
    public final int depth;
-   private final float[][] vertices;
-   private final float[][] normals;
-   private final int[][] indices;
+   private final float[] vertices;
+   private final float[] normals;
+   private final int[] indices;
+   private int[] faces;
    private final TriangleMesh parentMesh;
+   private final ColorInformation colorInfo;
    private final float shadowDistance;
+   private final boolean computeKDTree;
+   private final int lazyDepth;
+   /**
+    * True until a deferred node is split. The node's other fields are written before this flag is cleared, so a thread
+    * that reads it as false also sees the finished children.
+    */
+   private volatile boolean deferred = false;
 
-   public KDNode(final TriangleMesh parentMesh, final float[][] vertices, final float[][] normals, final int[][] indices, final float[][] minMax, final SeparationAxis axis, final int depth,
-         final ColorInformation colorInfo, final float shadowDistance, final boolean computeKDTree) {
-      this.axis = axis;
+   /**
+    * Creates a new KDNode over the given faces and recursively builds its children.
+    * 
+    * @param indices
+    *           The complete set of faces of the parent mesh, three vertex indices per face
+    * @param faces
+    *           The positions in indices of the faces contained in this node
+    */
+   public KDNode(final TriangleMesh parentMesh, final float[] vertices, final float[] normals, final int[] indices, final int[] faces, final float[][] minMax,
+         final SeparationAxis axis, final int depth, final ColorInformation colorInfo, final float shadowDistance, final boolean computeKDTree) {
+      this(parentMesh, vertices, normals, indices, faces, minMax, axis, depth, colorInfo, shadowDistance, computeKDTree, Integer.MAX_VALUE);
+   }
+
+   /**
+    * Creates a new KDNode over the given faces and builds its children down to lazyDepth. Nodes at lazyDepth that would
+    * be split are deferred instead: they keep their faces and are split, one level at a time, by the first ray that
+    * reaches them.
+    * 
+    * @param lazyDepth
+    *           The depth of the first deferred nodes, or Integer.MAX_VALUE to build the whole tree
+    */
+   public KDNode(final TriangleMesh parentMesh, final float[] vertices, final float[] normals, final int[] indices, final int[] faces, final float[][] minMax,
+         final SeparationAxis axis, final int depth, final ColorInformation colorInfo, final float shadowDistance, final boolean computeKDTree, final int lazyDepth) {
       this.minMax = minMax;
       this.depth = depth;
       this.vertices = vertices;
       this.normals = normals;
       this.indices = indices;
+      this.faces = faces;
       this.parentMesh = parentMesh;
+      this.colorInfo = colorInfo;
       this.shadowDistance = shadowDistance;
+      this.computeKDTree = computeKDTree;
+      this.lazyDepth = lazyDepth;
+      this.axis = axis;
+      this.split = Float.NaN;
 
-      if (computeKDTree && depth < RTStatics.MAX_DEPTH && indices.length > RTStatics.MAX_CHILDREN) {
-         float median;
-         final List<int[]> leftChildren = new ArrayList<int[]>();
-         final List<int[]> rightChildren = new ArrayList<int[]>();
-
-         if (axis.equals(SeparationAxis.X)) {
-            median = (this.minMax[1][0] - this.minMax[0][0]) / 2f + this.minMax[0][0];
-         } else if (axis.equals(SeparationAxis.Y)) {
-            median = (this.minMax[1][1] - this.minMax[0][1]) / 2f + this.minMax[0][1];
+      if (computeKDTree && depth < RTStatics.MAX_DEPTH && faces.length > RTStatics.MAX_CHILDREN) {
+         if (depth >= lazyDepth) {
+            this.deferred = true;
          } else {
-            median = (this.minMax[1][2] - this.minMax[0][2]) / 2f + this.minMax[0][2];
+            this.build();
          }
+      }
+   }
 
-         final float[][] leftMinMax = new float[][] { { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE }, { -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE } };
-         final float[][] rightMinMax = new float[][] { { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE }, { -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE } };
+   /**
+    * Splits this node and creates its children if the split heuristic finds a split worth making.
+    */
+   private void build() {
+      final TriangleMesh parentMesh = this.parentMesh;
+      final float[] vertices = this.vertices;
+      final float[] normals = this.normals;
+      final int[] indices = this.indices;
+      final int[] faces = this.faces;
+      final int depth = this.depth;
+      final ColorInformation colorInfo = this.colorInfo;
+      final float shadowDistance = this.shadowDistance;
+      final boolean computeKDTree = this.computeKDTree;
+      final int lazyDepth = this.lazyDepth;
+      final float[] split = this.getSplit(this.axis);
 
-         final float[][] childMinMax = new float[2][3];
+      if (split != null) {
+         this.axis = SeparationAxis.values()[(int) split[0]];
+         this.split = split[1];
 
-         for (final int[] face : indices) {
-            RTStatics.getMinMax(vertices, face, childMinMax);
+         // classify each face as left (1), right (2), or straddling (3) while accumulating the child boxes
+         final byte[] sides = new byte[faces.length];
+         final float[][] childMinMax = this.classify(sides);
+         final int[] leftChildren = new int[faces.length];
+         final int[] rightChildren = new int[faces.length];
+         int leftCount = 0, rightCount = 0;
 
-            if (childMinMax[1][axis.pos] <= median) {
-               leftChildren.add(face);
-            } else if (childMinMax[0][axis.pos] >= median) {
-               rightChildren.add(face);
-            } else {
-               leftChildren.add(face);
-               rightChildren.add(face);
+         for (int i = 0; i < faces.length; i++) {
+            if ((sides[i] & 1) != 0) {
+               leftChildren[leftCount++] = faces[i];
+            }
+
+            if ((sides[i] & 2) != 0) {
+               rightChildren[rightCount++] = faces[i];
             }
          }
 
-         if (leftChildren.size() > 0) {
-            final int[][] leftChildrenFaces = leftChildren.toArray(new int[leftChildren.size()][3]);
-            RTStatics.getMinMax(vertices, leftChildrenFaces, leftMinMax);
-            left = new KDNode(parentMesh, vertices, normals, leftChildrenFaces, leftMinMax, axis.getNextAxis(), depth + 1, colorInfo, shadowDistance, computeKDTree);
+         // interior nodes don't need their faces once the children have them
+         this.faces = null;
+
+         final int[] leftChildrenFaces = leftCount > 0 ? Arrays.copyOf(leftChildren, leftCount) : null;
+         final int[] rightChildrenFaces = rightCount > 0 ? Arrays.copyOf(rightChildren, rightCount) : null;
+         final float[][] leftMinMax = new float[][] { childMinMax[0], childMinMax[1] };
+         final float[][] rightMinMax = new float[][] { childMinMax[2], childMinMax[3] };
+         final SeparationAxis nextAxis = this.axis.getNextAxis();
+
+         if (faces.length > RTStatics.PARALLEL_BUILD_THRESHOLD && ForkJoinTask.inForkJoinPool()) {
+            ForkJoinTask.invokeAll(new RecursiveAction() {
+               private static final long serialVersionUID = 1L;
+
+               @Override
+               protected void compute() {
+                  KDNode.this.left = leftChildrenFaces == null ? null : new KDNode(parentMesh, vertices, normals, indices, leftChildrenFaces, leftMinMax, nextAxis, depth + 1,
+                        colorInfo, shadowDistance, computeKDTree, lazyDepth);
+               }
+            }, new RecursiveAction() {
+               private static final long serialVersionUID = 1L;
+
+               @Override
+               protected void compute() {
+                  KDNode.this.right = rightChildrenFaces == null ? null : new KDNode(parentMesh, vertices, normals, indices, rightChildrenFaces, rightMinMax, nextAxis,
+                        depth + 1, colorInfo, shadowDistance, computeKDTree, lazyDepth);
+               }
+            });
          } else {
-            left = null;
+            left = leftChildrenFaces == null ? null : new KDNode(parentMesh, vertices, normals, indices, leftChildrenFaces, leftMinMax, nextAxis, depth + 1, colorInfo,
+                  shadowDistance, computeKDTree, lazyDepth);
+            right = rightChildrenFaces == null ? null : new KDNode(parentMesh, vertices, normals, indices, rightChildrenFaces, rightMinMax, nextAxis, depth + 1, colorInfo,
+                  shadowDistance, computeKDTree, lazyDepth);
          }
+      }
+   }
 
-         if (rightChildren.size() > 0) {
-            final int[][] rightChildrenFaces = rightChildren.toArray(new int[rightChildren.size()][3]);
-            RTStatics.getMinMax(vertices, rightChildrenFaces, rightMinMax);
-            right = new KDNode(parentMesh, vertices, normals, rightChildrenFaces, rightMinMax, axis.getNextAxis(), depth + 1, colorInfo, shadowDistance, computeKDTree);
-         } else {
-            right = null;
+   /**
+    * Splits a deferred node. Only one thread builds the children, any other thread reaching the node meanwhile waits
+    * for them; large nodes are split in RTStatics.BUILD_POOL so the passes over their faces run in parallel.
+    */
+   private void expand() {
+      synchronized (this) {
+         if (this.deferred) {
+            if (this.faces.length > RTStatics.PARALLEL_BUILD_THRESHOLD && !ForkJoinTask.inForkJoinPool()) {
+               RTStatics.BUILD_POOL.invoke(new RecursiveAction() {
+                  private static final long serialVersionUID = 1L;
+
+                  @Override
+                  protected void compute() {
+                     KDNode.this.build();
+                  }
+               });
+            } else {
+               this.build();
+            }
+
+            this.deferred = false;
          }
-      } else {
-         left = null;
-         right = null;
+      }
+   }
+
+   /**
+    * Classifies every face of this node against the split plane, storing 1 (left), 2 (right), or 3 (both) in sides.
+    * 
+    * @return The boxes of the left and right children in the form of: { left min, left max, right min, right max }
+    */
+   private float[][] classify(final byte[] sides) {
+      return new ParallelRange<float[][]>() {
+         @Override
+         protected float[][] compute(final int from, final int to) {
+            final float[][] childMinMax = new float[][] { { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE }, { -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE },
+                  { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE }, { -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE } };
+            final float[][] faceMinMax = new float[2][3];
+
+            for (int i = from; i < to; i++) {
+               RTStatics.getMinMax(vertices, indices, faces[i], faceMinMax);
+
+               sides[i] = (byte) (faceMinMax[1][axis.pos] <= split ? 1 : faceMinMax[0][axis.pos] >= split ? 2 : 3);
+
+               if ((sides[i] & 1) != 0) {
+                  KDNode.union(childMinMax, 0, faceMinMax);
+               }
+
+               if ((sides[i] & 2) != 0) {
+                  KDNode.union(childMinMax, 2, faceMinMax);
+               }
+            }
+
+            return childMinMax;
+         }
+
+         @Override
+         protected float[][] merge(final float[][] lower, final float[][] upper) {
+            KDNode.union(lower, 0, new float[][] { upper[0], upper[1] });
+            KDNode.union(lower, 2, new float[][] { upper[2], upper[3] });
+
+            return lower;
+         }
+      }.invoke(0, this.faces.length);
+   }
+
+   /**
+    * Chooses the split plane for this node using RTStatics.KD_SPLIT_METHOD.
+    * 
+    * @param axis
+    *           The axis to use for midpoint splits
+    * @return { axis, position } of the split plane or null if this node should be a leaf
+    */
+   private float[] getSplit(final SeparationAxis axis) {
+      if (RTStatics.KD_SPLIT_METHOD.equals(KDSplitMethod.MIDPOINT)) {
+         return new float[] { axis.pos, (this.minMax[1][axis.pos] - this.minMax[0][axis.pos]) / 2f + this.minMax[0][axis.pos] };
+      }
+
+      return this.getSAHSplit();
+   }
+
+   /**
+    * Binned surface area heuristic. Every face is binned along each axis by the bin containing its minimum (the faces
+    * that end up in the left child) and by the bin containing its maximum (the faces that end up in the right child).
+    * The bounds of each bin are tracked as well, so the cost of each candidate plane uses the tight child boxes that
+    * will actually be created. Candidates that leave one side empty get RTStatics.SAH_EMPTY_BONUS to cut off empty
+    * space, and if no candidate is cheaper than intersecting every face the node becomes a leaf.
+    * 
+    * @return { axis, position } of the cheapest split plane or null if splitting doesn't pay
+    */
+   private float[] getSAHSplit() {
+      final int binCount = RTStatics.SAH_BIN_COUNT;
+      final float nodeArea = RTStatics.getSurfaceArea(this.minMax);
+
+      if (nodeArea <= 0) {
+         return null;
+      }
+
+      final float[] scale = new float[3];
+
+      for (int a = 0; a < 3; a++) {
+         final float extent = this.minMax[1][a] - this.minMax[0][a];
+         scale[a] = extent > 0 ? binCount / extent : 0;
+      }
+
+      final SAHBins bins = new ParallelRange<SAHBins>() {
+         @Override
+         protected SAHBins compute(final int from, final int to) {
+            final SAHBins bins = new SAHBins(binCount);
+            final float[][] faceMinMax = new float[2][3];
+
+            for (int i = from; i < to; i++) {
+               RTStatics.getMinMax(vertices, indices, faces[i], faceMinMax);
+
+               for (int a = 0; a < 3; a++) {
+                  if (scale[a] > 0) {
+                     final int startBin = a * binCount + KDNode.getBin(faceMinMax[0][a], minMax[0][a], scale[a], binCount);
+                     final int endBin = a * binCount + KDNode.getBin(faceMinMax[1][a], minMax[0][a], scale[a], binCount);
+
+                     bins.startCounts[startBin]++;
+                     bins.endCounts[endBin]++;
+                     KDNode.union(bins.startBounds, startBin * 6, faceMinMax);
+                     KDNode.union(bins.endBounds, endBin * 6, faceMinMax);
+                  }
+               }
+            }
+
+            return bins;
+         }
+
+         @Override
+         protected SAHBins merge(final SAHBins lower, final SAHBins upper) {
+            lower.add(upper);
+            return lower;
+         }
+      }.invoke(0, this.faces.length);
+
+      final float leafCost = RTStatics.SAH_INTERSECTION_COST * this.faces.length;
+      float bestCost = leafCost;
+      float[] bestSplit = null;
+
+      final int[] rightCounts = new int[binCount];
+      final float[] rightAreas = new float[binCount];
+      final float[] accumulated = new float[6];
+
+      for (int a = 0; a < 3; a++) {
+         if (scale[a] == 0) {
+            continue;
+         }
+
+         // sweep from the right to find the cost of everything at or above each candidate plane
+         KDNode.setEmpty(accumulated, 0);
+         int count = 0;
+
+         for (int b = binCount - 1; b > 0; b--) {
+            count += bins.endCounts[a * binCount + b];
+            KDNode.union(accumulated, 0, bins.endBounds, (a * binCount + b) * 6);
+            rightCounts[b] = count;
+            rightAreas[b] = KDNode.getSurfaceArea(accumulated);
+         }
+
+         // sweep from the left, evaluating the plane between bin b - 1 and bin b
+         KDNode.setEmpty(accumulated, 0);
+         count = 0;
+
+         for (int b = 1; b < binCount; b++) {
+            count += bins.startCounts[a * binCount + b - 1];
+            KDNode.union(accumulated, 0, bins.startBounds, (a * binCount + b - 1) * 6);
+
+            final float leftArea = KDNode.getSurfaceArea(accumulated);
+            final float bonus = count == 0 || rightCounts[b] == 0 ? 1f - RTStatics.SAH_EMPTY_BONUS : 1f;
+            final float cost = RTStatics.SAH_TRAVERSAL_COST + RTStatics.SAH_INTERSECTION_COST * bonus * (leftArea * count + rightAreas[b] * rightCounts[b]) / nodeArea;
+
+            if (cost < bestCost) {
+               bestCost = cost;
+               bestSplit = new float[] { a, this.minMax[0][a] + b / scale[a] };
+            }
+         }
+      }
+
+      return bestSplit;
+   }
+
+   /**
+    * Per axis face counts and bounds of the SAH bins, stored as [axis * binCount + bin].
+    */
+   private static class SAHBins {
+      public final int[] startCounts, endCounts;
+      public final float[] startBounds, endBounds;
+
+      public SAHBins(final int binCount) {
+         this.startCounts = new int[3 * binCount];
+         this.endCounts = new int[3 * binCount];
+         this.startBounds = new float[3 * binCount * 6];
+         this.endBounds = new float[3 * binCount * 6];
+
+         for (int i = 0; i < 3 * binCount; i++) {
+            KDNode.setEmpty(this.startBounds, i * 6);
+            KDNode.setEmpty(this.endBounds, i * 6);
+         }
+      }
+
+      public void add(final SAHBins bins) {
+         for (int i = 0; i < this.startCounts.length; i++) {
+            this.startCounts[i] += bins.startCounts[i];
+            this.endCounts[i] += bins.endCounts[i];
+         }
+
+         for (int i = 0; i < this.startBounds.length; i += 6) {
+            for (int j = 0; j < 3; j++) {
+               this.startBounds[i + j] = Math.min(this.startBounds[i + j], bins.startBounds[i + j]);
+               this.startBounds[i + 3 + j] = Math.max(this.startBounds[i + 3 + j], bins.startBounds[i + 3 + j]);
+               this.endBounds[i + j] = Math.min(this.endBounds[i + j], bins.endBounds[i + j]);
+               this.endBounds[i + 3 + j] = Math.max(this.endBounds[i + 3 + j], bins.endBounds[i + 3 + j]);
+            }
+         }
+      }
+   }
+
+   private static int getBin(final float value, final float min, final float scale, final int binCount) {
+      return Math.max(0, Math.min(binCount - 1, (int) ((value - min) * scale)));
+   }
+
+   private static void setEmpty(final float[] bounds, final int offset) {
+      bounds[offset] = bounds[offset + 1] = bounds[offset + 2] = Float.MAX_VALUE;
+      bounds[offset + 3] = bounds[offset + 4] = bounds[offset + 5] = -Float.MAX_VALUE;
+   }
+
+   /**
+    * Grows the packed box at bounds[offset] to contain minMax.
+    */
+   private static void union(final float[] bounds, final int offset, final float[][] minMax) {
+      for (int i = 0; i < 3; i++) {
+         bounds[offset + i] = Math.min(bounds[offset + i], minMax[0][i]);
+         bounds[offset + 3 + i] = Math.max(bounds[offset + 3 + i], minMax[1][i]);
+      }
+   }
+
+   /**
+    * Grows the packed box at bounds[offset] to contain the packed box at other[otherOffset].
+    */
+   private static void union(final float[] bounds, final int offset, final float[] other, final int otherOffset) {
+      for (int i = 0; i < 3; i++) {
+         bounds[offset + i] = Math.min(bounds[offset + i], other[otherOffset + i]);
+         bounds[offset + 3 + i] = Math.max(bounds[offset + 3 + i], other[otherOffset + 3 + i]);
+      }
+   }
+
+   /**
+    * Grows the box stored in rows row and row + 1 of output to contain minMax.
+    */
+   private static void union(final float[][] output, final int row, final float[][] minMax) {
+      for (int i = 0; i < 3; i++) {
+         output[row][i] = Math.min(output[row][i], minMax[0][i]);
+         output[row + 1][i] = Math.max(output[row + 1][i], minMax[1][i]);
+      }
+   }
+
+   private static float getSurfaceArea(final float[] bounds) {
+      final float dx = bounds[3] - bounds[0];
+      final float dy = bounds[4] - bounds[1];
+      final float dz = bounds[5] - bounds[2];
+
+      return dx < 0 || dy < 0 || dz < 0 ? 0 : 2f * (dx * dy + dy * dz + dz * dx);
+   }
+
+   /**
+    * Adds this node and the nodes built below it to the given statistics, counting a deferred node as a leaf. The bytes
+    * are estimated from the objects each node holds.
+    */
+   void addStatistics(final TreeStatistics statistics) {
+      final boolean deferred = this.deferred;
+      final float area = RTStatics.getSurfaceArea(this.minMax);
+
+      // the node with its box and the face array it references
+      statistics.addBytes(128 + (this.faces != null ? 16 + 4L * this.faces.length : 0));
+
+      if (deferred || this.left == null && this.right == null) {
+         statistics.addLeaf(this.depth, area, this.faces != null ? this.faces.length : 0);
+         return;
+      }
+
+      statistics.addInterior(this.depth, area);
+
+      if (this.left != null) {
+         this.left.addStatistics(statistics);
+      }
+
+      if (this.right != null) {
+         this.right.addStatistics(statistics);
       }
    }
 
    @Override
    public IntersectionInformation getChildIntersection(final Ray ray, final int depth) {
+      return this.getChildIntersection(ray, RTStatics.getInverseDirection(ray.direction, new float[3]), Float.POSITIVE_INFINITY);
+   }
+
+   @Override
+   public boolean occluded(final Vector3f origin, final Vector3f direction, final float tMax) {
+      final Ray ray = new Ray(origin, direction);
+
+      return this.occluded(ray, RTStatics.getInverseDirection(ray.direction, new float[3]), tMax);
+   }
+
+   /**
+    * Returns true as soon as any face in this subtree is hit nearer than tMax.
+    */
+   private boolean occluded(final Ray ray, final float[] inverseDirection, final float tMax) {
+      if (this.deferred) {
+         this.expand();
+      }
+
       if (left != null || right != null) {
-         IntersectionInformation tempLeft = null, tempRight = null;
+         return left != null && RTStatics.aabbEntryDistance(ray.origin, inverseDirection, left.minMax, tMax) < tMax && left.occluded(ray, inverseDirection, tMax)
+               || right != null && RTStatics.aabbEntryDistance(ray.origin, inverseDirection, right.minMax, tMax) < tMax && right.occluded(ray, inverseDirection, tMax);
+      }
 
-         if (left != null && left.intersects(ray)) {
-            tempLeft = left.getChildIntersection(ray, depth);
+      for (final int face : faces) {
+         final float[] temp = Triangle.intersectsTriangle(ray.origin, ray.direction, vertices, normals, indices, face);
+
+         if (temp != null && temp[6] > shadowDistance && temp[6] < tMax) {
+            return true;
          }
+      }
 
-         if (right != null && right.intersects(ray)) {
-            tempRight = right.getChildIntersection(ray, depth);
+      return false;
+   }
+
+   /**
+    * Returns the closest intersection in this subtree that is nearer than tMax. The child on the near side of the split
+    * plane is visited first and the far child is skipped if a hit was found before the ray enters it.
+    */
+   private IntersectionInformation getChildIntersection(final Ray ray, final float[] inverseDirection, final float tMax) {
+      if (this.deferred) {
+         this.expand();
+      }
+
+      if (left != null || right != null) {
+         final boolean leftFirst = inverseDirection[axis.pos] >= 0;
+         final KDNode near = leftFirst ? left : right;
+         final KDNode far = leftFirst ? right : left;
+         IntersectionInformation closest = null;
+         float distance = tMax;
+
+         if (near != null && RTStatics.aabbEntryDistance(ray.origin, inverseDirection, near.minMax, distance) < distance) {
+            closest = near.getChildIntersection(ray, inverseDirection, distance);
+            distance = closest == null ? distance : closest.w;
+         }
+
+         if (far != null && RTStatics.aabbEntryDistance(ray.origin, inverseDirection, far.minMax, distance) < distance) {
+            final IntersectionInformation temp = far.getChildIntersection(ray, inverseDirection, distance);
+            closest = temp == null ? closest : temp;
          }
 
-         return tempLeft == null && tempRight == null ? null : tempLeft == null ? tempRight : tempRight == null ? tempLeft : tempLeft.w < tempRight.w ? tempLeft : tempRight;
+         return closest;
       } else {
          float[] temp;
          float[] closest = null;
+         float distance = tMax;
 
-         for (final int[] face : indices) {
-            if (RTStatics.aabbIntersection(ray, minMax)) {
-               temp = Triangle.intersectsTriangle(ray.origin, ray.direction, vertices, normals, face);
+         for (final int face : faces) {
+            temp = Triangle.intersectsTriangle(ray.origin, ray.direction, vertices, normals, indices, face);
 
-               if (temp != null && temp[6] > shadowDistance && (closest == null || temp[6] < closest[6])) {
-                  closest = temp;
-               }
+            if (temp != null && temp[6] > shadowDistance && temp[6] < distance) {
+               closest = temp;
+               distance = temp[6];
             }
          }
 
@@ -122,6 +531,31 @@ public class KDNode extends BoundingVolume {
       }
    }
 
+   @Override
+   public int[] getFaces() {
+      return faces;
+   }
+
+   @Override
+   public KDNode getLeft() {
+      return left;
+   }
+
+   @Override
+   public KDNode getRight() {
+      return right;
+   }
+
+   @Override
+   public int getAxis() {
+      return axis.pos;
+   }
+
+   @Override
+   public float getSplit() {
+      return split;
+   }
+
    @Override
    public float[][] getMinMax() {
       return minMax;
@@ -137,6 +571,11 @@ public class KDNode extends BoundingVolume {
       return parentMesh.getColor(info, camera, depth);
    }
 
+   @Override
+   public ColorInformation getColorInformation() {
+      return colorInfo;
+   }
+
    @Override
    public float[] getEmission() {
       return parentMesh.getEmission();
@@ -1,106 +1,175 @@
 package stephen.ranger.ar.bounds;
 
 import java.util.Arrays;
+import java.util.concurrent.RecursiveTask;
+
+import javax.vecmath.Vector3f;
 
-import stephen.ranger.ar.Camera;
 import stephen.ranger.ar.IntersectionInformation;
 import stephen.ranger.ar.RTStatics;
+import stephen.ranger.ar.RTStatics.AccelerationStructure;
 import stephen.ranger.ar.RTStatics.SeparationAxis;
 import stephen.ranger.ar.Ray;
+import stephen.ranger.ar.RayPacket;
 import stephen.ranger.ar.materials.ColorInformation;
 import stephen.ranger.ar.sceneObjects.TriangleMesh;
 
-public class KDTree extends BoundingVolume {
-   private final float[][] minMax = new float[2][];
-   private final KDNode rootNode;
-   private final float[][] vertices;
-   private final float[][] normals;
-   private final int[][] indices;
-   private final TriangleMesh parentMesh;
-   private float shadowDistance;
-
-   private final ColorInformation colorInfo;
-
-   public KDTree(final TriangleMesh parentMesh, final float[][] vertices, final float[][] normals, final int[][] indices, final ColorInformation colorInfo, final boolean computeKDTree) {
-      this.parentMesh = parentMesh;
-      this.vertices = vertices;
-      this.normals = normals;
-      this.indices = indices;
-      this.colorInfo = colorInfo;
-      this.shadowDistance = RTStatics.EPSILON;
-
-      this.minMax[0] = new float[] { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE };
-      this.minMax[1] = new float[] { -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE };
-
-      for (final float[] vertice : vertices) {
-         this.minMax[0][0] = Math.min(vertice[0], this.minMax[0][0]);
-         this.minMax[1][0] = Math.max(vertice[0], this.minMax[1][0]);
-
-         this.minMax[0][1] = Math.min(vertice[1], this.minMax[0][1]);
-         this.minMax[1][1] = Math.max(vertice[1], this.minMax[1][1]);
-
-         this.minMax[0][2] = Math.min(vertice[2], this.minMax[0][2]);
-         this.minMax[1][2] = Math.max(vertice[2], this.minMax[1][2]);
-      }
+public class KDTree extends MeshBoundingVolume {
+   private final boolean computeKDTree;
+   private final boolean lazy;
+   private LinearTree linearTree;
+   /** The root of a lazy tree, traversed directly since its deeper nodes don't exist until rays reach them */
+   private KDNode lazyRoot;
+
+   public KDTree(final TriangleMesh parentMesh, final float[] vertices, final float[] normals, final int[] indices, final ColorInformation colorInfo, final boolean computeKDTree) {
+      this(parentMesh, vertices, normals, indices, colorInfo, computeKDTree, false);
+   }
 
-      this.shadowDistance = Math.max(this.minMax[1][0] - this.minMax[0][0], Math.max(this.minMax[1][1] - this.minMax[0][1], this.minMax[1][2] - this.minMax[0][2])) / 2000f;
+   /**
+    * @param lazy
+    *           If true, only the nodes above RTStatics.KD_LAZY_DEPTH are built up front and the rest of the tree is built
+    *           as rays reach it, so rendering starts sooner and subtrees no ray reaches are never built
+    */
+   public KDTree(final TriangleMesh parentMesh, final float[] vertices, final float[] normals, final int[] indices, final ColorInformation colorInfo,
+         final boolean computeKDTree, final boolean lazy) {
+      super(parentMesh, vertices, normals, indices, colorInfo);
+
+      this.computeKDTree = computeKDTree;
+      this.lazy = lazy;
+      this.rebuild();
+   }
+
+   /**
+    * Wraps a tree loaded from a MeshCache instead of building one. The build setting is kept for rebuilds.
+    */
+   public KDTree(final TriangleMesh parentMesh, final float[] vertices, final float[] normals, final int[] indices, final ColorInformation colorInfo,
+         final boolean computeKDTree, final LinearTree linearTree) {
+      super(parentMesh, vertices, normals, indices, colorInfo);
+
+      this.computeKDTree = computeKDTree;
+      this.lazy = false;
+      this.linearTree = linearTree;
+      this.buildCost = linearTree.getCost();
+      this.printStatistics();
+   }
 
+   @Override
+   protected void rebuild() {
       System.out.println("creating KD Tree...");
       final long startTime = System.nanoTime();
-      this.rootNode = new KDNode(parentMesh, this.vertices, this.normals, this.indices, this.minMax, SeparationAxis.X, 0, colorInfo, this.shadowDistance, computeKDTree);
+      final KDNode rootNode = RTStatics.BUILD_POOL.invoke(new RecursiveTask<KDNode>() {
+         private static final long serialVersionUID = 1L;
+
+         @Override
+         protected KDNode compute() {
+            return new KDNode(KDTree.this.parentMesh, KDTree.this.vertices, KDTree.this.normals, KDTree.this.indices, KDTree.this.getAllFaces(), KDTree.this.minMax,
+                  SeparationAxis.X, 0, KDTree.this.colorInfo, KDTree.this.shadowDistance, KDTree.this.computeKDTree, KDTree.this.lazy ? RTStatics.KD_LAZY_DEPTH
+                        : Integer.MAX_VALUE);
+         }
+      });
       final long endTime = System.nanoTime();
 
+      if (this.lazy) {
+         this.lazyRoot = rootNode;
+         System.out.println("KD Tree top " + RTStatics.KD_LAZY_DEPTH + " levels built in " + (endTime - startTime) / 1000000000. + " seconds on "
+               + RTStatics.BUILD_POOL.getParallelism() + " threads, deeper nodes are built as rays reach them");
+         this.printStatistics();
+         return;
+      }
+
+      this.linearTree = new LinearTree(rootNode);
+      this.buildCost = this.linearTree.getCost();
+
       System.out.println("min/max: " + Arrays.toString(this.minMax[0]) + ", " + Arrays.toString(this.minMax[1]));
 
-      System.out.println("KD Tree computation duration: " + (endTime - startTime) / 1000000000. + " seconds");
+      System.out.println("KD Tree computation duration: " + (endTime - startTime) / 1000000000. + " seconds on " + RTStatics.BUILD_POOL.getParallelism() + " threads");
+      System.out.println("KD Tree nodes: " + this.linearTree.getNodeCount() + ", leaf references: " + this.linearTree.getReferenceCount() + " ("
+            + (float) this.linearTree.getReferenceCount() / Math.max(1, this.faceCount) + " per face), "
+            + this.linearTree.getByteCount() / 1048576. + " MB");
+      this.printStatistics();
    }
 
    @Override
-   public IntersectionInformation getChildIntersection(final Ray ray, final int depth) {
-      if (this.intersects(ray)) {
-         return this.rootNode.getChildIntersection(ray, depth);
-      } else {
-         return null;
-      }
+   public AccelerationStructure getStructure() {
+      return this.lazy ? AccelerationStructure.LAZY_KD_TREE : AccelerationStructure.KD_TREE;
    }
 
+   /**
+    * A lazy tree's statistics cover the nodes built so far, with deferred nodes counted as leaves.
+    */
    @Override
-   public boolean intersects(final Ray ray) {
-      return RTStatics.aabbIntersection(ray, this.getMinMax());
-   }
+   public TreeStatistics getStatistics() {
+      if (!this.lazy) {
+         return super.getStatistics();
+      }
 
-   @Override
-   public float[][] getMinMax() {
-      return this.minMax;
+      final TreeStatistics statistics = new TreeStatistics(this.getStructure().toString(), this.faceCount);
+
+      this.lazyRoot.addStatistics(statistics);
+      statistics.addBytes(this.triangles.getByteCount());
+
+      return statistics;
    }
 
+   /**
+    * A lazy tree splits its deferred nodes from the float vertices as rays reach them.
+    */
    @Override
-   public float[] getColor(final IntersectionInformation info, final Camera camera, final int depth) {
-      return this.colorInfo.getMaterialColor(camera, info, depth);
+   protected boolean tracesVertices() {
+      return this.lazy;
    }
 
+   /**
+    * The split planes partition space rather than faces, so moved faces may belong on the other side of them.
+    */
    @Override
-   public float[] getEmission() {
-      return this.parentMesh.getEmission();
+   protected boolean canRefit() {
+      return false;
    }
 
+   /**
+    * @return The packed tree, or null for a lazy tree, which is never packed
+    */
    @Override
-   public float[] getDiffuse() {
-      return this.parentMesh.getDiffuse();
+   public PackedTree getPackedTree() {
+      return this.linearTree;
    }
 
    @Override
-   public float[] getSpecular() {
-      return this.parentMesh.getSpecular();
+   public IntersectionInformation getChildIntersection(final Ray ray, final int depth) {
+      if (!this.intersects(ray)) {
+         return null;
+      } else if (this.lazy) {
+         final IntersectionInformation info = this.lazyRoot.getChildIntersection(ray, depth);
+         return info == null || info.w > RTStatics.EPSILON ? info : null;
+      } else {
+         return this.getIntersectionInformation(ray);
+      }
    }
 
    @Override
-   public float[] getAmbient() {
-      return this.parentMesh.getAmbient();
+   public void getChildIntersections(final RayPacket packet, final int first, final IntersectionInformation[] results) {
+      if (!this.lazy) {
+         super.getChildIntersections(packet, first, results);
+         return;
+      }
+
+      for (int r = first; r < packet.size; r++) {
+         final IntersectionInformation info = this.getChildIntersection(packet.rays[r], 0);
+
+         if (info != null && info.w < packet.tMax[r]) {
+            results[r] = info;
+            packet.tMax[r] = info.w;
+         }
+      }
    }
 
    @Override
-   public float getShininess() {
-      return this.parentMesh.getShininess();
+   public boolean occluded(final Vector3f origin, final Vector3f direction, final float tMax) {
+      if (!this.lazy) {
+         return super.occluded(origin, direction, tMax);
+      }
+
+      return this.intersects(new Ray(origin, direction)) && this.lazyRoot.occluded(origin, direction, tMax);
    }
 }
@@ -0,0 +1,478 @@
+package stephen.ranger.ar.bounds;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.vecmath.Vector3f;
+
+import stephen.ranger.ar.Camera;
+import stephen.ranger.ar.IntersectionInformation;
+import stephen.ranger.ar.RTStatics;
+import stephen.ranger.ar.Ray;
+import stephen.ranger.ar.RayPacket;
+import stephen.ranger.ar.RTStatics.AccelerationStructure;
+import stephen.ranger.ar.materials.ColorInformation;
+import stephen.ranger.ar.sceneObjects.TriangleMesh;
+
+/**
+ * Levels of detail for a large TriangleMesh. Level 0 is the mesh's own bounding volume; each further level is made by
+ * vertex clustering on a grid twice as coarse as the one before and gets its own BVH. When a camera is created the mesh
+ * picks the coarsest level whose grid cell projects to at most RTStatics.LOD_PIXEL_ERROR pixels at the mesh's distance
+ * from the camera, and every ray then uses that level, so shadow and reflection rays see the same surface as primary
+ * rays. The BVH of a simplified level is only built while the level is selected.
+ */
+public class LODMesh extends BoundingVolume {
+   private final TriangleMesh parentMesh;
+   private final ColorInformation colorInfo;
+   private final BoundingVolume fullDetail;
+   private Level[] levels;
+   private Camera camera = null;
+   private volatile BoundingVolume current;
+
+   /**
+    * @param fullDetail
+    *           The mesh's full resolution bounding volume, used as level 0
+    * @param levels
+    *           The simplified levels, finest first, e.g. from simplify
+    */
+   public LODMesh(final TriangleMesh parentMesh, final ColorInformation colorInfo, final BoundingVolume fullDetail, final Level[] levels) {
+      this.parentMesh = parentMesh;
+      this.colorInfo = colorInfo;
+      this.fullDetail = fullDetail;
+      this.levels = levels;
+      this.current = fullDetail;
+   }
+
+   /**
+    * Simplifies the given mesh into up to RTStatics.LOD_LEVELS - 1 levels. The first grid cell is twice the mesh's
+    * average edge length and each level doubles it; a level is kept if it has at most three quarters of the faces of
+    * the level before, and simplification stops at RTStatics.LOD_MIN_FACES faces.
+    */
+   public static Level[] simplify(final float[] vertices, final float[] normals, final int[] indices) {
+      final long startTime = System.nanoTime();
+      final List<Level> levels = new ArrayList<Level>();
+      double edgeLength = 0;
+
+      for (int f = 0; f < indices.length; f += 3) {
+         for (int k = 0; k < 3; k++) {
+            final int p0 = indices[f + k] * 3, p1 = indices[f + (k + 1) % 3] * 3;
+            final float dx = vertices[p0] - vertices[p1], dy = vertices[p0 + 1] - vertices[p1 + 1], dz = vertices[p0 + 2] - vertices[p1 + 2];
+            edgeLength += (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+         }
+      }
+
+      float cellSize = indices.length == 0 ? 0 : (float) (2 * edgeLength / indices.length);
+      int faceCount = indices.length / 3;
+
+      while (cellSize > 0 && levels.size() < RTStatics.LOD_LEVELS - 1) {
+         final Level level = LODMesh.cluster(vertices, normals, indices, cellSize);
+
+         if (level.faceCount < RTStatics.LOD_MIN_FACES) {
+            break;
+         }
+
+         if (level.faceCount <= faceCount * 3 / 4) {
+            levels.add(level);
+            faceCount = level.faceCount;
+         }
+
+         cellSize *= 2;
+      }
+
+      final long endTime = System.nanoTime();
+      System.out.print("simplified " + indices.length / 3 + " faces into " + levels.size() + " levels in " + (endTime - startTime) / 1000000000. + " seconds:");
+
+      for (final Level level : levels) {
+         System.out.print(" " + level.faceCount + " (cell " + level.cellSize + ")");
+      }
+
+      System.out.println();
+
+      return levels.toArray(new Level[levels.size()]);
+   }
+
+   /**
+    * Merges the vertices in each cell of a uniform grid into one at their average position and drops the faces that
+    * collapse or repeat another face.
+    */
+   private static Level cluster(final float[] vertices, final float[] normals, final int[] indices, final float cellSize) {
+      final int vertexCount = vertices.length / 3;
+      final float[] min = new float[] { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE };
+
+      for (int i = 0; i < vertices.length; i++) {
+         min[i % 3] = Math.min(min[i % 3], vertices[i]);
+      }
+
+      // 21 bits of cell index per axis
+      final long[] keys = new long[vertexCount];
+
+      for (int i = 0; i < vertexCount; i++) {
+         for (int a = 0; a < 3; a++) {
+            keys[i] |= Math.min((long) ((vertices[i * 3 + a] - min[a]) / cellSize), 0x1fffff) << 21 * a;
+         }
+      }
+
+      final long[] cells = keys.clone();
+      Arrays.sort(cells);
+      int cellCount = 0;
+
+      for (int i = 0; i < cells.length; i++) {
+         if (i == 0 || cells[i] != cells[i - 1]) {
+            cells[cellCount++] = cells[i];
+         }
+      }
+
+      final float[] clusterVertices = new float[cellCount * 3];
+      final float[] clusterNormals = new float[cellCount * 3];
+      final int[] counts = new int[cellCount];
+      final int[] cluster = new int[vertexCount];
+
+      for (int i = 0; i < vertexCount; i++) {
+         cluster[i] = Arrays.binarySearch(cells, 0, cellCount, keys[i]);
+         counts[cluster[i]]++;
+
+         for (int a = 0; a < 3; a++) {
+            clusterVertices[cluster[i] * 3 + a] += vertices[i * 3 + a];
+            clusterNormals[cluster[i] * 3 + a] += normals[i * 3 + a];
+         }
+      }
+
+      for (int c = 0; c < cellCount; c++) {
+         final float length = (float) Math.sqrt(clusterNormals[c * 3] * clusterNormals[c * 3] + clusterNormals[c * 3 + 1] * clusterNormals[c * 3 + 1]
+               + clusterNormals[c * 3 + 2] * clusterNormals[c * 3 + 2]);
+
+         for (int a = 0; a < 3; a++) {
+            clusterVertices[c * 3 + a] /= counts[c];
+            clusterNormals[c * 3 + a] = length > 0 ? clusterNormals[c * 3 + a] / length : 0;
+         }
+      }
+
+      // faces rotated so their smallest vertex comes first, which keeps their winding, and grouped by that vertex
+      final int[] faces = new int[indices.length];
+      final int[] groupStart = new int[cellCount + 1];
+      int faceCount = 0;
+
+      for (int f = 0; f < indices.length; f += 3) {
+         final int a = cluster[indices[f]], b = cluster[indices[f + 1]], c = cluster[indices[f + 2]];
+
+         if (a != b && b != c && a != c) {
+            final int first = a < b && a < c ? 0 : b < c ? 1 : 2;
+            final int[] corners = new int[] { a, b, c };
+
+            for (int k = 0; k < 3; k++) {
+               faces[faceCount * 3 + k] = corners[(first + k) % 3];
+            }
+
+            groupStart[faces[faceCount * 3] + 1]++;
+            faceCount++;
+         }
+      }
+
+      for (int c = 0; c < cellCount; c++) {
+         groupStart[c + 1] += groupStart[c];
+      }
+
+      // the position in faces of each face, by group
+      final int[] grouped = new int[faceCount];
+      final int[] groupEnd = Arrays.copyOf(groupStart, cellCount);
+      int uniqueCount = 0;
+
+      for (int i = 0; i < faceCount; i++) {
+         final int group = faces[i * 3];
+         boolean repeated = false;
+
+         for (int j = groupStart[group]; j < groupEnd[group] && !repeated; j++) {
+            repeated = faces[grouped[j] * 3 + 1] == faces[i * 3 + 1] && faces[grouped[j] * 3 + 2] == faces[i * 3 + 2];
+         }
+
+         if (!repeated) {
+            grouped[groupEnd[group]++] = i;
+            uniqueCount++;
+         }
+      }
+
+      final int[] clusterIndices = new int[uniqueCount * 3];
+      int next = 0;
+
+      for (int c = 0; c < cellCount; c++) {
+         for (int j = groupStart[c]; j < groupEnd[c]; j++) {
+            System.arraycopy(faces, grouped[j] * 3, clusterIndices, next++ * 3, 3);
+         }
+      }
+
+      return new Level(cellSize, clusterVertices, clusterNormals, clusterIndices);
+   }
+
+   /**
+    * Picks the level used by every ray from now on from the camera's position and pixel size.
+    */
+   @Override
+   public synchronized void setCamera(final Camera camera) {
+      this.camera = camera;
+
+      final float[][] minMax = this.getMinMax();
+      final float[] origin = new float[] { camera.origin.x, camera.origin.y, camera.origin.z };
+      float distance = 0;
+
+      for (int a = 0; a < 3; a++) {
+         final float gap = Math.max(0, Math.max(minMax[0][a] - origin[a], origin[a] - minMax[1][a]));
+         distance += gap * gap;
+      }
+
+      distance = (float) Math.sqrt(distance);
+
+      // the angle one pixel subtends at the eye, then the size of a pixel at the mesh's closest point
+      final float pixelAngle = camera.viewportWidth / camera.screenWidth / camera.nearPlaneDistance;
+      final float footprint = distance * pixelAngle * RTStatics.LOD_PIXEL_ERROR;
+      int selected = 0;
+
+      for (int i = this.levels.length; i > 0; i--) {
+         if (this.levels[i - 1].cellSize <= footprint) {
+            selected = i;
+            break;
+         }
+      }
+
+      this.select(selected);
+      System.out.println("level of detail " + selected + " of " + this.getLevelCount() + " selected at distance " + distance + ", pixel size " + footprint);
+   }
+
+   /**
+    * Replaces the simplified levels, e.g. after the mesh's vertices have moved, and selects again for the last camera.
+    */
+   public synchronized void setLevels(final Level[] levels) {
+      for (final Level level : this.levels) {
+         level.release();
+      }
+
+      this.levels = levels;
+      this.current = this.fullDetail;
+
+      if (this.camera != null) {
+         this.setCamera(this.camera);
+      }
+   }
+
+   /**
+    * Closes the full resolution volume. The simplified levels are on the heap and are left to the garbage collector.
+    */
+   @Override
+   public void close() {
+      this.fullDetail.close();
+   }
+
+   /**
+    * Reports the full resolution volume's use, e.g. the chunk cache of an out of core mesh.
+    */
+   @Override
+   public void imageFinished() {
+      this.fullDetail.imageFinished();
+   }
+
+   @Override
+   public long getReleasableByteCount() {
+      return this.fullDetail.getReleasableByteCount();
+   }
+
+   /**
+    * Returns the statistics of the level rays currently use, the full resolution volume's until a camera selects a
+    * simplified level. The levels are alternatives rather than nested trees, so they are not added together.
+    */
+   @Override
+   public TreeStatistics getStatistics() {
+      return this.current.getStatistics();
+   }
+
+   private void select(final int selected) {
+      for (int i = 0; i < this.levels.length; i++) {
+         if (i != selected - 1) {
+            this.levels[i].release();
+         }
+      }
+
+      this.current = selected == 0 ? this.fullDetail : this.levels[selected - 1].getVolume(this.parentMesh, this.colorInfo);
+   }
+
+   /**
+    * @return The mesh's full resolution bounding volume
+    */
+   public BoundingVolume getFullDetail() {
+      return this.fullDetail;
+   }
+
+   /**
+    * @return The bounding volume of the selected level
+    */
+   public BoundingVolume getSelected() {
+      return this.current;
+   }
+
+   public int getLevelCount() {
+      return this.levels.length + 1;
+   }
+
+   @Override
+   public IntersectionInformation getChildIntersection(final Ray ray, final int depth) {
+      final IntersectionInformation info = this.current.getChildIntersection(ray, depth);
+
+      // hits are reported on this volume, so an object excluded by the scene is excluded whatever level it was hit on
+      return info == null ? null : new IntersectionInformation(ray, this, info.intersection, info.normal, info.w);
+   }
+
+   /**
+    * Finds the closest hits of the packet's rays from the given index on, updating results and tMax for rays that hit
+    * the selected level closer than their current tMax.
+    */
+   public void getChildIntersections(final RayPacket packet, final int first, final IntersectionInformation[] results) {
+      final BoundingVolume volume = this.current;
+
+      if (volume instanceof MeshBoundingVolume) {
+         ((MeshBoundingVolume) volume).getChildIntersections(packet, first, results);
+
+         for (int r = first; r < packet.size; r++) {
+            if (results[r] != null && results[r].intersectionObject == volume) {
+               results[r] = new IntersectionInformation(results[r].ray, this, results[r].intersection, results[r].normal, results[r].w);
+            }
+         }
+      } else {
+         for (int r = first; r < packet.size; r++) {
+            final IntersectionInformation info = volume.intersects(packet.rays[r]) ? this.getChildIntersection(packet.rays[r], 0) : null;
+
+            if (info != null && info.w > RTStatics.EPSILON && info.w < packet.tMax[r]) {
+               results[r] = info;
+               packet.tMax[r] = info.w;
+            }
+         }
+      }
+   }
+
+   @Override
+   public boolean occluded(final Vector3f origin, final Vector3f direction, final float tMax) {
+      return this.current.occluded(origin, direction, tMax);
+   }
+
+   @Override
+   public boolean intersects(final Ray ray) {
+      return this.fullDetail.intersects(ray);
+   }
+
+   /**
+    * Every simplified vertex is an average of mesh vertices, so the full resolution box holds every level.
+    */
+   @Override
+   public float[][] getMinMax() {
+      return this.fullDetail.getMinMax();
+   }
+
+   @Override
+   public float[] getColor(final IntersectionInformation info, final Camera camera, final int depth) {
+      return this.colorInfo.getMaterialColor(camera, info, depth);
+   }
+
+   @Override
+   public ColorInformation getColorInformation() {
+      return this.colorInfo;
+   }
+
+   @Override
+   public float[] getEmission() {
+      return this.parentMesh.getEmission();
+   }
+
+   @Override
+   public float[] getDiffuse() {
+      return this.parentMesh.getDiffuse();
+   }
+
+   @Override
+   public float[] getSpecular() {
+      return this.parentMesh.getSpecular();
+   }
+
+   @Override
+   public float[] getAmbient() {
+      return this.parentMesh.getAmbient();
+   }
+
+   @Override
+   public float getShininess() {
+      return this.parentMesh.getShininess();
+   }
+
+   /**
+    * One simplified level. Levels stored in a chunk file only hold their arrays while they are selected.
+    */
+   public static class Level {
+      public final float cellSize;
+      public final int faceCount;
+      private final FileChannel channel;
+      private final long position;
+      private float[] vertices;
+      private float[] normals;
+      private int[] indices;
+      private BVH volume = null;
+
+      public Level(final float cellSize, final float[] vertices, final float[] normals, final int[] indices) {
+         this.cellSize = cellSize;
+         this.faceCount = indices.length / 3;
+         this.channel = null;
+         this.position = -1;
+         this.vertices = vertices;
+         this.normals = normals;
+         this.indices = indices;
+      }
+
+      /**
+       * A level whose arrays are read from the given file position when it is selected.
+       */
+      Level(final float cellSize, final int faceCount, final FileChannel channel, final long position) {
+         this.cellSize = cellSize;
+         this.faceCount = faceCount;
+         this.channel = channel;
+         this.position = position;
+      }
+
+      /**
+       * Writes the level's arrays as in a MeshCache.
+       */
+      void write(final MeshCache.Writer out) throws IOException {
+         out.putFloats(this.vertices);
+         out.putFloats(this.normals);
+         out.putInts(this.indices);
+      }
+
+      private BVH getVolume(final TriangleMesh parentMesh, final ColorInformation colorInfo) {
+         if (this.volume == null) {
+            if (this.indices == null) {
+               try {
+                  final MeshCache.Reader in = new MeshCache.Reader(this.channel);
+                  in.seek(this.position);
+                  this.vertices = in.getFloats();
+                  this.normals = in.getFloats();
+                  this.indices = in.getInts();
+               } catch (final IOException e) {
+                  throw new UncheckedIOException("Unable to read level of detail at " + this.position, e);
+               }
+            }
+
+            this.volume = new BVH(parentMesh, this.vertices, this.normals, this.indices, colorInfo, true, AccelerationStructure.BVH);
+         }
+
+         return this.volume;
+      }
+
+      private void release() {
+         this.volume = null;
+
+         if (this.channel != null) {
+            this.vertices = null;
+            this.normals = null;
+            this.indices = null;
+         }
+      }
+   }
+}
@@ -0,0 +1,448 @@
+package stephen.ranger.ar.bounds;
+
+import java.io.IOException;
+import java.nio.IntBuffer;
+
+import stephen.ranger.ar.Ray;
+import stephen.ranger.ar.RayPacket;
+import stephen.ranger.ar.RTStatics;
+
+/**
+ * Array-backed copy of a KDTree or BVH node hierarchy. Nodes are stored depth first with the left child directly
+ * following its parent.
+ * Each node uses two ints in nodes, one float in splits, and six floats in bounds:
+ * 
+ * <pre>
+ * interior: nodes[2i] = (left child << 2) | axis,   nodes[2i + 1] = right child (-1 if empty)
+ * leaf:     nodes[2i] = (face count << 2) | LEAF,   nodes[2i + 1] = offset of the first face in leafFaces
+ * </pre>
+ * 
+ * The faces of every leaf are stored back to back in the one shared leafFaces array as positions in the mesh's
+ * indices array.
+ */
+public class LinearTree implements PackedTree {
+   public static final int LEAF = 3;
+
+   public final int[] nodes;
+   public final float[] splits;
+   public final float[] bounds;
+   public final int[] leafFaces;
+
+   private int nodeCount = 0;
+   private int leafFaceCount = 0;
+   private int maxDepth = 0;
+
+   public LinearTree(final TreeNode root) {
+      this.count(root, 0);
+
+      this.nodes = new int[this.nodeCount * 2];
+      this.splits = new float[this.nodeCount];
+      this.bounds = new float[this.nodeCount * 6];
+      this.leafFaces = new int[this.leafFaceCount];
+
+      this.nodeCount = 0;
+      this.leafFaceCount = 0;
+      this.add(root);
+   }
+
+   private LinearTree(final int[] nodes, final float[] splits, final float[] bounds, final int[] leafFaces, final int maxDepth) {
+      this.nodes = nodes;
+      this.splits = splits;
+      this.bounds = bounds;
+      this.leafFaces = leafFaces;
+      this.maxDepth = maxDepth;
+   }
+
+   /**
+    * Reads a tree written by write over a mesh of faceCount faces, checking it with check.
+    */
+   static LinearTree read(final MeshCache.Reader in, final int faceCount) throws IOException {
+      final int maxDepth = in.getInt();
+      final int[] nodes = in.getInts();
+      final float[] splits = in.getFloats();
+      final float[] bounds = in.getFloats();
+      final int[] leafFaces = in.getInts();
+
+      LinearTree.check(maxDepth, IntBuffer.wrap(nodes), splits.length, bounds.length, IntBuffer.wrap(leafFaces), faceCount);
+
+      return new LinearTree(nodes, splits, bounds, leafFaces, maxDepth);
+   }
+
+   /**
+    * Checks that a read tree's arrays describe the same nodes, that every child follows its parent, that every leaf and
+    * face lies inside its array and that maxDepth covers the deepest node, which sizes the traversal stacks. A damaged
+    * tree then fails while it is read instead of in a render thread.
+    */
+   static void check(final int maxDepth, final IntBuffer nodes, final int splitCount, final int boundCount, final IntBuffer leafFaces, final int faceCount)
+         throws IOException {
+      final int nodeCount = splitCount;
+
+      if (nodeCount == 0 || nodes.capacity() != nodeCount * 2L || boundCount != nodeCount * 6L) {
+         throw new IOException("Tree arrays of " + nodes.capacity() + ", " + splitCount + " and " + boundCount + " values do not describe the same nodes");
+      }
+
+      final int[] depths = new int[nodeCount];
+
+      for (int node = 0; node < nodeCount; node++) {
+         final int data = nodes.get(node * 2);
+
+         if (depths[node] > maxDepth) {
+            throw new IOException("Tree node " + node + " is deeper than the tree's depth of " + maxDepth);
+         }
+
+         if ((data & LinearTree.LEAF) == LinearTree.LEAF) {
+            final int first = nodes.get(node * 2 + 1);
+
+            if (data < 0 || first < 0 || first + (long) (data >> 2) > leafFaces.capacity()) {
+               throw new IOException("Leaf " + node + " has faces outside the " + leafFaces.capacity() + " leaf faces");
+            }
+         } else {
+            for (int i = 0; i < 2; i++) {
+               final int child = i == 0 ? data >> 2 : nodes.get(node * 2 + 1);
+
+               if (child == -1) {
+                  continue;
+               } else if (child <= node || child >= nodeCount) {
+                  throw new IOException("Tree node " + node + " has child " + child + " outside the " + nodeCount + " nodes after it");
+               }
+
+               depths[child] = Math.max(depths[child], depths[node] + 1);
+            }
+         }
+      }
+
+      MeshCache.checkFaces(leafFaces, faceCount);
+   }
+
+   /**
+    * Moves past a tree written by write, checking that its arrays fit in the file.
+    */
+   static void skip(final MeshCache.Reader in) throws IOException {
+      in.getInt();
+      in.skipArray(4);
+      in.skipArray(4);
+      in.skipArray(4);
+      in.skipArray(4);
+   }
+
+   void write(final MeshCache.Writer out) throws IOException {
+      out.putInt(this.maxDepth);
+      out.putInts(this.nodes);
+      out.putFloats(this.splits);
+      out.putFloats(this.bounds);
+      out.putInts(this.leafFaces);
+   }
+
+   private void count(final TreeNode node, final int depth) {
+      this.nodeCount++;
+      this.maxDepth = Math.max(this.maxDepth, depth);
+
+      if (node.getLeft() == null && node.getRight() == null) {
+         this.leafFaceCount += node.getFaces().length;
+      } else {
+         if (node.getLeft() != null) {
+            this.count(node.getLeft(), depth + 1);
+         }
+
+         if (node.getRight() != null) {
+            this.count(node.getRight(), depth + 1);
+         }
+      }
+   }
+
+   private int add(final TreeNode node) {
+      final int index = this.nodeCount++;
+      final float[][] minMax = node.getMinMax();
+
+      this.splits[index] = node.getSplit();
+      System.arraycopy(minMax[0], 0, this.bounds, index * 6, 3);
+      System.arraycopy(minMax[1], 0, this.bounds, index * 6 + 3, 3);
+
+      if (node.getLeft() == null && node.getRight() == null) {
+         final int[] faces = node.getFaces();
+         this.nodes[index * 2] = faces.length << 2 | LinearTree.LEAF;
+         this.nodes[index * 2 + 1] = this.leafFaceCount;
+
+         System.arraycopy(faces, 0, this.leafFaces, this.leafFaceCount, faces.length);
+         this.leafFaceCount += faces.length;
+      } else {
+         final int left = node.getLeft() == null ? -1 : this.add(node.getLeft());
+         final int right = node.getRight() == null ? -1 : this.add(node.getRight());
+
+         this.nodes[index * 2] = left << 2 | node.getAxis();
+         this.nodes[index * 2 + 1] = right;
+      }
+
+      return index;
+   }
+
+   @Override
+   public float refit(final float[] faceBounds) {
+      for (int node = this.splits.length - 1; node >= 0; node--) {
+         final int data = this.nodes[node * 2];
+
+         BVHNode.setEmpty(this.bounds, node * 6);
+
+         if ((data & 3) == LinearTree.LEAF) {
+            final int offset = this.nodes[node * 2 + 1];
+            final int end = offset + (data >>> 2);
+
+            for (int i = offset; i < end; i++) {
+               BVHNode.union(this.bounds, node * 6, faceBounds, this.leafFaces[i] * 6);
+            }
+         } else {
+            final int left = data >> 2;
+            final int right = this.nodes[node * 2 + 1];
+
+            if (left != -1) {
+               BVHNode.union(this.bounds, node * 6, this.bounds, left * 6);
+            }
+
+            if (right != -1) {
+               BVHNode.union(this.bounds, node * 6, this.bounds, right * 6);
+            }
+         }
+      }
+
+      return this.getCost();
+   }
+
+   @Override
+   public float getCost() {
+      final float rootArea = BVHNode.getSurfaceArea(this.bounds, 0);
+      float cost = 0;
+
+      for (int node = 0; node < this.splits.length; node++) {
+         final int data = this.nodes[node * 2];
+         final float area = BVHNode.getSurfaceArea(this.bounds, node * 6);
+
+         cost += (data & 3) == LinearTree.LEAF ? area * RTStatics.SAH_INTERSECTION_COST * (data >>> 2) : area * RTStatics.SAH_TRAVERSAL_COST;
+      }
+
+      return rootArea > 0 ? cost / rootArea : 0;
+   }
+
+   @Override
+   public void addStatistics(final TreeStatistics statistics) {
+      statistics.addBytes(this.getByteCount());
+
+      if (this.splits.length == 0) {
+         return;
+      }
+
+      // children are pushed right first, so the stack never holds more than two nodes per level
+      final int[] stack = new int[2 * this.maxDepth + 2];
+      final int[] stackDepths = new int[stack.length];
+      int stackSize = 0;
+
+      stack[stackSize] = 0;
+      stackDepths[stackSize++] = 0;
+
+      while (stackSize > 0) {
+         final int node = stack[--stackSize];
+         final int depth = stackDepths[stackSize];
+         final int data = this.nodes[node * 2];
+         final float area = BVHNode.getSurfaceArea(this.bounds, node * 6);
+
+         if ((data & 3) == LinearTree.LEAF) {
+            statistics.addLeaf(depth, area, data >>> 2);
+         } else {
+            statistics.addInterior(depth, area);
+
+            if (this.nodes[node * 2 + 1] != -1) {
+               stack[stackSize] = this.nodes[node * 2 + 1];
+               stackDepths[stackSize++] = depth + 1;
+            }
+
+            if (data >> 2 != -1) {
+               stack[stackSize] = data >> 2;
+               stackDepths[stackSize++] = depth + 1;
+            }
+         }
+      }
+   }
+
+   @Override
+   public int getNodeCount() {
+      return this.splits.length;
+   }
+
+   @Override
+   public int getMaxDepth() {
+      return this.maxDepth;
+   }
+
+   @Override
+   public int getReferenceCount() {
+      return this.leafFaces.length;
+   }
+
+   @Override
+   public long getByteCount() {
+      return 4L * (this.nodes.length + this.splits.length + this.bounds.length + this.leafFaces.length);
+   }
+
+   /**
+    * Finds the closest intersection between the given ray and the mesh faces in this tree. Nodes are visited front
+    * to back: the child on the near side of the split plane is visited first, the far child is pushed with the
+    * distance at which the ray enters its box, and popped nodes that start beyond the closest hit found so far are
+    * skipped.
+    */
+   @Override
+   public boolean getClosestIntersection(final Ray ray, final TriangleStore triangles, final float shadowDistance, final TriangleHit hit) {
+      return this.traverse(ray, triangles, shadowDistance, hit, false);
+   }
+
+   @Override
+   public boolean occluded(final Ray ray, final TriangleStore triangles, final float shadowDistance, final float tMax) {
+      return this.traverse(ray, triangles, shadowDistance, TriangleHit.get(tMax), true);
+   }
+
+   /**
+    * Traverses the tree with the whole packet. Each stack entry holds the first ray still active below it; a popped
+    * node is skipped if no ray from there on hits its box, and each leaf face is tested against the active rays that
+    * hit the leaf's box.
+    */
+   @Override
+   public void getClosestIntersections(final RayPacket packet, final int first, final TriangleStore triangles, final float shadowDistance) {
+      final int[] stack = this.getStack();
+      final int[] stackFirst = new int[stack.length];
+      int stackSize = 0;
+
+      stack[stackSize] = 0;
+      stackFirst[stackSize++] = first;
+
+      while (stackSize > 0) {
+         final int node = stack[--stackSize];
+         final int active = packet.getFirstHit(this.bounds, node * 6, stackFirst[stackSize]);
+
+         if (active == packet.size) {
+            continue;
+         }
+
+         final int data = this.nodes[node * 2];
+
+         if ((data & 3) == LinearTree.LEAF) {
+            final int offset = this.nodes[node * 2 + 1];
+            final int end = offset + (data >>> 2);
+            // the first active ray is known to hit the leaf, the others are only tested if they do too
+            final long mask = 1L << active | packet.getHitMask(this.bounds, node * 6, active + 1);
+
+            for (int i = offset; i < end; i++) {
+               for (long m = mask; m != 0; m &= m - 1) {
+                  final int r = Long.numberOfTrailingZeros(m);
+
+                  if (triangles.intersect(this.leafFaces[i], packet.rays[r].origin, packet.rays[r].direction, shadowDistance, packet.hits[r])) {
+                     packet.tMax[r] = packet.hits[r].t;
+                  }
+               }
+            }
+         } else {
+            final int left = data >> 2;
+            final int right = this.nodes[node * 2 + 1];
+            final boolean leftFirst = packet.inverseDirections[active][data & 3] >= 0;
+            final int near = leftFirst ? left : right;
+            final int far = leftFirst ? right : left;
+
+            if (far != -1) {
+               stack[stackSize] = far;
+               stackFirst[stackSize++] = active;
+            }
+
+            if (near != -1) {
+               stack[stackSize] = near;
+               stackFirst[stackSize++] = active;
+            }
+         }
+      }
+   }
+
+   /**
+    * Shared closest hit and any hit traversal; an any hit traversal returns at the first face hit.
+    */
+   private boolean traverse(final Ray ray, final TriangleStore triangles, final float shadowDistance, final TriangleHit hit, final boolean anyHit) {
+      final float[] inverseDirection = RTStatics.getInverseDirection(ray.direction, new float[3]);
+      final int[] stack = this.getStack();
+      final float[] stackDistances = new float[stack.length];
+      int stackSize = 0;
+      boolean found = false;
+      float tMax = hit.t;
+
+      stack[stackSize] = 0;
+      stackDistances[stackSize++] = RTStatics.aabbEntryDistance(ray.origin, inverseDirection, this.bounds, 0, tMax);
+
+      while (stackSize > 0) {
+         final int node = stack[--stackSize];
+
+         if (stackDistances[stackSize] >= tMax) {
+            continue;
+         }
+
+         final int data = this.nodes[node * 2];
+
+         if ((data & 3) == LinearTree.LEAF) {
+            final int offset = this.nodes[node * 2 + 1];
+            final int end = offset + (data >>> 2);
+
+            for (int i = offset; i < end; i++) {
+               if (triangles.intersect(this.leafFaces[i], ray.origin, ray.direction, shadowDistance, hit)) {
+                  if (anyHit) {
+                     return true;
+                  }
+
+                  found = true;
+                  tMax = hit.t;
+               }
+            }
+         } else {
+            stackSize = this.pushChildren(node, ray, inverseDirection, tMax, stack, stackDistances, stackSize);
+         }
+      }
+
+      return found;
+   }
+
+   /**
+    * @return A traversal stack large enough for this tree
+    */
+   public int[] getStack() {
+      return new int[this.maxDepth + 2];
+   }
+
+   /**
+    * Pushes the children of the given interior node whose boxes the ray enters before tMax, far child first so the
+    * child on the near side of the split plane is popped next.
+    * 
+    * @return The new stack size
+    */
+   public int pushChildren(final int node, final Ray ray, final float[] inverseDirection, final float tMax, final int[] stack, final float[] stackDistances,
+         int stackSize) {
+      final int data = this.nodes[node * 2];
+      final int axis = data & 3;
+      final int left = data >> 2;
+      final int right = this.nodes[node * 2 + 1];
+      final float leftDistance = left == -1 ? Float.POSITIVE_INFINITY : RTStatics.aabbEntryDistance(ray.origin, inverseDirection, this.bounds, left * 6, tMax);
+      final float rightDistance = right == -1 ? Float.POSITIVE_INFINITY : RTStatics.aabbEntryDistance(ray.origin, inverseDirection, this.bounds, right * 6, tMax);
+
+      if (inverseDirection[axis] >= 0) {
+         stackSize = LinearTree.push(stack, stackDistances, stackSize, right, rightDistance);
+         stackSize = LinearTree.push(stack, stackDistances, stackSize, left, leftDistance);
+      } else {
+         stackSize = LinearTree.push(stack, stackDistances, stackSize, left, leftDistance);
+         stackSize = LinearTree.push(stack, stackDistances, stackSize, right, rightDistance);
+      }
+
+      return stackSize;
+   }
+
+   static int push(final int[] stack, final float[] stackDistances, final int stackSize, final int node, final float distance) {
+      if (distance == Float.POSITIVE_INFINITY) {
+         return stackSize;
+      }
+
+      stack[stackSize] = node;
+      stackDistances[stackSize] = distance;
+
+      return stackSize + 1;
+   }
+}
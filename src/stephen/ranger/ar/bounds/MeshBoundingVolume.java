@@ -0,0 +1,312 @@
+package stephen.ranger.ar.bounds;
+
+import javax.vecmath.Vector3f;
+
+import stephen.ranger.ar.Camera;
+import stephen.ranger.ar.IntersectionInformation;
+import stephen.ranger.ar.RTStatics;
+import stephen.ranger.ar.Ray;
+import stephen.ranger.ar.RTStatics.AccelerationStructure;
+import stephen.ranger.ar.RTStatics.MeshAttributes;
+import stephen.ranger.ar.RayPacket;
+import stephen.ranger.ar.materials.ColorInformation;
+import stephen.ranger.ar.sceneObjects.TriangleMesh;
+
+/**
+ * Base class for the acceleration structures a TriangleMesh can use as its bounding volume.
+ */
+public abstract class MeshBoundingVolume extends BoundingVolume {
+   protected final float[][] minMax = new float[2][];
+   /** Three floats per vertex, null while dropped in favour of the compact store, see releaseAttributes */
+   protected float[] vertices;
+   /** Three floats per vertex, null while dropped in favour of the compact store */
+   protected float[] normals;
+   /** Three vertex indices per face */
+   protected final int[] indices;
+   protected final int faceCount;
+   protected final TriangleStore triangles;
+   protected final TriangleMesh parentMesh;
+   protected final float shadowDistance;
+   /** The cost of the packed tree right after it was built, the reference for how far a refit has degraded it */
+   protected float buildCost;
+
+   protected final ColorInformation colorInfo;
+
+   public MeshBoundingVolume(final TriangleMesh parentMesh, final float[] vertices, final float[] normals, final int[] indices, final ColorInformation colorInfo) {
+      this.parentMesh = parentMesh;
+      this.vertices = vertices;
+      this.normals = normals;
+      this.indices = indices;
+      this.faceCount = indices.length / 3;
+      this.colorInfo = colorInfo;
+      this.triangles = new TriangleStore(vertices, normals, indices);
+
+      this.minMax[0] = new float[3];
+      this.minMax[1] = new float[3];
+      this.updateMinMax();
+
+      this.shadowDistance = Math.max(this.minMax[1][0] - this.minMax[0][0], Math.max(this.minMax[1][1] - this.minMax[0][1], this.minMax[1][2] - this.minMax[0][2])) / 2000f;
+   }
+
+   /**
+    * Recomputes the bounds of the whole mesh from the vertices of its faces, in place. Vertices no face uses are left
+    * out, as a decoded vertex array has them at the origin.
+    */
+   private void updateMinMax() {
+      RTStatics.getMinMax(this.vertices, this.indices, this.minMax);
+   }
+
+   /**
+    * @return True if the structure reads the float vertices while tracing, so they cannot be dropped
+    */
+   protected boolean tracesVertices() {
+      return false;
+   }
+
+   /**
+    * Drops the float vertices and normals if RTStatics.MESH_ATTRIBUTES keeps them in a compact store, which is then all
+    * that is read to trace the mesh and interpolate its hits, and prints what stays resident. The mesh calls this once
+    * it no longer needs the floats itself, e.g. after writing its cache.
+    * 
+    * @return True if the floats were dropped, so the mesh should drop its references too
+    */
+   public boolean releaseAttributes() {
+      if (RTStatics.MESH_ATTRIBUTES.equals(MeshAttributes.FULL_PRECISION) || this.vertices == null) {
+         return false;
+      }
+
+      final boolean released = !this.tracesVertices();
+
+      if (released) {
+         this.vertices = null;
+         this.normals = null;
+      }
+
+      final long residentBytes = this.triangles.getOwnedByteCount() + (released ? 0L : 4L * (this.vertices.length + this.normals.length));
+
+      System.out.println(RTStatics.MESH_ATTRIBUTES + " faces and attributes: traversal reads " + this.triangles.getByteCount() / 1048576. + " MB and "
+            + residentBytes / 1048576. + " MB stay resident, instead of " + this.triangles.getFullPrecisionByteCount() / 1048576. + " MB for both at full precision"
+            + (released ? "" : ", the float vertices are kept for " + this.getStructure()));
+
+      return released;
+   }
+
+   /**
+    * Decodes the float vertices and normals from the compact store if releaseAttributes dropped them, e.g. so the mesh
+    * can be moved and refitted. They are kept from then on, and quantized positions keep their rounding.
+    */
+   public void restoreAttributes() {
+      if (this.vertices == null) {
+         this.vertices = this.triangles.getVertices();
+         this.normals = this.triangles.getNormals();
+      }
+   }
+
+   /**
+    * @return The float vertices, three floats per vertex, or null if they were dropped, see restoreAttributes
+    */
+   public float[] getVertices() {
+      return this.vertices;
+   }
+
+   /**
+    * @return The float normals, three floats per vertex, or null if they were dropped, see restoreAttributes
+    */
+   public float[] getNormals() {
+      return this.normals;
+   }
+
+   /**
+    * Returns the packed node hierarchy used for traversal, e.g. to store it in a MeshCache.
+    */
+   public abstract PackedTree getPackedTree();
+
+   /**
+    * @return The name of this mesh's acceleration structure
+    */
+   public abstract AccelerationStructure getStructure();
+
+   /**
+    * Walks the mesh's tree and returns its node counts, histograms and cost. The bytes include the faces and vertex
+    * attributes the tree is traced against.
+    */
+   @Override
+   public TreeStatistics getStatistics() {
+      final TreeStatistics statistics = new TreeStatistics(this.getStructure().toString(), this.faceCount);
+
+      this.getPackedTree().addStatistics(statistics);
+      statistics.addBytes(this.triangles.getByteCount());
+
+      return statistics;
+   }
+
+   /**
+    * Prints the tree's statistics as one line of JSON if RTStatics.PRINT_TREE_STATISTICS is set.
+    */
+   protected void printStatistics() {
+      if (RTStatics.PRINT_TREE_STATISTICS) {
+         System.out.println(this.getStatistics().toJSON());
+      }
+   }
+
+   /**
+    * Rebuilds the packed tree from scratch over the mesh's current vertices. Implementations set buildCost.
+    */
+   protected abstract void rebuild();
+
+   /**
+    * @return True if the packed tree's topology stays valid when the vertices move, so it can be refitted
+    */
+   protected abstract boolean canRefit();
+
+   /**
+    * Updates the structure after the mesh's vertices have moved. The node bounds are refitted bottom up, which keeps
+    * the topology and takes milliseconds; if the refitted tree's cost has grown past RTStatics.REFIT_REBUILD_RATIO times
+    * its cost after the last build, or the structure cannot be refitted at all, it is rebuilt instead. Dropped float
+    * vertices are decoded first, see restoreAttributes.
+    * 
+    * @return True if the tree was rebuilt
+    */
+   public boolean refit() {
+      final long startTime = System.nanoTime();
+
+      this.restoreAttributes();
+      this.updateMinMax();
+      this.triangles.update(this.vertices, this.normals);
+
+      if (this.canRefit()) {
+         final float cost = this.getPackedTree().refit(this.getFaceBounds());
+
+         if (cost <= this.buildCost * RTStatics.REFIT_REBUILD_RATIO) {
+            final long endTime = System.nanoTime();
+            System.out.println("refitted " + this.faceCount + " faces in " + (endTime - startTime) / 1000000. + " ms, cost " + cost + " (built " + this.buildCost + ")");
+            return false;
+         }
+
+         System.out.println("refitted cost " + cost + " exceeds built cost " + this.buildCost + ", rebuilding");
+      }
+
+      this.rebuild();
+
+      return true;
+   }
+
+   /**
+    * Returns the bounds of every face as six floats per face in the form of: { minx, miny, minz, maxx, maxy, maxz }
+    */
+   protected float[] getFaceBounds() {
+      final float[] faceBounds = new float[this.faceCount * 6];
+      final float[][] faceMinMax = new float[2][3];
+
+      for (int i = 0; i < this.faceCount; i++) {
+         RTStatics.getMinMax(this.vertices, this.indices, i, faceMinMax);
+
+         for (int a = 0; a < 3; a++) {
+            faceBounds[i * 6 + a] = faceMinMax[0][a];
+            faceBounds[i * 6 + 3 + a] = faceMinMax[1][a];
+         }
+      }
+
+      return faceBounds;
+   }
+
+   /**
+    * Returns an array containing the position of every face in the mesh's face array.
+    */
+   protected int[] getAllFaces() {
+      final int[] faces = new int[this.faceCount];
+
+      for (int i = 0; i < faces.length; i++) {
+         faces[i] = i;
+      }
+
+      return faces;
+   }
+
+   /**
+    * Returns the closest intersection between the given ray and the faces of the packed tree, or null if there is none.
+    * The leaf tests write into this thread's TriangleHit, so the only allocations are for the returned intersection.
+    */
+   protected IntersectionInformation getIntersectionInformation(final Ray ray) {
+      final TriangleHit hit = TriangleHit.get(Float.POSITIVE_INFINITY);
+
+      if (!this.getPackedTree().getClosestIntersection(ray, this.triangles, this.shadowDistance, hit)) {
+         return null;
+      }
+
+      return new IntersectionInformation(ray, this, this.triangles.getPosition(hit, new Vector3f()), this.triangles.getNormal(hit, new Vector3f()), hit.t);
+   }
+
+   /**
+    * Packet version of getChildIntersection for the rays of the packet from the given index on. A ray's result and
+    * tMax are replaced if this mesh is hit closer than its current tMax.
+    */
+   public void getChildIntersections(final RayPacket packet, final int first, final IntersectionInformation[] results) {
+      for (int r = first; r < packet.size; r++) {
+         packet.hits[r].face = -1;
+         packet.hits[r].t = packet.tMax[r];
+      }
+
+      this.getPackedTree().getClosestIntersections(packet, first, this.triangles, Math.max(this.shadowDistance, RTStatics.EPSILON));
+
+      for (int r = first; r < packet.size; r++) {
+         final TriangleHit hit = packet.hits[r];
+
+         if (hit.face != -1) {
+            results[r] = new IntersectionInformation(packet.rays[r], this, this.triangles.getPosition(hit, new Vector3f()), this.triangles.getNormal(hit, new Vector3f()), hit.t);
+         }
+      }
+   }
+
+   @Override
+   public boolean occluded(final Vector3f origin, final Vector3f direction, final float tMax) {
+      final Ray ray = new Ray(origin, direction);
+
+      return this.intersects(ray) && this.getPackedTree().occluded(ray, this.triangles, this.shadowDistance, tMax);
+   }
+
+   @Override
+   public boolean intersects(final Ray ray) {
+      return RTStatics.aabbIntersection(ray, this.getMinMax());
+   }
+
+   @Override
+   public float[][] getMinMax() {
+      return this.minMax;
+   }
+
+   @Override
+   public float[] getColor(final IntersectionInformation info, final Camera camera, final int depth) {
+      return this.colorInfo.getMaterialColor(camera, info, depth);
+   }
+
+   @Override
+   public ColorInformation getColorInformation() {
+      return this.colorInfo;
+   }
+
+   @Override
+   public float[] getEmission() {
+      return this.parentMesh.getEmission();
+   }
+
+   @Override
+   public float[] getDiffuse() {
+      return this.parentMesh.getDiffuse();
+   }
+
+   @Override
+   public float[] getSpecular() {
+      return this.parentMesh.getSpecular();
+   }
+
+   @Override
+   public float[] getAmbient() {
+      return this.parentMesh.getAmbient();
+   }
+
+   @Override
+   public float getShininess() {
+      return this.parentMesh.getShininess();
+   }
+}
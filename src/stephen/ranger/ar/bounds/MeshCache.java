@@ -0,0 +1,620 @@
+package stephen.ranger.ar.bounds;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import stephen.ranger.ar.RTStatics;
+import stephen.ranger.ar.RTStatics.AccelerationStructure;
+import stephen.ranger.ar.materials.ColorInformation;
+import stephen.ranger.ar.sceneObjects.TriangleMesh;
+
+/**
+ * Binary cache of a parsed mesh and its packed acceleration structure, stored next to the model so a repeat render can
+ * skip parsing and building. The file name and header carry a SHA-256 key over the model's contents and every setting
+ * that affects the build, so a changed model or setting simply misses the cache and writes a new one.
+ *
+ * <pre>
+ * int magic, int version, key (32 bytes)
+ * vertices, normals (float arrays, three per vertex), faces (int array, three per face)
+ * int tree format, then the arrays of the LinearTree, CompressedTree or WideTree
+ * int level count, then for each simplified level: float cell size, vertices, normals, faces
+ * </pre>
+ *
+ * Every array is stored as its length followed by its little endian values and is loaded through FileChannel.map. A
+ * damaged cache is never fatal: it is deleted and the model is parsed again. Only OFF_HEAP_BVH caches hold simplified
+ * levels, since readOffHeap copies the mesh into native memory without the heap arrays they are made from.
+ */
+public class MeshCache {
+   public static final int MAGIC = 0x52544d43;
+   public static final int VERSION = 2;
+
+   private static final int LINEAR_TREE = 1;
+   private static final int COMPRESSED_TREE = 2;
+   private static final int WIDE_TREE = 3;
+
+   public final float[] vertices;
+   public final float[] normals;
+   public final int[] indices;
+   public final PackedTree tree;
+   public final LODMesh.Level[] levels;
+
+   private MeshCache(final float[] vertices, final float[] normals, final int[] indices, final PackedTree tree, final LODMesh.Level[] levels) {
+      this.vertices = vertices;
+      this.normals = normals;
+      this.indices = indices;
+      this.tree = tree;
+      this.levels = levels;
+   }
+
+   /**
+    * @return The SHA-256 of the model file followed by the build settings for the given structure
+    */
+   public static byte[] getKey(final File model, final AccelerationStructure structure, final boolean computeHierarchy) throws IOException {
+      final MessageDigest digest;
+
+      try {
+         digest = MessageDigest.getInstance("SHA-256");
+      } catch (final NoSuchAlgorithmException e) {
+         throw new IOException(e);
+      }
+
+      final RandomAccessFile file = new RandomAccessFile(model, "r");
+
+      try {
+         final FileChannel channel = file.getChannel();
+         final long size = channel.size();
+
+         for (long position = 0; position < size; position += 1 << 30) {
+            digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(1 << 30, size - position)));
+         }
+      } finally {
+         file.close();
+      }
+
+      final String settings = "version=" + MeshCache.VERSION + " structure=" + structure + " hierarchy=" + computeHierarchy + " reorder=" + RTStatics.REORDER_MESHES
+            + " kdSplit=" + RTStatics.KD_SPLIT_METHOD
+            + " maxChildren=" + RTStatics.MAX_CHILDREN + " maxDepth=" + RTStatics.MAX_DEPTH + " bins=" + RTStatics.SAH_BIN_COUNT + " traversalCost="
+            + RTStatics.SAH_TRAVERSAL_COST + " intersectionCost=" + RTStatics.SAH_INTERSECTION_COST + " emptyBonus=" + RTStatics.SAH_EMPTY_BONUS + " bvhLeaf="
+            + RTStatics.BVH_MAX_LEAF_SIZE + " bvhDepth=" + RTStatics.BVH_MAX_DEPTH + " bits=" + RTStatics.BVH_QUANTIZATION_BITS + " width=" + RTStatics.BVH_WIDTH
+            + " sbvhBudget=" + RTStatics.SBVH_DUPLICATION_BUDGET + " sbvhOverlap=" + RTStatics.SBVH_OVERLAP_THRESHOLD
+            + " chunkFaces=" + RTStatics.OUT_OF_CORE_CHUNK_FACES
+            // chunk files and off heap caches also hold the simplified levels
+            + (structure.equals(AccelerationStructure.OUT_OF_CORE_BVH) || structure.equals(AccelerationStructure.OFF_HEAP_BVH) ? " lod=" + RTStatics.ENABLE_LOD + " lodLevels=" + RTStatics.LOD_LEVELS + " lodFaces="
+                  + RTStatics.LOD_MIN_FACES : "");
+      digest.update(settings.getBytes(StandardCharsets.UTF_8));
+
+      return digest.digest();
+   }
+
+   /**
+    * @return The cache file for the given model and key, in the same directory as the model
+    */
+   public static File getCacheFile(final File model, final byte[] key) {
+      final StringBuilder name = new StringBuilder(model.getName()).append('.');
+
+      for (int i = 0; i < 8; i++) {
+         name.append(String.format("%02x", key[i]));
+      }
+
+      return new File(model.getAbsoluteFile().getParentFile(), name.append(".cache").toString());
+   }
+
+   /**
+    * @return The cached mesh and tree, or null if the file does not exist, was written for a different key or version or
+    *         is damaged, in which case it is deleted
+    */
+   public static MeshCache read(final File cacheFile, final byte[] key) {
+      if (!cacheFile.isFile()) {
+         return null;
+      }
+
+      try {
+         return MeshCache.readFile(cacheFile, key);
+      } catch (final IOException e) {
+         MeshCache.discard(cacheFile, e);
+      } catch (final RuntimeException e) {
+         MeshCache.discard(cacheFile, e);
+      }
+
+      return null;
+   }
+
+   /**
+    * Deletes a damaged cache or chunk file so it is written again.
+    */
+   static void discard(final File cacheFile, final Exception e) {
+      System.err.println("Discarding damaged cache file " + cacheFile + ": " + e);
+
+      if (!cacheFile.delete()) {
+         System.err.println("Unable to delete " + cacheFile);
+      }
+   }
+
+   private static MeshCache readFile(final File cacheFile, final byte[] key) throws IOException {
+      final RandomAccessFile file = new RandomAccessFile(cacheFile, "r");
+
+      try {
+         final Reader in = new Reader(file.getChannel());
+
+         if (in.getInt() != MeshCache.MAGIC || in.getInt() != MeshCache.VERSION || !Arrays.equals(in.getBytes(), key)) {
+            return null;
+         }
+
+         final float[] vertices = in.getFloats();
+         final float[] normals = in.getFloats();
+         final int[] indices = in.getInts();
+         final int format = in.getInt();
+         final PackedTree tree;
+
+         if (format == MeshCache.LINEAR_TREE) {
+            tree = LinearTree.read(in, indices.length / 3);
+         } else if (format == MeshCache.COMPRESSED_TREE) {
+            tree = CompressedTree.read(in, indices.length / 3);
+         } else if (format == MeshCache.WIDE_TREE) {
+            tree = WideTree.read(in, indices.length / 3);
+         } else {
+            throw new IOException("Unknown tree format " + format);
+         }
+
+         final LODMesh.Level[] levels = MeshCache.readLevels(in, file.length());
+         MeshCache.checkMesh(vertices.length, normals.length, IntBuffer.wrap(indices));
+
+         return new MeshCache(vertices, normals, indices, tree, levels);
+      } finally {
+         file.close();
+      }
+   }
+
+   /**
+    * Copies a cached OFF_HEAP_BVH mesh and its tree from the mapped file straight into an OffHeapMesh, so no heap array
+    * of the mesh's size is made. Its simplified levels are read onto the heap.
+    *
+    * @return The mesh, or null if the file does not exist, was written for a different key or version or is damaged, in
+    *         which case it is deleted
+    */
+   public static OffHeapMesh readOffHeap(final File cacheFile, final byte[] key, final TriangleMesh parentMesh, final ColorInformation colorInfo) {
+      if (!cacheFile.isFile()) {
+         return null;
+      }
+
+      try {
+         final RandomAccessFile file = new RandomAccessFile(cacheFile, "r");
+
+         try {
+            final Reader in = new Reader(file.getChannel());
+
+            if (in.getInt() != MeshCache.MAGIC || in.getInt() != MeshCache.VERSION || !Arrays.equals(in.getBytes(), key)) {
+               return null;
+            }
+
+            final FloatBuffer vertices = in.mapArray(4).asFloatBuffer();
+            final FloatBuffer normals = in.mapArray(4).asFloatBuffer();
+            final IntBuffer indices = in.mapArray(4).asIntBuffer();
+            final int format = in.getInt();
+
+            if (format != MeshCache.LINEAR_TREE) {
+               throw new IOException("Off heap meshes need a linear tree, not format " + format);
+            }
+
+            // as written by LinearTree.write, without the split planes, which a BVH does not use
+            final int maxDepth = in.getInt();
+            final IntBuffer nodes = in.mapArray(4).asIntBuffer();
+            final int splitCount = in.skipArray(4);
+            final FloatBuffer bounds = in.mapArray(4).asFloatBuffer();
+            final IntBuffer leafFaces = in.mapArray(4).asIntBuffer();
+
+            final LODMesh.Level[] levels = MeshCache.readLevels(in, file.length());
+            MeshCache.checkMesh(vertices.capacity(), normals.capacity(), indices);
+            LinearTree.check(maxDepth, nodes, splitCount, bounds.capacity(), leafFaces, indices.capacity() / 3);
+
+            final OffHeapMesh mesh = new OffHeapMesh(parentMesh, colorInfo, vertices, normals, indices, nodes, bounds, leafFaces, maxDepth);
+            mesh.setLevels(levels);
+
+            return mesh;
+         } finally {
+            file.close();
+         }
+      } catch (final IOException e) {
+         MeshCache.discard(cacheFile, e);
+      } catch (final RuntimeException e) {
+         MeshCache.discard(cacheFile, e);
+      }
+
+      return null;
+   }
+
+   /**
+    * Reads the simplified levels that end the file.
+    */
+   private static LODMesh.Level[] readLevels(final Reader in, final long fileLength) throws IOException {
+      final int levelCount = in.getInt();
+
+      if (levelCount < 0 || levelCount > RTStatics.LOD_LEVELS) {
+         throw new IOException("Bad level count " + levelCount);
+      }
+
+      final LODMesh.Level[] levels = new LODMesh.Level[levelCount];
+
+      for (int i = 0; i < levelCount; i++) {
+         final float cellSize = in.getFloat();
+         final float[] vertices = in.getFloats();
+         final float[] normals = in.getFloats();
+         final int[] indices = in.getInts();
+
+         MeshCache.checkMesh(vertices.length, normals.length, IntBuffer.wrap(indices));
+         levels[i] = new LODMesh.Level(cellSize, vertices, normals, indices);
+      }
+
+      if (in.getPosition() != fileLength) {
+         throw new IOException("Cache file has " + (fileLength - in.getPosition()) + " bytes after the levels");
+      }
+
+      return levels;
+   }
+
+   /**
+    * Checks that the mesh arrays have whole vertices and faces and that every face only uses existing vertices.
+    */
+   private static void checkMesh(final int vertexLength, final int normalLength, final IntBuffer indices) throws IOException {
+      if (vertexLength % 3 != 0 || normalLength != vertexLength || indices.capacity() % 3 != 0) {
+         throw new IOException("Mismatched mesh array lengths " + vertexLength + ", " + normalLength + ", " + indices.capacity());
+      }
+
+      final int vertexCount = vertexLength / 3;
+
+      for (int i = 0; i < indices.capacity(); i++) {
+         final int index = indices.get(i);
+
+         if (index < 0 || index >= vertexCount) {
+            throw new IOException("Face index " + index + " is not one of the " + vertexCount + " vertices");
+         }
+      }
+   }
+
+   /**
+    * Checks that every leaf face of a read tree is one of the mesh's faces.
+    */
+   static void checkFaces(final IntBuffer leafFaces, final int faceCount) throws IOException {
+      for (int i = 0; i < leafFaces.capacity(); i++) {
+         final int face = leafFaces.get(i);
+
+         if (face < 0 || face >= faceCount) {
+            throw new IOException("Leaf face " + face + " is not one of the " + faceCount + " faces");
+         }
+      }
+   }
+
+   /**
+    * Writes the mesh, tree and simplified levels to a temporary file and moves it into place, so a reader never sees a
+    * partial cache.
+    */
+   public static void write(final File cacheFile, final byte[] key, final float[] vertices, final float[] normals, final int[] indices, final PackedTree tree,
+         final LODMesh.Level[] levels) throws IOException {
+      final File tempFile = new File(cacheFile.getPath() + ".tmp");
+      final RandomAccessFile file = new RandomAccessFile(tempFile, "rw");
+
+      try {
+         file.setLength(0);
+         final Writer out = new Writer(file.getChannel());
+
+         out.putInt(MeshCache.MAGIC);
+         out.putInt(MeshCache.VERSION);
+         out.putBytes(key);
+         out.putFloats(vertices);
+         out.putFloats(normals);
+         out.putInts(indices);
+
+         if (tree instanceof LinearTree) {
+            out.putInt(MeshCache.LINEAR_TREE);
+            ((LinearTree) tree).write(out);
+         } else if (tree instanceof CompressedTree) {
+            out.putInt(MeshCache.COMPRESSED_TREE);
+            ((CompressedTree) tree).write(out);
+         } else if (tree instanceof WideTree) {
+            out.putInt(MeshCache.WIDE_TREE);
+            ((WideTree) tree).write(out);
+         } else {
+            throw new IOException("Unable to cache trees of type " + tree.getClass().getSimpleName());
+         }
+
+         out.putInt(levels.length);
+
+         for (final LODMesh.Level level : levels) {
+            out.putFloat(level.cellSize);
+            level.write(out);
+         }
+
+         out.flush();
+      } finally {
+         file.close();
+      }
+
+      try {
+         Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (final AtomicMoveNotSupportedException e) {
+         Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+   }
+
+   /**
+    * Buffered little endian writer for the cache arrays.
+    */
+   static class Writer {
+      private final FileChannel channel;
+      private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+
+      Writer(final FileChannel channel) {
+         this.channel = channel;
+      }
+
+      private void ensure(final int bytes) throws IOException {
+         if (this.buffer.remaining() < bytes) {
+            this.flush();
+         }
+      }
+
+      void flush() throws IOException {
+         this.buffer.flip();
+
+         while (this.buffer.hasRemaining()) {
+            this.channel.write(this.buffer);
+         }
+
+         this.buffer.clear();
+      }
+
+      /**
+       * @return The file position the next value will be written at
+       */
+      long getPosition() throws IOException {
+         return this.channel.position() + this.buffer.position();
+      }
+
+      void putLong(final long value) throws IOException {
+         this.ensure(8);
+         this.buffer.putLong(value);
+      }
+
+      void putInt(final int value) throws IOException {
+         this.ensure(4);
+         this.buffer.putInt(value);
+      }
+
+      void putFloat(final float value) throws IOException {
+         this.ensure(4);
+         this.buffer.putFloat(value);
+      }
+
+      void putBytes(final byte[] values) throws IOException {
+         this.putInt(values.length);
+
+         for (int offset = 0; offset < values.length;) {
+            this.ensure(1);
+            final int count = Math.min(values.length - offset, this.buffer.remaining());
+            this.buffer.put(values, offset, count);
+            offset += count;
+         }
+      }
+
+      void putShorts(final short[] values) throws IOException {
+         this.putInt(values.length);
+
+         for (int offset = 0; offset < values.length;) {
+            this.ensure(2);
+            final int count = Math.min(values.length - offset, this.buffer.remaining() / 2);
+            this.buffer.asShortBuffer().put(values, offset, count);
+            this.buffer.position(this.buffer.position() + count * 2);
+            offset += count;
+         }
+      }
+
+      void putInts(final int[] values) throws IOException {
+         this.putInt(values.length);
+
+         for (int offset = 0; offset < values.length;) {
+            this.ensure(4);
+            final int count = Math.min(values.length - offset, this.buffer.remaining() / 4);
+            this.buffer.asIntBuffer().put(values, offset, count);
+            this.buffer.position(this.buffer.position() + count * 4);
+            offset += count;
+         }
+      }
+
+      void putFloats(final float[] values) throws IOException {
+         this.putInt(values.length);
+
+         for (int offset = 0; offset < values.length;) {
+            this.ensure(4);
+            final int count = Math.min(values.length - offset, this.buffer.remaining() / 4);
+            this.buffer.asFloatBuffer().put(values, offset, count);
+            this.buffer.position(this.buffer.position() + count * 4);
+            offset += count;
+         }
+      }
+   }
+
+   /**
+    * Reads the cache arrays by mapping the file one section at a time.
+    */
+   static class Reader {
+      // keep each mapping well below the 2GB limit of a MappedByteBuffer
+      private static final int MAX_MAPPING = 1 << 28;
+
+      private final FileChannel channel;
+      private long position = 0;
+      /** A mapping of up to MAX_MAPPING bytes that scalars are read from, so each one doesn't map the file again */
+      private MappedByteBuffer window = null;
+      private long windowStart = 0;
+
+      Reader(final FileChannel channel) {
+         this.channel = channel;
+      }
+
+      /**
+       * Maps the next bytes of the file and moves past them.
+       */
+      private MappedByteBuffer map(final long bytes) throws IOException {
+         if (this.position + bytes > this.channel.size()) {
+            throw new IOException("Truncated cache file");
+         }
+
+         final MappedByteBuffer buffer = this.channel.map(FileChannel.MapMode.READ_ONLY, this.position, bytes);
+         buffer.order(ByteOrder.LITTLE_ENDIAN);
+         this.position += bytes;
+
+         return buffer;
+      }
+
+      /**
+       * Moves past the next scalar of the given size and returns its offset in the window, mapping a new window at the
+       * scalar first if the current one doesn't hold all of it. Callers read this.window only after it returns.
+       */
+      private int scalar(final int bytes) throws IOException {
+         if (this.window == null || this.position < this.windowStart || this.position + bytes > this.windowStart + this.window.limit()) {
+            final long size = this.channel.size();
+
+            if (this.position + bytes > size) {
+               throw new IOException("Truncated cache file");
+            }
+
+            this.windowStart = this.position;
+            this.window = this.channel.map(FileChannel.MapMode.READ_ONLY, this.position, Math.min(size - this.position, Reader.MAX_MAPPING));
+            this.window.order(ByteOrder.LITTLE_ENDIAN);
+         }
+
+         final int offset = (int) (this.position - this.windowStart);
+         this.position += bytes;
+
+         return offset;
+      }
+
+      /**
+       * Moves to the given file position, e.g. the start of a section whose position was recorded by a Writer.
+       */
+      void seek(final long position) {
+         this.position = position;
+      }
+
+      /**
+       * @return The file position the next value will be read from
+       */
+      long getPosition() {
+         return this.position;
+      }
+
+      /**
+       * Reads the length of the next array and checks that its values fit in the rest of the file, so a damaged length
+       * fails here instead of allocating a huge array.
+       */
+      private int getLength(final int elementBytes) throws IOException {
+         final int length = this.getInt();
+
+         if (length < 0 || this.position + (long) length * elementBytes > this.channel.size()) {
+            throw new IOException("Bad array length " + length + " at " + (this.position - 4));
+         }
+
+         return length;
+      }
+
+      /**
+       * Maps the next array without copying it. Arrays of 2GB or more can't be mapped in one piece.
+       */
+      ByteBuffer mapArray(final int elementBytes) throws IOException {
+         final long bytes = (long) this.getLength(elementBytes) * elementBytes;
+
+         if (bytes > Integer.MAX_VALUE) {
+            throw new IOException("Unable to map an array of " + bytes + " bytes");
+         }
+
+         return this.map(bytes);
+      }
+
+      /**
+       * Moves past the next array without reading its values.
+       *
+       * @return The length of the array
+       */
+      int skipArray(final int elementBytes) throws IOException {
+         final int length = this.getLength(elementBytes);
+         this.position += (long) length * elementBytes;
+
+         return length;
+      }
+
+      long getLong() throws IOException {
+         final int offset = this.scalar(8);
+
+         return this.window.getLong(offset);
+      }
+
+      int getInt() throws IOException {
+         final int offset = this.scalar(4);
+
+         return this.window.getInt(offset);
+      }
+
+      float getFloat() throws IOException {
+         final int offset = this.scalar(4);
+
+         return this.window.getFloat(offset);
+      }
+
+      byte[] getBytes() throws IOException {
+         final byte[] values = new byte[this.getLength(1)];
+
+         for (int offset = 0; offset < values.length; offset += Reader.MAX_MAPPING) {
+            final int count = Math.min(values.length - offset, Reader.MAX_MAPPING);
+            this.map(count).get(values, offset, count);
+         }
+
+         return values;
+      }
+
+      short[] getShorts() throws IOException {
+         final short[] values = new short[this.getLength(2)];
+
+         for (int offset = 0; offset < values.length; offset += Reader.MAX_MAPPING) {
+            final int count = Math.min(values.length - offset, Reader.MAX_MAPPING);
+            this.map(count * 2L).asShortBuffer().get(values, offset, count);
+         }
+
+         return values;
+      }
+
+      int[] getInts() throws IOException {
+         final int[] values = new int[this.getLength(4)];
+
+         for (int offset = 0; offset < values.length; offset += Reader.MAX_MAPPING) {
+            final int count = Math.min(values.length - offset, Reader.MAX_MAPPING);
+            this.map(count * 4L).asIntBuffer().get(values, offset, count);
+         }
+
+         return values;
+      }
+
+      float[] getFloats() throws IOException {
+         final float[] values = new float[this.getLength(4)];
+
+         for (int offset = 0; offset < values.length; offset += Reader.MAX_MAPPING) {
+            final int count = Math.min(values.length - offset, Reader.MAX_MAPPING);
+            this.map(count * 4L).asFloatBuffer().get(values, offset, count);
+         }
+
+         return values;
+      }
+   }
+}
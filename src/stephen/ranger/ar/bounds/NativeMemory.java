@@ -0,0 +1,23 @@
+package stephen.ranger.ar.bounds;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Memory outside the Java heap that an OffHeapMesh keeps its arrays in, freed all at once by close.
+ */
+public interface NativeMemory {
+   /**
+    * @return A native order view of a new block of the given size, which must be under 2 GB
+    */
+   public ByteBuffer allocate(final long byteCount);
+
+   /**
+    * Frees every block. Their views must not be read afterwards.
+    */
+   public void close();
+
+   /**
+    * @return False once close has been called
+    */
+   public boolean isOpen();
+}
@@ -0,0 +1,421 @@
+package stephen.ranger.ar.bounds;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import javax.vecmath.Vector3f;
+
+import stephen.ranger.ar.Camera;
+import stephen.ranger.ar.IntersectionInformation;
+import stephen.ranger.ar.RTStatics;
+import stephen.ranger.ar.Ray;
+import stephen.ranger.ar.materials.ColorInformation;
+import stephen.ranger.ar.sceneObjects.TriangleMesh;
+
+/**
+ * Bounding volume that keeps a mesh and its BVH in native memory instead of on the Java heap, so very large models
+ * neither need a heap of their size nor add to the work of every garbage collection. The vertices, normals, faces,
+ * precomputed faces and the arrays of the mesh's LinearTree are copied into blocks of one NativeMemory, in the same
+ * layouts as their arrays, and the mesh drops its arrays afterwards. The blocks are read through buffer views, which the
+ * JIT compiles to plain loads, so each array must stay under 2 GB; checkSize turns larger meshes away, and they belong
+ * in an OUT_OF_CORE_BVH.
+ *
+ * With jdk.incubator.foreign the blocks are memory segments of one shared scope, loaded by name like
+ * VectorChildBoxTest so this class never links against the module. Without it they are direct buffers.
+ *
+ * A cached mesh is copied from the mapped cache file straight into native memory, so only the first load, which parses
+ * the model and builds the tree on the heap, needs a heap the size of the mesh.
+ *
+ * Memory segments are freed by close, normally when the mesh's scene is closed, rather than by the garbage collector
+ * as direct buffers are. Off heap meshes cannot be refitted.
+ */
+public class OffHeapMesh extends BoundingVolume {
+   private final TriangleMesh parentMesh;
+   private final ColorInformation colorInfo;
+   private final NativeMemory memory = OffHeapMesh.createNativeMemory();
+   /** Three floats per vertex */
+   private final FloatBuffer vertices;
+   /** Three floats per vertex */
+   private final FloatBuffer normals;
+   /** Three vertex indices per face */
+   private final IntBuffer indices;
+   /** Nine floats per face, as in a TriangleStore */
+   private final FloatBuffer triangles;
+   /** The nodes, bounds and leaf faces of the LinearTree */
+   private final IntBuffer nodes;
+   private final FloatBuffer bounds;
+   private final IntBuffer leafFaces;
+   private final long byteCount;
+   private final int nodeCount;
+   private final int maxDepth;
+   private final float[][] minMax = new float[2][3];
+   private final float shadowDistance;
+   private LODMesh.Level[] levels = new LODMesh.Level[0];
+
+   public OffHeapMesh(final TriangleMesh parentMesh, final ColorInformation colorInfo, final float[] vertices, final float[] normals, final int[] indices,
+         final LinearTree tree) {
+      this(parentMesh, colorInfo, FloatBuffer.wrap(vertices), FloatBuffer.wrap(normals), IntBuffer.wrap(indices), IntBuffer.wrap(tree.nodes), FloatBuffer
+            .wrap(tree.bounds), IntBuffer.wrap(tree.leafFaces), tree.getMaxDepth());
+   }
+
+   /**
+    * Copies the given arrays, which may be heap arrays or views of a mapped MeshCache, into native memory.
+    */
+   OffHeapMesh(final TriangleMesh parentMesh, final ColorInformation colorInfo, final FloatBuffer vertices, final FloatBuffer normals, final IntBuffer indices,
+         final IntBuffer nodes, final FloatBuffer bounds, final IntBuffer leafFaces, final int maxDepth) {
+      final long startTime = System.nanoTime();
+
+      OffHeapMesh.checkSize(vertices.capacity() / 3, indices.capacity() / 3, nodes.capacity() / 2);
+
+      this.parentMesh = parentMesh;
+      this.colorInfo = colorInfo;
+      this.nodeCount = nodes.capacity() / 2;
+      this.maxDepth = maxDepth;
+
+      this.vertices = this.copy(vertices);
+      this.normals = this.copy(normals);
+      this.indices = this.copy(indices);
+      this.nodes = this.copy(nodes);
+      this.bounds = this.copy(bounds);
+      this.leafFaces = this.copy(leafFaces);
+      this.triangles = this.allocate(4L * this.indices.capacity() * 3).asFloatBuffer();
+
+      for (int i = 0; i < this.indices.capacity() / 3; i++) {
+         final int p0 = this.indices.get(i * 3) * 3;
+         final int p1 = this.indices.get(i * 3 + 1) * 3;
+         final int p2 = this.indices.get(i * 3 + 2) * 3;
+
+         for (int a = 0; a < 3; a++) {
+            this.triangles.put(i * 9 + a, this.vertices.get(p0 + a));
+            this.triangles.put(i * 9 + 3 + a, this.vertices.get(p1 + a) - this.vertices.get(p0 + a));
+            this.triangles.put(i * 9 + 6 + a, this.vertices.get(p2 + a) - this.vertices.get(p0 + a));
+         }
+      }
+
+      for (int a = 0; a < 3; a++) {
+         this.minMax[0][a] = Float.MAX_VALUE;
+         this.minMax[1][a] = -Float.MAX_VALUE;
+      }
+
+      for (int i = 0; i < this.vertices.capacity(); i++) {
+         this.minMax[0][i % 3] = Math.min(this.vertices.get(i), this.minMax[0][i % 3]);
+         this.minMax[1][i % 3] = Math.max(this.vertices.get(i), this.minMax[1][i % 3]);
+      }
+
+      this.byteCount = 4L * (this.vertices.capacity() + this.normals.capacity() + this.indices.capacity() + this.triangles.capacity() + this.nodes.capacity()
+            + this.bounds.capacity() + this.leafFaces.capacity());
+      this.shadowDistance = Math.max(this.minMax[1][0] - this.minMax[0][0], Math.max(this.minMax[1][1] - this.minMax[0][1], this.minMax[1][2] - this.minMax[0][2])) / 2000f;
+
+      final long endTime = System.nanoTime();
+      System.out.println("copied " + this.indices.capacity() / 3 + " faces and " + this.nodeCount + " nodes off heap in " + (endTime - startTime) / 1000000. + " ms, "
+            + this.getByteCount() / 1048576. + " MB of " + this.memory.getClass().getSimpleName());
+
+      if (RTStatics.PRINT_TREE_STATISTICS) {
+         System.out.println(this.getStatistics().toJSON());
+      }
+   }
+
+   private static NativeMemory createNativeMemory() {
+      if (ModuleLayer.boot().findModule("jdk.incubator.foreign").isPresent()) {
+         try {
+            // loaded by name so this class never links against the incubator module when it is missing
+            return (NativeMemory) Class.forName("stephen.ranger.ar.bounds.IncubatorNativeMemory").getConstructor().newInstance();
+         } catch (final Exception e) {
+            System.err.println("Unable to use jdk.incubator.foreign for off heap meshes: " + e);
+         } catch (final LinkageError e) {
+            System.err.println("Unable to use jdk.incubator.foreign for off heap meshes: " + e);
+         }
+      }
+
+      return new DirectNativeMemory();
+   }
+
+   /**
+    * Checks that every array of a mesh of the given size fits in one block, so a mesh that is too large is turned away
+    * when it is loaded rather than failing in the middle of the copy.
+    *
+    * @throws IllegalArgumentException
+    *            If any array would need 2 GB or more
+    */
+   public static void checkSize(final int vertexCount, final int faceCount, final int nodeCount) {
+      // the precomputed faces and the node bounds are the largest arrays
+      final long largest = Math.max(12L * vertexCount, Math.max(36L * faceCount, 24L * nodeCount));
+
+      if (largest > Integer.MAX_VALUE) {
+         throw new IllegalArgumentException("An off heap mesh of " + faceCount + " faces and " + nodeCount + " nodes needs an array of " + largest
+               + " bytes, more than the 2 GB a block can hold; use " + RTStatics.AccelerationStructure.OUT_OF_CORE_BVH + " instead");
+      }
+   }
+
+   private ByteBuffer allocate(final long byteCount) {
+      return this.memory.allocate(byteCount);
+   }
+
+   private FloatBuffer copy(final FloatBuffer values) {
+      return this.allocate(4L * values.capacity()).asFloatBuffer().put(values.duplicate().clear());
+   }
+
+   private IntBuffer copy(final IntBuffer values) {
+      return this.allocate(4L * values.capacity()).asIntBuffer().put(values.duplicate().clear());
+   }
+
+   public int getVertexCount() {
+      return this.vertices.capacity() / 3;
+   }
+
+   public int getFaceCount() {
+      return this.indices.capacity() / 3;
+   }
+
+   /**
+    * @return The simplified levels kept with the mesh, finest first
+    */
+   public LODMesh.Level[] getLevels() {
+      return this.levels;
+   }
+
+   /**
+    * Sets the simplified levels made when the mesh was parsed or read from its cache.
+    */
+   void setLevels(final LODMesh.Level[] levels) {
+      this.levels = levels;
+   }
+
+   /**
+    * @return The number of bytes of native memory used by the mesh and its tree
+    */
+   public long getByteCount() {
+      return this.byteCount;
+   }
+
+   @Override
+   public long getReleasableByteCount() {
+      return this.isOpen() ? this.byteCount : 0;
+   }
+
+   /**
+    * @return False once the mesh's memory has been freed
+    */
+   public boolean isOpen() {
+      return this.memory.isOpen();
+   }
+
+   /**
+    * Frees the mesh's native memory. The mesh must not be traced afterwards; with memory segments that throws an
+    * IllegalStateException.
+    */
+   @Override
+   public void close() {
+      synchronized (this.memory) {
+         if (this.memory.isOpen()) {
+            this.memory.close();
+            System.out.println("closed " + this.byteCount / 1048576. + " MB of off heap mesh memory");
+         }
+      }
+   }
+
+   /**
+    * Walks the tree in native memory as LinearTree.addStatistics walks its arrays. The bytes are all of the mesh's
+    * native memory.
+    */
+   @Override
+   public TreeStatistics getStatistics() {
+      final TreeStatistics statistics = new TreeStatistics(RTStatics.AccelerationStructure.OFF_HEAP_BVH.toString(), this.indices.capacity() / 3);
+      final int[] stack = new int[2 * this.maxDepth + 2];
+      final int[] stackDepths = new int[stack.length];
+      final float[] box = new float[6];
+      int stackSize = 0;
+
+      statistics.addBytes(this.byteCount);
+
+      if (this.nodeCount == 0) {
+         return statistics;
+      }
+
+      stack[stackSize] = 0;
+      stackDepths[stackSize++] = 0;
+
+      while (stackSize > 0) {
+         final int node = stack[--stackSize];
+         final int depth = stackDepths[stackSize];
+         final int data = this.nodes.get(node * 2);
+
+         for (int i = 0; i < 6; i++) {
+            box[i] = this.bounds.get(node * 6 + i);
+         }
+
+         if ((data & 3) == LinearTree.LEAF) {
+            statistics.addLeaf(depth, BVHNode.getSurfaceArea(box), data >>> 2);
+         } else {
+            statistics.addInterior(depth, BVHNode.getSurfaceArea(box));
+
+            if (this.nodes.get(node * 2 + 1) != -1) {
+               stack[stackSize] = this.nodes.get(node * 2 + 1);
+               stackDepths[stackSize++] = depth + 1;
+            }
+
+            if (data >> 2 != -1) {
+               stack[stackSize] = data >> 2;
+               stackDepths[stackSize++] = depth + 1;
+            }
+         }
+      }
+
+      return statistics;
+   }
+
+   @Override
+   public IntersectionInformation getChildIntersection(final Ray ray, final int depth) {
+      if (!this.intersects(ray)) {
+         return null;
+      }
+
+      final TriangleHit hit = TriangleHit.get(Float.POSITIVE_INFINITY);
+
+      if (!this.traverse(ray, hit, false)) {
+         return null;
+      }
+
+      return new IntersectionInformation(ray, this, this.interpolate(this.vertices, hit, new Vector3f()), this.interpolate(this.normals, hit, new Vector3f()), hit.t);
+   }
+
+   @Override
+   public boolean occluded(final Vector3f origin, final Vector3f direction, final float tMax) {
+      final Ray ray = new Ray(origin, direction);
+
+      return this.intersects(ray) && this.traverse(ray, TriangleHit.get(tMax), true);
+   }
+
+   /**
+    * Same front to back traversal as LinearTree's. Each face is copied out of the segment before the shared
+    * TriangleStore test, so both give the same hits.
+    */
+   private boolean traverse(final Ray ray, final TriangleHit hit, final boolean anyHit) {
+      final float[] inverseDirection = RTStatics.getInverseDirection(ray.direction, new float[3]);
+      final float[] triangle = new float[9];
+      final float[] box = new float[6];
+      final int[] stack = new int[this.maxDepth + 2];
+      final float[] stackDistances = new float[stack.length];
+      int stackSize = 0;
+      boolean found = false;
+
+      stack[stackSize] = 0;
+      stackDistances[stackSize++] = this.getEntryDistance(ray, inverseDirection, 0, hit.t, box);
+
+      while (stackSize > 0) {
+         final int node = stack[--stackSize];
+
+         if (stackDistances[stackSize] >= hit.t) {
+            continue;
+         }
+
+         final int data = this.nodes.get(node * 2);
+
+         if ((data & 3) == LinearTree.LEAF) {
+            final int offset = this.nodes.get(node * 2 + 1);
+            final int end = offset + (data >>> 2);
+
+            for (int i = offset; i < end; i++) {
+               final int face = this.leafFaces.get(i);
+
+               for (int k = 0; k < 9; k++) {
+                  triangle[k] = this.triangles.get(face * 9 + k);
+               }
+
+               if (TriangleStore.intersect(triangle, 0, face, ray.origin, ray.direction, this.shadowDistance, hit)) {
+                  if (anyHit) {
+                     return true;
+                  }
+
+                  found = true;
+               }
+            }
+         } else {
+            final int left = data >> 2;
+            final int right = this.nodes.get(node * 2 + 1);
+            final float leftDistance = left == -1 ? Float.POSITIVE_INFINITY : this.getEntryDistance(ray, inverseDirection, left, hit.t, box);
+            final float rightDistance = right == -1 ? Float.POSITIVE_INFINITY : this.getEntryDistance(ray, inverseDirection, right, hit.t, box);
+
+            // far child first, so the child on the near side of the split plane is popped next
+            if (inverseDirection[data & 3] >= 0) {
+               stackSize = LinearTree.push(stack, stackDistances, stackSize, right, rightDistance);
+               stackSize = LinearTree.push(stack, stackDistances, stackSize, left, leftDistance);
+            } else {
+               stackSize = LinearTree.push(stack, stackDistances, stackSize, left, leftDistance);
+               stackSize = LinearTree.push(stack, stackDistances, stackSize, right, rightDistance);
+            }
+         }
+      }
+
+      return found;
+   }
+
+   private float getEntryDistance(final Ray ray, final float[] inverseDirection, final int node, final float tMax, final float[] box) {
+      for (int i = 0; i < 6; i++) {
+         box[i] = this.bounds.get(node * 6 + i);
+      }
+
+      return RTStatics.aabbEntryDistance(ray.origin, inverseDirection, box, 0, tMax);
+   }
+
+   /**
+    * Interpolates the given per vertex values, the vertices or the normals, at the given hit.
+    */
+   private Vector3f interpolate(final FloatBuffer values, final TriangleHit hit, final Vector3f output) {
+      final float w = 1f - hit.u - hit.v;
+      final int p0 = this.indices.get(hit.face * 3) * 3;
+      final int p1 = this.indices.get(hit.face * 3 + 1) * 3;
+      final int p2 = this.indices.get(hit.face * 3 + 2) * 3;
+
+      output.set(w * values.get(p0) + hit.u * values.get(p1) + hit.v * values.get(p2), w * values.get(p0 + 1) + hit.u * values.get(p1 + 1) + hit.v * values.get(p2 + 1), w
+            * values.get(p0 + 2) + hit.u * values.get(p1 + 2) + hit.v * values.get(p2 + 2));
+
+      return output;
+   }
+
+   @Override
+   public boolean intersects(final Ray ray) {
+      return RTStatics.aabbIntersection(ray, this.minMax);
+   }
+
+   @Override
+   public float[][] getMinMax() {
+      return this.minMax;
+   }
+
+   @Override
+   public float[] getColor(final IntersectionInformation info, final Camera camera, final int depth) {
+      return this.colorInfo.getMaterialColor(camera, info, depth);
+   }
+
+   @Override
+   public ColorInformation getColorInformation() {
+      return this.colorInfo;
+   }
+
+   @Override
+   public float[] getEmission() {
+      return this.parentMesh.getEmission();
+   }
+
+   @Override
+   public float[] getDiffuse() {
+      return this.parentMesh.getDiffuse();
+   }
+
+   @Override
+   public float[] getSpecular() {
+      return this.parentMesh.getSpecular();
+   }
+
+   @Override
+   public float[] getAmbient() {
+      return this.parentMesh.getAmbient();
+   }
+
+   @Override
+   public float getShininess() {
+      return this.parentMesh.getShininess();
+   }
+}
@@ -0,0 +1,77 @@
+package stephen.ranger.ar.bounds;
+
+import stephen.ranger.ar.Ray;
+import stephen.ranger.ar.RayPacket;
+
+/**
+ * A mesh hierarchy packed into flat arrays for traversal.
+ */
+public interface PackedTree {
+   /**
+    * Finds the closest intersection between the given ray and the mesh faces in this tree.
+    * 
+    * @param ray
+    *           The ray to test
+    * @param triangles
+    *           The precomputed faces of the mesh
+    * @param shadowDistance
+    *           Hits closer than this are ignored
+    * @param hit
+    *           Hits beyond hit.t are ignored; receives the closest hit
+    * @return True if a hit was found and written to hit
+    */
+   public boolean getClosestIntersection(final Ray ray, final TriangleStore triangles, final float shadowDistance, final TriangleHit hit);
+
+   /**
+    * Returns true as soon as any face in this tree is hit between shadowDistance and tMax.
+    */
+   public boolean occluded(final Ray ray, final TriangleStore triangles, final float shadowDistance, final float tMax);
+
+   /**
+    * Finds the closest intersection of every ray in the packet from the given index on. Closer hits are written to
+    * packet.hits and packet.tMax.
+    */
+   public void getClosestIntersections(final RayPacket packet, final int first, final TriangleStore triangles, final float shadowDistance);
+
+   /**
+    * Recomputes every node's bounds bottom up from the given face bounds, keeping the tree's topology, e.g. after the
+    * mesh's vertices have moved. Packed trees always store children after their parents, so one reverse pass over the
+    * nodes sees every child before its parent.
+    * 
+    * @param faceBounds
+    *           Six floats per face in the form of: { minx, miny, minz, maxx, maxy, maxz }
+    * @return The cost of the refitted tree, see getCost()
+    */
+   public float refit(final float[] faceBounds);
+
+   /**
+    * Returns the surface area heuristic cost of the tree relative to its root box. Comparing the cost after a refit
+    * with the cost after the build tells how far a refitted tree has degraded.
+    */
+   public float getCost();
+
+   /**
+    * @return The number of nodes in the tree
+    */
+   public int getNodeCount();
+
+   /**
+    * @return The depth of the deepest leaf
+    */
+   public int getMaxDepth();
+
+   /**
+    * @return The number of face references stored in the leaves, larger than the face count when faces are duplicated
+    */
+   public int getReferenceCount();
+
+   /**
+    * @return The number of bytes used by the packed arrays
+    */
+   public long getByteCount();
+
+   /**
+    * Adds every node of this tree and the bytes of its arrays to the given statistics.
+    */
+   public void addStatistics(final TreeStatistics statistics);
+}
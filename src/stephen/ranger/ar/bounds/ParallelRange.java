@@ -0,0 +1,59 @@
+package stephen.ranger.ar.bounds;
+
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+import stephen.ranger.ar.RTStatics;
+
+/**
+ * A reduction over the range [from, to) used by the acceleration structure builders. When called from inside a fork
+ * join pool, ranges larger than RTStatics.PARALLEL_BUILD_GRAIN are split in half and the halves are computed in
+ * parallel before being merged; otherwise the whole range is computed on the calling thread.
+ * 
+ * @param <T>
+ *           The per chunk result type
+ */
+public abstract class ParallelRange<T> {
+   /**
+    * Computes the result for [from, to) on the calling thread.
+    */
+   protected abstract T compute(final int from, final int to);
+
+   /**
+    * Combines the results of two neighbouring chunks, the first covering the lower part of the range.
+    */
+   protected abstract T merge(final T lower, final T upper);
+
+   public T invoke(final int from, final int to) {
+      if (to - from <= RTStatics.PARALLEL_BUILD_GRAIN || !ForkJoinTask.inForkJoinPool()) {
+         return this.compute(from, to);
+      }
+
+      return new RangeTask(from, to).invoke();
+   }
+
+   private class RangeTask extends RecursiveTask<T> {
+      private static final long serialVersionUID = 1L;
+
+      private final int from, to;
+
+      public RangeTask(final int from, final int to) {
+         this.from = from;
+         this.to = to;
+      }
+
+      @Override
+      protected T compute() {
+         if (this.to - this.from <= RTStatics.PARALLEL_BUILD_GRAIN) {
+            return ParallelRange.this.compute(this.from, this.to);
+         }
+
+         final int mid = (this.from + this.to) >>> 1;
+         final RangeTask lower = new RangeTask(this.from, mid);
+         lower.fork();
+         final T upper = new RangeTask(mid, this.to).compute();
+
+         return ParallelRange.this.merge(lower.join(), upper);
+      }
+   }
+}
@@ -0,0 +1,549 @@
+package stephen.ranger.ar.bounds;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import stephen.ranger.ar.RTStatics;
+
+/**
+ * A node of a bounding volume hierarchy with spatial splits (SBVH). Each node considers a binned SAH object split over
+ * the reference centroids like BVHNode, and, when the two sides of that split overlap, a spatial split that clips the
+ * straddling triangles to either side of the plane. A face referenced on both sides of a spatial split takes one
+ * reference from the shared duplication budget; once the budget is used up only object splits are made.
+ */
+public class SBVHNode implements TreeNode {
+   public SBVHNode left;
+   public SBVHNode right;
+   public final float[][] minMax;
+   public final int axis;
+   public final int depth;
+   private final int[] faces;
+
+   /**
+    * Creates a new SBVHNode over the given references and recursively builds its children.
+    *
+    * @param vertices
+    *           The complete set of vertices of the mesh, three floats per vertex
+    * @param indices
+    *           The complete set of faces of the mesh, three vertex indices per face
+    * @param references
+    *           The positions in the mesh's face array of the faces in this node, a face may appear in several nodes
+    * @param referenceBounds
+    *           The bounds of the part of each referenced face inside this node, six floats per reference
+    * @param budget
+    *           The number of duplicate references that may still be created
+    * @param rootArea
+    *           The surface area of the root box, used to decide when the object split overlap is worth a spatial split
+    */
+   public SBVHNode(final float[] vertices, final int[] indices, final int[] references, final float[] referenceBounds, final int depth, final AtomicInteger budget,
+         final float rootArea, final boolean computeBVH) {
+      this.depth = depth;
+
+      final int count = references.length;
+      final float[] bounds = new float[6];
+      final float[] centroidBounds = new float[6];
+      BVHNode.setEmpty(bounds, 0);
+      BVHNode.setEmpty(centroidBounds, 0);
+
+      for (int i = 0; i < count; i++) {
+         BVHNode.union(bounds, 0, referenceBounds, i * 6);
+
+         for (int a = 0; a < 3; a++) {
+            final float centroid = (referenceBounds[i * 6 + a] + referenceBounds[i * 6 + 3 + a]) / 2f;
+            centroidBounds[a] = Math.min(centroidBounds[a], centroid);
+            centroidBounds[3 + a] = Math.max(centroidBounds[3 + a], centroid);
+         }
+      }
+
+      this.minMax = new float[][] { Arrays.copyOfRange(bounds, 0, 3), Arrays.copyOfRange(bounds, 3, 6) };
+
+      int[] leftReferences = null, rightReferences = null;
+      float[] leftBounds = null, rightBounds = null;
+      int splitAxis = 0;
+
+      if (computeBVH && count > RTStatics.MAX_CHILDREN && depth < RTStatics.BVH_MAX_DEPTH) {
+         final float nodeArea = BVHNode.getSurfaceArea(bounds);
+         final float leafCost = RTStatics.SAH_INTERSECTION_COST * count;
+         final float maxCost = count > RTStatics.BVH_MAX_LEAF_SIZE || nodeArea <= 0 ? Float.MAX_VALUE : leafCost;
+
+         // { cost, axis, position, overlap area }
+         final float[] objectSplit = SBVHNode.getObjectSplit(referenceBounds, count, centroidBounds, nodeArea);
+         float[] spatialSplit = null;
+
+         if (objectSplit != null && objectSplit[3] > RTStatics.SBVH_OVERLAP_THRESHOLD * rootArea && budget.get() > 0) {
+            spatialSplit = SBVHNode.getSpatialSplit(vertices, indices, references, referenceBounds, bounds, nodeArea, Math.min(maxCost, objectSplit[0]));
+         }
+
+         if (spatialSplit != null && SBVHNode.reserve(budget, (int) spatialSplit[3])) {
+            splitAxis = (int) spatialSplit[1];
+
+            final int[][] splitReferences = new int[2][];
+            final float[][] splitBounds = new float[2][];
+            SBVHNode.spatialPartition(vertices, indices, references, referenceBounds, bounds, splitAxis, (int) spatialSplit[2], splitReferences, splitBounds);
+
+            if (splitReferences[0].length > 0 && splitReferences[1].length > 0) {
+               // give back whatever the clipping saved compared to the binned estimate
+               budget.addAndGet((int) spatialSplit[3] - (splitReferences[0].length + splitReferences[1].length - count));
+
+               leftReferences = splitReferences[0];
+               rightReferences = splitReferences[1];
+               leftBounds = splitBounds[0];
+               rightBounds = splitBounds[1];
+            } else {
+               budget.addAndGet((int) spatialSplit[3]);
+            }
+         }
+
+         if (leftReferences == null) {
+            int mid = -1;
+            int[] order = null;
+
+            if (objectSplit != null && objectSplit[0] < maxCost) {
+               splitAxis = (int) objectSplit[1];
+               order = SBVHNode.partition(referenceBounds, count, splitAxis, objectSplit[2]);
+               mid = order[count];
+            }
+
+            if ((mid <= 0 || mid >= count) && count > RTStatics.BVH_MAX_LEAF_SIZE) {
+               // nothing useful was found but the node is too big for a leaf; split it in half by count instead
+               splitAxis = BVHNode.getLongestAxis(new float[][] { Arrays.copyOfRange(centroidBounds, 0, 3), Arrays.copyOfRange(centroidBounds, 3, 6) });
+               order = SBVHNode.sort(referenceBounds, count, splitAxis);
+               mid = count / 2;
+            }
+
+            if (mid > 0 && mid < count) {
+               leftReferences = new int[mid];
+               rightReferences = new int[count - mid];
+               leftBounds = new float[mid * 6];
+               rightBounds = new float[(count - mid) * 6];
+
+               for (int i = 0; i < count; i++) {
+                  final int r = order[i];
+
+                  if (i < mid) {
+                     leftReferences[i] = references[r];
+                     System.arraycopy(referenceBounds, r * 6, leftBounds, i * 6, 6);
+                  } else {
+                     rightReferences[i - mid] = references[r];
+                     System.arraycopy(referenceBounds, r * 6, rightBounds, (i - mid) * 6, 6);
+                  }
+               }
+            }
+         }
+      }
+
+      this.axis = splitAxis;
+
+      if (leftReferences == null) {
+         this.faces = references;
+         this.left = null;
+         this.right = null;
+      } else {
+         this.faces = null;
+
+         final int[] lr = leftReferences, rr = rightReferences;
+         final float[] lb = leftBounds, rb = rightBounds;
+
+         if (count > RTStatics.PARALLEL_BUILD_THRESHOLD && ForkJoinTask.inForkJoinPool()) {
+            ForkJoinTask.invokeAll(new RecursiveAction() {
+               private static final long serialVersionUID = 1L;
+
+               @Override
+               protected void compute() {
+                  SBVHNode.this.left = new SBVHNode(vertices, indices, lr, lb, depth + 1, budget, rootArea, computeBVH);
+               }
+            }, new RecursiveAction() {
+               private static final long serialVersionUID = 1L;
+
+               @Override
+               protected void compute() {
+                  SBVHNode.this.right = new SBVHNode(vertices, indices, rr, rb, depth + 1, budget, rootArea, computeBVH);
+               }
+            });
+         } else {
+            this.left = new SBVHNode(vertices, indices, lr, lb, depth + 1, budget, rootArea, computeBVH);
+            this.right = new SBVHNode(vertices, indices, rr, rb, depth + 1, budget, rootArea, computeBVH);
+         }
+      }
+   }
+
+   private static boolean reserve(final AtomicInteger budget, final int references) {
+      while (true) {
+         final int remaining = budget.get();
+
+         if (remaining < references) {
+            return false;
+         } else if (budget.compareAndSet(remaining, remaining - references)) {
+            return true;
+         }
+      }
+   }
+
+   private static float getCentroid(final float[] referenceBounds, final int reference, final int axis) {
+      return (referenceBounds[reference * 6 + axis] + referenceBounds[reference * 6 + 3 + axis]) / 2f;
+   }
+
+   /**
+    * Bins the reference centroids along all three axes and returns the cheapest bin boundary.
+    *
+    * @return { cost, axis, position, overlap area of the two sides } or null if no boundary splits the references
+    */
+   private static float[] getObjectSplit(final float[] referenceBounds, final int count, final float[] centroidBounds, final float nodeArea) {
+      final int binCount = RTStatics.SAH_BIN_COUNT;
+      final int[] binCounts = new int[binCount];
+      final float[] binBounds = new float[binCount * 6];
+      final int[] rightCounts = new int[binCount];
+      final float[] rightBounds = new float[binCount * 6];
+      final float[] accumulated = new float[6];
+      float[] best = null;
+
+      for (int a = 0; a < 3; a++) {
+         final float extent = centroidBounds[3 + a] - centroidBounds[a];
+
+         if (extent <= 0) {
+            continue;
+         }
+
+         final float scale = binCount / extent;
+         Arrays.fill(binCounts, 0);
+
+         for (int b = 0; b < binCount; b++) {
+            BVHNode.setEmpty(binBounds, b * 6);
+         }
+
+         for (int i = 0; i < count; i++) {
+            final int bin = BVHNode.getBin(SBVHNode.getCentroid(referenceBounds, i, a), centroidBounds[a], scale, binCount);
+            binCounts[bin]++;
+            BVHNode.union(binBounds, bin * 6, referenceBounds, i * 6);
+         }
+
+         BVHNode.setEmpty(accumulated, 0);
+         int accumulatedCount = 0;
+
+         for (int b = binCount - 1; b > 0; b--) {
+            accumulatedCount += binCounts[b];
+            BVHNode.union(accumulated, 0, binBounds, b * 6);
+            rightCounts[b] = accumulatedCount;
+            System.arraycopy(accumulated, 0, rightBounds, b * 6, 6);
+         }
+
+         BVHNode.setEmpty(accumulated, 0);
+         accumulatedCount = 0;
+
+         for (int b = 1; b < binCount; b++) {
+            accumulatedCount += binCounts[b - 1];
+            BVHNode.union(accumulated, 0, binBounds, (b - 1) * 6);
+
+            if (accumulatedCount == 0 || rightCounts[b] == 0) {
+               continue;
+            }
+
+            final float rightArea = BVHNode.getSurfaceArea(Arrays.copyOfRange(rightBounds, b * 6, b * 6 + 6));
+            final float cost = RTStatics.SAH_TRAVERSAL_COST + RTStatics.SAH_INTERSECTION_COST
+                  * (BVHNode.getSurfaceArea(accumulated) * accumulatedCount + rightArea * rightCounts[b]) / nodeArea;
+
+            if (best == null || cost < best[0]) {
+               final float[] overlap = new float[6];
+
+               for (int i = 0; i < 3; i++) {
+                  overlap[i] = Math.max(accumulated[i], rightBounds[b * 6 + i]);
+                  overlap[3 + i] = Math.min(accumulated[3 + i], rightBounds[b * 6 + 3 + i]);
+               }
+
+               best = new float[] { cost, a, centroidBounds[a] + b / scale, BVHNode.getSurfaceArea(overlap) };
+            }
+         }
+      }
+
+      return best;
+   }
+
+   /**
+    * Bins the clipped references along all three axes of the node box. A reference is counted as entering the first
+    * bin it touches and leaving the last, and the part of the face inside each bin it touches is added to that bin's
+    * bounds.
+    *
+    * @return { cost, axis, split bin, duplicate references } of the cheapest boundary cheaper than maxCost that fits in
+    *         no more duplicates than any budget could give, or null
+    */
+   private static float[] getSpatialSplit(final float[] vertices, final int[] indices, final int[] references, final float[] referenceBounds, final float[] bounds,
+         final float nodeArea, final float maxCost) {
+      final int binCount = RTStatics.SAH_BIN_COUNT;
+      final int count = references.length;
+      final int[] entries = new int[binCount];
+      final int[] exits = new int[binCount];
+      final float[] binBounds = new float[binCount * 6];
+      final int[] rightCounts = new int[binCount];
+      final float[] rightAreas = new float[binCount];
+      final float[] accumulated = new float[6];
+      final float[] clipped = new float[6];
+      float[] best = null;
+
+      for (int a = 0; a < 3; a++) {
+         final float extent = bounds[3 + a] - bounds[a];
+
+         if (extent <= 0) {
+            continue;
+         }
+
+         final float scale = binCount / extent;
+         Arrays.fill(entries, 0);
+         Arrays.fill(exits, 0);
+
+         for (int b = 0; b < binCount; b++) {
+            BVHNode.setEmpty(binBounds, b * 6);
+         }
+
+         for (int i = 0; i < count; i++) {
+            final int first = BVHNode.getBin(referenceBounds[i * 6 + a], bounds[a], scale, binCount);
+            final int last = BVHNode.getBin(referenceBounds[i * 6 + 3 + a], bounds[a], scale, binCount);
+
+            entries[first]++;
+            exits[last]++;
+
+            if (first == last) {
+               BVHNode.union(binBounds, first * 6, referenceBounds, i * 6);
+            } else {
+               for (int b = first; b <= last; b++) {
+                  final float low = b == first ? -Float.MAX_VALUE : bounds[a] + b / scale;
+                  final float high = b == last ? Float.MAX_VALUE : bounds[a] + (b + 1) / scale;
+
+                  if (SBVHNode.clip(vertices, indices, references[i], referenceBounds, i * 6, a, low, high, clipped)) {
+                     BVHNode.union(binBounds, b * 6, clipped, 0);
+                  }
+               }
+            }
+         }
+
+         BVHNode.setEmpty(accumulated, 0);
+         int accumulatedCount = 0;
+
+         for (int b = binCount - 1; b > 0; b--) {
+            accumulatedCount += exits[b];
+            BVHNode.union(accumulated, 0, binBounds, b * 6);
+            rightCounts[b] = accumulatedCount;
+            rightAreas[b] = BVHNode.getSurfaceArea(accumulated);
+         }
+
+         BVHNode.setEmpty(accumulated, 0);
+         accumulatedCount = 0;
+
+         for (int b = 1; b < binCount; b++) {
+            accumulatedCount += entries[b - 1];
+            BVHNode.union(accumulated, 0, binBounds, (b - 1) * 6);
+
+            if (accumulatedCount == 0 || rightCounts[b] == 0 || accumulatedCount == count && rightCounts[b] == count) {
+               continue;
+            }
+
+            final float cost = RTStatics.SAH_TRAVERSAL_COST + RTStatics.SAH_INTERSECTION_COST
+                  * (BVHNode.getSurfaceArea(accumulated) * accumulatedCount + rightAreas[b] * rightCounts[b]) / nodeArea;
+
+            if (cost < maxCost && (best == null || cost < best[0])) {
+               best = new float[] { cost, a, b, accumulatedCount + rightCounts[b] - count };
+            }
+         }
+      }
+
+      return best;
+   }
+
+   /**
+    * Splits the references at the boundary below the given bin, clipping the ones that straddle it to both sides.
+    */
+   private static void spatialPartition(final float[] vertices, final int[] indices, final int[] references, final float[] referenceBounds, final float[] bounds,
+         final int axis, final int splitBin, final int[][] splitReferences, final float[][] splitBounds) {
+      final int binCount = RTStatics.SAH_BIN_COUNT;
+      final int count = references.length;
+      final float scale = binCount / (bounds[3 + axis] - bounds[axis]);
+      final float position = bounds[axis] + splitBin / scale;
+      final int[] leftReferences = new int[count];
+      final int[] rightReferences = new int[count];
+      final float[] leftBounds = new float[count * 6];
+      final float[] rightBounds = new float[count * 6];
+      int leftCount = 0, rightCount = 0;
+
+      for (int i = 0; i < count; i++) {
+         final int first = BVHNode.getBin(referenceBounds[i * 6 + axis], bounds[axis], scale, binCount);
+         final int last = BVHNode.getBin(referenceBounds[i * 6 + 3 + axis], bounds[axis], scale, binCount);
+
+         if (last < splitBin) {
+            leftReferences[leftCount] = references[i];
+            System.arraycopy(referenceBounds, i * 6, leftBounds, leftCount++ * 6, 6);
+         } else if (first >= splitBin) {
+            rightReferences[rightCount] = references[i];
+            System.arraycopy(referenceBounds, i * 6, rightBounds, rightCount++ * 6, 6);
+         } else {
+            if (SBVHNode.clip(vertices, indices, references[i], referenceBounds, i * 6, axis, -Float.MAX_VALUE, position, leftBounds, leftCount * 6)) {
+               leftReferences[leftCount++] = references[i];
+            }
+
+            if (SBVHNode.clip(vertices, indices, references[i], referenceBounds, i * 6, axis, position, Float.MAX_VALUE, rightBounds, rightCount * 6)) {
+               rightReferences[rightCount++] = references[i];
+            }
+         }
+      }
+
+      splitReferences[0] = Arrays.copyOf(leftReferences, leftCount);
+      splitReferences[1] = Arrays.copyOf(rightReferences, rightCount);
+      splitBounds[0] = Arrays.copyOf(leftBounds, leftCount * 6);
+      splitBounds[1] = Arrays.copyOf(rightBounds, rightCount * 6);
+   }
+
+   private static boolean clip(final float[] vertices, final int[] indices, final int face, final float[] referenceBounds, final int offset, final int axis, final float low,
+         final float high, final float[] output) {
+      return SBVHNode.clip(vertices, indices, face, referenceBounds, offset, axis, low, high, output, 0);
+   }
+
+   /**
+    * Clips the face to the slab low <= axis <= high and writes the bounds of the remaining polygon, limited to the
+    * reference's current bounds, to output.
+    *
+    * @return False if nothing of the face is left inside the slab
+    */
+   private static boolean clip(final float[] vertices, final int[] indices, final int face, final float[] referenceBounds, final int offset, final int axis, final float low,
+         final float high, final float[] output, final int outputOffset) {
+      // a triangle clipped by two parallel planes has at most five corners
+      float[] polygon = new float[3 * 5];
+      float[] next = new float[3 * 5];
+      int size = 3;
+
+      for (int i = 0; i < size; i++) {
+         System.arraycopy(vertices, indices[face * 3 + i] * 3, polygon, i * 3, 3);
+      }
+
+      for (int side = 0; side < 2 && size > 0; side++) {
+         final float plane = side == 0 ? low : high;
+         final float sign = side == 0 ? 1f : -1f;
+         int nextSize = 0;
+
+         for (int i = 0; i < size; i++) {
+            final int j = (i + 1) % size;
+            final float di = sign * (polygon[i * 3 + axis] - plane);
+            final float dj = sign * (polygon[j * 3 + axis] - plane);
+
+            if (di >= 0) {
+               System.arraycopy(polygon, i * 3, next, nextSize++ * 3, 3);
+            }
+
+            if (di >= 0 != dj >= 0) {
+               final float t = di / (di - dj);
+
+               for (int a = 0; a < 3; a++) {
+                  next[nextSize * 3 + a] = polygon[i * 3 + a] + t * (polygon[j * 3 + a] - polygon[i * 3 + a]);
+               }
+
+               next[nextSize * 3 + axis] = plane;
+               nextSize++;
+            }
+         }
+
+         final float[] temp = polygon;
+         polygon = next;
+         next = temp;
+         size = nextSize;
+      }
+
+      if (size == 0) {
+         return false;
+      }
+
+      BVHNode.setEmpty(output, outputOffset);
+
+      for (int i = 0; i < size; i++) {
+         for (int a = 0; a < 3; a++) {
+            output[outputOffset + a] = Math.min(output[outputOffset + a], polygon[i * 3 + a]);
+            output[outputOffset + 3 + a] = Math.max(output[outputOffset + 3 + a], polygon[i * 3 + a]);
+         }
+      }
+
+      for (int a = 0; a < 3; a++) {
+         output[outputOffset + a] = Math.max(output[outputOffset + a], referenceBounds[offset + a]);
+         output[outputOffset + 3 + a] = Math.min(output[outputOffset + 3 + a], referenceBounds[offset + 3 + a]);
+
+         if (output[outputOffset + a] > output[outputOffset + 3 + a]) {
+            return false;
+         }
+      }
+
+      return true;
+   }
+
+   /**
+    * Orders the references so the ones with a centroid below the given position come first.
+    *
+    * @return The new order of the references followed by the number of references below the position
+    */
+   private static int[] partition(final float[] referenceBounds, final int count, final int axis, final float position) {
+      final int[] order = new int[count + 1];
+      int i = 0;
+      int j = count - 1;
+
+      for (int r = 0; r < count; r++) {
+         if (SBVHNode.getCentroid(referenceBounds, r, axis) < position) {
+            order[i++] = r;
+         } else {
+            order[j--] = r;
+         }
+      }
+
+      order[count] = i;
+
+      return order;
+   }
+
+   /**
+    * @return The references ordered by their centroid along the given axis
+    */
+   private static int[] sort(final float[] referenceBounds, final int count, final int axis) {
+      final long[] keys = new long[count];
+
+      for (int i = 0; i < count; i++) {
+         // order preserving int representation of the centroid in the high bits, reference in the low bits
+         final int bits = Float.floatToIntBits(SBVHNode.getCentroid(referenceBounds, i, axis));
+         keys[i] = (long) (bits < 0 ? bits ^ 0x7fffffff : bits) << 32 | i & 0xffffffffL;
+      }
+
+      Arrays.sort(keys);
+
+      final int[] order = new int[count];
+
+      for (int i = 0; i < count; i++) {
+         order[i] = (int) keys[i];
+      }
+
+      return order;
+   }
+
+   @Override
+   public SBVHNode getLeft() {
+      return this.left;
+   }
+
+   @Override
+   public SBVHNode getRight() {
+      return this.right;
+   }
+
+   @Override
+   public float[][] getMinMax() {
+      return this.minMax;
+   }
+
+   @Override
+   public int getAxis() {
+      return this.axis;
+   }
+
+   @Override
+   public float getSplit() {
+      return Float.NaN;
+   }
+
+   @Override
+   public int[] getFaces() {
+      return this.faces;
+   }
+}
@@ -0,0 +1,43 @@
+package stephen.ranger.ar.bounds;
+
+import javax.vecmath.Vector3f;
+
+import stephen.ranger.ar.RTStatics;
+
+/**
+ * Tests the child boxes of a WideTree node one after the other. Used when the Vector API is not available.
+ */
+public class ScalarChildBoxTest implements ChildBoxTest {
+   private final int width;
+
+   public ScalarChildBoxTest(final int width) {
+      this.width = width;
+   }
+
+   @Override
+   public int intersect(final float[] bounds, final int offset, final Vector3f origin, final float[] inverseDirection, final float tMax, final float[] distances) {
+      final int w = this.width;
+      final float limit = Math.min(RTStatics.FAR_PLANE, tMax);
+      int mask = 0;
+
+      for (int i = 0; i < w; i++) {
+         final float x0 = (bounds[offset + i] - origin.x) * inverseDirection[0];
+         final float x1 = (bounds[offset + 3 * w + i] - origin.x) * inverseDirection[0];
+         final float y0 = (bounds[offset + w + i] - origin.y) * inverseDirection[1];
+         final float y1 = (bounds[offset + 4 * w + i] - origin.y) * inverseDirection[1];
+         final float z0 = (bounds[offset + 2 * w + i] - origin.z) * inverseDirection[2];
+         final float z1 = (bounds[offset + 5 * w + i] - origin.z) * inverseDirection[2];
+
+         final float enter = Math.max(Math.max(Math.min(x0, x1), Math.min(y0, y1)), Math.min(z0, z1));
+         final float exit = Math.min(Math.min(Math.max(x0, x1), Math.max(y0, y1)), Math.max(z0, z1));
+
+         distances[i] = enter;
+
+         if (enter <= exit && enter < limit && exit > RTStatics.NEAR_PLANE) {
+            mask |= 1 << i;
+         }
+      }
+
+      return mask;
+   }
+}
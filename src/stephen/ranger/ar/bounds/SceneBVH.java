@@ -0,0 +1,311 @@
+package stephen.ranger.ar.bounds;
+
+import java.util.concurrent.RecursiveTask;
+
+import javax.vecmath.Vector3f;
+
+import stephen.ranger.ar.IntersectionInformation;
+import stephen.ranger.ar.RTStatics;
+import stephen.ranger.ar.Ray;
+import stephen.ranger.ar.RayPacket;
+
+/**
+ * Bounding volume hierarchy over the objects of a Scene. Each object is treated as a single primitive bounded by its
+ * min/max box, so a ray only reaches the objects whose boxes it passes through instead of every object in the scene.
+ */
+public class SceneBVH {
+   public final BoundingVolume[] objects;
+   private LinearTree linearTree;
+   private float buildCost;
+
+   public SceneBVH(final BoundingVolume[] objects) {
+      this.objects = objects;
+      this.rebuild();
+   }
+
+   private void rebuild() {
+      final float[] objectBounds = this.getObjectBounds();
+      final float[] centroids = new float[this.objects.length * 3];
+      final int[] order = new int[this.objects.length];
+
+      for (int i = 0; i < this.objects.length; i++) {
+         for (int a = 0; a < 3; a++) {
+            centroids[i * 3 + a] = (objectBounds[i * 6 + a] + objectBounds[i * 6 + 3 + a]) / 2f;
+         }
+
+         order[i] = i;
+      }
+
+      final BVHNode rootNode = RTStatics.BUILD_POOL.invoke(new RecursiveTask<BVHNode>() {
+         private static final long serialVersionUID = 1L;
+
+         @Override
+         protected BVHNode compute() {
+            return new BVHNode(objectBounds, centroids, order, 0, order.length, 0, true);
+         }
+      });
+
+      this.linearTree = new LinearTree(rootNode);
+      this.buildCost = this.linearTree.getCost();
+
+      System.out.println("scene BVH nodes: " + this.linearTree.getNodeCount() + ", depth: " + this.linearTree.getMaxDepth() + ", objects: " + this.objects.length);
+
+      if (RTStatics.PRINT_TREE_STATISTICS) {
+         System.out.println(this.getStatistics().toJSON());
+      }
+   }
+
+   /**
+    * Walks the hierarchy over the scene's objects and returns its node counts, histograms and cost, counting objects as
+    * faces.
+    */
+   public TreeStatistics getStatistics() {
+      final TreeStatistics statistics = new TreeStatistics("SCENE_BVH", this.objects.length);
+
+      if (this.objects.length > 0) {
+         this.linearTree.addStatistics(statistics);
+      }
+
+      return statistics;
+   }
+
+   /**
+    * Updates the hierarchy after objects have moved, e.g. after MeshInstance.setTransform or TriangleMesh.refit. The
+    * node bounds are refitted to the objects' current boxes unless that degrades the tree past
+    * RTStatics.REFIT_REBUILD_RATIO times its cost after the last build, in which case it is rebuilt.
+    * 
+    * @return True if the hierarchy was rebuilt
+    */
+   public boolean refit() {
+      if (this.objects.length == 0) {
+         return false;
+      }
+
+      final float cost = this.linearTree.refit(this.getObjectBounds());
+
+      if (cost <= this.buildCost * RTStatics.REFIT_REBUILD_RATIO) {
+         return false;
+      }
+
+      System.out.println("refitted scene BVH cost " + cost + " exceeds built cost " + this.buildCost + ", rebuilding");
+      this.rebuild();
+
+      return true;
+   }
+
+   private float[] getObjectBounds() {
+      final float[] objectBounds = new float[this.objects.length * 6];
+
+      for (int i = 0; i < this.objects.length; i++) {
+         final float[][] minMax = this.objects[i].getMinMax();
+
+         for (int a = 0; a < 3; a++) {
+            objectBounds[i * 6 + a] = minMax[0][a];
+            objectBounds[i * 6 + 3 + a] = minMax[1][a];
+         }
+      }
+
+      return objectBounds;
+   }
+
+   /**
+    * Returns the closest intersection between the given ray and the objects in the scene. Nodes are visited front to
+    * back and nodes whose boxes start beyond the closest hit found so far are skipped.
+    *
+    * @param ray
+    *           The ray to test
+    * @param excludedObject
+    *           An object to ignore, e.g. the mirror the ray was reflected from, or null
+    * @param depth
+    *           The current recursion depth
+    * @return The closest intersection or null if no object is hit
+    */
+   public IntersectionInformation getClosestIntersection(final Ray ray, final BoundingVolume excludedObject, final int depth) {
+      if (this.objects.length == 0) {
+         return null;
+      }
+
+      final float[] inverseDirection = RTStatics.getInverseDirection(ray.direction, new float[3]);
+      final int[] stack = this.linearTree.getStack();
+      final float[] stackDistances = new float[stack.length];
+      final int[] nodes = this.linearTree.nodes;
+      final int[] leafObjects = this.linearTree.leafFaces;
+      int stackSize = 0;
+      IntersectionInformation closest = null;
+      IntersectionInformation temp;
+      float tMax = Float.POSITIVE_INFINITY;
+
+      stack[stackSize] = 0;
+      stackDistances[stackSize++] = RTStatics.aabbEntryDistance(ray.origin, inverseDirection, this.linearTree.bounds, 0, tMax);
+
+      while (stackSize > 0) {
+         final int node = stack[--stackSize];
+
+         if (stackDistances[stackSize] >= tMax) {
+            continue;
+         }
+
+         final int data = nodes[node * 2];
+
+         if ((data & 3) == LinearTree.LEAF) {
+            final int offset = nodes[node * 2 + 1];
+            final int end = offset + (data >>> 2);
+
+            for (int i = offset; i < end; i++) {
+               final BoundingVolume object = this.objects[leafObjects[i]];
+
+               if ((excludedObject == null || !excludedObject.equals(object)) && object.intersects(ray)) {
+                  temp = object.getChildIntersection(ray, depth + 1);
+
+                  if (temp != null && temp.w > RTStatics.EPSILON && temp.w < tMax) {
+                     closest = temp;
+                     tMax = temp.w;
+                  }
+               }
+            }
+         } else {
+            stackSize = this.linearTree.pushChildren(node, ray, inverseDirection, tMax, stack, stackDistances, stackSize);
+         }
+      }
+
+      return closest;
+   }
+
+   /**
+    * Packet version of getClosestIntersection. Meshes trace the active rays of the packet together through their own
+    * trees; other objects are tested one ray at a time.
+    * 
+    * @param results
+    *           Receives the closest intersection of each ray in the packet, or null
+    */
+   public void getClosestIntersections(final RayPacket packet, final BoundingVolume excludedObject, final int depth, final IntersectionInformation[] results) {
+      for (int r = 0; r < packet.size; r++) {
+         results[r] = null;
+      }
+
+      if (this.objects.length == 0 || packet.size == 0) {
+         return;
+      }
+
+      final int[] stack = this.linearTree.getStack();
+      final int[] stackFirst = new int[stack.length];
+      final int[] nodes = this.linearTree.nodes;
+      final int[] leafObjects = this.linearTree.leafFaces;
+      int stackSize = 0;
+      IntersectionInformation temp;
+
+      stack[stackSize] = 0;
+      stackFirst[stackSize++] = 0;
+
+      while (stackSize > 0) {
+         final int node = stack[--stackSize];
+         final int active = packet.getFirstHit(this.linearTree.bounds, node * 6, stackFirst[stackSize]);
+
+         if (active == packet.size) {
+            continue;
+         }
+
+         final int data = nodes[node * 2];
+
+         if ((data & 3) == LinearTree.LEAF) {
+            final int offset = nodes[node * 2 + 1];
+            final int end = offset + (data >>> 2);
+
+            for (int i = offset; i < end; i++) {
+               final BoundingVolume object = this.objects[leafObjects[i]];
+
+               if (excludedObject != null && excludedObject.equals(object)) {
+                  continue;
+               }
+
+               if (object instanceof MeshBoundingVolume) {
+                  ((MeshBoundingVolume) object).getChildIntersections(packet, active, results);
+                  continue;
+               }
+
+               if (object instanceof LODMesh) {
+                  ((LODMesh) object).getChildIntersections(packet, active, results);
+                  continue;
+               }
+
+               for (int r = active; r < packet.size; r++) {
+                  final Ray ray = packet.rays[r];
+
+                  if (object.intersects(ray)) {
+                     temp = object.getChildIntersection(ray, depth + 1);
+
+                     if (temp != null && temp.w > RTStatics.EPSILON && temp.w < packet.tMax[r]) {
+                        results[r] = temp;
+                        packet.tMax[r] = temp.w;
+                     }
+                  }
+               }
+            }
+         } else {
+            final int left = data >> 2;
+            final int right = nodes[node * 2 + 1];
+            final boolean leftFirst = packet.inverseDirections[active][data & 3] >= 0;
+            final int near = leftFirst ? left : right;
+            final int far = leftFirst ? right : left;
+
+            if (far != -1) {
+               stack[stackSize] = far;
+               stackFirst[stackSize++] = active;
+            }
+
+            if (near != -1) {
+               stack[stackSize] = near;
+               stackFirst[stackSize++] = active;
+            }
+         }
+      }
+   }
+
+   /**
+    * Returns true as soon as any object in the scene is hit closer than tMax, e.g. between a surface and a light.
+    * 
+    * @param direction
+    *           The ray direction, normalized in place
+    */
+   public boolean occluded(final Vector3f origin, final Vector3f direction, final float tMax) {
+      if (this.objects.length == 0) {
+         return false;
+      }
+
+      final Ray ray = new Ray(origin, direction);
+      final float[] inverseDirection = RTStatics.getInverseDirection(ray.direction, new float[3]);
+      final int[] stack = this.linearTree.getStack();
+      final float[] stackDistances = new float[stack.length];
+      final int[] nodes = this.linearTree.nodes;
+      final int[] leafObjects = this.linearTree.leafFaces;
+      int stackSize = 0;
+
+      stack[stackSize] = 0;
+      stackDistances[stackSize++] = RTStatics.aabbEntryDistance(ray.origin, inverseDirection, this.linearTree.bounds, 0, tMax);
+
+      while (stackSize > 0) {
+         final int node = stack[--stackSize];
+
+         if (stackDistances[stackSize] >= tMax) {
+            continue;
+         }
+
+         final int data = nodes[node * 2];
+
+         if ((data & 3) == LinearTree.LEAF) {
+            final int offset = nodes[node * 2 + 1];
+            final int end = offset + (data >>> 2);
+
+            for (int i = offset; i < end; i++) {
+               if (this.objects[leafObjects[i]].occluded(ray.origin, ray.direction, tMax)) {
+                  return true;
+               }
+            }
+         } else {
+            stackSize = this.linearTree.pushChildren(node, ray, inverseDirection, tMax, stack, stackDistances, stackSize);
+         }
+      }
+
+      return false;
+   }
+}
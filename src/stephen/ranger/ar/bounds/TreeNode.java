@@ -0,0 +1,36 @@
+package stephen.ranger.ar.bounds;
+
+/**
+ * A node of a mesh hierarchy that can be packed into a LinearTree.
+ */
+public interface TreeNode {
+   /**
+    * @return The left child or null if it is empty or this is a leaf
+    */
+   public TreeNode getLeft();
+
+   /**
+    * @return The right child or null if it is empty or this is a leaf
+    */
+   public TreeNode getRight();
+
+   /**
+    * @return The bounds of this node stored as: { minx, miny, minz }, { maxx, maxy, maxz }
+    */
+   public float[][] getMinMax();
+
+   /**
+    * @return The axis this node was split along
+    */
+   public int getAxis();
+
+   /**
+    * @return The position of the split plane or NaN if the node has none
+    */
+   public float getSplit();
+
+   /**
+    * @return The positions in the mesh's face array of the faces in this leaf, or null if this is an interior node
+    */
+   public int[] getFaces();
+}
@@ -0,0 +1,164 @@
+package stephen.ranger.ar.bounds;
+
+import java.util.Arrays;
+
+import stephen.ranger.ar.RTStatics;
+
+/**
+ * Quality statistics of a built acceleration structure, for comparing builder settings such as RTStatics.MAX_CHILDREN
+ * and RTStatics.MAX_DEPTH across models. Trees add their nodes one at a time with the node's depth and surface area,
+ * and the surface area heuristic cost is summed from those, so every structure's cost is computed the same way.
+ * toString gives a readable summary and toJSON a single line of JSON.
+ */
+public class TreeStatistics {
+   public final String structure;
+   /** The number of faces, or objects for a scene hierarchy, the tree was built over */
+   public final int faceCount;
+
+   private int nodeCount = 0;
+   private int leafCount = 0;
+   private int referenceCount = 0;
+   private int maxDepth = 0;
+   private int baseDepth = 0;
+   private long byteCount = 0;
+   private float rootArea = 0;
+   private double cost = 0;
+   private int[] depthHistogram = new int[0];
+   private int[] leafSizeHistogram = new int[0];
+
+   public TreeStatistics(final String structure, final int faceCount) {
+      this.structure = structure;
+      this.faceCount = faceCount;
+   }
+
+   /**
+    * Sets the depth added to the depth of every node added from now on, so a tree nested below a node of another, such
+    * as the BVH of a ChunkedMesh chunk, can add its nodes counting from its own root.
+    */
+   public void setBaseDepth(final int depth) {
+      this.baseDepth = depth;
+   }
+
+   /**
+    * Adds an interior node. The root must be the first node added.
+    */
+   public void addInterior(final int depth, final float area) {
+      this.addNode(this.baseDepth + depth, area);
+      this.cost += area * RTStatics.SAH_TRAVERSAL_COST;
+   }
+
+   /**
+    * Adds a leaf holding the given number of face references.
+    */
+   public void addLeaf(final int depth, final float area, final int size) {
+      this.addNode(this.baseDepth + depth, area);
+      this.leafCount++;
+      this.referenceCount += size;
+      this.cost += area * RTStatics.SAH_INTERSECTION_COST * size;
+
+      this.depthHistogram = TreeStatistics.increment(this.depthHistogram, this.baseDepth + depth);
+      this.leafSizeHistogram = TreeStatistics.increment(this.leafSizeHistogram, size);
+   }
+
+   private void addNode(final int depth, final float area) {
+      if (this.nodeCount == 0) {
+         this.rootArea = area;
+      }
+
+      this.nodeCount++;
+      this.maxDepth = Math.max(this.maxDepth, depth);
+   }
+
+   private static int[] increment(final int[] histogram, final int index) {
+      final int[] result = index < histogram.length ? histogram : Arrays.copyOf(histogram, index + 1);
+      result[index]++;
+
+      return result;
+   }
+
+   /**
+    * Adds to the number of bytes used by the structure.
+    */
+   public void addBytes(final long bytes) {
+      this.byteCount += bytes;
+   }
+
+   public int getNodeCount() {
+      return this.nodeCount;
+   }
+
+   public int getLeafCount() {
+      return this.leafCount;
+   }
+
+   public int getReferenceCount() {
+      return this.referenceCount;
+   }
+
+   public int getMaxDepth() {
+      return this.maxDepth;
+   }
+
+   public long getByteCount() {
+      return this.byteCount;
+   }
+
+   /**
+    * @return The number of leaves at each depth
+    */
+   public int[] getDepthHistogram() {
+      return this.depthHistogram.clone();
+   }
+
+   /**
+    * @return The number of leaves holding each number of face references
+    */
+   public int[] getLeafSizeHistogram() {
+      return this.leafSizeHistogram.clone();
+   }
+
+   /**
+    * @return The number of face references per face, 1 if no face is stored in more than one leaf
+    */
+   public float getDuplicationFactor() {
+      return this.faceCount > 0 ? (float) this.referenceCount / this.faceCount : 0;
+   }
+
+   /**
+    * @return The surface area heuristic cost of the tree relative to its root box
+    */
+   public float getCost() {
+      return this.rootArea > 0 ? (float) (this.cost / this.rootArea) : 0;
+   }
+
+   public float getAverageLeafSize() {
+      return this.leafCount > 0 ? (float) this.referenceCount / this.leafCount : 0;
+   }
+
+   public float getAverageLeafDepth() {
+      long sum = 0;
+
+      for (int depth = 0; depth < this.depthHistogram.length; depth++) {
+         sum += (long) depth * this.depthHistogram[depth];
+      }
+
+      return this.leafCount > 0 ? (float) sum / this.leafCount : 0;
+   }
+
+   public String toJSON() {
+      return "{\"structure\":\"" + this.structure + "\",\"faces\":" + this.faceCount + ",\"nodes\":" + this.nodeCount + ",\"leaves\":" + this.leafCount + ",\"references\":"
+            + this.referenceCount + ",\"duplication\":" + this.getDuplicationFactor() + ",\"maxDepth\":" + this.maxDepth + ",\"averageLeafDepth\":"
+            + this.getAverageLeafDepth() + ",\"averageLeafSize\":" + this.getAverageLeafSize() + ",\"sahCost\":" + this.getCost() + ",\"bytes\":" + this.byteCount
+            + ",\"settings\":{\"maxChildren\":" + RTStatics.MAX_CHILDREN + ",\"maxDepth\":" + RTStatics.MAX_DEPTH + ",\"bvhLeaf\":" + RTStatics.BVH_MAX_LEAF_SIZE
+            + ",\"bvhDepth\":" + RTStatics.BVH_MAX_DEPTH + ",\"kdSplit\":\"" + RTStatics.KD_SPLIT_METHOD + "\"},\"depthHistogram\":"
+            + Arrays.toString(this.depthHistogram).replace(" ", "") + ",\"leafSizeHistogram\":" + Arrays.toString(this.leafSizeHistogram).replace(" ", "") + "}";
+   }
+
+   @Override
+   public String toString() {
+      return this.structure + " statistics: " + this.nodeCount + " nodes, " + this.leafCount + " leaves, depth " + this.maxDepth + " (leaf average "
+            + this.getAverageLeafDepth() + "), " + this.getAverageLeafSize() + " references per leaf, " + this.getDuplicationFactor() + " references per face, SAH cost "
+            + this.getCost() + ", " + this.byteCount / 1048576. + " MB\nleaves per depth: " + Arrays.toString(this.depthHistogram) + "\nleaves per size: "
+            + Arrays.toString(this.leafSizeHistogram);
+   }
+}
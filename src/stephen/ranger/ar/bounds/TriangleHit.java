@@ -0,0 +1,30 @@
+package stephen.ranger.ar.bounds;
+
+/**
+ * Reusable record of the closest triangle hit found so far, filled in by TriangleStore.intersect. Each thread has its
+ * own instance so leaf tests never allocate.
+ */
+public class TriangleHit {
+   private static final ThreadLocal<TriangleHit> HITS = new ThreadLocal<TriangleHit>() {
+      @Override
+      protected TriangleHit initialValue() {
+         return new TriangleHit();
+      }
+   };
+
+   public int face;
+   public float t;
+   public float u;
+   public float v;
+
+   /**
+    * @return This thread's hit record, reset to no hit closer than the given distance
+    */
+   public static TriangleHit get(final float tMax) {
+      final TriangleHit hit = TriangleHit.HITS.get();
+      hit.face = -1;
+      hit.t = tMax;
+
+      return hit;
+   }
+}
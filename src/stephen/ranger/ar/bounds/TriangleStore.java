@@ -0,0 +1,368 @@
+package stephen.ranger.ar.bounds;
+
+import java.util.Arrays;
+
+import javax.vecmath.Vector3f;
+
+import stephen.ranger.ar.RTStatics;
+import stephen.ranger.ar.RTStatics.MeshAttributes;
+
+/**
+ * The faces of a mesh prepared for Moller-Trumbore intersection tests. Each face is stored as nine floats, its first
+ * vertex followed by the two edges leaving it, so a leaf test reads one contiguous run of memory and allocates
+ * nothing. The position of the closest hit is interpolated from the same floats.
+ *
+ * RTStatics.MESH_ATTRIBUTES trades precision for memory. OCTAHEDRAL_NORMALS keeps each vertex normal as two 16 bit
+ * coordinates on an octahedron instead of three floats. QUANTIZED_POSITIONS also keeps each vertex as three 16 bit
+ * offsets in the box of the mesh's vertices and decodes a face's vertices for every test, so the nine floats per face
+ * are not stored either. A compact store keeps no reference to the float arrays it was made from, so the mesh can drop
+ * them once it is built and decode them again with getVertices and getNormals if it is ever refitted.
+ */
+public class TriangleStore {
+   private final int[] indices;
+   private final int vertexCount;
+   /** Nine floats per face, null if the positions are quantized */
+   private final float[] triangles;
+   /** Three 16 bit offsets per vertex, null unless the positions are quantized */
+   private final short[] positions;
+   private final float[] positionMin = new float[3];
+   private final float[] positionScale = new float[3];
+   /** The mesh's normals, null if the normals are encoded */
+   private final float[] normals;
+   /** One octahedral encoded normal per vertex, null unless the normals are encoded */
+   private final int[] encodedNormals;
+
+   public TriangleStore(final float[] vertices, final float[] normals, final int[] indices) {
+      final boolean quantized = RTStatics.MESH_ATTRIBUTES.equals(MeshAttributes.QUANTIZED_POSITIONS);
+      final boolean encoded = !RTStatics.MESH_ATTRIBUTES.equals(MeshAttributes.FULL_PRECISION);
+
+      this.indices = indices;
+      this.vertexCount = vertices.length / 3;
+      this.triangles = quantized ? null : new float[indices.length * 3];
+      this.positions = quantized ? new short[vertices.length] : null;
+      this.normals = encoded ? null : normals;
+      this.encodedNormals = encoded ? new int[this.vertexCount] : null;
+      this.update(vertices, normals);
+   }
+
+   /**
+    * Recomputes the stored faces and normals after the mesh's vertices have moved.
+    */
+   public void update(final float[] vertices, final float[] normals) {
+      final int[] indices = this.indices;
+
+      if (this.positions != null) {
+         this.quantize(vertices);
+      } else {
+         for (int i = 0; i < indices.length / 3; i++) {
+            final int p0 = indices[i * 3] * 3;
+            final int p1 = indices[i * 3 + 1] * 3;
+            final int p2 = indices[i * 3 + 2] * 3;
+
+            for (int a = 0; a < 3; a++) {
+               this.triangles[i * 9 + a] = vertices[p0 + a];
+               this.triangles[i * 9 + 3 + a] = vertices[p1 + a] - vertices[p0 + a];
+               this.triangles[i * 9 + 6 + a] = vertices[p2 + a] - vertices[p0 + a];
+            }
+         }
+      }
+
+      if (this.encodedNormals != null) {
+         for (int i = 0; i < this.vertexCount; i++) {
+            this.encodedNormals[i] = TriangleStore.encodeNormal(normals[i * 3], normals[i * 3 + 1], normals[i * 3 + 2]);
+         }
+      }
+   }
+
+   /**
+    * Stores every vertex as its offset from the box's minimum in 65535 steps per axis.
+    */
+   private void quantize(final float[] vertices) {
+      final float[] max = new float[] { -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE };
+      Arrays.fill(this.positionMin, Float.MAX_VALUE);
+
+      for (int i = 0; i < vertices.length; i++) {
+         this.positionMin[i % 3] = Math.min(this.positionMin[i % 3], vertices[i]);
+         max[i % 3] = Math.max(max[i % 3], vertices[i]);
+      }
+
+      for (int a = 0; a < 3; a++) {
+         this.positionScale[a] = (max[a] - this.positionMin[a]) / 65535f;
+      }
+
+      for (int i = 0; i < vertices.length; i++) {
+         final float scale = this.positionScale[i % 3];
+         this.positions[i] = (short) (scale > 0 ? Math.min(65535, Math.round((vertices[i] - this.positionMin[i % 3]) / scale)) : 0);
+      }
+   }
+
+   /**
+    * @return The given axis of the given quantized vertex
+    */
+   private float getPosition(final int vertex, final int axis) {
+      return this.positionMin[axis] + (this.positions[vertex * 3 + axis] & 0xffff) * this.positionScale[axis];
+   }
+
+   /**
+    * Encodes a normal as the point where it meets the octahedron |x| + |y| + |z| = 1, with the lower half folded over
+    * the upper one, leaving x and y as 16 bit fixed point numbers in the low and high half of the result.
+    */
+   private static int encodeNormal(final float x, final float y, final float z) {
+      final float length = Math.abs(x) + Math.abs(y) + Math.abs(z);
+
+      if (length == 0) {
+         return 0;
+      }
+
+      float u = x / length;
+      float v = y / length;
+
+      if (z < 0) {
+         final float foldedU = (1f - Math.abs(v)) * (u >= 0 ? 1 : -1);
+         v = (1f - Math.abs(u)) * (v >= 0 ? 1 : -1);
+         u = foldedU;
+      }
+
+      return Math.round(u * 32767f) & 0xffff | Math.round(v * 32767f) << 16;
+   }
+
+   /**
+    * Decodes a normal made by encodeNormal to unit length, writing it to output from the given offset.
+    */
+   private static void decodeNormal(final int encoded, final float[] output, final int offset) {
+      float u = (short) encoded / 32767f;
+      float v = (encoded >> 16) / 32767f;
+      final float z = 1f - Math.abs(u) - Math.abs(v);
+
+      if (z < 0) {
+         final float unfoldedU = (1f - Math.abs(v)) * (u >= 0 ? 1 : -1);
+         v = (1f - Math.abs(u)) * (v >= 0 ? 1 : -1);
+         u = unfoldedU;
+      }
+
+      final float length = (float) Math.sqrt(u * u + v * v + z * z);
+
+      output[offset] = length > 0 ? u / length : 0;
+      output[offset + 1] = length > 0 ? v / length : 0;
+      output[offset + 2] = length > 0 ? z / length : 0;
+   }
+
+   /**
+    * Tests the given face and records it in hit if the ray hits it between tMin and hit.t.
+    *
+    * @param face
+    *           The position of the face in the mesh's indices array
+    * @param origin
+    *           The ray origin
+    * @param direction
+    *           The normalized ray direction
+    * @param tMin
+    *           Hits at or before this distance are ignored
+    * @param hit
+    *           The closest hit so far, updated if this face is closer
+    * @return True if hit was updated
+    */
+   public boolean intersect(final int face, final Vector3f origin, final Vector3f direction, final float tMin, final TriangleHit hit) {
+      if (this.positions == null) {
+         return TriangleStore.intersect(this.triangles, face * 9, face, origin, direction, tMin, hit);
+      }
+
+      final int v0 = this.indices[face * 3];
+      final int v1 = this.indices[face * 3 + 1];
+      final int v2 = this.indices[face * 3 + 2];
+      final float p0x = this.getPosition(v0, 0), p0y = this.getPosition(v0, 1), p0z = this.getPosition(v0, 2);
+
+      return TriangleStore.intersect(face, p0x, p0y, p0z, this.getPosition(v1, 0) - p0x, this.getPosition(v1, 1) - p0y, this.getPosition(v1, 2) - p0z,
+            this.getPosition(v2, 0) - p0x, this.getPosition(v2, 1) - p0y, this.getPosition(v2, 2) - p0z, origin, direction, tMin, hit);
+   }
+
+   /**
+    * Same as intersect(int, Vector3f, Vector3f, float, TriangleHit) for a face stored as nine floats from position i of
+    * tri, e.g. a face copied out of an OffHeapMesh.
+    */
+   static boolean intersect(final float[] tri, final int i, final int face, final Vector3f origin, final Vector3f direction, final float tMin, final TriangleHit hit) {
+      return TriangleStore.intersect(face, tri[i], tri[i + 1], tri[i + 2], tri[i + 3], tri[i + 4], tri[i + 5], tri[i + 6], tri[i + 7], tri[i + 8], origin, direction,
+            tMin, hit);
+   }
+
+   /**
+    * Tests the face with the given first vertex and edges leaving it.
+    */
+   private static boolean intersect(final int face, final float p0x, final float p0y, final float p0z, final float e1x, final float e1y, final float e1z,
+         final float e2x, final float e2y, final float e2z, final Vector3f origin, final Vector3f direction, final float tMin, final TriangleHit hit) {
+      // p = direction x e2
+      final float px = direction.y * e2z - direction.z * e2y;
+      final float py = direction.z * e2x - direction.x * e2z;
+      final float pz = direction.x * e2y - direction.y * e2x;
+      final float divisor = px * e1x + py * e1y + pz * e1z;
+
+      // ray nearly parallel to the triangle plane
+      if (divisor < RTStatics.EPSILON && divisor > -RTStatics.EPSILON) {
+         return false;
+      }
+
+      final float inverseDivisor = 1f / divisor;
+      final float ox = origin.x - p0x, oy = origin.y - p0y, oz = origin.z - p0z;
+      final float u = (px * ox + py * oy + pz * oz) * inverseDivisor;
+
+      if (u < 0 || u > 1) {
+         return false;
+      }
+
+      // q = (origin - p0) x e1
+      final float qx = oy * e1z - oz * e1y;
+      final float qy = oz * e1x - ox * e1z;
+      final float qz = ox * e1y - oy * e1x;
+      final float v = (qx * direction.x + qy * direction.y + qz * direction.z) * inverseDivisor;
+
+      if (v < 0 || u + v > 1) {
+         return false;
+      }
+
+      final float t = (qx * e2x + qy * e2y + qz * e2z) * inverseDivisor;
+
+      if (t <= tMin || t >= hit.t || t < 0) {
+         return false;
+      }
+
+      hit.face = face;
+      hit.t = t;
+      hit.u = u;
+      hit.v = v;
+
+      return true;
+   }
+
+   /**
+    * Interpolates the position of the given hit from the vertices of its face.
+    */
+   public Vector3f getPosition(final TriangleHit hit, final Vector3f output) {
+      if (this.positions == null) {
+         // p0 + u * e1 + v * e2, the same point as weighting the face's three vertices
+         final int i = hit.face * 9;
+         final float[] tri = this.triangles;
+
+         output.set(tri[i] + hit.u * tri[i + 3] + hit.v * tri[i + 6], tri[i + 1] + hit.u * tri[i + 4] + hit.v * tri[i + 7], tri[i + 2] + hit.u * tri[i + 5] + hit.v
+               * tri[i + 8]);
+
+         return output;
+      }
+
+      final float[] values = new float[9];
+
+      for (int i = 0; i < 3; i++) {
+         for (int a = 0; a < 3; a++) {
+            values[i * 3 + a] = this.getPosition(this.indices[hit.face * 3 + i], a);
+         }
+      }
+
+      return TriangleStore.interpolate(values, 0, 3, 6, hit, output);
+   }
+
+   /**
+    * Interpolates the normal of the given hit from the vertex normals of its face.
+    */
+   public Vector3f getNormal(final TriangleHit hit, final Vector3f output) {
+      if (this.encodedNormals == null) {
+         return TriangleStore.interpolate(this.normals, this.indices, hit, output);
+      }
+
+      final float[] values = new float[9];
+
+      for (int i = 0; i < 3; i++) {
+         TriangleStore.decodeNormal(this.encodedNormals[this.indices[hit.face * 3 + i]], values, i * 3);
+      }
+
+      return TriangleStore.interpolate(values, 0, 3, 6, hit, output);
+   }
+
+   private static Vector3f interpolate(final float[] values, final int[] indices, final TriangleHit hit, final Vector3f output) {
+      return TriangleStore.interpolate(values, indices[hit.face * 3] * 3, indices[hit.face * 3 + 1] * 3, indices[hit.face * 3 + 2] * 3, hit, output);
+   }
+
+   /**
+    * Interpolates the three floats of values from each of the given positions with the hit's barycentric coordinates.
+    */
+   private static Vector3f interpolate(final float[] values, final int p0, final int p1, final int p2, final TriangleHit hit, final Vector3f output) {
+      final float w = 1f - hit.u - hit.v;
+
+      output.set(w * values[p0] + hit.u * values[p1] + hit.v * values[p2], w * values[p0 + 1] + hit.u * values[p1 + 1] + hit.v * values[p2 + 1], w * values[p0 + 2]
+            + hit.u * values[p1 + 2] + hit.v * values[p2 + 2]);
+
+      return output;
+   }
+
+   /**
+    * Decodes the vertices of the store's faces, three floats per vertex, e.g. to refit a mesh that dropped its own. A
+    * vertex no face uses is left at the origin.
+    */
+   public float[] getVertices() {
+      final float[] vertices = new float[this.vertexCount * 3];
+
+      if (this.positions != null) {
+         for (int i = 0; i < vertices.length; i++) {
+            vertices[i] = this.getPosition(i / 3, i % 3);
+         }
+
+         return vertices;
+      }
+
+      for (int i = 0; i < this.indices.length / 3; i++) {
+         final int p0 = this.indices[i * 3] * 3;
+         final int p1 = this.indices[i * 3 + 1] * 3;
+         final int p2 = this.indices[i * 3 + 2] * 3;
+
+         for (int a = 0; a < 3; a++) {
+            vertices[p0 + a] = this.triangles[i * 9 + a];
+            vertices[p1 + a] = this.triangles[i * 9 + a] + this.triangles[i * 9 + 3 + a];
+            vertices[p2 + a] = this.triangles[i * 9 + a] + this.triangles[i * 9 + 6 + a];
+         }
+      }
+
+      return vertices;
+   }
+
+   /**
+    * Decodes the vertex normals, three floats per vertex, or returns the mesh's own if they are not encoded.
+    */
+   public float[] getNormals() {
+      if (this.encodedNormals == null) {
+         return this.normals;
+      }
+
+      final float[] normals = new float[this.vertexCount * 3];
+
+      for (int i = 0; i < this.vertexCount; i++) {
+         TriangleStore.decodeNormal(this.encodedNormals[i], normals, i * 3);
+      }
+
+      return normals;
+   }
+
+   /**
+    * @return The number of bytes of the faces and vertex attributes read by this store, whether its own or the mesh's,
+    *         not counting the mesh's indices
+    */
+   public long getByteCount() {
+      final long positionBytes = this.positions != null ? 2L * this.positions.length : 4L * this.triangles.length;
+
+      return positionBytes + (this.encodedNormals != null ? 4L * this.encodedNormals.length : 4L * this.normals.length);
+   }
+
+   /**
+    * @return The number of bytes of the arrays this store made itself, not counting the mesh's vertices, normals and
+    *         indices
+    */
+   public long getOwnedByteCount() {
+      final long positionBytes = this.positions != null ? 2L * this.positions.length : 4L * this.triangles.length;
+
+      return positionBytes + (this.encodedNormals != null ? 4L * this.encodedNormals.length : 0L);
+   }
+
+   /**
+    * @return The number of bytes a FULL_PRECISION store of the same faces would read, for comparison with getByteCount
+    */
+   public long getFullPrecisionByteCount() {
+      return 4L * (this.indices.length * 3 + this.vertexCount * 3);
+   }
+}
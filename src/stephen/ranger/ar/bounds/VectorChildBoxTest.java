@@ -0,0 +1,46 @@
+package stephen.ranger.ar.bounds;
+
+import javax.vecmath.Vector3f;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+import stephen.ranger.ar.RTStatics;
+
+/**
+ * Tests all child boxes of a WideTree node with one slab test per axis across the SIMD lanes. This is the only class
+ * that uses jdk.incubator.vector; WideTree only loads it when that module is present.
+ */
+public class VectorChildBoxTest implements ChildBoxTest {
+   private final VectorSpecies<Float> species;
+   private final int width;
+
+   public VectorChildBoxTest(final int width) {
+      this.width = width;
+      this.species = VectorSpecies.of(float.class, VectorShape.forBitSize(width * Float.SIZE));
+   }
+
+   @Override
+   public int intersect(final float[] bounds, final int offset, final Vector3f origin, final float[] inverseDirection, final float tMax, final float[] distances) {
+      final int w = this.width;
+
+      final FloatVector x0 = FloatVector.fromArray(this.species, bounds, offset).sub(origin.x).mul(inverseDirection[0]);
+      final FloatVector y0 = FloatVector.fromArray(this.species, bounds, offset + w).sub(origin.y).mul(inverseDirection[1]);
+      final FloatVector z0 = FloatVector.fromArray(this.species, bounds, offset + 2 * w).sub(origin.z).mul(inverseDirection[2]);
+      final FloatVector x1 = FloatVector.fromArray(this.species, bounds, offset + 3 * w).sub(origin.x).mul(inverseDirection[0]);
+      final FloatVector y1 = FloatVector.fromArray(this.species, bounds, offset + 4 * w).sub(origin.y).mul(inverseDirection[1]);
+      final FloatVector z1 = FloatVector.fromArray(this.species, bounds, offset + 5 * w).sub(origin.z).mul(inverseDirection[2]);
+
+      final FloatVector enter = x0.min(x1).max(y0.min(y1)).max(z0.min(z1));
+      final FloatVector exit = x0.max(x1).min(y0.max(y1)).min(z0.max(z1));
+
+      enter.intoArray(distances, 0);
+
+      final VectorMask<Float> hits = enter.compare(VectorOperators.LE, exit).and(enter.compare(VectorOperators.LT, Math.min(RTStatics.FAR_PLANE, tMax)))
+            .and(exit.compare(VectorOperators.GT, RTStatics.NEAR_PLANE));
+
+      return (int) hits.toLong();
+   }
+}
@@ -0,0 +1,513 @@
+package stephen.ranger.ar.bounds;
+
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import stephen.ranger.ar.RTStatics;
+import stephen.ranger.ar.Ray;
+import stephen.ranger.ar.RayPacket;
+
+/**
+ * Copy of a BVH node hierarchy with up to width children per node, made by collapsing the binary nodes. The child boxes
+ * of a node are stored lane by lane (width minx values, then width miny values, and so on) so a ChildBoxTest can test
+ * all of them in one go. For each child lane:
+ *
+ * <pre>
+ * counts[lane] == -1: empty lane
+ * counts[lane] == 0:  children[lane] is the index of an interior node
+ * counts[lane] > 0:   a leaf with counts[lane] faces starting at children[lane] in leafFaces
+ * </pre>
+ *
+ * Empty lanes get an inverted box, which the slab test does not reject (every slab becomes [-inf, inf]), so each node
+ * also has a mask of its used lanes that the box test result is masked with.
+ */
+public class WideTree implements PackedTree {
+   public final int width;
+
+   private final float[] bounds;
+   private final int[] children;
+   private final int[] counts;
+   private final int[] leafFaces;
+   /** Bit i is set if lane i of the node is used */
+   private final int[] laneMasks;
+   private final ChildBoxTest childBoxTest;
+
+   private int nodeCount = 0;
+   private int leafFaceCount = 0;
+   private int maxDepth = 0;
+
+   public WideTree(final TreeNode root, final int width) {
+      if (width < 2 || width > 16) {
+         throw new IllegalArgumentException("Wide nodes must have between 2 and 16 children, not " + width);
+      }
+
+      this.width = width;
+      this.childBoxTest = WideTree.createChildBoxTest(width);
+      System.out.println("wide BVH child box test: " + this.childBoxTest.getClass().getSimpleName() + ", " + width + " lanes");
+
+      // collapsing never adds nodes, so the binary interior node count is an upper bound
+      final int[] sizes = new int[2];
+      WideTree.count(root, sizes);
+      final int capacity = Math.max(1, sizes[0]);
+
+      final float[] bounds = new float[capacity * 6 * width];
+      final int[] children = new int[capacity * width];
+      final int[] counts = new int[capacity * width];
+      this.leafFaces = new int[sizes[1]];
+
+      this.add(root, bounds, children, counts, 0);
+
+      this.bounds = Arrays.copyOf(bounds, this.nodeCount * 6 * width);
+      this.children = Arrays.copyOf(children, this.nodeCount * width);
+      this.counts = Arrays.copyOf(counts, this.nodeCount * width);
+      this.laneMasks = WideTree.getLaneMasks(this.counts, width);
+   }
+
+   private WideTree(final int width, final int maxDepth, final float[] bounds, final int[] children, final int[] counts, final int[] leafFaces) {
+      this.width = width;
+      this.childBoxTest = WideTree.createChildBoxTest(width);
+      this.maxDepth = maxDepth;
+      this.nodeCount = counts.length / width;
+      this.bounds = bounds;
+      this.children = children;
+      this.counts = counts;
+      this.leafFaces = leafFaces;
+      this.laneMasks = WideTree.getLaneMasks(counts, width);
+   }
+
+   /**
+    * Builds the used lane mask of every node from the lane counts, so it does not need to be cached.
+    */
+   private static int[] getLaneMasks(final int[] counts, final int width) {
+      final int[] laneMasks = new int[counts.length / width];
+
+      for (int lane = 0; lane < counts.length; lane++) {
+         if (counts[lane] != -1) {
+            laneMasks[lane / width] |= 1 << lane % width;
+         }
+      }
+
+      return laneMasks;
+   }
+
+   /**
+    * Reads a tree written by write over a mesh of faceCount faces, checking it with check.
+    */
+   static WideTree read(final MeshCache.Reader in, final int faceCount) throws IOException {
+      final int width = in.getInt();
+      final int maxDepth = in.getInt();
+      final float[] bounds = in.getFloats();
+      final int[] children = in.getInts();
+      final int[] counts = in.getInts();
+      final int[] leafFaces = in.getInts();
+
+      WideTree.check(width, maxDepth, bounds, children, counts, leafFaces, faceCount);
+
+      return new WideTree(width, maxDepth, bounds, children, counts, leafFaces);
+   }
+
+   /**
+    * Checks a read tree the way LinearTree.check does: the lane arrays describe whole nodes, every interior lane points
+    * to a node after its own, leaves and faces lie inside their arrays and maxDepth covers the deepest node.
+    */
+   private static void check(final int width, final int maxDepth, final float[] bounds, final int[] children, final int[] counts, final int[] leafFaces,
+         final int faceCount) throws IOException {
+      if (width < 2 || width > 16 || counts.length == 0 || counts.length % width != 0 || children.length != counts.length || bounds.length != counts.length * 6L) {
+         throw new IOException("Wide tree arrays of " + bounds.length + ", " + children.length + " and " + counts.length + " values do not describe nodes of width "
+               + width);
+      }
+
+      final int nodeCount = counts.length / width;
+      final int[] depths = new int[nodeCount];
+
+      for (int lane = 0; lane < counts.length; lane++) {
+         final int node = lane / width;
+
+         if (depths[node] > maxDepth) {
+            throw new IOException("Tree node " + node + " is deeper than the tree's depth of " + maxDepth);
+         }
+
+         if (counts[lane] == 0) {
+            final int child = children[lane];
+
+            if (child <= node || child >= nodeCount) {
+               throw new IOException("Tree node " + node + " has child " + child + " outside the " + nodeCount + " nodes after it");
+            }
+
+            depths[child] = Math.max(depths[child], depths[node] + 1);
+         } else if (counts[lane] < -1 || counts[lane] > 0 && (children[lane] < 0 || children[lane] + (long) counts[lane] > leafFaces.length)) {
+            throw new IOException("Lane " + lane + " has faces outside the " + leafFaces.length + " leaf faces");
+         }
+      }
+
+      MeshCache.checkFaces(IntBuffer.wrap(leafFaces), faceCount);
+   }
+
+   void write(final MeshCache.Writer out) throws IOException {
+      out.putInt(this.width);
+      out.putInt(this.maxDepth);
+      out.putFloats(this.bounds);
+      out.putInts(this.children);
+      out.putInts(this.counts);
+      out.putInts(this.leafFaces);
+   }
+
+   private static ChildBoxTest createChildBoxTest(final int width) {
+      if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+         try {
+            // loaded by name so this class never links against the incubator module when it is missing
+            return (ChildBoxTest) Class.forName("stephen.ranger.ar.bounds.VectorChildBoxTest").getConstructor(int.class).newInstance(width);
+         } catch (final Exception e) {
+            System.err.println("Unable to use the Vector API for wide BVH nodes: " + e);
+         } catch (final LinkageError e) {
+            System.err.println("Unable to use the Vector API for wide BVH nodes: " + e);
+         }
+      }
+
+      return new ScalarChildBoxTest(width);
+   }
+
+   /**
+    * Counts the interior nodes and leaf face references of the binary hierarchy into sizes[0] and sizes[1].
+    */
+   private static void count(final TreeNode node, final int[] sizes) {
+      if (node.getLeft() == null && node.getRight() == null) {
+         sizes[1] += node.getFaces().length;
+      } else {
+         sizes[0]++;
+
+         if (node.getLeft() != null) {
+            WideTree.count(node.getLeft(), sizes);
+         }
+
+         if (node.getRight() != null) {
+            WideTree.count(node.getRight(), sizes);
+         }
+      }
+   }
+
+   private int add(final TreeNode node, final float[] bounds, final int[] children, final int[] counts, final int depth) {
+      final int index = this.nodeCount++;
+      final int w = this.width;
+      final List<TreeNode> lanes = new ArrayList<TreeNode>(w);
+
+      this.maxDepth = Math.max(this.maxDepth, depth);
+
+      if (node.getLeft() == null && node.getRight() == null) {
+         lanes.add(node);
+      } else {
+         WideTree.addChildren(node, lanes);
+      }
+
+      // open the largest interior child until every lane is used
+      while (lanes.size() < w) {
+         int largest = -1;
+         float largestArea = -1;
+
+         for (int i = 0; i < lanes.size(); i++) {
+            final TreeNode lane = lanes.get(i);
+            final float area = RTStatics.getSurfaceArea(lane.getMinMax());
+
+            if ((lane.getLeft() != null || lane.getRight() != null) && area > largestArea && lanes.size() - 1 + WideTree.childCount(lane) <= w) {
+               largest = i;
+               largestArea = area;
+            }
+         }
+
+         if (largest == -1) {
+            break;
+         }
+
+         WideTree.addChildren(lanes.remove(largest), lanes);
+      }
+
+      for (int i = 0; i < w; i++) {
+         final int lane = index * w + i;
+         final int offset = index * 6 * w + i;
+
+         if (i >= lanes.size()) {
+            for (int a = 0; a < 3; a++) {
+               bounds[offset + a * w] = Float.POSITIVE_INFINITY;
+               bounds[offset + (3 + a) * w] = Float.NEGATIVE_INFINITY;
+            }
+
+            counts[lane] = -1;
+            continue;
+         }
+
+         final TreeNode child = lanes.get(i);
+         final float[][] minMax = child.getMinMax();
+
+         for (int a = 0; a < 3; a++) {
+            bounds[offset + a * w] = minMax[0][a];
+            bounds[offset + (3 + a) * w] = minMax[1][a];
+         }
+
+         if (child.getLeft() == null && child.getRight() == null) {
+            final int[] faces = child.getFaces();
+            System.arraycopy(faces, 0, this.leafFaces, this.leafFaceCount, faces.length);
+
+            children[lane] = this.leafFaceCount;
+            counts[lane] = faces.length;
+            this.leafFaceCount += faces.length;
+
+            if (faces.length == 0) {
+               counts[lane] = -1;
+            }
+         } else {
+            children[lane] = this.add(child, bounds, children, counts, depth + 1);
+            counts[lane] = 0;
+         }
+      }
+
+      return index;
+   }
+
+   private static void addChildren(final TreeNode node, final List<TreeNode> lanes) {
+      if (node.getLeft() != null) {
+         lanes.add(node.getLeft());
+      }
+
+      if (node.getRight() != null) {
+         lanes.add(node.getRight());
+      }
+   }
+
+   private static int childCount(final TreeNode node) {
+      return (node.getLeft() == null ? 0 : 1) + (node.getRight() == null ? 0 : 1);
+   }
+
+   @Override
+   public float refit(final float[] faceBounds) {
+      final int w = this.width;
+      final float[] box = new float[6];
+
+      for (int node = this.nodeCount - 1; node >= 0; node--) {
+         for (int i = 0; i < w; i++) {
+            final int lane = node * w + i;
+
+            if (this.counts[lane] == -1) {
+               continue;
+            }
+
+            BVHNode.setEmpty(box, 0);
+
+            if (this.counts[lane] > 0) {
+               final int end = this.children[lane] + this.counts[lane];
+
+               for (int f = this.children[lane]; f < end; f++) {
+                  BVHNode.union(box, 0, faceBounds, this.leafFaces[f] * 6);
+               }
+            } else {
+               this.unionLanes(this.children[lane], box);
+            }
+
+            for (int a = 0; a < 6; a++) {
+               this.bounds[node * 6 * w + a * w + i] = box[a];
+            }
+         }
+      }
+
+      return this.getCost();
+   }
+
+   @Override
+   public float getCost() {
+      final int w = this.width;
+      final float[] box = new float[6];
+      float cost = 0;
+
+      BVHNode.setEmpty(box, 0);
+      this.unionLanes(0, box);
+      final float rootArea = BVHNode.getSurfaceArea(box);
+
+      for (int lane = 0; lane < this.counts.length; lane++) {
+         if (this.counts[lane] == -1) {
+            continue;
+         }
+
+         for (int a = 0; a < 6; a++) {
+            box[a] = this.bounds[lane / w * 6 * w + a * w + lane % w];
+         }
+
+         final float area = BVHNode.getSurfaceArea(box);
+         cost += this.counts[lane] > 0 ? area * RTStatics.SAH_INTERSECTION_COST * this.counts[lane] : area * RTStatics.SAH_TRAVERSAL_COST;
+      }
+
+      return rootArea > 0 ? RTStatics.SAH_TRAVERSAL_COST + cost / rootArea : 0;
+   }
+
+   /**
+    * Grows box to contain every used lane of the given node.
+    */
+   private void unionLanes(final int node, final float[] box) {
+      final int w = this.width;
+
+      for (int i = 0; i < w; i++) {
+         if (this.counts[node * w + i] != -1) {
+            for (int a = 0; a < 3; a++) {
+               box[a] = Math.min(box[a], this.bounds[node * 6 * w + a * w + i]);
+               box[3 + a] = Math.max(box[3 + a], this.bounds[node * 6 * w + (3 + a) * w + i]);
+            }
+         }
+      }
+   }
+
+   /**
+    * Wide nodes are added as interior nodes and leaf lanes as leaves one level below their node.
+    */
+   @Override
+   public void addStatistics(final TreeStatistics statistics) {
+      statistics.addBytes(this.getByteCount());
+
+      if (this.nodeCount == 0) {
+         return;
+      }
+
+      final float[] box = new float[6];
+      BVHNode.setEmpty(box, 0);
+      this.unionLanes(0, box);
+      statistics.addInterior(0, BVHNode.getSurfaceArea(box));
+      this.addStatistics(0, 0, statistics);
+   }
+
+   private void addStatistics(final int node, final int depth, final TreeStatistics statistics) {
+      final int w = this.width;
+      final float[] box = new float[6];
+
+      for (int i = 0; i < w; i++) {
+         final int lane = node * w + i;
+
+         if (this.counts[lane] == -1) {
+            continue;
+         }
+
+         for (int a = 0; a < 6; a++) {
+            box[a] = this.bounds[node * 6 * w + a * w + i];
+         }
+
+         if (this.counts[lane] > 0) {
+            statistics.addLeaf(depth + 1, BVHNode.getSurfaceArea(box), this.counts[lane]);
+         } else {
+            statistics.addInterior(depth + 1, BVHNode.getSurfaceArea(box));
+            this.addStatistics(this.children[lane], depth + 1, statistics);
+         }
+      }
+   }
+
+   @Override
+   public int getNodeCount() {
+      return this.nodeCount;
+   }
+
+   @Override
+   public int getMaxDepth() {
+      return this.maxDepth;
+   }
+
+   @Override
+   public int getReferenceCount() {
+      return this.leafFaces.length;
+   }
+
+   @Override
+   public long getByteCount() {
+      return 4L * (this.bounds.length + this.children.length + this.counts.length + this.leafFaces.length + this.laneMasks.length);
+   }
+
+   /**
+    * Finds the closest intersection between the given ray and the mesh faces in this tree. All child boxes of a node
+    * are tested together and the children that are hit are pushed farthest first, so the nearest is visited next.
+    * Leaves are pushed as ~lane so they are tested in the same front to back order.
+    */
+   @Override
+   public boolean getClosestIntersection(final Ray ray, final TriangleStore triangles, final float shadowDistance, final TriangleHit hit) {
+      return this.traverse(ray, triangles, shadowDistance, hit, false);
+   }
+
+   @Override
+   public boolean occluded(final Ray ray, final TriangleStore triangles, final float shadowDistance, final float tMax) {
+      return this.traverse(ray, triangles, shadowDistance, TriangleHit.get(tMax), true);
+   }
+
+   @Override
+   public void getClosestIntersections(final RayPacket packet, final int first, final TriangleStore triangles, final float shadowDistance) {
+      for (int r = first; r < packet.size; r++) {
+         if (this.traverse(packet.rays[r], triangles, shadowDistance, packet.hits[r], false)) {
+            packet.tMax[r] = packet.hits[r].t;
+         }
+      }
+   }
+
+   /**
+    * Shared closest hit and any hit traversal; an any hit traversal returns at the first face hit.
+    */
+   private boolean traverse(final Ray ray, final TriangleStore triangles, final float shadowDistance, final TriangleHit hit, final boolean anyHit) {
+      final int w = this.width;
+      final float[] inverseDirection = RTStatics.getInverseDirection(ray.direction, new float[3]);
+      final int[] stack = new int[(this.maxDepth + 1) * (w - 1) + 2];
+      final float[] stackDistances = new float[stack.length];
+      final float[] distances = new float[w];
+      final int[] order = new int[w];
+      int stackSize = 0;
+      boolean found = false;
+      float tMax = hit.t;
+
+      stack[stackSize] = 0;
+      stackDistances[stackSize++] = Float.NEGATIVE_INFINITY;
+
+      while (stackSize > 0) {
+         final int entry = stack[--stackSize];
+
+         if (stackDistances[stackSize] >= tMax) {
+            continue;
+         }
+
+         if (entry < 0) {
+            final int offset = this.children[~entry];
+            final int end = offset + this.counts[~entry];
+
+            for (int i = offset; i < end; i++) {
+               if (triangles.intersect(this.leafFaces[i], ray.origin, ray.direction, shadowDistance, hit)) {
+                  if (anyHit) {
+                     return true;
+                  }
+
+                  found = true;
+                  tMax = hit.t;
+               }
+            }
+         } else {
+            int mask = this.childBoxTest.intersect(this.bounds, entry * 6 * w, ray.origin, inverseDirection, tMax, distances) & this.laneMasks[entry];
+            int hits = 0;
+
+            // insertion sort of the hit lanes, farthest first
+            while (mask != 0) {
+               final int lane = Integer.numberOfTrailingZeros(mask);
+               mask &= mask - 1;
+
+               int j = hits++;
+
+               while (j > 0 && distances[order[j - 1]] < distances[lane]) {
+                  order[j] = order[j - 1];
+                  j--;
+               }
+
+               order[j] = lane;
+            }
+
+            for (int i = 0; i < hits; i++) {
+               final int lane = entry * w + order[i];
+
+               stack[stackSize] = this.counts[lane] == 0 ? this.children[lane] : ~lane;
+               stackDistances[stackSize++] = distances[order[i]];
+            }
+         }
+      }
+
+      return found;
+   }
+}
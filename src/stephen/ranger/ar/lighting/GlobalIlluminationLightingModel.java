@@ -10,6 +10,8 @@ import stephen.ranger.ar.Camera;
 import stephen.ranger.ar.IntersectionInformation;
 import stephen.ranger.ar.PBRTMath;
 import stephen.ranger.ar.RTStatics;
+import stephen.ranger.ar.Ray;
+import stephen.ranger.ar.RayQueue;
 import stephen.ranger.ar.photons.Photon;
 import stephen.ranger.ar.photons.PhotonTree;
 import stephen.ranger.ar.photons.Photon.LightAttribution;
@@ -33,35 +35,67 @@ public class GlobalIlluminationLightingModel extends LightingModel {
 
    @Override
    public float[] getPixelColor(final IntersectionInformation info, final int depth) {
-      final float[] color = new float[] { 0, 0, 0 };
+      final RayQueue queue = new RayQueue(this.getGatherRayCount());
+      final float[][] gathered = new float[queue.getCapacity()][];
+
+      this.addGatherRays(info, queue, 0, new Random());
+
+      for (int i = 0; i < gathered.length; i++) {
+         final Ray ray = new Ray(queue.getOrigin(i, new Vector3f()), queue.getDirection(i, new Vector3f()));
+         gathered[i] = this.getGatherColor(camera.bvh.getClosestIntersection(ray, null, depth), queue.weights[i]);
+      }
 
-      final Vector3f origin = new Vector3f(info.intersection);
+      return this.getPixelColor(info, depth, gathered, 0);
+   }
+
+   @Override
+   public int getGatherRayCount() {
+      return RTStatics.PHOTON_COLLECTION_RAY_COUNT;
+   }
+
+   @Override
+   public void addGatherRays(final IntersectionInformation info, final RayQueue queue, final int first, final Random random) {
+      final Vector3f origin = RTStatics.offsetPosition(info.intersection, info.normal);
       final Vector3f dir = new Vector3f();
-      final Random random = new Random();
-      float weight;
-      IntersectionInformation newInfo;
+
+      for (int i = first; i < first + RTStatics.PHOTON_COLLECTION_RAY_COUNT; i++) {
+         final float weight = RTStatics.cosSampleHemisphere(dir, info.normal, random);
+         dir.normalize();
+
+         queue.set(i, origin, dir, Float.POSITIVE_INFINITY, i);
+         queue.weights[i] = dir.dot(info.normal) / weight;
+      }
+   }
+
+   @Override
+   public float[] getGatherColor(final IntersectionInformation hit, final float weight) {
+      if (hit == null) {
+         return null;
+      }
+
       final float[] location = new float[3];
-      int[] indices;
+      hit.intersection.get(location);
+      final int[] indices = photons.kNearest(location, RTStatics.COLLECTION_COUNT_THRESHOLD);
+      final float[] spawnedColor = radialBasisPhotonAverageIrradiance(hit, indices);
 
-      //      final Vector3f invDir = new Vector3f(info.ray.direction);
-      //      invDir.scale(-1f);
-      //      final float falloff = invDir.dot(info.normal);
-      int ctr = 0;
+      spawnedColor[0] *= weight;
+      spawnedColor[1] *= weight;
+      spawnedColor[2] *= weight;
 
-      for (int i = 0; i < RTStatics.PHOTON_COLLECTION_RAY_COUNT; i++) {
-         weight = RTStatics.cosSampleHemisphere(dir, info.normal, random);
-         newInfo = camera.getClosestIntersection(null, origin, dir, info.normal, depth);
-         final float falloff = dir.dot(info.normal);
+      return spawnedColor;
+   }
 
-         if (newInfo != null) {
-            ctr++;
-            newInfo.intersection.get(location);
-            indices = photons.kNearest(location, RTStatics.COLLECTION_COUNT_THRESHOLD);
-            final float[] spawnedColor = radialBasisPhotonAverageIrradiance(newInfo, indices);
+   @Override
+   public float[] getPixelColor(final IntersectionInformation info, final int depth, final float[][] gathered, final int first) {
+      final float[] color = new float[] { 0, 0, 0 };
+      int ctr = 0;
 
-            color[0] += spawnedColor[0] * falloff / weight;
-            color[1] += spawnedColor[1] * falloff / weight;
-            color[2] += spawnedColor[2] * falloff / weight;
+      for (int i = first; i < first + RTStatics.PHOTON_COLLECTION_RAY_COUNT; i++) {
+         if (gathered[i] != null) {
+            ctr++;
+            color[0] += gathered[i][0];
+            color[1] += gathered[i][1];
+            color[2] += gathered[i][2];
          }
       }
 
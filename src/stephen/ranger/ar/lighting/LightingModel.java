@@ -1,7 +1,10 @@
 package stephen.ranger.ar.lighting;
 
+import java.util.Random;
+
 import stephen.ranger.ar.Camera;
 import stephen.ranger.ar.IntersectionInformation;
+import stephen.ranger.ar.RayQueue;
 
 public class LightingModel {
    protected Camera camera;
@@ -14,6 +17,54 @@ public class LightingModel {
       return info.intersectionObject.getColor(info, camera, depth);
    }
 
+   /**
+    * Returns the light this model casts a single shadow ray towards from every hit, or null if it traces its own rays.
+    * The WavefrontRenderer traces those shadow rays in a stage of their own and passes the results to
+    * getPixelColor(info, depth, shadowed).
+    */
+   public Light getShadowLight() {
+      return null;
+   }
+
+   /**
+    * Returns the color of the given hit, given whether the shadow ray towards getShadowLight() is blocked.
+    */
+   public float[] getPixelColor(final IntersectionInformation info, final int depth, final boolean shadowed) {
+      return this.getPixelColor(info, depth);
+   }
+
+   /**
+    * Returns the number of final gather rays this model traces from every hit, or 0 if it traces none. The
+    * WavefrontRenderer queues the gather rays of many hits with addGatherRays, sorts and traces them together, and
+    * passes what getGatherColor returns for each to getPixelColor(info, depth, gathered, first).
+    */
+   public int getGatherRayCount() {
+      return 0;
+   }
+
+   /**
+    * Sets the gather rays of the given hit at [first, first + getGatherRayCount()) of the queue, each owned by its own
+    * index.
+    */
+   public void addGatherRays(final IntersectionInformation info, final RayQueue queue, final int first, final Random random) {
+   }
+
+   /**
+    * Returns what one gather ray with the given weight adds to the color of its hit, given the closest hit of the gather
+    * ray, or null if it adds nothing.
+    */
+   public float[] getGatherColor(final IntersectionInformation hit, final float weight) {
+      return null;
+   }
+
+   /**
+    * Returns the color of the given hit from the getGatherColor results of its gather rays, stored at [first, first +
+    * getGatherRayCount()) of gathered.
+    */
+   public float[] getPixelColor(final IntersectionInformation info, final int depth, final float[][] gathered, final int first) {
+      return this.getPixelColor(info, depth);
+   }
+
    public void setCamera(final Camera camera) {
       this.camera = camera;
    }
@@ -4,21 +4,27 @@ import javax.vecmath.Vector3f;
 
 import stephen.ranger.ar.IntersectionInformation;
 import stephen.ranger.ar.RTStatics;
-import stephen.ranger.ar.bounds.BoundingVolume;
 
 public class PhongLightingModel extends LightingModel {
    private final Light light;
-   private final BoundingVolume[] objects;
 
-   public PhongLightingModel(final Light light, final BoundingVolume[] objects) {
+   public PhongLightingModel(final Light light) {
       this.light = light;
-      this.objects = objects;
    }
 
    @Override
    public float[] getPixelColor(final IntersectionInformation info, final int depth) {
+      return this.getPixelColor(info, depth, RTStatics.shadowIntersects(light, camera.bvh, info));
+   }
+
+   @Override
+   public Light getShadowLight() {
+      return this.light;
+   }
+
+   @Override
+   public float[] getPixelColor(final IntersectionInformation info, final int depth, final boolean shadowIntersects) {
       final float[] color = info.intersectionObject.getColor(info, camera, depth);
-      final boolean shadowIntersects = RTStatics.shadowIntersects(light, objects, info, depth);
 
       final float[] ks = info.intersectionObject.getSpecular();
       final float[] kd = info.intersectionObject.getDiffuse();
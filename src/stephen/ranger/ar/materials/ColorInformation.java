@@ -4,6 +4,7 @@ import java.awt.Color;
 
 import stephen.ranger.ar.Camera;
 import stephen.ranger.ar.IntersectionInformation;
+import stephen.ranger.ar.Ray;
 
 public class ColorInformation {
    public final Color emission;
@@ -35,4 +36,27 @@ public class ColorInformation {
    public float[] getMaterialColor(final Camera camera, final IntersectionInformation info, final int depth) {
       return this.diffuse.getColorComponents(new float[3]);
    }
+
+   /**
+    * Returns the ray this material traces from the given hit to find its color, e.g. the mirror direction of a reflection,
+    * or null if it traces none. The WavefrontRenderer traces these rays for a whole wave at once, sorted, before the
+    * colors are asked for.
+    */
+   public Ray getSecondaryRay(final IntersectionInformation info) {
+      return null;
+   }
+
+   /**
+    * Returns the closest hit of getSecondaryRay(info), ignoring the object that was hit, or the hit the renderer already
+    * traced for it.
+    */
+   protected IntersectionInformation traceSecondaryRay(final Camera camera, final IntersectionInformation info, final int depth) {
+      if (info.secondaryTraced) {
+         return info.secondary;
+      }
+
+      final Ray ray = this.getSecondaryRay(info);
+
+      return ray == null ? null : camera.bvh.getClosestIntersection(ray, info.intersectionObject, depth + 1);
+   }
 }
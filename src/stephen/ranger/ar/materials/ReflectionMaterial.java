@@ -5,6 +5,7 @@ import java.awt.Color;
 import stephen.ranger.ar.Camera;
 import stephen.ranger.ar.IntersectionInformation;
 import stephen.ranger.ar.RTStatics;
+import stephen.ranger.ar.Ray;
 
 public class ReflectionMaterial extends ColorInformation {
    public ReflectionMaterial(final Color diffuse) {
@@ -13,8 +14,7 @@ public class ReflectionMaterial extends ColorInformation {
 
    @Override
    public float[] getMaterialColor(final Camera camera, final IntersectionInformation info, final int depth) {
-      final IntersectionInformation mirrorInfo = camera.getClosestIntersection(info.intersectionObject, info.intersection, RTStatics
-            .getReflectionDirection(info), info.normal, depth + 1);
+      final IntersectionInformation mirrorInfo = this.traceSecondaryRay(camera, info, depth);
 
       if (mirrorInfo == null) {
          return camera.light.ambient.getColorComponents(new float[3]);
@@ -22,4 +22,9 @@ public class ReflectionMaterial extends ColorInformation {
          return mirrorInfo.intersectionObject.getColor(mirrorInfo, camera, depth + 1);
       }
    }
+
+   @Override
+   public Ray getSecondaryRay(final IntersectionInformation info) {
+      return new Ray(RTStatics.offsetPosition(info.intersection, info.normal), RTStatics.getReflectionDirection(info));
+   }
 }
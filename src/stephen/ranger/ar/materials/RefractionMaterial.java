@@ -7,6 +7,7 @@ import javax.vecmath.Vector3f;
 import stephen.ranger.ar.Camera;
 import stephen.ranger.ar.IntersectionInformation;
 import stephen.ranger.ar.RTStatics;
+import stephen.ranger.ar.Ray;
 
 public class RefractionMaterial extends ColorInformation {
    public static final float INDEX_OF_AIR = 1.00029f;
@@ -31,9 +32,7 @@ public class RefractionMaterial extends ColorInformation {
       if (info == null) {
          return camera.light.ambient.getColorComponents(new float[3]);
       } else {
-         final Vector3f refractionDirection = getRefractionDirection(info);
-         final IntersectionInformation closest = refractionDirection == null ? null : camera.getClosestIntersection(info.intersectionObject, info.intersection,
-               refractionDirection, info.normal, depth + 1);
+         final IntersectionInformation closest = this.traceSecondaryRay(camera, info, depth);
 
          if (closest == null) {
             return camera.light.ambient.getColorComponents(new float[3]);
@@ -57,6 +56,13 @@ public class RefractionMaterial extends ColorInformation {
       }
    }
 
+   @Override
+   public Ray getSecondaryRay(final IntersectionInformation info) {
+      final Vector3f refractionDirection = getRefractionDirection(info);
+
+      return refractionDirection == null ? null : new Ray(RTStatics.offsetPosition(info.intersection, info.normal), refractionDirection);
+   }
+
    private Vector3f getRefractionDirection(final IntersectionInformation info) {
       if (info == null) {
          return null;
@@ -0,0 +1,137 @@
+package stephen.ranger.ar.sceneObjects;
+
+import java.util.Arrays;
+
+import javax.vecmath.Matrix4f;
+import javax.vecmath.Vector3f;
+
+import stephen.ranger.ar.IntersectionInformation;
+import stephen.ranger.ar.Ray;
+import stephen.ranger.ar.bounds.AxisAlignedBoundingBox;
+import stephen.ranger.ar.materials.ColorInformation;
+
+/**
+ * A placement of a shared TriangleMesh in the scene. Any number of instances can reference the same mesh and its
+ * acceleration structure; each one only stores its transform and its own material. Rays are moved into the mesh's
+ * object space for traversal and the hits are moved back into world space.
+ */
+public class MeshInstance extends SceneObject {
+   public final TriangleMesh mesh;
+   public final Matrix4f transform;
+   private final Matrix4f inverse;
+   private final Matrix4f normalTransform;
+
+   /**
+    * @param mesh
+    *           The shared mesh, which should not itself be added to the scene. Instances never pass the camera on to
+    *           the mesh, so it should be loaded without levels of detail.
+    * @param transform
+    *           The object to world transform, any affine transform with a non zero determinant
+    * @param colorInfo
+    *           The material of this instance
+    */
+   public MeshInstance(final TriangleMesh mesh, final Matrix4f transform, final ColorInformation colorInfo) {
+      super(colorInfo);
+
+      this.mesh = mesh;
+      this.transform = new Matrix4f();
+      this.inverse = new Matrix4f();
+      this.normalTransform = new Matrix4f();
+
+      this.setBoundingVolume(new AxisAlignedBoundingBox(this, new float[2][3]) {
+         @Override
+         public boolean occluded(final Vector3f origin, final Vector3f direction, final float tMax) {
+            final Ray ray = new Ray(origin, direction);
+            return this.intersects(ray) && MeshInstance.this.occluded(ray, tMax);
+         }
+
+         // the shared mesh is not in the scene itself, so its instances close it
+         @Override
+         public void close() {
+            MeshInstance.this.mesh.getBoundingVolume().close();
+         }
+
+         @Override
+         public long getReleasableByteCount() {
+            return MeshInstance.this.mesh.getBoundingVolume().getReleasableByteCount();
+         }
+      });
+
+      this.setTransform(transform);
+   }
+
+   /**
+    * Moves the instance, e.g. between the frames of an animation, updating its world space box in place. Call
+    * Scene.refit afterwards so the scene hierarchy sees the new box.
+    */
+   public void setTransform(final Matrix4f transform) {
+      this.transform.set(transform);
+      this.inverse.set(transform);
+      this.inverse.invert();
+
+      // normals transform with the inverse transpose so they stay perpendicular under non uniform scales
+      this.normalTransform.set(this.inverse);
+      this.normalTransform.transpose();
+
+      final float[][] objectMinMax = this.mesh.getBoundingVolume().getMinMax();
+      final float[][] minMax = this.boundingVolume.getMinMax();
+      final Vector3f corner = new Vector3f();
+
+      Arrays.fill(minMax[0], Float.MAX_VALUE);
+      Arrays.fill(minMax[1], -Float.MAX_VALUE);
+
+      for (int i = 0; i < 8; i++) {
+         corner.set(objectMinMax[i & 1][0], objectMinMax[i >> 1 & 1][1], objectMinMax[i >> 2 & 1][2]);
+         MeshInstance.transformPoint(this.transform, corner, corner);
+
+         minMax[0][0] = Math.min(minMax[0][0], corner.x);
+         minMax[0][1] = Math.min(minMax[0][1], corner.y);
+         minMax[0][2] = Math.min(minMax[0][2], corner.z);
+         minMax[1][0] = Math.max(minMax[1][0], corner.x);
+         minMax[1][1] = Math.max(minMax[1][1], corner.y);
+         minMax[1][2] = Math.max(minMax[1][2], corner.z);
+      }
+   }
+
+   @Override
+   public IntersectionInformation getIntersection(final Ray ray, final int depth) {
+      final Vector3f objectOrigin = MeshInstance.transformPoint(this.inverse, ray.origin, new Vector3f());
+      final Vector3f objectDirection = new Vector3f(ray.direction);
+      this.inverse.transform(objectDirection);
+
+      // object space distances are measured along the normalized object space direction
+      final float scale = objectDirection.length();
+      final IntersectionInformation objectInfo = this.mesh.getBoundingVolume().getChildIntersection(new Ray(objectOrigin, objectDirection), depth);
+
+      if (objectInfo == null) {
+         return null;
+      }
+
+      final Vector3f intersection = MeshInstance.transformPoint(this.transform, objectInfo.intersection, new Vector3f());
+      final Vector3f normal = new Vector3f(objectInfo.normal);
+      this.normalTransform.transform(normal);
+      normal.normalize();
+
+      return new IntersectionInformation(ray, this.boundingVolume, intersection, normal, objectInfo.w / scale);
+   }
+
+   private boolean occluded(final Ray ray, final float tMax) {
+      final Vector3f objectOrigin = MeshInstance.transformPoint(this.inverse, ray.origin, new Vector3f());
+      final Vector3f objectDirection = new Vector3f(ray.direction);
+      this.inverse.transform(objectDirection);
+
+      final float scale = objectDirection.length();
+
+      return this.mesh.getBoundingVolume().occluded(objectOrigin, objectDirection, tMax * scale);
+   }
+
+   private static Vector3f transformPoint(final Matrix4f m, final Vector3f point, final Vector3f output) {
+      final float x = m.m00 * point.x + m.m01 * point.y + m.m02 * point.z + m.m03;
+      final float y = m.m10 * point.x + m.m11 * point.y + m.m12 * point.z + m.m13;
+      final float z = m.m20 * point.x + m.m21 * point.y + m.m22 * point.z + m.m23;
+
+      output.set(x, y, z);
+
+      return output;
+   }
+}
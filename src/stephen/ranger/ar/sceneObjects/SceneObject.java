@@ -69,6 +69,10 @@ public abstract class SceneObject {
       return this.colorInfo.getMaterialColor(camera, info, depth);
    }
 
+   public ColorInformation getColorInformation() {
+      return this.colorInfo;
+   }
+
    public float[] getEmission() {
       return this.colorInfo.emission.getColorComponents(new float[3]);
    }
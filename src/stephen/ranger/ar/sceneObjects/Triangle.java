@@ -74,19 +74,21 @@ public class Triangle extends SceneObject {
     * @param rD
     *           The ray direction
     * @param vertices
-    *           The complete set of vertices
+    *           The complete set of vertices, three floats per vertex
     * @param normals
-    *           The complete set of normals
+    *           The complete set of normals, three floats per vertex
     * @param indices
-    *           The indices that make up this triangle
+    *           The complete set of faces, three vertex indices per face
+    * @param face
+    *           The position in indices of this triangle
     * @return An array of floats denoting the intersection, normal, and distance from ray origin in the form of: { x, y,
     *         z, nx, ny, nz, w } or null if no intersection exists
     */
-   public static float[] intersectsTriangle(final Vector3f rO, final Vector3f rD, final float[][] vertices, final float[][] normals, final int[] indices) {
-      // final float[] normal = RTStatics.computeNormal(vertices, indices);
-      final Vector3f[] p0 = new Vector3f[] { new Vector3f(vertices[indices[0]]), new Vector3f(normals[indices[0]]) };
-      final Vector3f[] p1 = new Vector3f[] { new Vector3f(vertices[indices[1]]), new Vector3f(normals[indices[1]]) };
-      final Vector3f[] p2 = new Vector3f[] { new Vector3f(vertices[indices[2]]), new Vector3f(normals[indices[2]]) };
+   public static float[] intersectsTriangle(final Vector3f rO, final Vector3f rD, final float[] vertices, final float[] normals, final int[] indices, final int face) {
+      // final float[] normal = RTStatics.computeNormal(vertices, indices, face);
+      final Vector3f[] p0 = Triangle.getVertex(vertices, normals, indices[face * 3]);
+      final Vector3f[] p1 = Triangle.getVertex(vertices, normals, indices[face * 3 + 1]);
+      final Vector3f[] p2 = Triangle.getVertex(vertices, normals, indices[face * 3 + 2]);
 
       final Vector3f e1 = new Vector3f();
       final Vector3f e2 = new Vector3f();
@@ -121,15 +123,21 @@ public class Triangle extends SceneObject {
          return null;
       }
 
-      // return q.dot(e2) / divisor;
+      // distance along the (normalized) ray direction; hits behind the origin are ignored
+      final float t = q.dot(e2) / divisor;
+      if (t < 0) {
+         return null;
+      }
 
       final float w = 1.0f - u - v;
 
-      final float[] returnValue = new float[] { w * p0[0].x + u * p1[0].x + v * p2[0].x, w * p0[0].y + u * p1[0].y + v * p2[0].y, w * p0[0].z + u * p1[0].z + v * p2[0].z,
-            w * p0[1].x + u * p1[1].x + v * p2[1].x, w * p0[1].y + u * p1[1].y + v * p2[1].y, w * p0[1].z + u * p1[1].z + v * p2[1].z, -1 };
-      returnValue[6] = RTStatics.getDistance(new float[] { rO.getX(), rO.getY(), rO.getZ() }, returnValue);
+      return new float[] { w * p0[0].x + u * p1[0].x + v * p2[0].x, w * p0[0].y + u * p1[0].y + v * p2[0].y, w * p0[0].z + u * p1[0].z + v * p2[0].z,
+            w * p0[1].x + u * p1[1].x + v * p2[1].x, w * p0[1].y + u * p1[1].y + v * p2[1].y, w * p0[1].z + u * p1[1].z + v * p2[1].z, t };
+   }
 
-      return returnValue;
+   private static Vector3f[] getVertex(final float[] vertices, final float[] normals, final int index) {
+      return new Vector3f[] { new Vector3f(vertices[index * 3], vertices[index * 3 + 1], vertices[index * 3 + 2]),
+            new Vector3f(normals[index * 3], normals[index * 3 + 1], normals[index * 3 + 2]) };
    }
 
    /**
@@ -7,117 +7,424 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.Arrays;
 
 import stephen.ranger.ar.IntersectionInformation;
 import stephen.ranger.ar.RTStatics;
 import stephen.ranger.ar.Ray;
+import stephen.ranger.ar.RTStatics.AccelerationStructure;
+import stephen.ranger.ar.bounds.BVH;
+import stephen.ranger.ar.bounds.BoundingVolume;
+import stephen.ranger.ar.bounds.ChunkedMesh;
 import stephen.ranger.ar.bounds.KDTree;
+import stephen.ranger.ar.bounds.LODMesh;
+import stephen.ranger.ar.bounds.LinearTree;
+import stephen.ranger.ar.bounds.MeshBoundingVolume;
+import stephen.ranger.ar.bounds.MeshCache;
+import stephen.ranger.ar.bounds.OffHeapMesh;
 import stephen.ranger.ar.materials.ColorInformation;
 
 public class TriangleMesh extends SceneObject {
    private int numVertices, numFaces;
-   private float[][] vertices;
-   private float[][] normals;
-   private int[][] indices;
+   /** Three floats per vertex */
+   private float[] vertices;
+   /** Three floats per vertex */
+   private float[] normals;
+   /** Three vertex indices per face */
+   private int[] indices;
+   private final boolean levelsOfDetail;
 
    public TriangleMesh(final File modelLocation, final ColorInformation colorInfo, final boolean computeKDTree) {
+      this(modelLocation, colorInfo, computeKDTree, AccelerationStructure.KD_TREE);
+   }
+
+   public TriangleMesh(final File modelLocation, final ColorInformation colorInfo, final boolean computeHierarchy, final AccelerationStructure structure) {
+      this(modelLocation, colorInfo, computeHierarchy, structure, true);
+   }
+
+   /**
+    * Loads the given PLY model and builds the requested acceleration structure over its faces.
+    * 
+    * @param computeHierarchy
+    *           If false, the structure is a single leaf containing every face
+    * @param structure
+    *           The acceleration structure to use as this mesh's bounding volume
+    * @param levelsOfDetail
+    *           If false, the mesh gets no simplified levels even when RTStatics.ENABLE_LOD is set, e.g. for a mesh only
+    *           traced through MeshInstances, which never select a level
+    */
+   public TriangleMesh(final File modelLocation, final ColorInformation colorInfo, final boolean computeHierarchy, final AccelerationStructure structure,
+         final boolean levelsOfDetail) {
       super(colorInfo);
 
-      final long startTime = System.nanoTime();
+      this.levelsOfDetail = levelsOfDetail;
 
       try {
-         final BufferedReader reader = new BufferedReader(new FileReader(modelLocation));
-         String temp = null;
-         int ctr = 0;
-         boolean body = false;
-         this.numVertices = 0;
-         this.numFaces = 0;
-         boolean hasNormals = false;
-         boolean isASCII = true;
-         int propertyCount = 0;
-         int xpos = -1, ypos = -1, zpos = -1, nxpos = -1, nypos = -1, nzpos = -1;
-
-         while (!body && ((temp = reader.readLine()) != null)) {
-            if (temp.startsWith("element vertex")) {
-               this.numVertices = Integer.parseInt(temp.split(" ")[2]);
-               this.vertices = new float[this.numVertices][3];
-               this.normals = new float[this.numVertices][3];
-            } else if (temp.startsWith("element face")) {
-               this.numFaces = Integer.parseInt(temp.split(" ")[2]);
-               this.indices = new int[this.numFaces][3];
-            } else if (temp.startsWith("property")) {
-               if (temp.endsWith(" nx")) {
-                  nxpos = propertyCount;
-               } else if (temp.endsWith(" ny")) {
-                  nypos = propertyCount;
-               } else if (temp.endsWith(" nz")) {
-                  nzpos = propertyCount;
-               } else if (temp.endsWith(" x")) {
-                  xpos = propertyCount;
-               } else if (temp.endsWith(" y")) {
-                  ypos = propertyCount;
-               } else if (temp.endsWith(" z")) {
-                  zpos = propertyCount;
-               }
-
-               if (!temp.startsWith("property list")) {
-                  propertyCount++;
-               }
-            } else if (temp.startsWith("format binary")) {
-               isASCII = false;
-            } else if (temp.equals("end_header")) {
-               body = true;
+         if (structure.equals(AccelerationStructure.OUT_OF_CORE_BVH)) {
+            this.openChunks(modelLocation, colorInfo, computeHierarchy);
+            return;
+         } else if (structure.equals(AccelerationStructure.OFF_HEAP_BVH)) {
+            this.openOffHeap(modelLocation, colorInfo, computeHierarchy);
+            return;
+         }
+
+         // a lazy tree is never complete, so there is nothing to cache
+         final boolean lazy = structure.equals(AccelerationStructure.LAZY_KD_TREE);
+         final byte[] key = RTStatics.ENABLE_MESH_CACHE && !lazy ? MeshCache.getKey(modelLocation, structure, computeHierarchy) : null;
+         final File cacheFile = key != null ? MeshCache.getCacheFile(modelLocation, key) : null;
+         final long startTime = System.nanoTime();
+         final MeshCache cache = cacheFile != null ? MeshCache.read(cacheFile, key) : null;
+
+         if (cache != null) {
+            this.vertices = cache.vertices;
+            this.normals = cache.normals;
+            this.indices = cache.indices;
+            this.numVertices = this.vertices.length / 3;
+            this.numFaces = this.indices.length / 3;
+
+            if (structure.equals(AccelerationStructure.KD_TREE)) {
+               this.setBoundingVolume(new KDTree(TriangleMesh.this, this.vertices, this.normals, this.indices, colorInfo, computeHierarchy, (LinearTree) cache.tree));
+            } else {
+               this.setBoundingVolume(new BVH(TriangleMesh.this, this.vertices, this.normals, this.indices, colorInfo, computeHierarchy, structure, cache.tree));
             }
 
-            System.out.println(temp);
-            ctr++;
+            final long endTime = System.nanoTime();
+            System.out.println("loaded " + this.numFaces + " faces and " + structure + " from " + cacheFile.getName() + " in " + (endTime - startTime) / 1000000000. + " seconds");
+
+            this.addLevelsOfDetail(colorInfo);
+            this.releaseAttributes();
+            return;
          }
-         System.out.println("position locations: " + xpos + ", " + ypos + ", " + zpos + "\nnormal locations: " + nxpos + ", " + nypos + ", " + nzpos);
-         hasNormals = (nxpos != -1) && (nypos != -1) && (nzpos != -1);
 
-         if (isASCII) {
-            this.readASCII(reader, new int[] { xpos, ypos, zpos }, new int[] { nxpos, nypos, nzpos }, hasNormals);
+         this.parse(modelLocation);
+
+         final MeshBoundingVolume boundingVolume;
+
+         if (structure.equals(AccelerationStructure.KD_TREE) || lazy) {
+            boundingVolume = new KDTree(TriangleMesh.this, this.vertices, this.normals, this.indices, colorInfo, computeHierarchy, lazy);
          } else {
-            this.readBinary(modelLocation, propertyCount, new int[] { xpos, ypos, zpos }, new int[] { nxpos, nypos, nzpos }, hasNormals);
+            boundingVolume = new BVH(TriangleMesh.this, this.vertices, this.normals, this.indices, colorInfo, computeHierarchy, structure);
          }
 
-         final long endTime = System.nanoTime();
-         System.out.println("model parsed in " + (endTime - startTime) / 1000000000. + " seconds");
+         this.setBoundingVolume(boundingVolume);
 
-         this.computeNormals(hasNormals);
+         if (cacheFile != null) {
+            try {
+               MeshCache.write(cacheFile, key, this.vertices, this.normals, this.indices, boundingVolume.getPackedTree(), new LODMesh.Level[0]);
+            } catch (final IOException e) {
+               System.err.println("Unable to write mesh cache " + cacheFile + ": " + e);
+            }
+         }
 
-         this.setBoundingVolume(new KDTree(TriangleMesh.this, this.vertices, this.normals, this.indices, colorInfo, computeKDTree));
+         this.addLevelsOfDetail(colorInfo);
+         this.releaseAttributes();
       } catch (final Exception e) {
          e.printStackTrace();
          System.exit(1);
       }
    }
 
+   /**
+    * Opens the out of core chunk file for the given model, parsing the model and writing the file first if needed. The
+    * parsed arrays are dropped once the chunks are written, so afterwards only the chunks being traced are in memory.
+    */
+   private void openChunks(final File modelLocation, final ColorInformation colorInfo, final boolean computeHierarchy) throws IOException {
+      final byte[] key = MeshCache.getKey(modelLocation, AccelerationStructure.OUT_OF_CORE_BVH, computeHierarchy);
+      final File chunkFile = MeshCache.getCacheFile(modelLocation, key);
+      ChunkedMesh mesh = ChunkedMesh.read(chunkFile, key, this, colorInfo);
+
+      if (mesh == null) {
+         this.parse(modelLocation);
+         ChunkedMesh.write(chunkFile, key, this.vertices, this.normals, this.indices, computeHierarchy);
+
+         this.vertices = null;
+         this.normals = null;
+         this.indices = null;
+         mesh = ChunkedMesh.read(chunkFile, key, this, colorInfo);
+
+         if (mesh == null) {
+            throw new IOException("Unable to open the chunk file just written: " + chunkFile);
+         }
+      }
+
+      this.setBoundingVolume(this.levelsOfDetail && mesh.getLevels().length > 0 ? new LODMesh(this, colorInfo, mesh, mesh.getLevels()) : mesh);
+   }
+
+   /**
+    * Loads the given model and its BVH into an OffHeapMesh. A cached mesh is copied from the mapped cache file straight
+    * into native memory; otherwise the model is parsed, simplified and built on the heap, so the first load still needs
+    * a heap the size of the mesh, and the parsed arrays are dropped once they are copied. Only the simplified levels of
+    * detail stay on the heap.
+    */
+   private void openOffHeap(final File modelLocation, final ColorInformation colorInfo, final boolean computeHierarchy) throws IOException {
+      final byte[] key = RTStatics.ENABLE_MESH_CACHE ? MeshCache.getKey(modelLocation, AccelerationStructure.OFF_HEAP_BVH, computeHierarchy) : null;
+      final File cacheFile = key != null ? MeshCache.getCacheFile(modelLocation, key) : null;
+      final long startTime = System.nanoTime();
+      OffHeapMesh mesh = cacheFile != null ? MeshCache.readOffHeap(cacheFile, key, this, colorInfo) : null;
+      final LODMesh.Level[] levels;
+
+      if (mesh != null) {
+         levels = mesh.getLevels();
+         this.numVertices = mesh.getVertexCount();
+         this.numFaces = mesh.getFaceCount();
+
+         final long endTime = System.nanoTime();
+         System.out.println("loaded " + this.numFaces + " faces and " + AccelerationStructure.OFF_HEAP_BVH + " from " + cacheFile.getName() + " in " + (endTime - startTime)
+               / 1000000000. + " seconds");
+      } else {
+         this.parse(modelLocation);
+
+         final LinearTree tree = ChunkedMesh.build(this.vertices, this.indices, computeHierarchy);
+         OffHeapMesh.checkSize(this.numVertices, this.numFaces, tree.getNodeCount());
+         // made whatever the levelsOfDetail flag, like a chunk file's, so the cache matches its key
+         levels = RTStatics.ENABLE_LOD && this.numFaces >= RTStatics.LOD_MIN_FACES ? LODMesh.simplify(this.vertices, this.normals, this.indices)
+               : new LODMesh.Level[0];
+
+         if (cacheFile != null) {
+            try {
+               MeshCache.write(cacheFile, key, this.vertices, this.normals, this.indices, tree, levels);
+            } catch (final IOException e) {
+               System.err.println("Unable to write mesh cache " + cacheFile + ": " + e);
+            }
+         }
+
+         mesh = new OffHeapMesh(this, colorInfo, this.vertices, this.normals, this.indices, tree);
+
+         this.vertices = null;
+         this.normals = null;
+         this.indices = null;
+      }
+
+      this.setBoundingVolume(this.levelsOfDetail && levels.length > 0 ? new LODMesh(this, colorInfo, mesh, levels) : mesh);
+   }
+
+   /**
+    * Wraps the mesh's bounding volume in an LODMesh with simplified levels if levels of detail are enabled and the mesh
+    * has at least RTStatics.LOD_MIN_FACES faces.
+    */
+   private void addLevelsOfDetail(final ColorInformation colorInfo) {
+      if (this.levelsOfDetail && RTStatics.ENABLE_LOD && this.numFaces >= RTStatics.LOD_MIN_FACES) {
+         final LODMesh.Level[] levels = LODMesh.simplify(this.vertices, this.normals, this.indices);
+
+         if (levels.length > 0) {
+            this.setBoundingVolume(new LODMesh(this, colorInfo, this.boundingVolume, levels));
+         }
+      }
+   }
+
+   /**
+    * Drops the mesh's float vertices and normals once nothing needs them but the full detail structure, and that keeps
+    * a compact store of them instead, see RTStatics.MESH_ATTRIBUTES. getVertices decodes them again if the mesh is
+    * moved.
+    */
+   private void releaseAttributes() {
+      if (this.getFullDetail().releaseAttributes()) {
+         this.vertices = null;
+         this.normals = null;
+      }
+   }
+
+   /**
+    * Decodes the vertices and normals from the full detail structure's store if releaseAttributes dropped them.
+    */
+   private void restoreAttributes() {
+      if (this.vertices == null) {
+         final MeshBoundingVolume volume = this.getFullDetail();
+
+         volume.restoreAttributes();
+         this.vertices = volume.getVertices();
+         this.normals = volume.getNormals();
+      }
+   }
+
+   /**
+    * @return The mesh's bounding volume without its levels of detail
+    * @throws UnsupportedOperationException
+    *            If the mesh is out of core or off heap
+    */
+   private MeshBoundingVolume getFullDetail() {
+      final BoundingVolume volume = this.boundingVolume instanceof LODMesh ? ((LODMesh) this.boundingVolume).getFullDetail() : this.boundingVolume;
+
+      if (!(volume instanceof MeshBoundingVolume)) {
+         throw new UnsupportedOperationException("Out of core and off heap meshes cannot be refitted");
+      }
+
+      return (MeshBoundingVolume) volume;
+   }
+
+   /**
+    * Reads the vertices and faces of the given PLY model, computing vertex normals if the model has none.
+    */
+   private void parse(final File modelLocation) throws IOException {
+      final long startTime = System.nanoTime();
+      final BufferedReader reader = new BufferedReader(new FileReader(modelLocation));
+      String temp = null;
+      int ctr = 0;
+      boolean body = false;
+      this.numVertices = 0;
+      this.numFaces = 0;
+      boolean hasNormals = false;
+      boolean isASCII = true;
+      int propertyCount = 0;
+      int xpos = -1, ypos = -1, zpos = -1, nxpos = -1, nypos = -1, nzpos = -1;
+
+      while (!body && ((temp = reader.readLine()) != null)) {
+         if (temp.startsWith("element vertex")) {
+            this.numVertices = Integer.parseInt(temp.split(" ")[2]);
+            this.vertices = new float[this.numVertices * 3];
+            this.normals = new float[this.numVertices * 3];
+         } else if (temp.startsWith("element face")) {
+            this.numFaces = Integer.parseInt(temp.split(" ")[2]);
+            this.indices = new int[this.numFaces * 3];
+         } else if (temp.startsWith("property")) {
+            if (temp.endsWith(" nx")) {
+               nxpos = propertyCount;
+            } else if (temp.endsWith(" ny")) {
+               nypos = propertyCount;
+            } else if (temp.endsWith(" nz")) {
+               nzpos = propertyCount;
+            } else if (temp.endsWith(" x")) {
+               xpos = propertyCount;
+            } else if (temp.endsWith(" y")) {
+               ypos = propertyCount;
+            } else if (temp.endsWith(" z")) {
+               zpos = propertyCount;
+            }
+
+            if (!temp.startsWith("property list")) {
+               propertyCount++;
+            }
+         } else if (temp.startsWith("format binary")) {
+            isASCII = false;
+         } else if (temp.equals("end_header")) {
+            body = true;
+         }
+
+         System.out.println(temp);
+         ctr++;
+      }
+      System.out.println("position locations: " + xpos + ", " + ypos + ", " + zpos + "\nnormal locations: " + nxpos + ", " + nypos + ", " + nzpos);
+      hasNormals = (nxpos != -1) && (nypos != -1) && (nzpos != -1);
+
+      if (isASCII) {
+         this.readASCII(reader, new int[] { xpos, ypos, zpos }, new int[] { nxpos, nypos, nzpos }, hasNormals);
+      } else {
+         this.readBinary(modelLocation, propertyCount, new int[] { xpos, ypos, zpos }, new int[] { nxpos, nypos, nzpos }, hasNormals);
+      }
+
+      final long endTime = System.nanoTime();
+      System.out.println("model parsed in " + (endTime - startTime) / 1000000000. + " seconds");
+
+      this.computeNormals(hasNormals);
+
+      if (RTStatics.REORDER_MESHES) {
+         this.reorder();
+      }
+   }
+
+   /**
+    * Sorts the faces along a Morton curve through their centroids and renumbers the vertices in the order the sorted
+    * faces first use them. Scanned models list their faces and vertices in scan order, so the faces of one leaf read
+    * vertices from all over the arrays; afterwards nearby faces, and the vertices they read, are close together in
+    * memory. Vertices no face uses are kept at the end.
+    */
+   private void reorder() {
+      final long startTime = System.nanoTime();
+      final float[][] minMax = new float[2][3];
+      final float[] scale = new float[3];
+
+      RTStatics.getMinMax(this.vertices, this.indices, minMax);
+
+      for (int a = 0; a < 3; a++) {
+         scale[a] = minMax[1][a] > minMax[0][a] ? 1023.99f / (minMax[1][a] - minMax[0][a]) : 0f;
+      }
+
+      // Morton code in the high half and the face below it, so the sort is a plain long sort
+      final long[] keys = new long[this.numFaces];
+
+      for (int face = 0; face < this.numFaces; face++) {
+         final int p0 = this.indices[face * 3] * 3;
+         final int p1 = this.indices[face * 3 + 1] * 3;
+         final int p2 = this.indices[face * 3 + 2] * 3;
+         int morton = 0;
+
+         for (int a = 0; a < 3; a++) {
+            final float centroid = (this.vertices[p0 + a] + this.vertices[p1 + a] + this.vertices[p2 + a]) / 3f;
+            morton |= RTStatics.spreadBits((int) ((centroid - minMax[0][a]) * scale[a])) << a;
+         }
+
+         keys[face] = (long) morton << 32 | face;
+      }
+
+      Arrays.parallelSort(keys);
+
+      final int[] indices = new int[this.indices.length];
+      final float[] vertices = new float[this.vertices.length];
+      final float[] normals = new float[this.normals.length];
+      final int[] vertexOrder = new int[this.numVertices];
+      int vertexCount = 0;
+
+      Arrays.fill(vertexOrder, -1);
+
+      for (int i = 0; i < this.numFaces; i++) {
+         final int face = (int) keys[i];
+
+         for (int k = 0; k < 3; k++) {
+            final int vertex = this.indices[face * 3 + k];
+
+            if (vertexOrder[vertex] == -1) {
+               vertexOrder[vertex] = vertexCount;
+               System.arraycopy(this.vertices, vertex * 3, vertices, vertexCount * 3, 3);
+               System.arraycopy(this.normals, vertex * 3, normals, vertexCount * 3, 3);
+               vertexCount++;
+            }
+
+            indices[i * 3 + k] = vertexOrder[vertex];
+         }
+      }
+
+      for (int vertex = 0; vertex < this.numVertices; vertex++) {
+         if (vertexOrder[vertex] == -1) {
+            System.arraycopy(this.vertices, vertex * 3, vertices, vertexCount * 3, 3);
+            System.arraycopy(this.normals, vertex * 3, normals, vertexCount * 3, 3);
+            vertexCount++;
+         }
+      }
+
+      this.vertices = vertices;
+      this.normals = normals;
+      this.indices = indices;
+
+      final long endTime = System.nanoTime();
+      System.out.println("reordered " + this.numFaces + " faces and " + this.numVertices + " vertices along a Morton curve in " + (endTime - startTime) / 1000000.
+            + " ms");
+   }
+
    private void computeNormals(final boolean hasNormals) {
       if (!hasNormals) {
          final long startTime = System.nanoTime();
          float[] normal = new float[3];
 
-         for (final int[] face : this.indices) {
-            normal = RTStatics.computeNormal(this.vertices, face);
+         for (int face = 0; face < this.numFaces; face++) {
+            normal = RTStatics.computeNormal(this.vertices, this.indices, face);
 
-            for (final int i : face) {
-               this.normals[i][0] += normal[0];
-               this.normals[i][1] += normal[1];
-               this.normals[i][2] += normal[2];
+            for (int k = 0; k < 3; k++) {
+               final int i = this.indices[face * 3 + k] * 3;
+               this.normals[i] += normal[0];
+               this.normals[i + 1] += normal[1];
+               this.normals[i + 2] += normal[2];
             }
          }
 
-         final float[] zero = new float[] { 0, 0, 0 };
          float length = 0;
 
          // average and normalize
-         for (int i = 0; i < this.normals.length; i++) {
-            length = RTStatics.getDistance(zero, this.normals[i]);
+         for (int i = 0; i < this.normals.length; i += 3) {
+            length = (float) Math.sqrt(this.normals[i] * this.normals[i] + this.normals[i + 1] * this.normals[i + 1] + this.normals[i + 2] * this.normals[i + 2]);
 
-            this.normals[i][0] /= length;
-            this.normals[i][1] /= length;
-            this.normals[i][2] /= length;
+            this.normals[i] /= length;
+            this.normals[i + 1] /= length;
+            this.normals[i + 2] /= length;
          }
 
          final long endTime = System.nanoTime();
@@ -132,22 +439,22 @@ public class TriangleMesh extends SceneObject {
       for (int i = 0; i < this.numVertices; i++) {
          split = reader.readLine().split(" ");
 
-         this.vertices[i][0] = Float.parseFloat(split[pos[0]]);
-         this.vertices[i][1] = Float.parseFloat(split[pos[1]]);
-         this.vertices[i][2] = Float.parseFloat(split[pos[2]]);
+         this.vertices[i * 3] = Float.parseFloat(split[pos[0]]);
+         this.vertices[i * 3 + 1] = Float.parseFloat(split[pos[1]]);
+         this.vertices[i * 3 + 2] = Float.parseFloat(split[pos[2]]);
 
-         this.normals[i][0] = hasNormals ? Float.parseFloat(split[normal[0]]) : 0;
-         this.normals[i][1] = hasNormals ? Float.parseFloat(split[normal[1]]) : 0;
-         this.normals[i][2] = hasNormals ? Float.parseFloat(split[normal[2]]) : 0;
+         this.normals[i * 3] = hasNormals ? Float.parseFloat(split[normal[0]]) : 0;
+         this.normals[i * 3 + 1] = hasNormals ? Float.parseFloat(split[normal[1]]) : 0;
+         this.normals[i * 3 + 2] = hasNormals ? Float.parseFloat(split[normal[2]]) : 0;
       }
 
       int ctr = 0;
 
       while ((temp = reader.readLine()) != null) {
          split = temp.split(" ");
-         this.indices[ctr][0] = Integer.parseInt(split[1]);
-         this.indices[ctr][1] = Integer.parseInt(split[2]);
-         this.indices[ctr][2] = Integer.parseInt(split[3]);
+         this.indices[ctr * 3] = Integer.parseInt(split[1]);
+         this.indices[ctr * 3 + 1] = Integer.parseInt(split[2]);
+         this.indices[ctr * 3 + 2] = Integer.parseInt(split[3]);
          ctr++;
       }
    }
@@ -175,27 +482,66 @@ public class TriangleMesh extends SceneObject {
             properties[j] = dis.readFloat();
          }
 
-         this.vertices[i][0] = properties[pos[0]];
-         this.vertices[i][1] = properties[pos[1]];
-         this.vertices[i][2] = properties[pos[2]];
+         this.vertices[i * 3] = properties[pos[0]];
+         this.vertices[i * 3 + 1] = properties[pos[1]];
+         this.vertices[i * 3 + 2] = properties[pos[2]];
 
-         this.normals[i][0] = hasNormals ? properties[normal[0]] : 0;
-         this.normals[i][1] = hasNormals ? properties[normal[1]] : 0;
-         this.normals[i][2] = hasNormals ? properties[normal[2]] : 0;
+         this.normals[i * 3] = hasNormals ? properties[normal[0]] : 0;
+         this.normals[i * 3 + 1] = hasNormals ? properties[normal[1]] : 0;
+         this.normals[i * 3 + 2] = hasNormals ? properties[normal[2]] : 0;
       }
 
       System.out.println("vertices read: " + this.numVertices);
 
       for (int i = 0; i < this.numFaces; i++) {
          dis.read(); // only supporting triangles
-         this.indices[i][0] = dis.readInt();
-         this.indices[i][1] = dis.readInt();
-         this.indices[i][2] = dis.readInt();
+         this.indices[i * 3] = dis.readInt();
+         this.indices[i * 3 + 1] = dis.readInt();
+         this.indices[i * 3 + 2] = dis.readInt();
       }
 
       System.out.println("faces read: " + this.numFaces);
    }
 
+   /**
+    * Returns the mesh's vertices, three floats per vertex. They may be moved in place, e.g. to animate the mesh, as long as refit is called
+    * before the next frame is traced. Vertices dropped for a compact RTStatics.MESH_ATTRIBUTES store are decoded again
+    * and kept from then on. Out of core and off heap meshes don't keep their vertices and return null.
+    */
+   public float[] getVertices() {
+      if (this.vertices == null && this.indices != null) {
+         this.restoreAttributes();
+      }
+
+      return this.vertices;
+   }
+
+   /**
+    * Updates the mesh's acceleration structure after its vertices have moved, refitting it if the tree stays good
+    * enough and rebuilding it otherwise. Call Scene.refit afterwards so the scene hierarchy sees the mesh's new bounds.
+    * 
+    * @param recomputeNormals
+    *           If true, the vertex normals are recomputed from the moved faces
+    */
+   public void refit(final boolean recomputeNormals) {
+      final MeshBoundingVolume volume = this.getFullDetail();
+
+      this.restoreAttributes();
+
+      if (recomputeNormals) {
+         Arrays.fill(this.normals, 0);
+
+         this.computeNormals(false);
+      }
+
+      volume.refit();
+
+      // the simplified levels are cheap to make again and their trees are only built for the selected level
+      if (this.boundingVolume instanceof LODMesh) {
+         ((LODMesh) this.boundingVolume).setLevels(LODMesh.simplify(this.vertices, this.normals, this.indices));
+      }
+   }
+
    @Override
    public IntersectionInformation getIntersection(final Ray ray, final int depth) {
       if (this.boundingVolume.intersects(ray)) {